@@ -0,0 +1,315 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.storage.Storage;
+import com.google.common.base.Functions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Deletes objects of a bucket in batches, with a single S3 DeleteObjects request for up to 1000
+ * keys or a single GCS JSON API batch request for up to 100 keys. The services report the outcome
+ * of every key, and retries only send the keys that could not be deleted.
+ * <p>
+ * Objects that do not exist count as deleted, so that a retry of a batch whose response was lost
+ * succeeds. Unlike {@link CloudStoreClient#delete(DeleteOptions)}, no existence check is made
+ * before deleting, so batches are meant for objects that have just been listed.
+ */
+class BatchDeleteCommand
+  extends Command
+{
+  static final int S3_MAX_KEYS = 1000;
+  static final int GCS_MAX_KEYS = 100;
+
+  // batches in flight when deleting a listing
+  static final int WINDOW = 16;
+
+  // for testing, a batch size below what the services allow
+  private static volatile int _testBatchSize = 0;
+
+  private DeleteOptions _options;
+
+  // objects collected by add() that are not part of a batch yet
+  private List<StoreFile> _collected = new ArrayList<>();
+
+  public BatchDeleteCommand(DeleteOptions options)
+  {
+    super(options);
+    _options = options;
+  }
+
+  /**
+   * @return the maximum number of keys of a batch
+   */
+  int getMaxBatchSize()
+  {
+    if(_testBatchSize > 0)
+    {
+      return _testBatchSize;
+    }
+    return getGCSClient() != null ? GCS_MAX_KEYS : S3_MAX_KEYS;
+  }
+
+  static void setTestBatchSize(int size)
+  {
+    _testBatchSize = size;
+  }
+
+  /**
+   * Deletes the objects of the bucket of the options in {@code pages} as the pages arrive,
+   * skipping directories, with {@link #WINDOW} batches in flight.
+   *
+   * @return future of the deleted objects, or null for a dry run
+   */
+  ListenableFuture<List<StoreFile>> deleteAll(Iterator<List<StoreFile>> pages)
+  {
+    ListingPipeline pipeline = new ListingPipeline(_client, pages, WINDOW, getMaxBatchSize(),
+      _options.isDryRun())
+    {
+      protected ListenableFuture<List<StoreFile>> startBatch(List<StoreFile> batch)
+      {
+        return delete(batch);
+      }
+    };
+    return pipeline.run();
+  }
+
+  /**
+   * Collects an object to delete, for operations that find out one object at a time what can be
+   * deleted. Once enough objects have been collected to fill a batch, the batch is deleted.
+   *
+   * @return future of the objects of the batch that has been started, or null if the object was
+   * only collected
+   */
+  ListenableFuture<List<StoreFile>> add(StoreFile file)
+  {
+    List<StoreFile> batch;
+    synchronized(this)
+    {
+      _collected.add(file);
+      if(_collected.size() < getMaxBatchSize())
+      {
+        return null;
+      }
+      batch = _collected;
+      _collected = new ArrayList<>();
+    }
+    return delete(batch);
+  }
+
+  /**
+   * Deletes the objects collected by {@link #add(StoreFile)} that are not part of a batch yet.
+   *
+   * @return future of the deleted objects, or null if there is nothing to delete
+   */
+  ListenableFuture<List<StoreFile>> flush()
+  {
+    List<StoreFile> batch;
+    synchronized(this)
+    {
+      batch = _collected;
+      _collected = new ArrayList<>();
+    }
+    return batch.isEmpty() ? null : delete(batch);
+  }
+
+  /**
+   * Deletes a batch of at most {@link #getMaxBatchSize()} objects, skipping directories.
+   *
+   * @return future of the deleted objects, or null if there is nothing to delete
+   */
+  ListenableFuture<List<StoreFile>> delete(List<StoreFile> batch)
+  {
+    final String bucket = _options.getBucketName();
+    final List<StoreFile> files = new ArrayList<>();
+    final Set<String> remaining = Collections.synchronizedSet(new LinkedHashSet<>());
+    for(StoreFile f : batch)
+    {
+      if(f.getObjectKey().endsWith("/"))
+      {
+        continue;
+      }
+      if(_options.isDryRun())
+      {
+        System.out.println("<DRYRUN> deleting '" + getUri(bucket, f.getObjectKey()) + "'");
+        continue;
+      }
+      files.add(f);
+      remaining.add(f.getObjectKey());
+      // listings skip checksum manifests, they are deleted with their objects
+      if(getGCSClient() == null)
+      {
+        remaining.add(ChecksumManifest.getManifestKey(f.getObjectKey()));
+      }
+    }
+    if(files.isEmpty())
+    {
+      return null;
+    }
+
+    ListenableFuture<Void> deleted = executeWithRetry(_client.getInternalExecutor(),
+      new Callable<ListenableFuture<Void>>()
+      {
+        public ListenableFuture<Void> call()
+        {
+          return _client.getApiExecutor().submit(new Callable<Void>()
+          {
+            public Void call()
+              throws IOException
+            {
+              deleteRemaining(bucket, remaining);
+              return null;
+            }
+          });
+        }
+
+        public String toString()
+        {
+          return "delete " + remaining.size() + " objects from " + getUri(bucket, "");
+        }
+      });
+    return Futures.transform(deleted, Functions.constant(files));
+  }
+
+  private void deleteRemaining(String bucket, Set<String> remaining)
+    throws IOException
+  {
+    List<String> keys;
+    synchronized(remaining)
+    {
+      keys = new ArrayList<>(remaining);
+    }
+
+    // support for testing failures
+    _options.injectAbort(getUri(bucket, keys.get(0)));
+
+    // support for testing partial failures, injected keys are reported as not deleted
+    Map<String, String> failed = new LinkedHashMap<>();
+    List<String> sent = new ArrayList<>();
+    for(String key : keys)
+    {
+      if(_options.injectKeyFailure(getUri(bucket, key)))
+      {
+        failed.put(key, "forcing delete failure");
+      }
+      else
+      {
+        sent.add(key);
+      }
+    }
+
+    if(!sent.isEmpty())
+    {
+      if(getGCSClient() != null)
+      {
+        failed.putAll(deleteGCSObjects(getGCSClient(), bucket, sent));
+      }
+      else
+      {
+        failed.putAll(deleteS3Objects(getS3Client(), bucket, sent));
+      }
+    }
+
+    remaining.retainAll(failed.keySet());
+    if(!failed.isEmpty())
+    {
+      Map.Entry<String, String> first = failed.entrySet().iterator().next();
+      throw new IOException(
+        "Could not delete " + failed.size() + " of " + keys.size() + " objects, including " +
+          getUri(bucket, first.getKey()) + ": " + first.getValue());
+    }
+  }
+
+  /**
+   * Deletes objects with a single request per {@link #S3_MAX_KEYS} keys. A batch of objects can
+   * take more than one request, as their checksum manifests are deleted with them.
+   *
+   * @return error of every key that could not be deleted
+   */
+  static Map<String, String> deleteS3Objects(AmazonS3 client, String bucket, List<String> keys)
+  {
+    Map<String, String> failed = new LinkedHashMap<>();
+    for(int i = 0; i < keys.size(); i += S3_MAX_KEYS)
+    {
+      List<String> chunk = keys.subList(i, Math.min(keys.size(), i + S3_MAX_KEYS));
+      DeleteObjectsRequest req = new DeleteObjectsRequest(bucket).withQuiet(true)
+        .withKeys(chunk.toArray(new String[chunk.size()]));
+      try
+      {
+        client.deleteObjects(req);
+      }
+      catch(MultiObjectDeleteException e)
+      {
+        for(MultiObjectDeleteException.DeleteError error : e.getErrors())
+        {
+          failed.put(error.getKey(), error.getCode() + " " + error.getMessage());
+        }
+      }
+    }
+    return failed;
+  }
+
+  /**
+   * Deletes up to {@link #GCS_MAX_KEYS} objects with a single batch request.
+   *
+   * @return error of every key that could not be deleted
+   */
+  static Map<String, String> deleteGCSObjects(Storage client, String bucket, List<String> keys)
+    throws IOException
+  {
+    final Map<String, String> failed = new LinkedHashMap<>();
+    BatchRequest batch = client.batch();
+    for(final String key : keys)
+    {
+      client.objects().delete(bucket, key).queue(batch, new JsonBatchCallback<Void>()
+      {
+        public void onSuccess(Void result, HttpHeaders responseHeaders)
+        {
+        }
+
+        public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders)
+        {
+          if(e.getCode() != 404)
+          {
+            failed.put(key, e.getCode() + " " + e.getMessage());
+          }
+        }
+      });
+    }
+    batch.execute();
+    return failed;
+  }
+}
@@ -0,0 +1,96 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized heap {@link ByteBuffer}s, so that copying many parts does not allocate and
+ * garbage collect a large buffer per part. Buffers are backed by an array, so they can be filled
+ * from an {@code InputStream} as well as passed to NIO channels and ciphers.
+ * <p>
+ * Acquiring never blocks: when the pool is empty a new buffer is allocated. At most
+ * {@code maxPooled} released buffers are kept for reuse, the rest are left to the garbage
+ * collector. Users of a shared pool raise that bound to what they can have in use at a time (see
+ * {@link #ensureMaxPooled(int)}).
+ */
+class BufferPool
+{
+  private final int _bufferSize;
+  private volatile int _maxPooled;
+  private final ConcurrentLinkedQueue<ByteBuffer> _pool = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger _pooled = new AtomicInteger();
+
+  BufferPool(int bufferSize, int maxPooled)
+  {
+    _bufferSize = bufferSize;
+    _maxPooled = maxPooled;
+  }
+
+  /**
+   * Keeps at least {@code maxPooled} released buffers for reuse from now on.
+   */
+  synchronized void ensureMaxPooled(int maxPooled)
+  {
+    if(maxPooled > _maxPooled)
+    {
+      _maxPooled = maxPooled;
+    }
+  }
+
+  int getBufferSize()
+  {
+    return _bufferSize;
+  }
+
+  /**
+   * @return a cleared buffer of {@link #getBufferSize()} bytes
+   */
+  ByteBuffer acquire()
+  {
+    ByteBuffer buf = _pool.poll();
+    if(buf == null)
+    {
+      return ByteBuffer.allocate(_bufferSize);
+    }
+    _pooled.decrementAndGet();
+    buf.clear();
+    return buf;
+  }
+
+  /**
+   * Returns a buffer obtained from {@link #acquire()} to the pool. The buffer must not be used
+   * afterwards.
+   */
+  void release(ByteBuffer buf)
+  {
+    if(buf == null || buf.capacity() != _bufferSize)
+    {
+      return;
+    }
+    if(_pooled.incrementAndGet() <= _maxPooled)
+    {
+      _pool.offer(buf);
+    }
+    else
+    {
+      _pooled.decrementAndGet();
+    }
+  }
+}
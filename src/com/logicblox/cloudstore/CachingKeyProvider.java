@@ -0,0 +1,111 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link KeyProvider} that loads every key from another provider at most once, so that operations
+ * on many objects don't read and parse the same key files over and over. Keys that could not be
+ * found are remembered as well, objects are usually encrypted with the same few key names.
+ */
+class CachingKeyProvider
+  implements KeyProvider
+{
+  private final KeyProvider _provider;
+
+  // values are either keys or the NoSuchKeyException thrown by the provider
+  private final ConcurrentMap<String, Object> _privateKeys = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Object> _publicKeys = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Object> _certificates = new ConcurrentHashMap<>();
+
+  CachingKeyProvider(KeyProvider provider)
+  {
+    _provider = provider;
+  }
+
+  public PrivateKey getPrivateKey(String alias)
+    throws NoSuchKeyException
+  {
+    Object key = _privateKeys.get(alias);
+    if(key == null)
+    {
+      try
+      {
+        key = _provider.getPrivateKey(alias);
+      }
+      catch(NoSuchKeyException e)
+      {
+        key = e;
+      }
+      _privateKeys.putIfAbsent(alias, key);
+    }
+    return (PrivateKey) get(key);
+  }
+
+  public PublicKey getPublicKey(String alias)
+    throws NoSuchKeyException
+  {
+    Object key = _publicKeys.get(alias);
+    if(key == null)
+    {
+      try
+      {
+        key = _provider.getPublicKey(alias);
+      }
+      catch(NoSuchKeyException e)
+      {
+        key = e;
+      }
+      _publicKeys.putIfAbsent(alias, key);
+    }
+    return (PublicKey) get(key);
+  }
+
+  public Certificate getCertificate(String alias)
+    throws NoSuchKeyException
+  {
+    Object cert = _certificates.get(alias);
+    if(cert == null)
+    {
+      try
+      {
+        cert = _provider.getCertificate(alias);
+      }
+      catch(NoSuchKeyException e)
+      {
+        cert = e;
+      }
+      _certificates.putIfAbsent(alias, cert);
+    }
+    return (Certificate) get(cert);
+  }
+
+  private static Object get(Object cached)
+    throws NoSuchKeyException
+  {
+    if(cached instanceof NoSuchKeyException)
+    {
+      throw (NoSuchKeyException) cached;
+    }
+    return cached;
+  }
+}
@@ -0,0 +1,206 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CRC32C checksums of the parts of a stored object, plus the CRC32C of the whole object. S3 can
+ * only validate downloads against the MD5-based ETag when the download uses the same ranges the
+ * object was uploaded in. CRC32C values can be combined (see {@link Crc32c#combine}), so with a
+ * manifest any layout of ranges can be validated, and ranges that match a part can be validated
+ * on their own.
+ * <p>
+ * S3 fixes user metadata when an upload is initiated, before any checksum is known, so the
+ * manifest is stored in a small sidecar object (see {@link #getManifestKey(String)}) once the
+ * upload is complete. It records the ETag of the object it describes, so that a manifest left
+ * behind by an older version of the object is ignored. Offsets and lengths refer to the stored
+ * (possibly encrypted) bytes:
+ * <pre>
+ * etag &lt;etag&gt;
+ * crc32c &lt;whole object CRC32C, base64&gt;
+ * part &lt;offset&gt; &lt;length&gt; &lt;CRC32C, base64&gt;
+ * </pre>
+ */
+class ChecksumManifest
+{
+  private static final String MANIFEST_SUFFIX = ".cs.manifest";
+
+  private final String _etag;
+  private final List<long[]> _parts;
+  private final long _crc32c;
+
+  private ChecksumManifest(String etag, List<long[]> parts, long crc32c)
+  {
+    _etag = etag;
+    _parts = parts;
+    _crc32c = crc32c;
+  }
+
+  /**
+   * @return the key of the manifest object of {@code objectKey}, in the same directory as the
+   * object
+   */
+  static String getManifestKey(String objectKey)
+  {
+    int name = objectKey.lastIndexOf('/') + 1;
+    return objectKey.substring(0, name) + "_" + objectKey.substring(name) + MANIFEST_SUFFIX;
+  }
+
+  /**
+   * Manifests are not objects of their own: listings skip them, and they are deleted, copied and
+   * renamed along with the objects they describe.
+   *
+   * @return true if {@code key} is the key of a manifest object
+   */
+  static boolean isManifestKey(String key)
+  {
+    String name = key.substring(key.lastIndexOf('/') + 1);
+    return name.startsWith("_") && name.endsWith(MANIFEST_SUFFIX) &&
+      name.length() > 1 + MANIFEST_SUFFIX.length();
+  }
+
+  /**
+   * Builds the manifest of an object of consecutive parts.
+   *
+   * @param lengths stored length of each part, in order
+   * @param crcs CRC32C of each part, in order
+   */
+  static ChecksumManifest of(String etag, List<Long> lengths, List<Long> crcs)
+  {
+    List<long[]> parts = new ArrayList<>();
+    long offset = 0;
+    long crc = 0;
+    for(int i = 0; i < lengths.size(); i++)
+    {
+      parts.add(new long[]{offset, lengths.get(i), crcs.get(i)});
+      crc = i == 0 ? crcs.get(i) : Crc32c.combine(crc, crcs.get(i), lengths.get(i));
+      offset += lengths.get(i);
+    }
+    return new ChecksumManifest(etag, parts, crc);
+  }
+
+  static ChecksumManifest parse(byte[] content)
+  {
+    String etag = null;
+    Long crc = null;
+    List<long[]> parts = new ArrayList<>();
+    for(String line : new String(content, StandardCharsets.UTF_8).split("\n"))
+    {
+      String[] record = line.split(" ");
+      if(record[0].equals("etag") && record.length == 2)
+      {
+        etag = record[1];
+      }
+      else if(record[0].equals("crc32c") && record.length == 2)
+      {
+        crc = decode(record[1]);
+      }
+      else if(record[0].equals("part") && record.length == 4)
+      {
+        parts.add(new long[]{Long.parseLong(record[1]), Long.parseLong(record[2]),
+          decode(record[3])});
+      }
+      else if(!line.isEmpty())
+      {
+        throw new IllegalArgumentException("invalid manifest record: " + line);
+      }
+    }
+
+    if(etag == null || crc == null)
+    {
+      throw new IllegalArgumentException("incomplete manifest");
+    }
+    return new ChecksumManifest(etag, parts, crc);
+  }
+
+  byte[] toBytes()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("etag ").append(_etag).append('\n');
+    sb.append("crc32c ").append(encode(_crc32c)).append('\n');
+    for(long[] part : _parts)
+    {
+      sb.append("part ").append(part[0]).append(' ').append(part[1]).append(' ')
+        .append(encode(part[2])).append('\n');
+    }
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  String getETag()
+  {
+    return _etag;
+  }
+
+  /**
+   * @return the manifest of a copy of the object with the same bytes, stored with ETag {@code
+   * etag}
+   */
+  ChecksumManifest withETag(String etag)
+  {
+    return new ChecksumManifest(etag, _parts, _crc32c);
+  }
+
+  long getLength()
+  {
+    if(_parts.isEmpty())
+    {
+      return 0;
+    }
+    long[] last = _parts.get(_parts.size() - 1);
+    return last[0] + last[1];
+  }
+
+  /**
+   * @return the CRC32C of the whole object
+   */
+  long getCrc32c()
+  {
+    return _crc32c;
+  }
+
+  /**
+   * @return the CRC32C of the part that spans exactly {@code length} bytes from {@code offset}, or
+   * null if no part does
+   */
+  Long getPartCrc32c(long offset, long length)
+  {
+    for(long[] part : _parts)
+    {
+      if(part[0] == offset && part[1] == length)
+      {
+        return part[2];
+      }
+    }
+    return null;
+  }
+
+  static String encode(long crc)
+  {
+    return new String(Base64.encodeBase64(Crc32c.longToBytesBigEndian(crc)),
+      StandardCharsets.US_ASCII);
+  }
+
+  static long decode(String crc)
+  {
+    return Crc32c.bytesBigEndianToLong(Base64.decodeBase64(crc));
+  }
+}
@@ -21,6 +21,9 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
@@ -167,6 +170,31 @@ public interface CloudStoreClient
   ListenableFuture<List<StoreFile>> uploadRecursively(UploadOptions options)
     throws IOException, ExecutionException, InterruptedException;
 
+  /**
+   * Upload content of unknown length, e.g. from a pipe, to a cloud store service.
+   * <p>
+   * The file in the specified options must not be set: the content of the object is whatever
+   * is written to the returned stream. Whenever a chunk of content has been written, it is
+   * uploaded as a separate part while writing continues. At most a bounded number of chunks is
+   * buffered in memory, so writes block if the service can't keep up. Checksum validation is
+   * done for each part and for the final object, just like {@link #upload(UploadOptions)}.
+   * <p>
+   * Closing the stream completes the upload and blocks until the object has been created. Use
+   * {@link UploadOutputStream#abort()} to discard the upload instead, e.g. if the content could
+   * not be produced completely. Failures of part uploads surface as {@link IOException IOExceptions}
+   * from subsequent writes or from closing the stream.
+   * <p>
+   * Since the length of the content is not known in advance, the chunk size in the specified
+   * options defaults to {@link Utils#getDefaultStreamChunkSize()}. Progress listeners are not
+   * supported for streaming uploads.
+   *
+   * @param options Set of options that control the upload operation
+   * @return Stream to write the content of the uploaded object to
+   * @throws IOException -
+   */
+  UploadOutputStream openUploadStream(UploadOptions options)
+    throws IOException;
+
   /**
    * Delete a single file from a cloud store service.
    * <p>
@@ -246,6 +274,41 @@ public interface CloudStoreClient
   ListenableFuture<StoreFile> download(DownloadOptions options)
     throws IOException;
 
+  /**
+   * Open a read-only, random-access channel over the content of an object, for reading just
+   * slices of it (e.g. a footer or an index block) without downloading the whole object.
+   * <p>
+   * Content is fetched with ranged requests as the channel is read, in blocks that are cached and
+   * read ahead when reading sequentially. Encrypted objects are decrypted transparently: positions
+   * and size of the channel refer to the decrypted content. The file of the specified options is
+   * not used and need not be set. Unlike {@link #download(DownloadOptions)}, reads are not checksum
+   * validated.
+   *
+   * @param options Set of options selecting the object to read
+   * @return Channel to read the content of the object from
+   * @throws IOException -
+   */
+  SeekableByteChannel openChannel(DownloadOptions options)
+    throws IOException;
+
+  /**
+   * Open a stream over the content of an object, for piping it to another process or consumer
+   * without staging it in a local file.
+   * <p>
+   * Parts are fetched in parallel ahead of the reader, like {@link #download(DownloadOptions)}
+   * does, and returned in order. Only a bounded window of parts is held in memory, so reading
+   * slower than the service delivers just stalls the requests. Encrypted objects are decrypted
+   * on the fly. The object is validated like a downloaded file once its last byte has been read:
+   * a checksum failure surfaces as an {@link IOException} at the end of the stream. The file of
+   * the specified options is not used and need not be set. Progress listeners are not supported.
+   *
+   * @param options Set of options selecting the object to read
+   * @return Stream to read the content of the object from
+   * @throws IOException -
+   */
+  InputStream openStream(DownloadOptions options)
+    throws IOException;
+
   /**
    * Download a set of objects from a cloud store service to the local file system. The
    * {@code objectKey} in the {@link DownloadOptions} will be used as a prefix to find
@@ -293,6 +356,9 @@ public interface CloudStoreClient
    * Likewise, the destination bucket must already exist and the user must have write
    * permission to it.
    * <p>
+   * If a source client is set (see {@link CopyOptionsBuilder#setSourceClient}), the file is
+   * read from the storage service of that client and streamed to this one.
+   * <p>
    * Return a future that when complete will contain a {@link StoreFile} with information
    * about the destination file.
    *
@@ -342,7 +408,10 @@ public interface CloudStoreClient
 
   /**
    * Rename all files in a cloud store service whose keys share a prefix to have another prefix,
-   * behaving like a local directory rename.
+   * behaving like a local directory rename. The source objects are deleted once all of them have
+   * been copied. A resumable rename (see {@link RenameOptionsBuilder#setResume(boolean)}) deletes
+   * every source object once its copy has been verified instead, so a rename that fails can leave
+   * objects in both places, and is completed by running it again.
    * <p>
    * The source key can be a prefix (including directory-like keys ending with '/'), while the
    * destination key has to be directory-like (ending with '/').
@@ -383,6 +452,20 @@ public interface CloudStoreClient
    */
   ListenableFuture<List<StoreFile>> listObjects(ListOptions lsOptions);
 
+  /**
+   * Return the same files as {@link #listObjects(ListOptions)}, one page at a time as returned by
+   * the storage service, so that the first files can be processed while the rest of a large
+   * listing has not been fetched yet.
+   * <p>
+   * Pages are only requested when the iterator is advanced, each with its own retries. Failures are
+   * thrown from {@link Iterator#next()} as an unchecked
+   * {@link com.google.common.util.concurrent.UncheckedExecutionException} that wraps the cause.
+   *
+   * @param lsOptions Set of options controlling the behavior of the list operation
+   * @return Iterator of pages of StoreFiles with information about files in a service
+   */
+  Iterator<List<StoreFile>> listObjectsStream(ListOptions lsOptions);
+
   /**
    * Return a list of pending in-progress uploads for files whose keys match a given key.
    * <p>
@@ -449,6 +532,44 @@ public interface CloudStoreClient
   ListenableFuture<StoreFile> removeEncryptionKey(EncryptionKeyOptions options)
     throws IOException;
 
+  /**
+   * Adds a new encryption key to all encrypted files whose keys start with the object key of the
+   * options, used as a prefix.  Files that have the key already, or that are not encrypted, are
+   * left as they are.  Files are updated while the listing is still being fetched, and keys are
+   * loaded from the local key directory only once.
+   * <p>
+   * If the {@code resume} option is enabled, the files that have been updated are journaled
+   * locally, and an interrupted update of the same prefix with the same key skips them.
+   * <p>
+   * Return a future that when complete will contain a list of {@link StoreFile} objects
+   * with information on the files under the prefix.
+   *
+   * @param options Set of options specifying the new key and prefix of the files to apply it to
+   * @return Future containing list of StoreFiles with information on the files
+   * @throws IOException -
+   */
+  ListenableFuture<List<StoreFile>> addEncryptionKeyRecursively(EncryptionKeyOptions options)
+    throws IOException;
+
+  /**
+   * Removes an existing encryption key from all encrypted files whose keys start with the object
+   * key of the options, used as a prefix.  Files that don't have the key, or that are not
+   * encrypted, are left as they are.  Files are updated while the listing is still being fetched.
+   * <p>
+   * If the {@code resume} option is enabled, the files that have been updated are journaled
+   * locally, and an interrupted update of the same prefix with the same key skips them.
+   * <p>
+   * Return a future that when complete will contain a list of {@link StoreFile} objects
+   * with information on the files under the prefix.
+   *
+   * @param options Set of options specifying the key to remove and prefix of the files to remove
+   * it from
+   * @return Future containing list of StoreFiles with information on the files
+   * @throws IOException -
+   */
+  ListenableFuture<List<StoreFile>> removeEncryptionKeyRecursively(EncryptionKeyOptions options)
+    throws IOException;
+
   /**
    * Ensure all pending tasks have been completed then shut down all internal machinery
    * properly.
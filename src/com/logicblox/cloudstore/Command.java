@@ -116,6 +116,18 @@ class Command
     return _gcsClient;
   }
 
+  /**
+   * Gives a command that is run on behalf of this one the same clients and retry settings.
+   */
+  protected void configure(Command cmd)
+  {
+    cmd.setRetryClientException(_stubborn);
+    cmd.setRetryCount(_retryCount);
+    cmd.setS3Client(_s3Client);
+    cmd.setGCSClient(_gcsClient);
+    cmd.setScheme(scheme);
+  }
+
   protected static Key readKeyFromFile(String encKeyName, File encKeyFile)
     throws IOException, ClassNotFoundException
   {
@@ -18,6 +18,7 @@ package com.logicblox.cloudstore;
 
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.List;
 import java.util.Map;
 
 interface Copy
@@ -27,6 +28,12 @@ interface Copy
 
   ListenableFuture<String> completeCopy();
 
+  /**
+   * @return the byte ranges of the stored source object that are copied as parts, in order, as
+   * pairs of offset and length
+   */
+  List<long[]> getPartRanges();
+
   String getSourceBucketName();
 
   String getSourceObjectKey();
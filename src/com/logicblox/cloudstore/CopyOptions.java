@@ -26,6 +26,9 @@ import java.util.Optional;
  * <p>
  * If {@code _cannedAcl} is specified then it is applied to the destination object.
  * <p>
+ * If a source client is specified then the source object is read from the storage service of that
+ * client, which can be another service or another endpoint than the destination.
+ * <p>
  * If a progress listener factory has been set, then progress notifications will be recorded.
  * <p>
  * {@code CopyOptions} objects are meant to be built by {@code CopyOptionsBuilder}. This class
@@ -49,6 +52,8 @@ public class CopyOptions
   private String _cannedAcl;
   private final String _storageClass;
   private final Map<String, String> _userMetadata;
+  private final StoreFile _sourceStoreFile;
+  private final CloudStoreClient _sourceClient;
   private final OverallProgressListenerFactory _overallProgressListenerFactory;
 
   // for testing injection of aborts during a copy
@@ -59,7 +64,8 @@ public class CopyOptions
     CloudStoreClient cloudStoreClient, String sourceBucketName, String sourceObjectKey,
     String destinationBucketName, String destinationObjectKey, String cannedAcl,
     String storageClass, boolean dryRun, boolean ignoreAbortInjection,
-    Map<String, String> userMetadata, OverallProgressListenerFactory overallProgressListenerFactory)
+    Map<String, String> userMetadata, StoreFile sourceStoreFile, CloudStoreClient sourceClient,
+    OverallProgressListenerFactory overallProgressListenerFactory)
   {
     super(cloudStoreClient);
     _sourceBucketName = sourceBucketName;
@@ -71,6 +77,8 @@ public class CopyOptions
     _dryRun = dryRun;
     _ignoreAbortInjection = ignoreAbortInjection;
     _userMetadata = userMetadata;
+    _sourceStoreFile = sourceStoreFile;
+    _sourceClient = sourceClient;
     _overallProgressListenerFactory = overallProgressListenerFactory;
   }
 
@@ -172,6 +180,29 @@ public class CopyOptions
     return Optional.ofNullable(_userMetadata);
   }
 
+  /**
+   * Return the source object as found by a listing, if the copy was started from one. The source
+   * is then known to exist and is not checked again.
+   *
+   * @return optional listing entry of the source object
+   */
+  public Optional<StoreFile> getSourceStoreFile()
+  {
+    return Optional.ofNullable(_sourceStoreFile);
+  }
+
+  /**
+   * Return the client of the storage service the source object is copied from, if it is not the
+   * client these options were created by. Such copies stream the object from one service to the
+   * other, instead of having the storage service copy it.
+   *
+   * @return optional client of the source storage service
+   */
+  public Optional<CloudStoreClient> getSourceClient()
+  {
+    return Optional.ofNullable(_sourceClient);
+  }
+
   /**
    * Return an optional {@link OverallProgressListenerFactory progress listener} used to
    * report progress as files are copied.
@@ -43,6 +43,8 @@ public class CopyOptionsBuilder
   private Map<String, String> _userMetadata;
   private boolean _dryRun = false;
   private boolean _ignoreAbortInjection = false;
+  private StoreFile _sourceStoreFile;
+  private CloudStoreClient _sourceClient;
   private OverallProgressListenerFactory _overallProgressListenerFactory;
 
   CopyOptionsBuilder(CloudStoreClient client)
@@ -161,14 +163,49 @@ public class CopyOptionsBuilder
     return this;
   }
 
-  // Disabled progress listener since AWS S3 copy progress indicator doesn't
-  // notify about the copied bytes.
-  //    public CopyOptionsBuilder setOverallProgressListenerFactory
-  //        (OverallProgressListenerFactory _overallProgressListenerFactory) {
-  //            _overallProgressListenerFactory = Optional.fromNullable
-  //            (_overallProgressListenerFactory);
-  //        return this;
-  //    }
+  /**
+   * Set the source object as found by a listing, so that the copy doesn't check again that it
+   * exists. Used by recursive copies and renames.
+   *
+   * @param sourceStoreFile listing entry of the source object
+   * @return this builder
+   */
+  public CopyOptionsBuilder setSourceStoreFile(StoreFile sourceStoreFile)
+  {
+    _sourceStoreFile = sourceStoreFile;
+    return this;
+  }
+
+  /**
+   * Set the client of the storage service to copy the source object from, if it is not the client
+   * this builder was created by, e.g. to copy objects from S3 to GCS, or between two S3 endpoints.
+   * The object is then streamed from the source service to the destination service, without being
+   * staged in a local file. Its encryption metadata is kept, so encrypted objects are copied as they
+   * are stored, without decrypting them.
+   *
+   * @param sourceClient client of the source storage service
+   * @return this builder
+   */
+  public CopyOptionsBuilder setSourceClient(CloudStoreClient sourceClient)
+  {
+    _sourceClient = sourceClient;
+    return this;
+  }
+
+  /**
+   * Set a progress listener factory, used to report the progress of copies. GCS reports the bytes
+   * copied as a copy proceeds. S3 copies objects without reporting the bytes copied so far, so
+   * their progress might not be reported.
+   *
+   * @param overallProgressListenerFactory factory used to create progress listeners
+   * @return this builder
+   */
+  public CopyOptionsBuilder setOverallProgressListenerFactory(
+    OverallProgressListenerFactory overallProgressListenerFactory)
+  {
+    _overallProgressListenerFactory = overallProgressListenerFactory;
+    return this;
+  }
 
   private void validateOptions()
   {
@@ -208,6 +245,11 @@ public class CopyOptionsBuilder
         throw new UsageException("Invalid storage class '" + _storageClass + "'");
       }
     }
+
+    if(_sourceClient != null && _sourceClient != _cloudStoreClient && _storageClass != null)
+    {
+      throw new UsageException("Storage class cannot be set when copying from another client");
+    }
   }
 
   /**
@@ -223,6 +265,7 @@ public class CopyOptionsBuilder
 
     return new CopyOptions(_cloudStoreClient, _sourceBucketName, _sourceObjectKey,
       _destinationBucketName, _destinationObjectKey, _cannedAcl, _storageClass, _dryRun,
-      _ignoreAbortInjection, _userMetadata, _overallProgressListenerFactory);
+      _ignoreAbortInjection, _userMetadata, _sourceStoreFile, _sourceClient,
+      _overallProgressListenerFactory);
   }
 }
@@ -114,6 +114,16 @@ final class Crc32c
     crc = 0;
   }
 
+  /**
+   * Creates a checksum that continues from a previously computed value.
+   *
+   * @param initialCrc the checksum of the bytes seen so far
+   */
+  Crc32c(long initialCrc)
+  {
+    crc = initialCrc & LONG_MASK;
+  }
+
   /**
    * Updates the checksum with a new byte.
    *
@@ -28,6 +28,7 @@ class Crc32cInputStream
   extends FilterInputStream {
 
   private Crc32c _crc;
+  private long _markedValue = 0;
 
   public Crc32cInputStream(InputStream in)
   {
@@ -35,6 +36,17 @@ class Crc32cInputStream
     _crc = new Crc32c();
   }
 
+  /**
+   * Returns a stream over {@code in} whose checksum continues from the bytes read from this
+   * stream so far, for continuing a download that failed midway from a new connection.
+   */
+  Crc32cInputStream continueWith(InputStream in)
+  {
+    Crc32cInputStream result = new Crc32cInputStream(in);
+    result._crc = new Crc32c(_crc.getValue());
+    return result;
+  }
+
   @Override
   public int read()
     throws IOException
@@ -71,6 +83,25 @@ class Crc32cInputStream
     return count;
   }
 
+  /**
+   * Marks the underlying stream and remembers the checksum computed so far, so that bytes that are
+   * re-read after a {@link #reset()} are not accounted twice.
+   */
+  @Override
+  public synchronized void mark(int readlimit)
+  {
+    in.mark(readlimit);
+    _markedValue = _crc.getValue();
+  }
+
+  @Override
+  public synchronized void reset()
+    throws IOException
+  {
+    in.reset();
+    _crc = new Crc32c(_markedValue);
+  }
+
   /**
    * Returns the value of the checksum.
    *
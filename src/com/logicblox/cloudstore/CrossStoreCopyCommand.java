@@ -0,0 +1,591 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies an object from the storage service of another client (see {@link
+ * CopyOptionsBuilder#setSourceClient}), e.g. from S3 to GCS or between two S3 endpoints. Neither
+ * service can read from the other, so the object is streamed through this process: ranged GETs of
+ * the source are uploaded as the parts of the destination, without staging the object in a local
+ * file.
+ * <p>
+ * The copy keeps the part layout and the {@code s3tool-*} metadata of the source. Encrypted objects
+ * are copied as ciphertext, without access to their keys, and downloads of the destination validate
+ * its multipart ETag just like downloads of the source. The destination validates every part as it
+ * is uploaded, and the parts read are validated against the checksum of the source before the
+ * destination object is completed.
+ * <p>
+ * Parts are kept in memory between their download and their upload, up to {@link #WINDOW_BYTES}
+ * per object, but always at least one part.
+ */
+class CrossStoreCopyCommand
+  extends Command
+{
+  // bytes of parts kept in memory per object
+  static final long WINDOW_BYTES = 32 * 1024 * 1024;
+
+  // S3 limit for the number of parts of an upload
+  private static final int S3_MAX_PART_COUNT = 10000;
+
+  private CopyOptions _options;
+  private CloudStoreClient _sourceClient;
+
+  // configured by the source client, for its storage service clients and URIs
+  private Command _source;
+  private OverallProgressListenerFactory _progressListenerFactory;
+
+  public CrossStoreCopyCommand(CopyOptions options)
+  {
+    super(options);
+    _options = options;
+    _sourceClient = options.getSourceClient().get();
+    _source = new Command(options);
+    configure(_sourceClient, _source);
+    _progressListenerFactory = options.getOverallProgressListenerFactory().orElse(null);
+  }
+
+  /**
+   * @return true if the source object of {@code options} is read with another client than the one
+   * the options were created by
+   */
+  static boolean isCrossStore(CopyOptions options)
+  {
+    return options.getSourceClient().isPresent() &&
+      options.getSourceClient().get() != options.getCloudStoreClient();
+  }
+
+  /**
+   * Configures {@code cmd} with the storage service clients and settings of {@code client}.
+   */
+  static void configure(CloudStoreClient client, Command cmd)
+  {
+    if(client instanceof GCSClient)
+    {
+      ((GCSClient) client).configure(cmd);
+    }
+    else if(client instanceof S3Client)
+    {
+      ((S3Client) client).configure(cmd);
+    }
+    else
+    {
+      throw new UsageException("Unsupported source client: " + client.getClass().getName());
+    }
+  }
+
+  public ListenableFuture<StoreFile> run()
+  {
+    final String srcUri = getSourceUri();
+    if(_options.getSourceObjectKey().endsWith("/") || _options.getSourceObjectKey().equals(""))
+    {
+      throw new UsageException("Source key should be fully qualified: " + srcUri + ". Source " +
+        "prefix keys are supported only by the recursive variant.");
+    }
+
+    if(_options.isDryRun())
+    {
+      System.out.println("<DRYRUN> copying '" + srcUri + "' to '" + getDestinationUri() + "'");
+      return Futures.immediateFuture(null);
+    }
+
+    ListenableFuture<Download> download;
+    if(_options.getSourceStoreFile().isPresent())
+    {
+      // just listed, no need to check that it exists
+      download = startDownload();
+    }
+    else
+    {
+      ExistsOptions opts = _sourceClient.getOptionsBuilderFactory()
+        .newExistsOptionsBuilder()
+        .setBucketName(_options.getSourceBucketName())
+        .setObjectKey(_options.getSourceObjectKey())
+        .createOptions();
+      download = Futures.transform(_sourceClient.exists(opts),
+        new AsyncFunction<Metadata, Download>()
+        {
+          public ListenableFuture<Download> apply(Metadata mdata)
+          {
+            if(mdata == null)
+            {
+              throw new UsageException("Source object not found at " + srcUri);
+            }
+            return startDownload();
+          }
+        });
+    }
+
+    ListenableFuture<String> result = Futures.transform(download,
+      new AsyncFunction<Download, String>()
+      {
+        public ListenableFuture<String> apply(Download download)
+        {
+          return copy(download);
+        }
+      });
+    return Futures.transform(result, new Function<String, StoreFile>()
+    {
+      public StoreFile apply(String etag)
+      {
+        StoreFile f = new StoreFile();
+        f.setLocalFile(null);
+        f.setETag(etag);
+        f.setBucketName(_options.getDestinationBucketName());
+        f.setObjectKey(_options.getDestinationObjectKey());
+        return f;
+      }
+    });
+  }
+
+  private String getSourceUri()
+  {
+    return _source.getUri(_options.getSourceBucketName(), _options.getSourceObjectKey());
+  }
+
+  private String getDestinationUri()
+  {
+    return getUri(_options.getDestinationBucketName(), _options.getDestinationObjectKey());
+  }
+
+  /**
+   * Step 1: Fetch the metadata of the source.
+   */
+  private ListenableFuture<Download> startDownload()
+  {
+    return executeWithRetry(_client.getInternalExecutor(),
+      new Callable<ListenableFuture<Download>>()
+      {
+        public ListenableFuture<Download> call()
+        {
+          return startDownloadActual();
+        }
+
+        public String toString()
+        {
+          return "starting download of " + getSourceUri();
+        }
+      });
+  }
+
+  private ListenableFuture<Download> startDownloadActual()
+  {
+    DownloadOptions options = _sourceClient.getOptionsBuilderFactory()
+      .newDownloadOptionsBuilder()
+      .setBucketName(_options.getSourceBucketName())
+      .setObjectKey(_options.getSourceObjectKey())
+      .createOptions();
+
+    if(_source.getGCSClient() != null)
+    {
+      GCSDownloadFactory factory = new GCSDownloadFactory(options, _source.getGCSClient(),
+        _sourceClient.getApiExecutor(), _sourceClient.getInternalExecutor());
+      return factory.startDownload();
+    }
+
+    S3DownloadFactory factory = new S3DownloadFactory(options, fileLength, chunkSize,
+      _source.getS3Client(), _sourceClient.getApiExecutor(), _sourceClient.getInternalExecutor());
+    return factory.startDownload();
+  }
+
+  private ListenableFuture<String> copy(final Download download)
+  {
+    String errPrefix = "Copy of " + getSourceUri() + " to " + getDestinationUri() + ": ";
+
+    Map<String, String> meta = new HashMap<>();
+    if(_options.getUserMetadata().isPresent())
+    {
+      meta.putAll(_options.getUserMetadata().get());
+    }
+    else if(download.getMetadata() != null)
+    {
+      meta.putAll(download.getMetadata());
+    }
+    if(!meta.containsKey("s3tool-version"))
+    {
+      // uploaded by another tool, copy it in parts of the default size
+      meta.put("s3tool-version", String.valueOf(Version.UNIFORM_PARTS));
+      meta.put("s3tool-chunk-size", Long.toString(Utils.getDefaultChunkSize(download.getLength())));
+      meta.put("s3tool-file-length", Long.toString(download.getLength()));
+    }
+
+    String objectVersion = meta.get("s3tool-version");
+    if(!Version.isSupported(objectVersion))
+    {
+      throw new UsageException(
+        errPrefix + "unsupported version: " + objectVersion + ", should be " +
+          Version.getSupported());
+    }
+
+    setFileLength(Long.valueOf(meta.get("s3tool-file-length")));
+    setChunkSize(Long.valueOf(meta.get("s3tool-chunk-size")));
+
+    final List<long[]> ranges = S3MultipartCopyFactory.planParts(meta, download.getLength(),
+      false);
+    for(long[] range : ranges)
+    {
+      if(range[1] > Integer.MAX_VALUE)
+      {
+        throw new UsageException(errPrefix + "parts of more than 2GB cannot be streamed");
+      }
+    }
+    if(getGCSClient() == null && ranges.size() > S3_MAX_PART_COUNT)
+    {
+      throw new UsageException(errPrefix + "the " + ranges.size() + " parts of the source " +
+        "exceed the S3 limit of " + S3_MAX_PART_COUNT + " parts");
+    }
+
+    final OverallProgressListener opl;
+    if(_progressListenerFactory != null)
+    {
+      opl = _progressListenerFactory.create(new ProgressOptionsBuilder().setObjectUri(
+        getDestinationUri())
+        .setOperation("copy")
+        .setFileSizeInBytes(download.getLength())
+        .createProgressOptions());
+    }
+    else
+    {
+      opl = null;
+    }
+
+    final ListenableFuture<Upload> started = startUpload(meta, ranges.size() == 1);
+    ListenableFuture<Upload> copied = Futures.transform(started,
+      new AsyncFunction<Upload, Upload>()
+      {
+        public ListenableFuture<Upload> apply(Upload upload)
+        {
+          return copyParts(download, upload, ranges, opl);
+        }
+      });
+    ListenableFuture<Upload> validated = Futures.transform(copied,
+      new AsyncFunction<Upload, Upload>()
+      {
+        public ListenableFuture<Upload> apply(Upload upload)
+        {
+          return validate(download, upload);
+        }
+      });
+    ListenableFuture<String> completed = Futures.transform(validated,
+      new AsyncFunction<Upload, String>()
+      {
+        public ListenableFuture<String> apply(Upload upload)
+        {
+          return complete(upload);
+        }
+      });
+
+    return Futures.withFallback(completed, new FutureFallback<String>()
+    {
+      public ListenableFuture<String> create(final Throwable t)
+      {
+        ListenableFuture<Void> aborted = Futures.transform(started,
+          new AsyncFunction<Upload, Void>()
+          {
+            public ListenableFuture<Void> apply(Upload upload)
+            {
+              return abort(upload);
+            }
+          });
+        return Futures.transform(aborted, new AsyncFunction<Void, String>()
+        {
+          public ListenableFuture<String> apply(Void v)
+          {
+            return Futures.immediateFailedFuture(t);
+          }
+        });
+      }
+    }, _client.getInternalExecutor());
+  }
+
+  /**
+   * Step 2: Start the upload of the destination, with the metadata of the source.
+   */
+  private ListenableFuture<Upload> startUpload(
+    final Map<String, String> meta, final boolean singleRequest)
+  {
+    return executeWithRetry(_client.getInternalExecutor(), new Callable<ListenableFuture<Upload>>()
+    {
+      public ListenableFuture<Upload> call()
+      {
+        return startUploadActual(meta, singleRequest);
+      }
+
+      public String toString()
+      {
+        return "starting upload " + getDestinationUri();
+      }
+    });
+  }
+
+  private ListenableFuture<Upload> startUploadActual(
+    Map<String, String> meta, boolean singleRequest)
+  {
+    // aborts are injected by the parts of the copy
+    UploadOptions options = _client.getOptionsBuilderFactory()
+      .newUploadOptionsBuilder()
+      .setBucketName(_options.getDestinationBucketName())
+      .setObjectKey(_options.getDestinationObjectKey())
+      .setCannedAcl(_options.getCannedAcl().orElse(null))
+      .setIgnoreAbortInjection(true)
+      .createOptions();
+
+    if(getGCSClient() != null)
+    {
+      if(singleRequest)
+      {
+        return Futures.<Upload>immediateFuture(new GCSSingleRequestUpload(options,
+          getGCSClient(), _client.getApiExecutor(), meta, new Date()));
+      }
+      GCSParallelUploadFactory factory = new GCSParallelUploadFactory(options, getGCSClient(),
+        _client.getApiExecutor(), meta);
+      return factory.startUpload();
+    }
+
+    if(singleRequest)
+    {
+      return Futures.<Upload>immediateFuture(new S3SingleRequestUpload(options, getS3Client(),
+        _client.getApiExecutor(), meta, new Date()));
+    }
+    S3MultipartUploadFactory factory = new S3MultipartUploadFactory(options, getS3Client(),
+      _client.getApiExecutor(), meta);
+    return factory.startUpload();
+  }
+
+  /**
+   * Step 3: Copy the parts, a window of them at a time. Each part in the window is downloaded,
+   * uploaded, and replaced by the next part that hasn't been started yet.
+   */
+  private ListenableFuture<Upload> copyParts(
+    Download download, final Upload upload, List<long[]> ranges, OverallProgressListener opl)
+  {
+    long maxPartSize = 1;
+    for(long[] range : ranges)
+    {
+      maxPartSize = Math.max(maxPartSize, range[1]);
+    }
+    int window = (int) Math.max(1, Math.min(ranges.size(), WINDOW_BYTES / maxPartSize));
+
+    AtomicInteger next = new AtomicInteger();
+    final List<ListenableFuture<Void>> copiers = new ArrayList<>();
+    for(int i = 0; i < window; i++)
+    {
+      copiers.add(copyNextPart(download, upload, ranges, next, opl));
+    }
+
+    // wait for all parts in flight to stop before the upload can be aborted
+    return Futures.transform(Futures.successfulAsList(copiers),
+      new AsyncFunction<List<Void>, Upload>()
+      {
+        public ListenableFuture<Upload> apply(List<Void> results)
+        {
+          return Futures.transform(Futures.allAsList(copiers), Functions.constant(upload));
+        }
+      });
+  }
+
+  private ListenableFuture<Void> copyNextPart(
+    final Download download, final Upload upload, final List<long[]> ranges,
+    final AtomicInteger next, final OverallProgressListener opl)
+  {
+    final int partNumber = next.getAndIncrement();
+    if(partNumber >= ranges.size())
+    {
+      return Futures.immediateFuture(null);
+    }
+
+    ListenableFuture<Void> part = copyPart(download, upload, partNumber, ranges.get(partNumber),
+      opl);
+    Futures.addCallback(part, new FutureCallback<Void>()
+    {
+      public void onSuccess(Void v)
+      {
+      }
+
+      public void onFailure(Throwable t)
+      {
+        // don't start any more parts
+        next.set(ranges.size());
+      }
+    });
+    return Futures.transform(part, new AsyncFunction<Void, Void>()
+    {
+      public ListenableFuture<Void> apply(Void v)
+      {
+        return copyNextPart(download, upload, ranges, next, opl);
+      }
+    });
+  }
+
+  private ListenableFuture<Void> copyPart(
+    Download download, final Upload upload, final int partNumber, long[] range,
+    final OverallProgressListener opl)
+  {
+    ListenableFuture<byte[]> content = downloadPart(download, partNumber, range);
+    return Futures.transform(content, new AsyncFunction<byte[], Void>()
+    {
+      public ListenableFuture<Void> apply(byte[] bytes)
+      {
+        return uploadPart(upload, partNumber, bytes, opl);
+      }
+    });
+  }
+
+  private ListenableFuture<byte[]> downloadPart(
+    final Download download, final int partNumber, final long[] range)
+  {
+    return executeWithRetry(_client.getInternalExecutor(), new Callable<ListenableFuture<byte[]>>()
+    {
+      public ListenableFuture<byte[]> call()
+      {
+        return downloadPartActual(download, partNumber, range);
+      }
+
+      public String toString()
+      {
+        return "downloading part " + (partNumber + 1) + " of " + getSourceUri();
+      }
+    });
+  }
+
+  private ListenableFuture<byte[]> downloadPartActual(
+    Download download, int partNumber, final long[] range)
+  {
+    // support for testing failures
+    _options.injectAbort(getSourceUri());
+
+    if(range[1] == 0)
+    {
+      return Futures.immediateFuture(new byte[0]);
+    }
+
+    ListenableFuture<InputStream> stream = download.downloadPart(partNumber, range[0],
+      range[0] + range[1] - 1, null);
+    return Futures.transform(stream, new AsyncFunction<InputStream, byte[]>()
+    {
+      public ListenableFuture<byte[]> apply(final InputStream in)
+      {
+        return _sourceClient.getApiExecutor().submit(new Callable<byte[]>()
+        {
+          public byte[] call()
+            throws IOException
+          {
+            // read to the end, so that the checksums of the part are complete
+            try(InputStream part = in)
+            {
+              byte[] bytes = new byte[(int) range[1]];
+              ByteStreams.readFully(part, bytes);
+              return bytes;
+            }
+          }
+        });
+      }
+    });
+  }
+
+  private ListenableFuture<Void> uploadPart(
+    final Upload upload, final int partNumber, final byte[] bytes,
+    final OverallProgressListener opl)
+  {
+    return executeWithRetry(_client.getInternalExecutor(), new Callable<ListenableFuture<Void>>()
+    {
+      public ListenableFuture<Void> call()
+      {
+        return upload.uploadPart(partNumber, bytes.length, new Callable<InputStream>()
+        {
+          public InputStream call()
+          {
+            return new ByteArrayInputStream(bytes);
+          }
+        }, opl);
+      }
+
+      public String toString()
+      {
+        return "uploading part " + (partNumber + 1) + " to " + getDestinationUri();
+      }
+    });
+  }
+
+  /**
+   * Step 4: Validate the parts read against the checksum of the source, before the destination
+   * object is completed. Empty objects have no parts to read.
+   */
+  private ListenableFuture<Upload> validate(Download download, Upload upload)
+  {
+    if(download.getLength() == 0)
+    {
+      return Futures.immediateFuture(upload);
+    }
+    return Futures.transform(download.completeDownload(fileLength, chunkSize),
+      Functions.constant(upload));
+  }
+
+  /**
+   * Step 5: Complete the destination object.
+   */
+  private ListenableFuture<String> complete(final Upload upload)
+  {
+    return executeWithRetry(_client.getInternalExecutor(), new Callable<ListenableFuture<String>>()
+    {
+      public ListenableFuture<String> call()
+      {
+        return upload.completeUpload();
+      }
+
+      public String toString()
+      {
+        return "completing upload";
+      }
+    });
+  }
+
+  private ListenableFuture<Void> abort(final Upload upload)
+  {
+    return executeWithRetry(_client.getInternalExecutor(), new Callable<ListenableFuture<Void>>()
+    {
+      public ListenableFuture<Void> call()
+      {
+        return upload.abort();
+      }
+
+      public String toString()
+      {
+        return "aborting upload";
+      }
+    });
+  }
+}
@@ -0,0 +1,110 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Copies all objects under a prefix of the storage service of another client, see {@link
+ * CrossStoreCopyCommand}. Every object in flight keeps a window of its parts in memory, so fewer
+ * objects are copied at a time than by copies within a storage service.
+ */
+class CrossStoreCopyRecursivelyCommand
+  extends Command
+{
+  // objects in flight, each with up to CrossStoreCopyCommand.WINDOW_BYTES in memory
+  static final int WINDOW = 16;
+
+  private CopyOptions _options;
+  private CloudStoreClient _sourceClient;
+
+  // configured by the source client, for its URIs
+  private Command _source;
+
+  public CrossStoreCopyRecursivelyCommand(CopyOptions options)
+  {
+    super(options);
+    _options = options;
+    _sourceClient = options.getSourceClient().get();
+    _source = new Command(options);
+    CrossStoreCopyCommand.configure(_sourceClient, _source);
+  }
+
+  public ListenableFuture<List<StoreFile>> run()
+  {
+    if(!_options.getDestinationObjectKey().endsWith("/") &&
+      !_options.getDestinationObjectKey().equals(""))
+    {
+      throw new UsageException("Destination key should end with a '/': " +
+        getUri(_options.getDestinationBucketName(), _options.getDestinationObjectKey()));
+    }
+
+    final String baseDirURI = Utils.getBaseDirURI(_options.getSourceObjectKey());
+    ListOptions sources = _sourceClient.getOptionsBuilderFactory()
+      .newListOptionsBuilder()
+      .setBucketName(_options.getSourceBucketName())
+      .setObjectKey(_options.getSourceObjectKey())
+      .setRecursive(true)
+      .createOptions();
+    // copies to another storage service never show up in the listing of the source
+    Iterator<List<StoreFile>> pages = _sourceClient.listObjectsStream(sources);
+
+    ListingPipeline pipeline = new ListingPipeline.PerObject(_client, pages, WINDOW,
+      _options.isDryRun())
+    {
+      protected ListenableFuture<StoreFile> start(StoreFile src)
+      {
+        return startCopy(src, baseDirURI);
+      }
+    };
+    return pipeline.run();
+  }
+
+  private ListenableFuture<StoreFile> startCopy(StoreFile src, String baseDirPath)
+  {
+    if(src.getObjectKey().endsWith("/"))
+    {
+      return null;
+    }
+
+    String destKeyLastPart = src.getObjectKey().substring(baseDirPath.length());
+    String destKey = _options.getDestinationObjectKey() + destKeyLastPart;
+    if(_options.isDryRun())
+    {
+      System.out.println("<DRYRUN> copying '" +
+        _source.getUri(_options.getSourceBucketName(), src.getObjectKey()) + "' to '" +
+        getUri(_options.getDestinationBucketName(), destKey) + "'");
+      return null;
+    }
+
+    CopyOptions options0 = _client.getOptionsBuilderFactory()
+      .newCopyOptionsBuilder()
+      .setSourceClient(_sourceClient)
+      .setSourceBucketName(_options.getSourceBucketName())
+      .setSourceObjectKey(src.getObjectKey())
+      .setDestinationBucketName(_options.getDestinationBucketName())
+      .setDestinationObjectKey(destKey)
+      .setCannedAcl(_options.getCannedAcl().orElse(null))
+      .setSourceStoreFile(src)
+      .setOverallProgressListenerFactory(_options.getOverallProgressListenerFactory().orElse(null))
+      .createOptions();
+    return _client.copy(options0);
+  }
+}
@@ -42,6 +42,8 @@ public class DeleteOptions
 
   // for testing injecion of aborts during a delete
   private static AbortCounters _abortCounters = new AbortCounters();
+  // for testing partial failures of batch deletes
+  private static AbortCounters _keyFailureCounters = new AbortCounters();
 
 
   DeleteOptions(
@@ -68,6 +70,18 @@ public class DeleteOptions
     return _abortCounters;
   }
 
+  // for testing partial failures of a batch delete: true if the object has to be reported as not
+  // deleted
+  boolean injectKeyFailure(String id)
+  {
+    return !_ignoreAbortInjection && _keyFailureCounters.decrementInjectionCounter(id) > 0;
+  }
+
+  static AbortCounters getKeyFailureCounters()
+  {
+    return _keyFailureCounters;
+  }
+
   /**
    * Return the name of the bucket containing the file to delete.
    *
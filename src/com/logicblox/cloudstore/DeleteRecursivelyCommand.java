@@ -16,11 +16,9 @@
 
 package com.logicblox.cloudstore;
 
-import com.google.common.util.concurrent.AsyncFunction;
-import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
@@ -39,68 +37,21 @@ class DeleteRecursivelyCommand
   public ListenableFuture<List<StoreFile>> run()
     throws InterruptedException, ExecutionException
   {
-    ListenableFuture<List<StoreFile>> listObjs = queryFiles();
-    ListenableFuture<List<StoreFile>> result = Futures.transform(listObjs,
-      new AsyncFunction<List<StoreFile>, List<StoreFile>>()
-      {
-        public ListenableFuture<List<StoreFile>> apply(List<StoreFile> potential)
-        {
-          List<StoreFile> matches = new ArrayList<StoreFile>();
-          for(StoreFile f : potential)
-          {
-            if(!f.getObjectKey().endsWith("/"))
-            {
-              matches.add(f);
-            }
-          }
-          List<ListenableFuture<StoreFile>> futures = prepareFutures(matches);
-
-          if(_options.isDryRun())
-          {
-            return Futures.immediateFuture(null);
-          }
-          else
-          {
-            return Futures.allAsList(futures);
-          }
-        }
-      });
-    return result;
-  }
-
-
-  private List<ListenableFuture<StoreFile>> prepareFutures(List<StoreFile> toDelete)
-  {
-    List<ListenableFuture<StoreFile>> futures = new ArrayList<ListenableFuture<StoreFile>>();
-    for(StoreFile src : toDelete)
-    {
-      if(_options.isDryRun())
-      {
-        System.out.println("<DRYRUN> deleting '" + getUri(src.getBucketName(), src.getObjectKey()) + "'");
-      }
-      else
-      {
-        DeleteOptions opts = _client.getOptionsBuilderFactory()
-          .newDeleteOptionsBuilder()
-          .setBucketName(src.getBucketName())
-          .setObjectKey(src.getObjectKey())
-          .createOptions();
-        futures.add(_client.delete(opts));
-      }
-    }
-    return futures;
+    BatchDeleteCommand cmd = new BatchDeleteCommand(_options);
+    configure(cmd);
+    return cmd.deleteAll(queryFiles());
   }
 
 
-  private ListenableFuture<List<StoreFile>> queryFiles()
+  private Iterator<List<StoreFile>> queryFiles()
   {
-    // find all files that need to be deleted
+    // find all files that need to be deleted, deleting them as the pages arrive
     ListOptions opts = _client.getOptionsBuilderFactory()
       .newListOptionsBuilder()
       .setBucketName(_options.getBucketName())
       .setObjectKey(_options.getObjectKey())
       .setRecursive(true)
       .createOptions();
-    return _client.listObjects(opts);
+    return _client.listObjectsStream(opts);
   }
 }
@@ -18,6 +18,7 @@ package com.logicblox.cloudstore;
 
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
 
@@ -42,6 +43,84 @@ interface Download
   ListenableFuture<InputStream> downloadPart(
     int partNumber, long start, long end, OverallProgressListener opl);
 
+  /**
+   * Continues downloading a part after an attempt that failed midway. The returned stream starts
+   * at byte {@code start} of the target object, and the checksums of the part continue from the
+   * bytes that were read from the stream of the previous attempt, which must be exactly the bytes
+   * before {@code start}.
+   *
+   * @param partNumber The sequence number of this part (0-based)
+   * @param start The index of target object's byte to continue from
+   * @param end The index of target object's byte where this parts ends (inclusive)
+   * @param opl A listener to keep track of part's download progress
+   * @return A future to the input stream from which the rest of the part can be read
+   */
+  ListenableFuture<InputStream> resumePart(
+    int partNumber, long start, long end, OverallProgressListener opl);
+
+  /**
+   * Downloads a duplicate of a part that is already being downloaded, to race a slow download of
+   * the part. The checksums of the duplicate are computed separately and only become those of the
+   * part if it is chosen with {@link #hedgeWon}. Like all parts, the duplicate is only served if the
+   * object has not changed since the download started.
+   *
+   * @param partNumber The sequence number of the part (0-based)
+   * @param start The index of target object's byte where this part starts
+   * @param end The index of target object's byte where this parts ends (inclusive)
+   * @param opl A listener to keep track of part's download progress
+   * @return A future to the input stream from which the duplicate can be read
+   */
+  ListenableFuture<InputStream> hedgePart(
+    int partNumber, long start, long end, OverallProgressListener opl);
+
+  /**
+   * Makes the checksums of a duplicate returned by {@link #hedgePart} those of the part, once the
+   * duplicate has been read completely before the original download of the part.
+   *
+   * @param partNumber The sequence number of the part (0-based)
+   * @param hedge The stream returned by {@code hedgePart} for the part
+   */
+  void hedgeWon(int partNumber, InputStream hedge);
+
+  /**
+   * Returns when the request of the last {@code downloadPart} or {@code resumePart} of a part was
+   * actually sent, which may be well after the call if the request had to wait for a connection.
+   *
+   * @param partNumber The sequence number of the part (0-based)
+   * @return The {@link System#nanoTime()} at which the request was sent, or 0 if it has not been
+   * sent yet
+   */
+  long getPartRequestNanos(int partNumber);
+
+  /**
+   * Notifies that a downloaded part has been written to the local file.
+   *
+   * @param position The offset of the local file where the part was written
+   * @param length The number of (decrypted) bytes written
+   */
+  void partWritten(long position, long length)
+    throws IOException;
+
+  /**
+   * Returns the checksums computed while part {@code partNumber} was downloaded, for recording it
+   * in a {@link DownloadJournal}. Must only be called once the part has been read completely.
+   *
+   * @return An opaque checksum string accepted by {@link #addDownloadedPart}, or null if the part
+   * has not been downloaded
+   */
+  String getPartChecksum(int partNumber);
+
+  /**
+   * Registers a part that was downloaded by an earlier, interrupted download of the same object,
+   * so that {@code completeDownload} validates the object including that part.
+   *
+   * @param partNumber The sequence number of the part (0-based)
+   * @param start The index of target object's byte where this part starts
+   * @param end The index of target object's byte where this parts ends (inclusive)
+   * @param checksum The checksum string {@link #getPartChecksum} returned for the part
+   */
+  void addDownloadedPart(int partNumber, long start, long end, String checksum);
+
   /**
    * Runs any required actions after all object parts have been downloaded and combined. Examples
    * of such actions: checksum validation, cleanup.
@@ -19,31 +19,49 @@ package com.logicblox.cloudstore;
 
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.FutureFallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import javax.xml.bind.DatatypeConverter;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Drives an end-to-end parallel object download according to {@code DownloadOptions}. At a high
@@ -58,6 +76,54 @@ abstract class DownloadCommand
   KeyProvider _encKeyProvider;
   OverallProgressListenerFactory _progressListenerFactory;
 
+  /**
+   * Layout of the parts the object was uploaded in, which the download follows
+   */
+  private PartSizes _partSizes;
+
+  /**
+   * Sidecar of a resumable download, see {@link DownloadOptions#isResume()}
+   */
+  private DownloadJournal _journal;
+
+  /**
+   * Local file, shared by all parts for positional writes
+   */
+  private FileChannel _fileChannel;
+
+  /**
+   * Buffers of the parts in flight, shared by all downloads. Parts are written with positional
+   * writes from heap buffers: decryption needs array-backed buffers anyway, and a memory-mapped
+   * file could not be released before it is garbage collected.
+   */
+  private static final BufferPool _buffers = new BufferPool(256 * 1024, 0);
+
+  /**
+   * Objects up to this size are downloaded with a single GET that fetches their metadata and
+   * content at once (see {@link #initiateSingleGetDownload}), instead of a metadata request
+   * followed by ranged GETs. The content is held in memory until it is written.
+   */
+  static final long SINGLE_GET_THRESHOLD = 4 * 1024 * 1024;
+
+  // set if the size of the object is known to be below SINGLE_GET_THRESHOLD
+  private boolean _singleGet = false;
+
+  /**
+   * Progress of parts whose download failed midway, so that a retry can continue where it stopped
+   */
+  private final ConcurrentMap<Integer, PartCheckpoint> _checkpoints = new ConcurrentHashMap<>();
+
+  /**
+   * State of every part being downloaded, shared by the download of the part and any duplicate
+   * racing it
+   */
+  private final ConcurrentMap<Integer, PartRace> _races = new ConcurrentHashMap<>();
+
+  /**
+   * Decides which parts to race with duplicates, null unless hedging is enabled
+   */
+  private HedgePolicy _hedging;
+
   public DownloadCommand(DownloadOptions options)
     throws IOException
   {
@@ -66,7 +132,10 @@ abstract class DownloadCommand
     _encKeyProvider = _client.getKeyProvider();
 
     this.file = _options.getFile();
-    createNewFile();
+    if(this.file != null)
+    {
+      createNewFile();
+    }
     _progressListenerFactory = _options.getOverallProgressListenerFactory().orElse(null);
   }
 
@@ -85,6 +154,12 @@ abstract class DownloadCommand
       }
     }
 
+    if(file.exists() && _options.isResume() && DownloadJournal.getJournalFile(file).exists())
+    {
+      // keep the partially downloaded file, see openJournal
+      return;
+    }
+
     if(file.exists())
     {
       if(_options.doesOverwrite())
@@ -124,12 +199,11 @@ abstract class DownloadCommand
    */
   public ListenableFuture<StoreFile> run()
   {
-    if(_options.getObjectKey().endsWith("/") || _options.getObjectKey().equals(""))
+    if(file == null)
     {
-      String uri = getUri(_options.getBucketName(), _options.getObjectKey());
-      throw new UsageException("Source key should be fully qualified: " + uri + ". Source " +
-        "prefix keys are supported only by the recursive variant.");
+      throw new UsageException("File has to be set");
     }
+    checkObjectKey();
 
     if(_options.isDryRun())
     {
@@ -139,6 +213,14 @@ abstract class DownloadCommand
       return Futures.immediateFuture(null);
     }
 
+    if(_options.getStoreFile().isPresent())
+    {
+      // just listed, the request that starts the download fails if it is gone since
+      Optional<Long> size = _options.getStoreFile().get().getSize();
+      _singleGet = size.isPresent() && size.get() <= SINGLE_GET_THRESHOLD;
+      return scheduleExecution();
+    }
+
     ExistsOptions opts = _client.getOptionsBuilderFactory()
       .newExistsOptionsBuilder()
       .setBucketName(_options.getBucketName())
@@ -157,6 +239,7 @@ abstract class DownloadCommand
             throw new UsageException(
               "Object not found at " + getUri(_options.getBucketName(), _options.getObjectKey()));
           }
+          _singleGet = mdata.getContentLength() <= SINGLE_GET_THRESHOLD;
           return scheduleExecution();
         }
       });
@@ -165,6 +248,271 @@ abstract class DownloadCommand
   }
 
 
+  private void checkObjectKey()
+  {
+    if(_options.getObjectKey().endsWith("/") || _options.getObjectKey().equals(""))
+    {
+      String uri = getUri(_options.getBucketName(), _options.getObjectKey());
+      throw new UsageException("Source key should be fully qualified: " + uri + ". Source " +
+        "prefix keys are supported only by the recursive variant.");
+    }
+  }
+
+  /**
+   * Opens a random-access channel over the object instead of downloading it, see {@link
+   * CloudStoreClient#openChannel(DownloadOptions)}. Only the metadata of the object is fetched
+   * here, content is fetched as the channel is read.
+   */
+  public SeekableByteChannel openChannel()
+    throws IOException
+  {
+    Download download = openDownload();
+    return new ObjectChannel(this, download, fileLength);
+  }
+
+  /**
+   * Opens a stream over the object instead of downloading it to a file, see {@link
+   * CloudStoreClient#openStream(DownloadOptions)}.
+   */
+  public InputStream openStream()
+    throws IOException
+  {
+    Download download = openDownload();
+    return new DownloadInputStream(this, download, _partSizes.getPartCount(),
+      DownloadInputStream.DEFAULT_WINDOW);
+  }
+
+  /**
+   * Fetches the metadata of the object, and with it the key and part layout, for reading it
+   * through a channel or a stream.
+   */
+  private Download openDownload()
+    throws IOException
+  {
+    checkObjectKey();
+
+    ExistsOptions opts = _client.getOptionsBuilderFactory()
+      .newExistsOptionsBuilder()
+      .setBucketName(_options.getBucketName())
+      .setObjectKey(_options.getObjectKey())
+      .createOptions();
+
+    String uri = getUri(_options.getBucketName(), _options.getObjectKey());
+    Download download;
+    try
+    {
+      if(_client.exists(opts).get() == null)
+      {
+        throw new UsageException("Object not found at " + uri);
+      }
+      download = startDownload().get();
+    }
+    catch(InterruptedException e)
+    {
+      throw new InterruptedIOException("interrupted while opening " + uri);
+    }
+    catch(ExecutionException e)
+    {
+      if(e.getCause() instanceof UsageException)
+      {
+        throw (UsageException) e.getCause();
+      }
+      throw new IOException("Error opening " + uri, e.getCause());
+    }
+
+    _partSizes = PartSizes.fromMetadata(download.getMetadata(), fileLength, chunkSize);
+    return download;
+  }
+
+  /**
+   * Fetches part {@code partNumber} as a whole, decrypting it if needed. Reading the whole stored
+   * part lets the download compute the checksums it validates the object with, see {@link
+   * #completeStream(Download)}.
+   */
+  ListenableFuture<byte[]> readPart(Download download, final int partNumber)
+  {
+    long start = getStoredPartOffset(partNumber);
+    ListenableFuture<byte[]> stored = readStoredRange(download, partNumber, start,
+      start + getStoredPartSize(partNumber) - 1);
+    if(encKey == null)
+    {
+      return stored;
+    }
+
+    return Futures.transform(stored, new AsyncFunction<byte[], byte[]>()
+    {
+      public ListenableFuture<byte[]> apply(byte[] data)
+        throws Exception
+      {
+        Cipher cipher = getPartCipher(partNumber);
+        int ivLen = cipher.getBlockSize();
+        cipher.init(Cipher.DECRYPT_MODE, encKey, new IvParameterSpec(data, 0, ivLen));
+        byte[] plain = cipher.doFinal(data, ivLen, data.length - ivLen);
+        long size = _partSizes.getPartSize(partNumber);
+        if(isLastPart(partNumber) ? plain.length != size : plain.length < size)
+        {
+          throw new IOException("part " + partNumber + " has " + plain.length +
+            " bytes instead of " + size);
+        }
+        return Futures.immediateFuture(
+          plain.length == size ? plain : Arrays.copyOf(plain, (int) size));
+      }
+    });
+  }
+
+  /**
+   * Validates the object once all its parts have been read through a stream.
+   */
+  ListenableFuture<Download> completeStream(Download download)
+  {
+    return download.completeDownload(fileLength, chunkSize);
+  }
+
+  /**
+   * Reads {@code length} bytes of the (decrypted) object from {@code position} with ranged GETs.
+   * <p>
+   * Encrypted objects consist of parts that each start with an inline IV, followed by the part
+   * encrypted with AES/CBC and cut after the block that holds its last byte (see {@link
+   * PartSizes#getEncryptedPartSize}). A CBC block only needs the ciphertext block before it, or the
+   * IV for the first one, to be decrypted. So from every part the range overlaps, the blocks that
+   * cover the range are fetched together with the block (or IV) just before them, and decrypted
+   * without padding.
+   */
+  ListenableFuture<byte[]> readRange(Download download, long position, int length)
+  {
+    if(encKey == null)
+    {
+      return readStoredRange(download, _partSizes.getPartNumber(position), position,
+        position + length - 1);
+    }
+
+    final long blockSize = getCipherBlockSize();
+    final long end = position + length;
+    List<ListenableFuture<byte[]>> segments = new ArrayList<>();
+    for(int partNumber = _partSizes.getPartNumber(position);
+        partNumber < _partSizes.getPartCount() && _partSizes.getPartOffset(partNumber) < end;
+        partNumber++)
+    {
+      long partOffset = _partSizes.getPartOffset(partNumber);
+      final long from = Math.max(position, partOffset) - partOffset;
+      final long to = Math.min(end, partOffset + _partSizes.getPartSize(partNumber)) - partOffset;
+      final long firstBlock = from / blockSize;
+      long lastBlock = (to + blockSize - 1) / blockSize;
+
+      long storedOffset = _partSizes.getEncryptedPartOffset(partNumber, blockSize);
+      ListenableFuture<byte[]> stored = readStoredRange(download, partNumber,
+        storedOffset + firstBlock * blockSize, storedOffset + (lastBlock + 1) * blockSize - 1);
+      segments.add(Futures.transform(stored, new AsyncFunction<byte[], byte[]>()
+      {
+        public ListenableFuture<byte[]> apply(byte[] data)
+          throws Exception
+        {
+          int ivLen = (int) blockSize;
+          Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+          cipher.init(Cipher.DECRYPT_MODE, encKey, new IvParameterSpec(data, 0, ivLen));
+          byte[] plain = cipher.doFinal(data, ivLen, data.length - ivLen);
+          int skip = (int) (from - firstBlock * blockSize);
+          return Futures.immediateFuture(
+            Arrays.copyOfRange(plain, skip, skip + (int) (to - from)));
+        }
+      }));
+    }
+
+    return Futures.transform(Futures.allAsList(segments), new Function<List<byte[]>, byte[]>()
+    {
+      public byte[] apply(List<byte[]> parts)
+      {
+        if(parts.size() == 1)
+        {
+          return parts.get(0);
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) (end - position));
+        for(byte[] part : parts)
+        {
+          buf.put(part);
+        }
+        return buf.array();
+      }
+    });
+  }
+
+  /**
+   * Fetches bytes {@code start} to {@code end} (inclusive) of the stored object, retrying on
+   * failure.
+   */
+  private ListenableFuture<byte[]> readStoredRange(
+    final Download download, final int partNumber, final long start, final long end)
+  {
+    return executeWithRetry(_client.getInternalExecutor(), new Callable<ListenableFuture<byte[]>>()
+    {
+      public ListenableFuture<byte[]> call()
+      {
+        ListenableFuture<InputStream> stream = download.downloadPart(partNumber, start, end, null);
+        return Futures.transform(stream, new AsyncFunction<InputStream, byte[]>()
+        {
+          public ListenableFuture<byte[]> apply(InputStream in)
+            throws IOException
+          {
+            try
+            {
+              byte[] data = ByteStreams.toByteArray(in);
+              if(data.length != end - start + 1)
+              {
+                throw new IOException("unexpected EOF, read " + data.length + " bytes instead of " +
+                  (end - start + 1));
+              }
+              return Futures.immediateFuture(data);
+            }
+            finally
+            {
+              in.close();
+            }
+          }
+        });
+      }
+
+      public String toString()
+      {
+        return "reading bytes " + start + "-" + end + " of " + download.getObjectKey();
+      }
+    });
+  }
+
+  /**
+   * Returns the cipher to decrypt a stored part with. Parts of an encrypted file are encrypted
+   * from their offset up to the end of the file, and the ciphertext is cut after the block that
+   * contains the last byte of the part (see {@link PartSizes#getEncryptedPartSize}). So except for
+   * the last part of the object, which ends with PKCS5 padding, the last block of a part holds the
+   * first bytes of the next part, and is decrypted without padding and dropped. Parts of streaming
+   * uploads are padded on their own, which decrypting without padding handles the same way.
+   */
+  private Cipher getPartCipher(int partNumber)
+    throws NoSuchAlgorithmException, NoSuchPaddingException
+  {
+    if(isLastPart(partNumber))
+    {
+      return Cipher.getInstance("AES/CBC/PKCS5Padding");
+    }
+    return Cipher.getInstance("AES/CBC/NoPadding");
+  }
+
+  private boolean isLastPart(int partNumber)
+  {
+    return partNumber == _partSizes.getPartCount() - 1;
+  }
+
+  private static long getCipherBlockSize()
+  {
+    try
+    {
+      return Cipher.getInstance("AES/CBC/PKCS5Padding").getBlockSize();
+    }
+    catch(NoSuchAlgorithmException | NoSuchPaddingException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
   private ListenableFuture<StoreFile> scheduleExecution()
   {
     ListenableFuture<Download> download = startDownload();
@@ -175,6 +523,11 @@ abstract class DownloadCommand
       {
         public StoreFile apply(Download download)
         {
+          if(_journal != null)
+          {
+            _journal.delete();
+          }
+
           StoreFile f = new StoreFile();
           f.setLocalFile(DownloadCommand.this.file);
           f.setETag(download.getETag());
@@ -188,9 +541,26 @@ abstract class DownloadCommand
     {
       public ListenableFuture<StoreFile> create(Throwable t)
       {
-        if(DownloadCommand.this.file.exists())
+        // Keep the parts written so far for resuming, unless the object turned out to be corrupt
+        boolean resumable = _options.isResume() && !(t instanceof BadHashException) &&
+          DownloadJournal.getJournalFile(DownloadCommand.this.file).exists();
+        if(resumable)
+        {
+          if(_journal != null)
+          {
+            _journal.close();
+          }
+        }
+        else
         {
-          DownloadCommand.this.file.delete();
+          if(_journal != null)
+          {
+            _journal.delete();
+          }
+          if(DownloadCommand.this.file.exists())
+          {
+            DownloadCommand.this.file.delete();
+          }
         }
 
         if(t instanceof UsageException)
@@ -245,11 +615,11 @@ abstract class DownloadCommand
         {
           String objectVersion = meta.get("s3tool-version");
 
-          if(!String.valueOf(Version.CURRENT).equals(objectVersion))
+          if(!Version.isSupported(objectVersion))
           {
             throw new UsageException(
               errPrefix + "file uploaded with unsupported version: " + objectVersion +
-                ", should be " + Version.CURRENT);
+                ", should be " + Version.getSupported());
           }
           if(meta.containsKey("s3tool-key-name"))
           {
@@ -383,11 +753,24 @@ abstract class DownloadCommand
       }
     };
 
-    return Futures.transform(initiateDownload(), initDownload);
+    ListenableFuture<Download> download = _singleGet
+      ? initiateSingleGetDownload(SINGLE_GET_THRESHOLD)
+      : initiateDownload();
+    return Futures.transform(download, initDownload);
   }
 
   protected abstract ListenableFuture<Download> initiateDownload();
 
+  /**
+   * Starts the download of an object that is expected to be at most {@code maxLength} bytes.
+   * Stores that can return the metadata of an object along with its content fetch both with a
+   * single request here. By default the download is started like any other.
+   */
+  protected ListenableFuture<Download> initiateSingleGetDownload(long maxLength)
+  {
+    return initiateDownload();
+  }
+
   /**
    * Step 2: Start downloading parts
    */
@@ -403,7 +786,7 @@ abstract class DownloadCommand
     };
   }
 
-  private ListenableFuture<Download> startParts(Download download)
+  private ListenableFuture<Download> startParts(final Download download)
     throws IOException, UsageException
   {
     OverallProgressListener opl = null;
@@ -416,66 +799,382 @@ abstract class DownloadCommand
           .createProgressOptions());
     }
 
+    _partSizes = PartSizes.fromMetadata(download.getMetadata(), fileLength, chunkSize);
+    _fileChannel = openFileChannel(fileLength);
+    // a part in flight holds up to two buffers, see readDownload
+    _buffers.ensureMaxPooled(2 * Utils.getApiConcurrency(_client.getApiExecutor()));
+
+    Map<Integer, String> written = Collections.emptyMap();
+    if(_options.isResume())
+    {
+      written = openJournal(download);
+    }
+
+    if(_options.getHedgeSlowdown() > 0 && _partSizes.getPartCount() > 1)
+    {
+      _hedging = new HedgePolicy(_options.getHedgeSlowdown());
+    }
+
     List<ListenableFuture<Integer>> parts = new ArrayList<ListenableFuture<Integer>>();
-    for(long position = 0; position < fileLength || (position == 0 && fileLength == 0);
-        position += chunkSize)
+    for(int partNumber = 0; partNumber < _partSizes.getPartCount(); partNumber++)
     {
-      parts.add(startPartDownload(download, position, opl));
+      String checksum = written.get(partNumber);
+      if(checksum != null)
+      {
+        // written by an earlier run, only its checksums are needed for validation
+        long start = getStoredPartOffset(partNumber);
+        download.addDownloadedPart(partNumber, start, start + getStoredPartSize(partNumber) - 1,
+          checksum);
+        download.partWritten(_partSizes.getPartOffset(partNumber),
+          _partSizes.getPartSize(partNumber));
+        parts.add(Futures.immediateFuture(partNumber));
+      }
+      else if(_journal != null)
+      {
+        parts.add(Futures.transform(startPartDownload(download, partNumber, opl),
+          journalPartAsyncFunction(download)));
+      }
+      else
+      {
+        parts.add(startPartDownload(download, partNumber, opl));
+      }
+    }
+
+    final ScheduledFuture<?> hedgeCheck;
+    if(_hedging != null)
+    {
+      hedgeCheck = _client.getInternalExecutor().scheduleWithFixedDelay(new Runnable()
+      {
+        public void run()
+        {
+          hedgeStragglers(download);
+        }
+      }, 1, 1, TimeUnit.SECONDS);
+    }
+    else
+    {
+      hedgeCheck = null;
     }
 
+    // close the channel only once every part is done writing, whether the download fails or not
+    Futures.successfulAsList(parts).addListener(new Runnable()
+    {
+      public void run()
+      {
+        closeFileChannel();
+        if(hedgeCheck != null)
+        {
+          hedgeCheck.cancel(false);
+        }
+      }
+    }, _client.getInternalExecutor());
+
     return Futures.transform(Futures.allAsList(parts), Functions.constant(download));
   }
 
+  /**
+   * Opens the sidecar of a resumable download. If an earlier run of the same download left one for
+   * the same version of the object, the parts it records are already in the file.
+   *
+   * @return checksums of the parts that don't need to be downloaded again, by part number
+   */
+  private Map<Integer, String> openJournal(Download download)
+    throws IOException
+  {
+    String uri = getUri(download.getBucketName(), download.getObjectKey());
+    _journal = DownloadJournal.open(file);
+    if(_journal.matches(uri, download.getETag(), download.getLength()))
+    {
+      _journal.reopen();
+      return _journal.getParts();
+    }
+
+    _journal.begin(uri, download.getETag(), download.getLength());
+    return Collections.emptyMap();
+  }
+
+  /**
+   * Records a part in the sidecar once it has been written to disk. An abort injected for testing
+   * fails the download right after the first part has been recorded.
+   */
+  private AsyncFunction<Integer, Integer> journalPartAsyncFunction(final Download download)
+  {
+    return new AsyncFunction<Integer, Integer>()
+    {
+      public ListenableFuture<Integer> apply(Integer partNumber)
+        throws IOException
+      {
+        _fileChannel.force(false);
+        _journal.addPart(partNumber, download.getPartChecksum(partNumber));
+        _options.injectAbort(getUri(download.getBucketName(), download.getObjectKey()));
+        return Futures.immediateFuture(partNumber);
+      }
+    };
+  }
+
+  /**
+   * Downloads a part, with retries. The returned future completes when the part has been written,
+   * either by this download or by a duplicate started by {@link #hedgeStragglers}, and fails only
+   * if both failed.
+   */
   private ListenableFuture<Integer> startPartDownload(
-    final Download download, final long position, final OverallProgressListener opl)
+    final Download download, final int partNumber, final OverallProgressListener opl)
   {
-    final int partNumber = (int) (position / chunkSize);
+    final PartRace race = new PartRace();
+    _races.put(partNumber, race);
+
+    ListenableFuture<Integer> part = executeWithRetry(_client.getInternalExecutor(),
+      new Callable<ListenableFuture<Integer>>()
+      {
+        public ListenableFuture<Integer> call()
+        {
+          return startPartDownloadActual(download, partNumber, opl);
+        }
 
-    return executeWithRetry(_client.getInternalExecutor(), new Callable<ListenableFuture<Integer>>()
+        public String toString()
+        {
+          return "downloading part " + (partNumber + 1) + " of " + download.getObjectKey();
+        }
+      });
+
+    Futures.addCallback(part, new FutureCallback<Integer>()
     {
-      public ListenableFuture<Integer> call()
+      public void onSuccess(Integer result)
       {
-        return startPartDownloadActual(download, position, opl);
+        race.result.set(partNumber);
       }
 
-      public String toString()
+      public void onFailure(Throwable t)
       {
-        return "downloading part " + (partNumber + 1) + " of " + download.getObjectKey();
+        synchronized(race)
+        {
+          if(race.finished)
+          {
+            race.result.set(partNumber);
+          }
+          else if(race.hedgeRunning)
+          {
+            // the duplicate may still make it
+            race.failure = t;
+          }
+          else
+          {
+            race.result.setException(t);
+          }
+        }
       }
     });
+    return race.result;
   }
 
-  private ListenableFuture<Integer> startPartDownloadActual(
-    final Download download, final long position, OverallProgressListener opl)
+  /**
+   * Races parts that are much slower than the others with a duplicate request, once all parts
+   * have started and some connections are idle. Connections are those of the API executor of the
+   * client, which may also be running requests of other downloads (see
+   * {@link Utils#getApiLoad}).
+   */
+  private void hedgeStragglers(Download download)
   {
-    final int partNumber = (int) (position / chunkSize);
-    long start;
-    long partSize;
+    try
+    {
+      int active = 0;
+      Map<Integer, PartCheckpoint> candidates = new TreeMap<>();
+      for(Map.Entry<Integer, PartRace> e : _races.entrySet())
+      {
+        PartRace race = e.getValue();
+        synchronized(race)
+        {
+          if(race.finished)
+          {
+            continue;
+          }
+          if(race.reading == null)
+          {
+            // parts are still waiting for a connection
+            return;
+          }
+          active += race.hedgeRunning ? 2 : 1;
+          if(!race.hedged)
+          {
+            candidates.put(e.getKey(), race.reading);
+          }
+        }
+      }
 
-    if(encKey != null)
+      ListeningExecutorService apiExecutor = _client.getApiExecutor();
+      int idle = Utils.getApiConcurrency(apiExecutor) - Utils.getApiLoad(apiExecutor, active);
+      long now = System.nanoTime();
+      for(Map.Entry<Integer, PartCheckpoint> e : candidates.entrySet())
+      {
+        if(idle <= 0)
+        {
+          return;
+        }
+        int partNumber = e.getKey();
+        PartCheckpoint checkpoint = e.getValue();
+        if(_hedging.isStraggler(_partSizes.getPartSize(partNumber) - checkpoint.startWritten,
+          checkpoint.written - checkpoint.startWritten, now - checkpoint.started))
+        {
+          startHedge(download, partNumber);
+          idle--;
+        }
+      }
+    }
+    catch(RuntimeException e)
     {
-      long blockSize;
-      try
+      // keep checking, hedging is only an optimization
+      System.err.println("Warning: checking for slow parts failed: " + e);
+    }
+  }
+
+  private void startHedge(final Download download, final int partNumber)
+  {
+    final PartRace race = _races.get(partNumber);
+    synchronized(race)
+    {
+      if(race.finished || race.hedged)
+      {
+        return;
+      }
+      race.hedged = true;
+      race.hedgeRunning = true;
+    }
+
+    _hedging.hedgeStarted();
+
+    final long position = _partSizes.getPartOffset(partNumber);
+    long start = getStoredPartOffset(partNumber);
+    long partSize = getStoredPartSize(partNumber);
+    final PartCheckpoint checkpoint = new PartCheckpoint();
+
+    // progress is reported by the original download of the part only
+    ListenableFuture<InputStream> getPartFuture = download.hedgePart(partNumber, start,
+      start + partSize - 1, null);
+    ListenableFuture<Integer> hedge = Futures.transform(getPartFuture,
+      new AsyncFunction<InputStream, Integer>()
+      {
+        public ListenableFuture<Integer> apply(InputStream stream)
+          throws Exception
+        {
+          try
+          {
+            synchronized(race)
+            {
+              if(race.finished)
+              {
+                return Futures.immediateFuture(partNumber);
+              }
+              race.hedgeStream = stream;
+            }
+            readDownload(download, stream, position, partNumber, checkpoint, race, true);
+            return Futures.immediateFuture(partNumber);
+          }
+          finally
+          {
+            closeQuietly(stream);
+          }
+        }
+      });
+
+    Futures.addCallback(hedge, new FutureCallback<Integer>()
+    {
+      public void onSuccess(Integer result)
       {
-        blockSize = Cipher.getInstance("AES/CBC/PKCS5Padding").getBlockSize();
+        synchronized(race)
+        {
+          race.hedgeRunning = false;
+          // if the original request is being opened, its download sets the result once the
+          // checksums of the duplicate are in place again
+          if(race.hedgeWon && !race.opening)
+          {
+            race.result.set(partNumber);
+          }
+        }
       }
-      catch(NoSuchAlgorithmException | NoSuchPaddingException e)
+
+      public void onFailure(Throwable t)
       {
-        throw new RuntimeException(e);
+        synchronized(race)
+        {
+          race.hedgeRunning = false;
+          if(!race.finished && race.failure != null)
+          {
+            race.result.setException(race.failure);
+          }
+        }
       }
+    });
+  }
 
-      long postCryptSize = Math.min(fileLength - position, chunkSize);
-      start = partNumber * blockSize * (chunkSize / blockSize + 2);
-      partSize = blockSize * (postCryptSize / blockSize + 2);
+  /**
+   * @return the offset of part {@code partNumber} in the stored, possibly encrypted, object
+   */
+  private long getStoredPartOffset(int partNumber)
+  {
+    if(encKey != null)
+    {
+      return _partSizes.getEncryptedPartOffset(partNumber, getCipherBlockSize());
     }
-    else
+    return _partSizes.getPartOffset(partNumber);
+  }
+
+  /**
+   * @return the size of part {@code partNumber} in the stored, possibly encrypted, object
+   */
+  private long getStoredPartSize(int partNumber)
+  {
+    if(encKey != null)
+    {
+      return PartSizes.getEncryptedPartSize(_partSizes.getPartSize(partNumber),
+        getCipherBlockSize());
+    }
+    return _partSizes.getPartSize(partNumber);
+  }
+
+  private ListenableFuture<Integer> startPartDownloadActual(
+    final Download download, final int partNumber, OverallProgressListener opl)
+  {
+    final PartRace race = _races.get(partNumber);
+    synchronized(race)
     {
-      start = position;
-      partSize = Math.min(fileLength - position, chunkSize);
+      if(race.finished)
+      {
+        // written by a duplicate in the meantime
+        return Futures.immediateFuture(partNumber);
+      }
+      race.opening = true;
     }
 
-    ListenableFuture<InputStream> getPartFuture = download.downloadPart(partNumber, start,
-      start + partSize - 1, opl);
+    final long position = _partSizes.getPartOffset(partNumber);
+    long start = getStoredPartOffset(partNumber);
+    long partSize = getStoredPartSize(partNumber);
+
+    ListenableFuture<InputStream> getPartFuture;
+    final PartCheckpoint checkpoint;
+    PartCheckpoint previous = _checkpoints.get(partNumber);
+    if(previous != null && previous.stored > 0 && previous.stored < partSize)
+    {
+      // an earlier attempt failed midway, fetch only the rest of the part
+      checkpoint = previous;
+      getPartFuture = download.resumePart(partNumber, start + checkpoint.stored,
+        start + partSize - 1, opl);
+    }
+    else
+    {
+      checkpoint = new PartCheckpoint();
+      _checkpoints.put(partNumber, checkpoint);
+      getPartFuture = download.downloadPart(partNumber, start, start + partSize - 1, opl);
+    }
+    getPartFuture.addListener(new Runnable()
+    {
+      public void run()
+      {
+        synchronized(race)
+        {
+          race.opening = false;
+        }
+      }
+    }, MoreExecutors.sameThreadExecutor());
 
     AsyncFunction<InputStream, Integer> readDownloadFunction
       = new AsyncFunction<InputStream, Integer>()
@@ -485,19 +1184,32 @@ abstract class DownloadCommand
       {
         try
         {
-          readDownload(download, stream, position, partNumber);
+          synchronized(race)
+          {
+            if(race.finished)
+            {
+              if(race.hedgeWon)
+              {
+                // opening this request may have replaced the checksums of the duplicate
+                download.hedgeWon(partNumber, race.winner);
+              }
+              return Futures.immediateFuture(partNumber);
+            }
+            // judge the speed of the part from when its request was sent, not from when it was
+            // queued behind the other parts
+            long requested = download.getPartRequestNanos(partNumber);
+            checkpoint.started = requested != 0 ? requested : System.nanoTime();
+            checkpoint.startWritten = checkpoint.written;
+            race.reading = checkpoint;
+            race.stream = stream;
+          }
+          readDownload(download, stream, position, partNumber, checkpoint, race, false);
           return Futures.immediateFuture(partNumber);
         }
         finally
         {
           // make sure that the stream is always closed
-          try
-          {
-            stream.close();
-          }
-          catch(IOException e)
-          {
-          }
+          closeQuietly(stream);
         }
       }
     };
@@ -505,107 +1217,351 @@ abstract class DownloadCommand
     return Futures.transform(getPartFuture, readDownloadFunction);
   }
 
+  /**
+   * Reads a part from {@code stream} into the file. The first of the download of the part and its
+   * duplicate to read the whole part wins, and the other one stops writing and returns quietly.
+   */
   private void readDownload(
-    Download download, InputStream stream, long position, int partNumber)
+    Download download, InputStream stream, long position, int partNumber,
+    PartCheckpoint checkpoint, PartRace race, boolean hedge)
     throws Exception
   {
-    RandomAccessFile out = new RandomAccessFile(file, "rw");
-    out.seek(position);
-
-    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    long postCryptSize = _partSizes.getPartSize(partNumber);
+    ByteBuffer buf = _buffers.acquire();
+    ByteBuffer plain = null;
+    try
+    {
+      checkpoint.resumable = false;
+      if(!hedge)
+      {
+        _options.injectStall(partNumber);
+      }
+      if(encKey != null)
+      {
+        plain = _buffers.acquire();
+        writeDecrypted(stream, buf, plain, position, partNumber, checkpoint, race);
+      }
+      else
+      {
+        writePlain(stream, buf, position, partNumber, postCryptSize, checkpoint, race);
+      }
 
-    InputStream in;
-    if(encKey != null)
+      if(checkpoint.written != postCryptSize)
+      {
+        throw new IOException(
+          "unexpected EOF, part " + partNumber + " has " + checkpoint.written +
+            " bytes instead of " + postCryptSize);
+      }
+    }
+    catch(Exception e)
     {
-      in = new CipherWithInlineIVInputStream(stream, cipher, Cipher.DECRYPT_MODE, encKey);
+      if(race.isFinished())
+      {
+        // the other attempt won
+        _checkpoints.remove(partNumber, checkpoint);
+        return;
+      }
+      if(!checkpoint.resumable)
+      {
+        _checkpoints.remove(partNumber, checkpoint);
+      }
+      throw e;
     }
-    else
+    finally
     {
-      in = stream;
+      _buffers.release(buf);
+      _buffers.release(plain);
+    }
+
+    InputStream loser;
+    synchronized(race)
+    {
+      if(race.finished)
+      {
+        _checkpoints.remove(partNumber, checkpoint);
+        return;
+      }
+      race.finished = true;
+      // the other attempt may still be writing the same content
+      while(race.writers > 0)
+      {
+        race.wait();
+      }
+      if(hedge)
+      {
+        race.hedgeWon = true;
+        race.winner = stream;
+        download.hedgeWon(partNumber, stream);
+      }
+      loser = hedge ? race.stream : race.hedgeStream;
     }
+    // abort the other attempt, which may be stuck in a slow read
+    closeQuietly(loser);
 
-    long postCryptSize = Math.min(fileLength - position, chunkSize);
-    int bufSize = 8192;
-    byte[] buf = new byte[bufSize];
+    _checkpoints.remove(partNumber);
+    if(_hedging != null)
+    {
+      _hedging.partFinished(postCryptSize - checkpoint.startWritten,
+        System.nanoTime() - checkpoint.started);
+      if(hedge)
+      {
+        _hedging.hedgeWon();
+      }
+    }
+    download.partWritten(position, postCryptSize);
+  }
 
-    Runnable cleanup = () -> {
+  private void writePlain(
+    InputStream in, ByteBuffer buf, long position, int partNumber, long size,
+    PartCheckpoint checkpoint, PartRace race)
+    throws IOException
+  {
+    while(checkpoint.written < size)
+    {
+      buf.clear();
+      buf.limit((int) Math.min(buf.capacity(), size - checkpoint.written));
+      boolean more;
+      IOException failure = null;
       try
       {
-        out.close();
-        stream.close();
+        more = fill(in, buf);
+        injectReadFailure(partNumber);
       }
-      catch(IOException ignored)
+      catch(IOException e)
       {
+        // keep what was read, a retry continues right after it
+        more = true;
+        failure = e;
       }
-    };
 
-    // Handle empty encrypted file, offset == postCryptSize is implied
-    if(encKey != null && postCryptSize == 0)
+      buf.flip();
+      int count = buf.remaining();
+      if(!writePart(race, buf, position + checkpoint.written))
+      {
+        return;
+      }
+      checkpoint.stored += count;
+      checkpoint.written += count;
+
+      if(failure != null)
+      {
+        checkpoint.resumable = true;
+        throw failure;
+      }
+      if(!more)
+      {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Decrypts a part (inline IV followed by AES/CBC ciphertext) straight from the pooled buffers,
+   * instead of through a {@code CipherInputStream}, which decrypts a few hundred bytes at a time.
+   * Only the bytes of the part are written, see {@link #getPartCipher} for what follows them.
+   * <p>
+   * The cipher is kept in the checkpoint of the part, so after a failed read a retry continues
+   * with the chaining state of the ciphertext read so far, including any block the cipher still
+   * holds back.
+   */
+  private void writeDecrypted(
+    InputStream in, ByteBuffer buf, ByteBuffer plain, long position, int partNumber,
+    PartCheckpoint checkpoint, PartRace race)
+    throws Exception
+  {
+    long size = _partSizes.getPartSize(partNumber);
+    Cipher cipher = checkpoint.cipher;
+    if(cipher == null)
     {
-      int result = readSafe(in, buf, 0, 0, cleanup);
-      if(result != -1)
+      cipher = getPartCipher(partNumber);
+      int blockSize = cipher.getBlockSize();
+      ByteBuffer iv = ByteBuffer.allocate(blockSize);
+      if(!fill(in, iv))
       {
-        // TODO: Check if the correct/expected result here should be 0 (instead
-        // of -1).
-        cleanup.run();
-        throw new IOException("EOF was expected");
+        throw new IOException("unexpected EOF reading the IV");
       }
+      cipher.init(Cipher.DECRYPT_MODE, encKey, new IvParameterSpec(iv.array()));
+      checkpoint.cipher = cipher;
+      checkpoint.stored = blockSize;
     }
-    else // Not necessary, just for easier reading
+
+    // The cipher may hold back one block between updates, which comes out with the next one
+    int maxRead = buf.capacity() - cipher.getBlockSize();
+    while(true)
     {
-      long offset = 0;
-      while(offset < postCryptSize)
+      buf.clear();
+      buf.limit(maxRead);
+      boolean more;
+      IOException failure = null;
+      try
       {
-        int unreadSize = Integer.MAX_VALUE;
-        try
-        {
-          unreadSize = Math.toIntExact(postCryptSize - offset);
-        }
-        catch(ArithmeticException ignored)
-        {
-        }
-        int len = Math.min(bufSize, unreadSize);
-        int result = readSafe(in, buf, 0, len, cleanup);
-        if(result == -1)
-        {
-          cleanup.run();
-          throw new IOException("unexpected EOF");
-        }
+        more = fill(in, buf);
+        injectReadFailure(partNumber);
+      }
+      catch(IOException e)
+      {
+        more = true;
+        failure = e;
+      }
+
+      buf.flip();
+      checkpoint.stored += buf.remaining();
+      plain.clear();
+      if(more || !isLastPart(partNumber))
+      {
+        cipher.update(buf, plain);
+      }
+      else
+      {
+        cipher.doFinal(buf, plain);
+      }
 
-        writeSafe(out, buf, 0, result, cleanup);
-        offset += result;
+      plain.flip();
+      plain.limit((int) Math.min(plain.limit(), size - checkpoint.written));
+      int count = plain.remaining();
+      if(!writePart(race, plain, position + checkpoint.written))
+      {
+        return;
+      }
+      checkpoint.written += count;
+
+      if(failure != null)
+      {
+        checkpoint.resumable = true;
+        throw failure;
+      }
+      if(!more)
+      {
+        return;
       }
     }
+  }
 
-    cleanup.run();
+  // for testing continued parts, see DownloadOptions#injectReadFailure
+  private void injectReadFailure(int partNumber)
+    throws IOException
+  {
+    _options.injectReadFailure(
+      getUri(_options.getBucketName(), _options.getObjectKey()) + "#" + partNumber);
   }
 
-  private int readSafe(InputStream in, byte[] buf, int offset, int len, Runnable cleanup)
+  /**
+   * Reads from {@code in} until {@code buf} is full or the stream ends. The position of the buffer
+   * is advanced past the bytes read, also when reading fails.
+   *
+   * @return false if the stream has ended
+   */
+  private static boolean fill(InputStream in, ByteBuffer buf)
     throws IOException
   {
+    while(buf.hasRemaining())
+    {
+      int result = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+      if(result == -1)
+      {
+        return false;
+      }
+      buf.position(buf.position() + result);
+    }
+    return true;
+  }
+
+  /**
+   * Writes to the file for a part, unless the part has been written completely by another attempt.
+   * Both attempts read the same content, so they may write at the same time, but once a part is
+   * finished the file must not change anymore: the write is registered with the race, and the
+   * attempt that finishes the part waits for the writes of the other one (see
+   * {@link #readDownload}). The write itself does not hold the lock of the race, so that a slow
+   * disk does not block the other attempt, or {@link #hedgeStragglers}.
+   *
+   * @return false if the part has been finished by another attempt
+   */
+  private boolean writePart(PartRace race, ByteBuffer buf, long position)
+    throws IOException
+  {
+    synchronized(race)
+    {
+      if(race.finished)
+      {
+        return false;
+      }
+      race.writers++;
+    }
     try
     {
-      return in.read(buf, offset, len);
+      writeFully(buf, position);
+      return true;
     }
-    catch(IOException e)
+    finally
     {
-      cleanup.run();
-      throw e;
+      synchronized(race)
+      {
+        race.writers--;
+        race.notifyAll();
+      }
+    }
+  }
+
+  private static void closeQuietly(InputStream stream)
+  {
+    if(stream != null)
+    {
+      try
+      {
+        stream.close();
+      }
+      catch(IOException ignored)
+      {
+      }
     }
   }
 
-  private void writeSafe(RandomAccessFile out, byte[] buf, int offset, int len, Runnable cleanup)
+  private void writeFully(ByteBuffer buf, long position)
     throws IOException
   {
+    while(buf.hasRemaining())
+    {
+      position += _fileChannel.write(buf, position);
+    }
+  }
+
+  /**
+   * Opens the channel all parts are written to. Unless disabled in the options, the file is
+   * extended to its final length up front, so that writing the parts out of order doesn't keep
+   * growing it. Either way, an existing file that is longer is truncated.
+   */
+  private FileChannel openFileChannel(long length)
+    throws IOException
+  {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
     try
     {
-      out.write(buf, offset, len);
+      if(_options.doesPreallocate() || raf.length() > length)
+      {
+        raf.setLength(length);
+      }
     }
     catch(IOException e)
     {
-      cleanup.run();
+      raf.close();
       throw e;
     }
+    // closing the channel closes the file too
+    return raf.getChannel();
+  }
+
+  private void closeFileChannel()
+  {
+    try
+    {
+      if(_fileChannel != null)
+      {
+        _fileChannel.close();
+      }
+    }
+    catch(IOException ignored)
+    {
+    }
   }
 
   private AsyncFunction<Download, Download> complete()
@@ -619,4 +1575,53 @@ abstract class DownloadCommand
       }
     };
   }
+
+  /**
+   * How far the download of a part got: the bytes read of the stored part, the bytes written to the
+   * file, and for encrypted parts the cipher that decrypted them.
+   */
+  private static class PartCheckpoint
+  {
+    // when the last request of the part was sent, and the bytes written before it
+    volatile long started = System.nanoTime();
+    volatile long startWritten = 0;
+    long stored = 0;
+    volatile long written = 0;
+    Cipher cipher;
+
+    // set if the last attempt failed reading, after writing out all it had read
+    boolean resumable = false;
+  }
+
+  /**
+   * A part that may be downloaded by two attempts at once, the original download and a duplicate
+   * (see {@link #hedgeStragglers}). Guarded by itself.
+   */
+  private static class PartRace
+  {
+    final SettableFuture<Integer> result = SettableFuture.create();
+
+    // set once either attempt has written the whole part
+    boolean finished = false;
+    // set if the original download of the part is opening a stream
+    boolean opening = false;
+    // number of attempts writing to the file, see writePart
+    int writers = 0;
+    // progress and stream of the original download of the part, once it is reading
+    PartCheckpoint reading;
+    InputStream stream;
+
+    boolean hedged = false;
+    boolean hedgeRunning = false;
+    InputStream hedgeStream;
+    boolean hedgeWon = false;
+    InputStream winner;
+    // failure of the original download while the duplicate was still running
+    Throwable failure;
+
+    synchronized boolean isFinished()
+    {
+      return finished;
+    }
+  }
 }
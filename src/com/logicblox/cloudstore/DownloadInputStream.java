@@ -0,0 +1,214 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Sequential {@link InputStream} over the (decrypted) content of a stored object, see {@link
+ * CloudStoreClient#openStream(DownloadOptions)}.
+ * <p>
+ * Parts are fetched with ranged GETs by {@link DownloadCommand#readPart(Download, int)}, keeping
+ * requests for the parts after the one being read in flight, so that a reader that keeps up gets
+ * the throughput of a parallel download. Parts complete in any order but are returned in order.
+ * At most {@code window} parts are held in memory, including the one being read, so memory use
+ * is bounded by {@code window} times the part size. Once the last part has been read, the object
+ * is validated just like a download to a file, and a checksum mismatch surfaces as an {@link
+ * IOException} at the end of the stream.
+ */
+class DownloadInputStream
+  extends InputStream
+{
+  static final int DEFAULT_WINDOW = Utils.getDefaultMaxConcurrentConnections() + 1;
+
+  private final DownloadCommand _command;
+  private final Download _download;
+  private final int _partCount;
+  private final int _window;
+  private final Deque<ListenableFuture<byte[]>> _inFlight = new ArrayDeque<>();
+
+  private int _nextPart = 0;
+  private byte[] _current;
+  private int _position = 0;
+  private boolean _completed = false;
+  private boolean _closed = false;
+
+  DownloadInputStream(DownloadCommand command, Download download, int partCount, int window)
+  {
+    if(window < 1)
+    {
+      throw new IllegalArgumentException("window must be at least 1");
+    }
+    _command = command;
+    _download = download;
+    _partCount = partCount;
+    _window = window;
+    fillWindow();
+  }
+
+  @Override
+  public int read()
+    throws IOException
+  {
+    byte[] b = new byte[1];
+    int count = read(b, 0, 1);
+    if(count == -1)
+    {
+      return -1;
+    }
+    return (int) b[0] & 0xFF;
+  }
+
+  @Override
+  public synchronized int read(byte[] b, int off, int len)
+    throws IOException
+  {
+    ensureOpen();
+    if(len == 0)
+    {
+      return 0;
+    }
+
+    while(_current == null || _position == _current.length)
+    {
+      if(!nextPart())
+      {
+        return -1;
+      }
+    }
+
+    int count = Math.min(len, _current.length - _position);
+    System.arraycopy(_current, _position, b, off, count);
+    _position += count;
+    return count;
+  }
+
+  @Override
+  public synchronized int available()
+    throws IOException
+  {
+    ensureOpen();
+    return _current == null ? 0 : _current.length - _position;
+  }
+
+  /**
+   * Moves on to the next part, waiting for it if needed.
+   *
+   * @return false if there are no more parts
+   */
+  private boolean nextPart()
+    throws IOException
+  {
+    // release the part we're done with before requesting another one
+    _current = null;
+    fillWindow();
+
+    ListenableFuture<byte[]> next = _inFlight.poll();
+    if(next == null)
+    {
+      complete();
+      return false;
+    }
+
+    try
+    {
+      _current = next.get();
+      _position = 0;
+      return true;
+    }
+    catch(InterruptedException e)
+    {
+      throw new InterruptedIOException("interrupted while waiting for a part of " + getUri());
+    }
+    catch(ExecutionException e)
+    {
+      throw new IOException("Error downloading " + getUri(), e.getCause());
+    }
+  }
+
+  private void fillWindow()
+  {
+    while(_inFlight.size() < _window - (_current == null ? 0 : 1) && _nextPart < _partCount)
+    {
+      _inFlight.add(_command.readPart(_download, _nextPart++));
+    }
+  }
+
+  private void complete()
+    throws IOException
+  {
+    if(_completed)
+    {
+      return;
+    }
+
+    try
+    {
+      _command.completeStream(_download).get();
+      _completed = true;
+    }
+    catch(InterruptedException e)
+    {
+      throw new InterruptedIOException("interrupted while validating " + getUri());
+    }
+    catch(ExecutionException e)
+    {
+      throw new IOException("Error downloading " + getUri(), e.getCause());
+    }
+  }
+
+  /**
+   * Closes the stream, cancelling the parts that are still being fetched.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if(_closed)
+    {
+      return;
+    }
+    _closed = true;
+    _current = null;
+    for(ListenableFuture<byte[]> part : _inFlight)
+    {
+      part.cancel(true);
+    }
+    _inFlight.clear();
+  }
+
+  private void ensureOpen()
+    throws IOException
+  {
+    if(_closed)
+    {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  private String getUri()
+  {
+    return _command.getUri(_download.getBucketName(), _download.getObjectKey());
+  }
+}
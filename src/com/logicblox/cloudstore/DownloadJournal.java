@@ -0,0 +1,231 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+
+package com.logicblox.cloudstore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Sidecar of a resumable download (see {@link DownloadOptionsBuilder#setResume(boolean)}), kept
+ * next to the downloaded file while the download is incomplete.
+ * <p>
+ * The sidecar records the object the file is downloaded from, identified by its ETag and length,
+ * and the checksums of every part that has been durably written to the file, so that the object
+ * can still be validated as a whole once the remaining parts have been downloaded:
+ * <pre>
+ * object &lt;etag&gt; &lt;length&gt; &lt;uri&gt;
+ * part &lt;number&gt; &lt;checksum&gt;
+ * </pre>
+ * Parts are only recorded after the file has been synced, and the records only apply to the same
+ * version of the same object. A torn last line just means that a part is downloaded again.
+ */
+class DownloadJournal
+{
+  private final File _journalFile;
+
+  private String _object;
+  private Map<Integer, String> _parts = new ConcurrentSkipListMap<>();
+  private FileOutputStream _out;
+  private Writer _writer;
+
+  private DownloadJournal(File journalFile)
+  {
+    _journalFile = journalFile;
+  }
+
+  /**
+   * @return the sidecar of downloads to {@code file}
+   */
+  static File getJournalFile(File file)
+  {
+    return new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".cs-download");
+  }
+
+  /**
+   * Opens the sidecar of downloading to {@code file}, loading its records if a previous download
+   * left any.
+   */
+  static DownloadJournal open(File file)
+    throws IOException
+  {
+    DownloadJournal journal = new DownloadJournal(getJournalFile(file));
+    if(journal._journalFile.exists())
+    {
+      journal.load();
+    }
+    return journal;
+  }
+
+  private void load()
+    throws IOException
+  {
+    Map<Integer, String> parts = new HashMap<>();
+    try(BufferedReader reader = new BufferedReader(
+      new InputStreamReader(new FileInputStream(_journalFile), StandardCharsets.UTF_8)))
+    {
+      String line;
+      while((line = reader.readLine()) != null)
+      {
+        String[] record = line.split(" ", 2);
+        if(record.length < 2)
+        {
+          continue;
+        }
+
+        if(record[0].equals("object"))
+        {
+          _object = record[1];
+        }
+        else if(record[0].equals("part"))
+        {
+          String[] part = record[1].split(" ", 2);
+          try
+          {
+            if(part.length == 2)
+            {
+              parts.put(Integer.parseInt(part[0]), part[1]);
+            }
+          }
+          catch(NumberFormatException ignored)
+          {
+            // torn record
+          }
+        }
+      }
+    }
+    _parts.putAll(parts);
+  }
+
+  private static String describe(String uri, String etag, long length)
+  {
+    return etag + " " + length + " " + uri;
+  }
+
+  /**
+   * @return true if a previous download of the same version of the object left parts to resume
+   * from
+   */
+  synchronized boolean matches(String uri, String etag, long length)
+  {
+    return _object != null && _object.equals(describe(uri, etag, length)) && !_parts.isEmpty();
+  }
+
+  /**
+   * @return checksums of the parts recorded as written, by part number
+   */
+  Map<Integer, String> getParts()
+  {
+    return Collections.unmodifiableMap(_parts);
+  }
+
+  /**
+   * Starts a new sidecar for downloading the object, replacing any previous one.
+   */
+  synchronized void begin(String uri, String etag, long length)
+    throws IOException
+  {
+    close();
+    _out = new FileOutputStream(_journalFile);
+    _writer = new OutputStreamWriter(_out, StandardCharsets.UTF_8);
+    _object = describe(uri, etag, length);
+    _parts.clear();
+
+    write("object " + _object);
+    sync();
+  }
+
+  /**
+   * Continues the sidecar of a resumed download.
+   */
+  synchronized void reopen()
+    throws IOException
+  {
+    if(_writer == null)
+    {
+      _out = new FileOutputStream(_journalFile, true);
+      _writer = new OutputStreamWriter(_out, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Records that part {@code partNumber} has been durably written with the given {@code
+   * checksum}. Does nothing once the sidecar has been closed: a failed download closes it while
+   * other parts may still be in flight, and a resumed download fetches those parts again.
+   */
+  synchronized void addPart(int partNumber, String checksum)
+    throws IOException
+  {
+    if(_writer == null)
+    {
+      return;
+    }
+    _parts.put(partNumber, checksum);
+    write("part " + partNumber + " " + checksum);
+    sync();
+  }
+
+  /**
+   * Removes the sidecar once the download has been completed or abandoned.
+   */
+  synchronized void delete()
+  {
+    close();
+    _journalFile.delete();
+  }
+
+  synchronized void close()
+  {
+    if(_writer != null)
+    {
+      try
+      {
+        _writer.close();
+      }
+      catch(IOException ignored)
+      {
+      }
+      _writer = null;
+      _out = null;
+    }
+  }
+
+  private void write(String record)
+    throws IOException
+  {
+    _writer.write(record);
+    _writer.write('\n');
+  }
+
+  private void sync()
+    throws IOException
+  {
+    _writer.flush();
+    _out.getFD().sync();
+  }
+}
@@ -17,6 +17,7 @@
 package com.logicblox.cloudstore;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Optional;
 
 /**
@@ -46,11 +47,23 @@ public class DownloadOptions
   private String _version;
   private boolean _overwrite;
   private boolean _dryRun;
+  private boolean _resume;
+  private double _hedgeSlowdown;
+  private boolean _preallocate;
+  private StoreFile _storeFile;
   private OverallProgressListenerFactory _overallProgressListenerFactory;
 
+  // for testing
+  private static AbortCounters _abortCounters = new AbortCounters();
+  private static AbortCounters _readFailureCounters = new AbortCounters();
+  // see injectStall
+  private static volatile int _stalledPart = -1;
+  private static volatile long _stallMillis = 0;
+
   DownloadOptions(
     CloudStoreClient cloudStoreClient, File file, String bucketName, String objectKey, String version,
-    boolean overwrite, boolean dryRun, OverallProgressListenerFactory overallProgressListenerFactory)
+    boolean overwrite, boolean dryRun, boolean resume, double hedgeSlowdown, boolean preallocate,
+    StoreFile storeFile, OverallProgressListenerFactory overallProgressListenerFactory)
   {
     super(cloudStoreClient);
     _file = file;
@@ -59,9 +72,59 @@ public class DownloadOptions
     _version = version;
     _overwrite = overwrite;
     _dryRun = dryRun;
+    _resume = resume;
+    _hedgeSlowdown = hedgeSlowdown;
+    _preallocate = preallocate;
+    _storeFile = storeFile;
     _overallProgressListenerFactory = overallProgressListenerFactory;
   }
 
+  // for testing injection of aborts during a download
+  void injectAbort(String id)
+  {
+    if(_abortCounters.decrementInjectionCounter(id) > 0)
+    {
+      throw new AbortInjection("forcing download abort");
+    }
+  }
+
+  static AbortCounters getAbortCounters()
+  {
+    return _abortCounters;
+  }
+
+  // for testing continued parts: fails reading a part midway, keeping what was read so far
+  void injectReadFailure(String id)
+    throws IOException
+  {
+    if(_readFailureCounters.decrementInjectionCounter(id) > 0)
+    {
+      throw new IOException("forcing download read failure");
+    }
+  }
+
+  static AbortCounters getReadFailureCounters()
+  {
+    return _readFailureCounters;
+  }
+
+  // for testing hedged downloads: delays reading the original request of a part, so that it
+  // becomes a straggler
+  void injectStall(int partNumber)
+    throws InterruptedException
+  {
+    if(partNumber == _stalledPart)
+    {
+      Thread.sleep(_stallMillis);
+    }
+  }
+
+  static void setStalledPart(int partNumber, long millis)
+  {
+    _stallMillis = millis;
+    _stalledPart = partNumber;
+  }
+
   /**
    * Return the local file (or directory) that will receive the data in the file from the cloud
    * store service.
@@ -125,6 +188,54 @@ public class DownloadOptions
     return _dryRun;
   }
 
+  /**
+   * If set to true, a failed download keeps the partially downloaded file and a sidecar of the
+   * parts it contains (see {@link DownloadJournal}), and downloading to the same file again
+   * fetches only the missing parts.
+   *
+   * @return resume flag
+   */
+  public boolean isResume()
+  {
+    return _resume;
+  }
+
+  /**
+   * Once all parts of a download have started and connections become idle, a part whose
+   * throughput is more than this factor lower than the median throughput of the finished parts is
+   * raced with a duplicate request, and whichever finishes first is kept (see
+   * {@link HedgePolicy}). Zero, the default, disables such hedged requests.
+   *
+   * @return hedge slowdown factor
+   */
+  public double getHedgeSlowdown()
+  {
+    return _hedgeSlowdown;
+  }
+
+  /**
+   * If set to true, the default, the local file is extended to the length of the object before
+   * any part is written. Otherwise the file grows as parts are written, which leaves it sparse
+   * until the parts before the last one written have arrived.
+   *
+   * @return preallocate flag
+   */
+  public boolean doesPreallocate()
+  {
+    return _preallocate;
+  }
+
+  /**
+   * Return the object to download as found by a listing, if the download was started from one.
+   * The object is then known to exist and is not checked again.
+   *
+   * @return optional listing entry of the object
+   */
+  public Optional<StoreFile> getStoreFile()
+  {
+    return Optional.ofNullable(_storeFile);
+  }
+
   /**
    * Return the progress listener that can be used to track download progress.
    *
@@ -23,8 +23,9 @@ import java.io.File;
  * to control the behavior of the cloud-store download command.  This can be used to
  * download both individual files and all files in directories.
  * <p>
- * Fields {@code _file}, {@code _bucketName} and {@code _objectKey} are mandatory. All the others
- * are optional.
+ * Fields {@code _bucketName} and {@code _objectKey} are mandatory. Field {@code _file} is
+ * mandatory for downloads, but not for
+ * {@link CloudStoreClient#openChannel(DownloadOptions)}. All the others are optional.
  * 
  * @see DownloadOptions
  * @see CloudStoreClient#getOptionsBuilderFactory()
@@ -41,6 +42,10 @@ public class DownloadOptionsBuilder
   private String _version;
   private boolean _overwrite = false;
   private boolean _dryRun = false;
+  private boolean _resume = false;
+  private double _hedgeSlowdown = 0;
+  private boolean _preallocate = true;
+  private StoreFile _storeFile;
   private OverallProgressListenerFactory _overallProgressListenerFactory;
 
   DownloadOptionsBuilder(CloudStoreClient client)
@@ -123,6 +128,61 @@ public class DownloadOptionsBuilder
     return this;
   }
 
+  /**
+   * If set to true, keep the partially downloaded file if the download fails, and resume a
+   * previously failed download of the same version of the object to the same file, downloading
+   * only the missing parts. Only supported for single objects.
+   *
+   * @param resume true if the download should be resumable
+   * @return this builder
+   */
+  public DownloadOptionsBuilder setResume(boolean resume)
+  {
+    _resume = resume;
+    return this;
+  }
+
+  /**
+   * Race parts that are much slower than the others with a duplicate request once connections
+   * become idle, keeping whichever finishes first. A part is hedged if its throughput is more than
+   * {@code slowdown} times lower than the median throughput of the finished parts. Zero, the
+   * default, disables hedged requests.
+   *
+   * @param slowdown hedge slowdown factor, at least 1, or 0
+   * @return this builder
+   */
+  public DownloadOptionsBuilder setHedgeSlowdown(double slowdown)
+  {
+    _hedgeSlowdown = slowdown;
+    return this;
+  }
+
+  /**
+   * If set to true, the default, extend the local file to the length of the object before
+   * writing any part to it.
+   *
+   * @param preallocate preallocate flag
+   * @return this builder
+   */
+  public DownloadOptionsBuilder setPreallocate(boolean preallocate)
+  {
+    _preallocate = preallocate;
+    return this;
+  }
+
+  /**
+   * Set the object to download as found by a listing, so that the download doesn't check again
+   * that it exists. Used by recursive downloads.
+   *
+   * @param storeFile listing entry of the object
+   * @return this builder
+   */
+  public DownloadOptionsBuilder setStoreFile(StoreFile storeFile)
+  {
+    _storeFile = storeFile;
+    return this;
+  }
+
   /**
    * Set a progress listener that can be used to track download progress.
    *
@@ -142,10 +202,6 @@ public class DownloadOptionsBuilder
     {
       throw new UsageException("CloudStoreClient has to be set");
     }
-    else if(_file == null)
-    {
-      throw new UsageException("File has to be set");
-    }
     else if(_bucketName == null)
     {
       throw new UsageException("Bucket has to be set");
@@ -154,6 +210,10 @@ public class DownloadOptionsBuilder
     {
       throw new UsageException("Object key has to be set");
     }
+    else if(_hedgeSlowdown != 0 && !(_hedgeSlowdown >= 1))
+    {
+      throw new UsageException("Hedge slowdown has to be at least 1, or 0 to disable hedging");
+    }
   }
 
   /**
@@ -168,6 +228,7 @@ public class DownloadOptionsBuilder
     validateOptions();
 
     return new DownloadOptions(_cloudStoreClient, _file, _bucketName, _objectKey, _version,
-      _overwrite, _dryRun, _overallProgressListenerFactory);
+      _overwrite, _dryRun, _resume, _hedgeSlowdown, _preallocate, _storeFile,
+      _overallProgressListenerFactory);
   }
 }
@@ -17,14 +17,12 @@
 package com.logicblox.cloudstore;
 
 
-import com.google.common.util.concurrent.AsyncFunction;
-import com.google.common.util.concurrent.FutureFallback;
-import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
@@ -33,7 +31,6 @@ class DownloadRecursivelyCommand
 {
   private DownloadOptions _options;
   private File _destination;
-  private List<ListenableFuture<StoreFile>> _futures;
   private java.util.Set<File> _filesToCleanup;
   private List<File> _dirsToCleanup;
   private boolean _dryRun = false;
@@ -44,7 +41,6 @@ class DownloadRecursivelyCommand
     super(options);
     _options = options;
     _destination = _options.getFile();
-    _futures = new ArrayList<>();
     _filesToCleanup = new java.util.HashSet<>();
     _dirsToCleanup = new ArrayList<>();
     _dryRun = _options.isDryRun();
@@ -54,7 +50,15 @@ class DownloadRecursivelyCommand
   public ListenableFuture<List<StoreFile>> run()
     throws ExecutionException, InterruptedException, IOException
   {
-    _futures.clear();
+    if(_destination == null)
+    {
+      throw new UsageException("File has to be set");
+    }
+    if(_options.isResume())
+    {
+      throw new UsageException("Resuming is only supported for downloads of single objects");
+    }
+
     _filesToCleanup.clear();
     _dirsToCleanup.clear();
 
@@ -68,48 +72,29 @@ class DownloadRecursivelyCommand
       throw ex;
     }
 
-    ListenableFuture<List<StoreFile>> listObjs = querySourceFiles();
-    ListenableFuture<List<StoreFile>> result = Futures.transform(listObjs,
-      new AsyncFunction<List<StoreFile>, List<StoreFile>>()
+    ListingPipeline pipeline = new ListingPipeline.PerObject(_client, querySourceFiles(),
+      ListingPipeline.DEFAULT_WINDOW, _dryRun)
+    {
+      protected ListenableFuture<StoreFile> start(StoreFile src)
+        throws IOException
       {
-        public ListenableFuture<List<StoreFile>> apply(List<StoreFile> srcFiles)
-          throws IOException
-        {
-          prepareFutures(srcFiles);
-          if(_options.isDryRun())
-          {
-            return Futures.immediateFuture(null);
-          }
-          else
-          {
-            return scheduleExecution();
-          }
-        }
-      });
-    return result;
-  }
-
+        return startDownload(src);
+      }
 
-  private ListenableFuture<List<StoreFile>> scheduleExecution()
-  {
-    // Don't see a way to have all peer futures in the list fail and clean up if any
-    // one fails, even if explicitly cancelled.  This seems to be the only way
-    // to clean up all the newly created files reliably.
-    ListenableFuture<List<StoreFile>> futureList = Futures.allAsList(_futures);
-    return Futures.withFallback(futureList, new FutureFallback<List<StoreFile>>()
-    {
-      public ListenableFuture<List<StoreFile>> create(Throwable t)
+      protected void failed()
       {
+        // Any download failing cancels the others, after which all the newly created files
+        // and directories can be cleaned up reliably.
         cleanup();
-        return Futures.immediateFailedFuture(t);
       }
-    });
+    };
+    return pipeline.run();
   }
 
 
-  private ListenableFuture<List<StoreFile>> querySourceFiles()
+  private Iterator<List<StoreFile>> querySourceFiles()
   {
-    // find all files that need to be downloaded
+    // find all files that need to be downloaded, downloading them as the pages arrive
     ListOptionsBuilder lob = _client.getOptionsBuilderFactory()
       .newListOptionsBuilder()
       .setBucketName(_options.getBucketName())
@@ -117,7 +102,7 @@ class DownloadRecursivelyCommand
       .setRecursive(true)
       .setIncludeVersions(false)
       .setExcludeDirs(false);
-    return _client.listObjects(lob.createOptions());
+    return _client.listObjectsStream(lob.createOptions());
   }
 
 
@@ -181,89 +166,85 @@ class DownloadRecursivelyCommand
   }
 
 
-  private void prepareFutures(List<StoreFile> potentialFiles)
+  private ListenableFuture<StoreFile> startDownload(StoreFile src)
     throws IOException
   {
     File destAbs = _destination.getAbsoluteFile();
     String baseDirURI = Utils.getBaseDirURI(_options.getObjectKey());
 
-    for(StoreFile src : potentialFiles)
-    {
-      String relFile = src.getObjectKey().substring(baseDirURI.length());
-      File outputFile = new File(destAbs, relFile);
-      File outputPath = new File(outputFile.getParent());
+    String relFile = src.getObjectKey().substring(baseDirURI.length());
+    File outputFile = new File(destAbs, relFile);
+    File outputPath = new File(outputFile.getParent());
 
-      if(!outputPath.exists())
+    if(!outputPath.exists())
+    {
+      try
       {
-        try
-        {
-          updateDirsToCleanup(Utils.mkdirs(outputPath, _dryRun));
-        }
-        catch(IOException ex)
-        {
-          throw new UsageException(
-            "Could not create directory '" + outputPath + "': " + ex.getMessage());
-        }
+        updateDirsToCleanup(Utils.mkdirs(outputPath, _dryRun));
+      }
+      catch(IOException ex)
+      {
+        throw new UsageException(
+          "Could not create directory '" + outputPath + "': " + ex.getMessage());
       }
+    }
 
-      if(!src.getObjectKey().endsWith("/"))
+    if(!src.getObjectKey().endsWith("/"))
+    {
+      if(outputFile.exists())
       {
-        if(outputFile.exists())
+        if(_options.doesOverwrite())
         {
-          if(_options.doesOverwrite())
+          if(_dryRun)
           {
-            if(_dryRun)
-            {
-              System.out.println(
-                "<DRYRUN> overwrite existing file '" + outputFile.getAbsolutePath() + "'");
-            }
-            else
-            {
-              if(!outputFile.delete())
-              {
-                throw new UsageException("Could not overwrite existing file '" + outputFile + "'");
-              }
-            }
+            System.out.println(
+              "<DRYRUN> overwrite existing file '" + outputFile.getAbsolutePath() + "'");
           }
           else
           {
-            throw new UsageException(
-              "File '" + outputFile + "' already exists. Please delete or use --overwrite");
+            if(!outputFile.delete())
+            {
+              throw new UsageException("Could not overwrite existing file '" + outputFile + "'");
+            }
           }
         }
-        if(_dryRun)
-        {
-          System.out.println(
-            "<DRYRUN> downloading '" + getUri(_options.getBucketName(), src.getObjectKey()) + "' to '" +
-              outputFile.getAbsolutePath() + "'");
-        }
         else
         {
-          _filesToCleanup.add(outputFile);
-
-          DownloadOptions options = _client.getOptionsBuilderFactory()
-            .newDownloadOptionsBuilder()
-            .setFile(outputFile)
-            .setBucketName(_options.getBucketName())
-            .setObjectKey(src.getObjectKey())
-            .setOverallProgressListenerFactory(
-              _options.getOverallProgressListenerFactory().orElse(null))
-            .createOptions();
-
-          _futures.add(_client.download(options));
+          throw new UsageException(
+            "File '" + outputFile + "' already exists. Please delete or use --overwrite");
         }
       }
+      if(_dryRun)
+      {
+        System.out.println(
+          "<DRYRUN> downloading '" + getUri(_options.getBucketName(), src.getObjectKey()) + "' to '" +
+            outputFile.getAbsolutePath() + "'");
+      }
+      else
+      {
+        _filesToCleanup.add(outputFile);
+
+        DownloadOptions options = _client.getOptionsBuilderFactory()
+          .newDownloadOptionsBuilder()
+          .setFile(outputFile)
+          .setBucketName(_options.getBucketName())
+          .setObjectKey(src.getObjectKey())
+          .setHedgeSlowdown(_options.getHedgeSlowdown())
+          .setPreallocate(_options.doesPreallocate())
+          .setStoreFile(src)
+          .setOverallProgressListenerFactory(
+            _options.getOverallProgressListenerFactory().orElse(null))
+          .createOptions();
+
+        return _client.download(options);
+      }
     }
+    return null;
   }
 
 
   private void cleanup()
   {
-    // cancel any futures that may still be trying to run
-    for(ListenableFuture<StoreFile> f : _futures)
-      f.cancel(true);
-    _futures.clear();
-
     // delete any files we created
     for(File f : _filesToCleanup)
     {
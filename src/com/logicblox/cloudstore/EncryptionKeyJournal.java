@@ -0,0 +1,207 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local checkpoint of a resumable recursive encryption key addition or removal (see {@link
+ * EncryptionKeyOptionsBuilder#setResume(boolean)}).
+ * <p>
+ * The journal records the objects whose metadata has been updated, so that a resumed update
+ * skips them without fetching their metadata again:
+ * <pre>
+ * update &lt;add|remove&gt; &lt;key name&gt; &lt;prefix uri&gt;
+ * done &lt;etag&gt; &lt;object key&gt;
+ * </pre>
+ * A record only applies to the version of the object that was written by the update. Records
+ * are flushed, but not synced, as objects are updated: a lost record just means that the metadata
+ * of an object is fetched again, to find out that it is up to date.
+ */
+class EncryptionKeyJournal
+{
+  private final File _journalFile;
+  private final String _update;
+
+  private Map<String, String> _done = new HashMap<>();
+  private boolean _started = false;
+  private Writer _writer;
+
+  private EncryptionKeyJournal(File journalFile, String update)
+  {
+    _journalFile = journalFile;
+    _update = update;
+  }
+
+  /**
+   * Opens the journal of adding ({@code add} true) or removing encryption key {@code keyName} to
+   * or from the objects under {@code prefix}, loading its records if an earlier run of the same
+   * update left any.
+   */
+  static EncryptionKeyJournal open(File journalDir, boolean add, String keyName, String prefix)
+    throws IOException
+  {
+    String update = (add ? "add" : "remove") + " " + keyName + " " + prefix;
+    File journalFile = new File(journalDir, DigestUtils.sha256Hex("encryption-key\n" + update));
+
+    EncryptionKeyJournal journal = new EncryptionKeyJournal(journalFile, update);
+    if(journalFile.exists())
+    {
+      journal.load();
+    }
+    return journal;
+  }
+
+  private void load()
+    throws IOException
+  {
+    String update = null;
+    Map<String, String> done = new HashMap<>();
+    try(BufferedReader reader = new BufferedReader(
+      new InputStreamReader(new FileInputStream(_journalFile), StandardCharsets.UTF_8)))
+    {
+      String line;
+      while((line = reader.readLine()) != null)
+      {
+        String[] record = line.split(" ", 2);
+        if(record.length < 2)
+        {
+          continue;
+        }
+
+        if(record[0].equals("update"))
+        {
+          update = record[1];
+        }
+        else if(record[0].equals("done"))
+        {
+          String[] object = record[1].split(" ", 2);
+          if(object.length == 2)
+          {
+            done.put(object[1], object[0]);
+          }
+        }
+      }
+    }
+
+    if(_update.equals(update))
+    {
+      _started = true;
+      _done = done;
+    }
+  }
+
+  /**
+   * @return true if an earlier run of the same update left a journal to resume from
+   */
+  synchronized boolean isStarted()
+  {
+    return _started;
+  }
+
+  /**
+   * @return true if the object with key {@code key} and ETag {@code etag} has been updated
+   */
+  synchronized boolean isDone(String key, String etag)
+  {
+    return etag != null && etag.equals(_done.get(key));
+  }
+
+  /**
+   * Starts writing the journal, continuing the journal of an earlier run if there is one.
+   */
+  synchronized void begin()
+    throws IOException
+  {
+    if(_writer != null)
+    {
+      return;
+    }
+
+    if(_started)
+    {
+      _writer = new OutputStreamWriter(new FileOutputStream(_journalFile, true),
+        StandardCharsets.UTF_8);
+    }
+    else
+    {
+      _journalFile.getParentFile().mkdirs();
+      _writer = new OutputStreamWriter(new FileOutputStream(_journalFile),
+        StandardCharsets.UTF_8);
+      _started = true;
+      write("update " + _update);
+    }
+  }
+
+  /**
+   * Records that the object with key {@code key} is up to date, with ETag {@code etag}.
+   */
+  synchronized void addDone(String key, String etag)
+    throws IOException
+  {
+    if(etag == null)
+    {
+      return;
+    }
+    _done.put(key, etag);
+    write("done " + etag + " " + key);
+  }
+
+  /**
+   * Removes the journal once the update has been completed.
+   */
+  synchronized void delete()
+  {
+    close();
+    _journalFile.delete();
+  }
+
+  synchronized void close()
+  {
+    if(_writer != null)
+    {
+      try
+      {
+        _writer.close();
+      }
+      catch(IOException ignored)
+      {
+      }
+      _writer = null;
+    }
+  }
+
+  private void write(String record)
+    throws IOException
+  {
+    _writer.write(record);
+    _writer.write('\n');
+    _writer.flush();
+  }
+}
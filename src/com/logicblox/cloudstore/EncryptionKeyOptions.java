@@ -27,6 +27,8 @@ package com.logicblox.cloudstore;
  * @see CloudStoreClient#getOptionsBuilderFactory()
  * @see CloudStoreClient#addEncryptionKey(EncryptionKeyOptions)
  * @see CloudStoreClient#removeEncryptionKey(EncryptionKeyOptions)
+ * @see CloudStoreClient#addEncryptionKeyRecursively(EncryptionKeyOptions)
+ * @see CloudStoreClient#removeEncryptionKeyRecursively(EncryptionKeyOptions)
  * @see OptionsBuilderFactory#newEncryptionKeyOptionsBuilder()
  */
 public class EncryptionKeyOptions
@@ -35,14 +37,17 @@ public class EncryptionKeyOptions
   private final String _bucket;
   private final String _objectKey;
   private final String _encryptionKey;
+  private final boolean _resume;
 
   EncryptionKeyOptions(
-    CloudStoreClient cloudStoreClient, String bucket, String objectKey, String encryptionKey)
+    CloudStoreClient cloudStoreClient, String bucket, String objectKey, String encryptionKey,
+    boolean resume)
   {
     super(cloudStoreClient);
     _bucket = bucket;
     _objectKey = objectKey;
     _encryptionKey = encryptionKey;
+    _resume = resume;
   }
 
   /**
@@ -75,4 +80,15 @@ public class EncryptionKeyOptions
   {
     return _encryptionKey;
   }
+
+  /**
+   * If set to true, a recursive update journals the objects it has updated, and resumes an
+   * interrupted update of the same prefix with the same key.
+   *
+   * @return resume flag
+   */
+  public boolean isResume()
+  {
+    return _resume;
+  }
 }
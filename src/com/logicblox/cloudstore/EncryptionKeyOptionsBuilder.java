@@ -28,6 +28,8 @@ package com.logicblox.cloudstore;
  * @see CloudStoreClient#getOptionsBuilderFactory()
  * @see CloudStoreClient#addEncryptionKey(EncryptionKeyOptions)
  * @see CloudStoreClient#removeEncryptionKey(EncryptionKeyOptions)
+ * @see CloudStoreClient#addEncryptionKeyRecursively(EncryptionKeyOptions)
+ * @see CloudStoreClient#removeEncryptionKeyRecursively(EncryptionKeyOptions)
  * @see OptionsBuilderFactory#newEncryptionKeyOptionsBuilder()
  */
 public class EncryptionKeyOptionsBuilder
@@ -36,6 +38,7 @@ public class EncryptionKeyOptionsBuilder
   private String _bucket;
   private String _objectKey;
   private String _encryptionKey;
+  private boolean _resume = false;
 
   EncryptionKeyOptionsBuilder(CloudStoreClient client)
   {
@@ -79,6 +82,20 @@ public class EncryptionKeyOptionsBuilder
     return this;
   }
 
+  /**
+   * If set to true, journal the progress of a recursive update locally, and resume an interrupted
+   * update of the same prefix with the same key. Objects that were updated before the interruption
+   * are skipped without fetching their metadata.
+   *
+   * @param resume true if the update should be resumable
+   * @return this builder
+   */
+  public EncryptionKeyOptionsBuilder setResume(boolean resume)
+  {
+    _resume = resume;
+    return this;
+  }
+
   private void validateOptions()
   {
     if(_cloudStoreClient == null)
@@ -110,6 +127,7 @@ public class EncryptionKeyOptionsBuilder
   {
     validateOptions();
 
-    return new EncryptionKeyOptions(_cloudStoreClient, _bucket, _objectKey, _encryptionKey);
+    return new EncryptionKeyOptions(_cloudStoreClient, _bucket, _objectKey, _encryptionKey,
+      _resume);
   }
 }
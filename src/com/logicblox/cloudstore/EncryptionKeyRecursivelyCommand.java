@@ -0,0 +1,210 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * Adds an encryption key to, or removes it from, all objects under a prefix, while the listing is
+ * still being fetched (see {@link ListingPipeline}). Each object is updated like by {@link
+ * S3AddEncryptionKeyCommand} or {@link S3RemoveEncryptionKeyCommand}, except that:
+ * <ul>
+ * <li>keys are loaded from the key directory once for all objects (see {@link
+ * CachingKeyProvider})</li>
+ * <li>the RSA operations run on a pool with a thread per processor, so that they neither wait
+ * for nor hold up the threads that fetch and update metadata</li>
+ * <li>objects that are not encrypted, or that are up to date already, are skipped</li>
+ * </ul>
+ * If the update is resumable, the objects that have been updated are journaled (see {@link
+ * EncryptionKeyJournal}), so that an interrupted update can be run again without fetching the
+ * metadata of the objects it got to.
+ */
+class EncryptionKeyRecursivelyCommand
+  extends Command
+{
+  private EncryptionKeyOptions _options;
+  private boolean _add;
+  private KeyProvider _keyProvider;
+  private ListeningExecutorService _cryptoExecutor;
+  private EncryptionKeyJournal _journal;
+
+  /**
+   * @param add true to add the encryption key of {@code options}, false to remove it
+   */
+  public EncryptionKeyRecursivelyCommand(EncryptionKeyOptions options, boolean add)
+  {
+    super(options);
+    _options = options;
+    _add = add;
+  }
+
+  public ListenableFuture<List<StoreFile>> run()
+    throws IOException
+  {
+    if(_client.getKeyProvider() == null)
+    {
+      throw new UsageException("No encryption key provider is specified");
+    }
+    _keyProvider = new CachingKeyProvider(_client.getKeyProvider());
+    if(_add)
+    {
+      try
+      {
+        // fail before listing anything
+        _keyProvider.getPublicKey(_options.getEncryptionKey());
+      }
+      catch(NoSuchKeyException e)
+      {
+        throw new UsageException("Missing encryption key " + _options.getEncryptionKey());
+      }
+    }
+
+    if(_options.isResume())
+    {
+      _journal = EncryptionKeyJournal.open(new File(Utils.getDefaultJournalDirectory()), _add,
+        _options.getEncryptionKey(), getUri(_options.getBucketName(), _options.getObjectKey()));
+      _journal.begin();
+    }
+
+    ListOptions objects = _client.getOptionsBuilderFactory()
+      .newListOptionsBuilder()
+      .setBucketName(_options.getBucketName())
+      .setObjectKey(_options.getObjectKey())
+      .setRecursive(true)
+      .createOptions();
+    Iterator<List<StoreFile>> pages = _client.listObjectsStream(objects);
+
+    _cryptoExecutor = MoreExecutors.listeningDecorator(
+      Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+
+    ListingPipeline pipeline = new ListingPipeline.PerObject(_client, pages,
+      ListingPipeline.DEFAULT_WINDOW, false)
+    {
+      protected ListenableFuture<StoreFile> start(StoreFile obj)
+        throws IOException
+      {
+        return startUpdate(obj);
+      }
+    };
+
+    ListenableFuture<List<StoreFile>> updated = pipeline.run();
+    Futures.addCallback(updated, new FutureCallback<List<StoreFile>>()
+    {
+      public void onSuccess(List<StoreFile> result)
+      {
+        _cryptoExecutor.shutdown();
+      }
+
+      public void onFailure(Throwable t)
+      {
+        _cryptoExecutor.shutdown();
+        if(_journal != null)
+        {
+          // keep the journal, to resume from
+          _journal.close();
+        }
+      }
+    });
+
+    if(_journal == null)
+    {
+      return updated;
+    }
+
+    return Futures.transform(updated, new Function<List<StoreFile>, List<StoreFile>>()
+    {
+      public List<StoreFile> apply(List<StoreFile> result)
+      {
+        _journal.delete();
+        return result;
+      }
+    });
+  }
+
+  private ListenableFuture<StoreFile> startUpdate(final StoreFile obj)
+    throws IOException
+  {
+    if(obj.getObjectKey().endsWith("/"))
+    {
+      return null;
+    }
+
+    if(_journal != null && _journal.isDone(obj.getObjectKey(), obj.getETag()))
+    {
+      return Futures.immediateFuture(obj);
+    }
+
+    EncryptionKeyOptions opts = _client.getOptionsBuilderFactory()
+      .newEncryptionKeyOptionsBuilder()
+      .setBucketName(_options.getBucketName())
+      .setObjectKey(obj.getObjectKey())
+      .setEncryptionKey(_options.getEncryptionKey())
+      .createOptions();
+
+    ListenableFuture<StoreFile> updated;
+    if(_add)
+    {
+      S3AddEncryptionKeyCommand cmd = new S3AddEncryptionKeyCommand(opts);
+      configure(cmd);
+      cmd.setKeyProvider(_keyProvider);
+      cmd.setCryptoExecutor(_cryptoExecutor);
+      cmd.setSkipUnchanged(true);
+      updated = cmd.run();
+    }
+    else
+    {
+      S3RemoveEncryptionKeyCommand cmd = new S3RemoveEncryptionKeyCommand(opts);
+      configure(cmd);
+      cmd.setKeyProvider(_keyProvider);
+      cmd.setCryptoExecutor(_cryptoExecutor);
+      cmd.setSkipUnchanged(true);
+      updated = cmd.run();
+    }
+
+    if(_journal == null)
+    {
+      return updated;
+    }
+
+    return Futures.transform(updated, new Function<StoreFile, StoreFile>()
+    {
+      public StoreFile apply(StoreFile f)
+      {
+        try
+        {
+          _journal.addDone(f.getObjectKey(), f.getETag());
+        }
+        catch(IOException e)
+        {
+          throw new RuntimeException(e);
+        }
+        return f;
+      }
+    });
+  }
+}
@@ -0,0 +1,152 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a region ({@code offset}, {@code length}) of a file through positional reads on a
+ * {@link FileChannel} that can be shared among many concurrent streams. Nothing is buffered on the
+ * heap: {@code mark}/{@code reset} are supported for any read limit by just remembering the
+ * position in the region, so retrying a request re-reads the file instead of replaying a buffer.
+ * <p>
+ * Closing the stream does not close the underlying channel. The owner of the channel is
+ * responsible for closing it once all the streams over it are done.
+ */
+class FileRegionInputStream
+  extends InputStream
+{
+  private final FileChannel _channel;
+  private final long _offset;
+  private final long _length;
+  private long _position = 0;
+  private long _mark = 0;
+  private boolean _closed = false;
+
+  public FileRegionInputStream(FileChannel channel, long offset, long length)
+  {
+    if(offset < 0 || length < 0)
+    {
+      throw new IllegalArgumentException("offset and length must be non-negative");
+    }
+    _channel = channel;
+    _offset = offset;
+    _length = length;
+  }
+
+  @Override
+  public int read()
+    throws IOException
+  {
+    byte[] b = new byte[1];
+    int count = read(b, 0, 1);
+    if(count == -1)
+    {
+      return -1;
+    }
+    return (int) b[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len)
+    throws IOException
+  {
+    ensureOpen();
+    if(len == 0)
+    {
+      return 0;
+    }
+
+    long remaining = _length - _position;
+    if(remaining <= 0)
+    {
+      return -1;
+    }
+
+    int toRead = (int) Math.min(len, remaining);
+    int count = _channel.read(ByteBuffer.wrap(b, off, toRead), _offset + _position);
+    if(count == -1)
+    {
+      // The file was truncated while we were reading it
+      throw new IOException(
+        "unexpected EOF at offset " + (_offset + _position) + ", expected " + remaining +
+          " more bytes");
+    }
+    _position += count;
+    return count;
+  }
+
+  @Override
+  public long skip(long n)
+    throws IOException
+  {
+    ensureOpen();
+    if(n <= 0)
+    {
+      return 0;
+    }
+    long skipped = Math.min(n, _length - _position);
+    _position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available()
+    throws IOException
+  {
+    ensureOpen();
+    return (int) Math.min(Integer.MAX_VALUE, _length - _position);
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit)
+  {
+    _mark = _position;
+  }
+
+  @Override
+  public synchronized void reset()
+    throws IOException
+  {
+    ensureOpen();
+    _position = _mark;
+  }
+
+  @Override
+  public void close()
+  {
+    _closed = true;
+  }
+
+  private void ensureOpen()
+    throws IOException
+  {
+    if(_closed)
+    {
+      throw new IOException("Stream closed");
+    }
+  }
+}
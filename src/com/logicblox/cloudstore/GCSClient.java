@@ -26,8 +26,11 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SeekableByteChannel;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -86,6 +89,20 @@ public class GCSClient
     "choose one of: projectPrivate, private, publicRead, authenticatedRead, bucketOwnerRead, " +
     "bucketOwnerFullControl.";
 
+  /**
+   * Storage classes handling
+   */
+  public static final List<String> ALL_STORAGE_CLASSES = Arrays.asList("STANDARD", "NEARLINE",
+    "COLDLINE", "ARCHIVE", "MULTI_REGIONAL", "REGIONAL", "DURABLE_REDUCED_AVAILABILITY");
+
+  /**
+   * {@code STORAGE_CLASSES_DESC_CONST} has to be a compile-time String constant expression. That's
+   * why e.g. we cannot re-use {@code ALL_STORAGE_CLASSES} to construct it.
+   */
+  static final String STORAGE_CLASSES_DESC_CONST = "For Google Cloud Storage, choose one of: " +
+    "STANDARD, NEARLINE, COLDLINE, ARCHIVE, MULTI_REGIONAL, REGIONAL, " +
+    "DURABLE_REDUCED_AVAILABILITY.";
+
   @Override
   public void setRetryCount(int retryCount)
   {
@@ -146,13 +163,13 @@ public class GCSClient
     return _storageClassHandler;
   }
 
-  static void patchMetaData(
+  static StorageObject patchMetaData(
     Storage gcsStorage, String bucket, String key, Map<String, String> userMetadata)
     throws IOException
   {
     StorageObject sobj = new StorageObject().setName(key).setMetadata(userMetadata);
     Storage.Objects.Patch cmd = gcsStorage.objects().patch(bucket, key, sobj);
-    cmd.execute();
+    return cmd.execute();
   }
 
   @Override
@@ -169,6 +186,13 @@ public class GCSClient
     return _s3Client.uploadRecursively(options);
   }
 
+  @Override
+  public UploadOutputStream openUploadStream(UploadOptions options)
+    throws IOException
+  {
+    return _s3Client.openUploadStream(options);
+  }
+
   @Override
   public ListenableFuture<List<StoreFile>> deleteRecursively(DeleteOptions opts)
     throws InterruptedException, ExecutionException
@@ -228,6 +252,20 @@ public class GCSClient
     return _s3Client.download(options);
   }
 
+  @Override
+  public SeekableByteChannel openChannel(DownloadOptions options)
+    throws IOException
+  {
+    return _s3Client.openChannel(options);
+  }
+
+  @Override
+  public InputStream openStream(DownloadOptions options)
+    throws IOException
+  {
+    return _s3Client.openStream(options);
+  }
+
   @Override
   public ListenableFuture<List<StoreFile>> downloadRecursively(DownloadOptions options)
     throws IOException, ExecutionException, InterruptedException
@@ -267,6 +305,12 @@ public class GCSClient
     return _s3Client.listObjects(lsOptions);
   }
 
+  @Override
+  public Iterator<List<StoreFile>> listObjectsStream(ListOptions lsOptions)
+  {
+    return _s3Client.listObjectsStream(lsOptions);
+  }
+
   @Override
   public ListenableFuture<List<Upload>> listPendingUploads(PendingUploadsOptions options)
   {
@@ -293,12 +337,37 @@ public class GCSClient
     return _s3Client.removeEncryptionKey(options);
   }
 
+  @Override
+  public ListenableFuture<List<StoreFile>> addEncryptionKeyRecursively(
+    EncryptionKeyOptions options)
+    throws IOException
+  {
+    return _s3Client.addEncryptionKeyRecursively(options);
+  }
+
+  @Override
+  public ListenableFuture<List<StoreFile>> removeEncryptionKeyRecursively(
+    EncryptionKeyOptions options)
+    throws IOException
+  {
+    return _s3Client.removeEncryptionKeyRecursively(options);
+  }
+
   @Override
   public void shutdown()
   {
     _s3Client.shutdown();
   }
 
+  /**
+   * Configures a command with the clients and settings of this client, for commands that use more
+   * than one client, like copies from another storage service.
+   */
+  void configure(Command cmd)
+  {
+    _s3Client.configure(cmd);
+  }
+
   private class S3ClientDelegatee
     extends S3Client
   {
@@ -346,6 +415,20 @@ public class GCSClient
       return cmd.run();
     }
 
+    /**
+     * Upload stream to GCS.
+     *
+     * @param options Upload options
+     */
+    @Override
+    public UploadOutputStream openUploadStream(UploadOptions options)
+      throws IOException
+    {
+      GCSUploadCommand cmd = new GCSUploadCommand(options);
+      configure(cmd);
+      return cmd.openStream();
+    }
+
     @Override
     public ListenableFuture<StoreFile> download(DownloadOptions options)
       throws IOException
@@ -355,6 +438,24 @@ public class GCSClient
       return cmd.run();
     }
 
+    @Override
+    public SeekableByteChannel openChannel(DownloadOptions options)
+      throws IOException
+    {
+      GCSDownloadCommand cmd = new GCSDownloadCommand(options);
+      configure(cmd);
+      return cmd.openChannel();
+    }
+
+    @Override
+    public InputStream openStream(DownloadOptions options)
+      throws IOException
+    {
+      GCSDownloadCommand cmd = new GCSDownloadCommand(options);
+      configure(cmd);
+      return cmd.openStream();
+    }
+
     @Override
     public ListenableFuture<List<StoreFile>> downloadRecursively(DownloadOptions options)
       throws IOException, ExecutionException, InterruptedException
@@ -367,14 +468,51 @@ public class GCSClient
     @Override
     public ListenableFuture<List<StoreFile>> listObjects(ListOptions options)
     {
+      if(isParallel(options))
+      {
+        return newParallelListCommand(options).run();
+      }
       GCSListCommand cmd = new GCSListCommand(options);
       configure(cmd);
       return cmd.run();
     }
 
+    @Override
+    public Iterator<List<StoreFile>> listObjectsStream(ListOptions options)
+    {
+      if(isParallel(options))
+      {
+        return newParallelListCommand(options).stream();
+      }
+      GCSListCommand cmd = new GCSListCommand(options);
+      configure(cmd);
+      return cmd.stream();
+    }
+
+    private ParallelListCommand newParallelListCommand(final ListOptions options)
+    {
+      ParallelListCommand cmd = new ParallelListCommand(options,
+        new ParallelListCommand.ListerFactory()
+        {
+          public PagedListCommand newLister()
+          {
+            GCSListCommand lister = new GCSListCommand(options);
+            configure(lister);
+            return lister;
+          }
+        });
+      configure(cmd);
+      return cmd;
+    }
+
     @Override
     public ListenableFuture<StoreFile> copy(CopyOptions options)
     {
+      if(CrossStoreCopyCommand.isCrossStore(options))
+      {
+        return super.copy(options);
+      }
+
       GCSCopyCommand cmd = new GCSCopyCommand(options);
       configure(cmd);
       return cmd.run();
@@ -382,8 +520,13 @@ public class GCSClient
 
     @Override
     public ListenableFuture<List<StoreFile>> copyRecursively(CopyOptions options)
-      throws IOException
+      throws IOException, ExecutionException, InterruptedException
     {
+      if(CrossStoreCopyCommand.isCrossStore(options))
+      {
+        return super.copyRecursively(options);
+      }
+
       GCSCopyRecursivelyCommand cmd = new GCSCopyRecursivelyCommand(options);
       configure(cmd);
       return cmd.run();
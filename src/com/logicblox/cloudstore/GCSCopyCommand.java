@@ -17,6 +17,7 @@
 package com.logicblox.cloudstore;
 
 import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.RewriteResponse;
 import com.google.api.services.storage.model.StorageObject;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.AsyncFunction;
@@ -31,12 +32,25 @@ import java.util.concurrent.Callable;
 class GCSCopyCommand
   extends Command
 {
+  // bounds the duration of every rewrite call, so that progress is reported as the copy proceeds
+  static final long MAX_BYTES_REWRITTEN_PER_CALL = 512L * 1024 * 1024;
+
+  // for testing, a lower bound so that small objects take several calls
+  private static volatile long _maxBytesRewrittenPerCall = MAX_BYTES_REWRITTEN_PER_CALL;
+
   private CopyOptions _options;
+  private OverallProgressListenerFactory _progressListenerFactory;
+
+  // rewrite calls are issued one after the other, never concurrently
+  private StorageObject _objectMetadata;
+  private OverallProgressListener _progressListener;
+  private PartProgressEvent _progressEvent;
 
   public GCSCopyCommand(CopyOptions options)
   {
     super(options);
     _options = options;
+    _progressListenerFactory = options.getOverallProgressListenerFactory().orElse(null);
   }
 
   public ListenableFuture<StoreFile> run()
@@ -55,6 +69,11 @@ class GCSCopyCommand
         getUri(_options.getDestinationBucketName(), _options.getDestinationObjectKey()) + "'");
       return Futures.immediateFuture(null);
     }
+    else if(_options.getSourceStoreFile().isPresent())
+    {
+      // just listed, no need to check that it exists
+      return startCopy();
+    }
     else
     {
       ExistsOptions opts = _client.getOptionsBuilderFactory()
@@ -85,67 +104,146 @@ class GCSCopyCommand
     };
   }
 
+  /**
+   * Copies the source object with a rewrite, which GCS may perform in several calls, e.g. for
+   * large objects or when the buckets are in different locations or storage classes. Every call
+   * continues from the rewrite token of the previous one and is retried on its own, so a failure
+   * doesn't restart the copy from the beginning.
+   */
   private ListenableFuture<StoreFile> startCopy()
   {
-    return executeWithRetry(_client.getInternalExecutor(),
-      new Callable<ListenableFuture<StoreFile>>()
+    return rewrite(null);
+  }
+
+  private ListenableFuture<StoreFile> rewrite(final String rewriteToken)
+  {
+    ListenableFuture<RewriteResponse> response = executeWithRetry(_client.getInternalExecutor(),
+      new Callable<ListenableFuture<RewriteResponse>>()
       {
-        public ListenableFuture<StoreFile> call()
+        public ListenableFuture<RewriteResponse> call()
         {
-          return runActual();
+          return _client.getApiExecutor().submit(new Callable<RewriteResponse>()
+          {
+            public RewriteResponse call()
+              throws IOException
+            {
+              return rewriteActual(rewriteToken);
+            }
+          });
         }
 
         public String toString()
         {
-          return "starting copy of " +
+          return (rewriteToken == null ? "starting copy of " : "continuing copy of ") +
             getUri(_options.getSourceBucketName(), _options.getSourceObjectKey()) + " to " +
             getUri(_options.getDestinationBucketName(), _options.getDestinationObjectKey());
         }
       });
+
+    return Futures.transform(response, new AsyncFunction<RewriteResponse, StoreFile>()
+    {
+      public ListenableFuture<StoreFile> apply(RewriteResponse res)
+      {
+        progress(res);
+        if(Boolean.TRUE.equals(res.getDone()))
+        {
+          return Futures.immediateFuture(createStoreFile(res.getResource(), false));
+        }
+        return rewrite(res.getRewriteToken());
+      }
+    });
   }
 
-  private ListenableFuture<StoreFile> runActual()
+  static void setMaxBytesRewrittenPerCall(long maxBytes)
   {
-    return _client.getApiExecutor().submit(new Callable<StoreFile>()
+    _maxBytesRewrittenPerCall = maxBytes;
+  }
+
+  private RewriteResponse rewriteActual(String rewriteToken)
+    throws IOException
+  {
+    // support for testing failures
+    String srcUri = getUri(_options.getSourceBucketName(), _options.getSourceObjectKey());
+    _options.injectAbort(srcUri);
+
+    // the calls of a rewrite have to specify the same destination metadata
+    if(rewriteToken == null)
     {
-      public StoreFile call()
-        throws IOException
-      {
-        // support for testing failures
-        String srcUri = getUri(_options.getSourceBucketName(), _options.getSourceObjectKey());
-        _options.injectAbort(srcUri);
+      _objectMetadata = getObjectMetadata();
+    }
 
-        StorageObject objectMetadata = null;
-        Map<String, String> userMetadata = _options.getUserMetadata().orElse(null);
-        if(userMetadata != null)
-        {
-          Storage.Objects.Get get = getGCSClient().objects()
-            .get(_options.getSourceBucketName(), _options.getSourceObjectKey());
-          StorageObject sourceObject = get.execute();
-          // Map<String,String> sourceUserMetadata = sourceObject.getMetadata();
+    Storage.Objects.Rewrite cmd = getGCSClient().objects()
+      .rewrite(_options.getSourceBucketName(), _options.getSourceObjectKey(),
+        _options.getDestinationBucketName(), _options.getDestinationObjectKey(), _objectMetadata);
 
-          objectMetadata = new StorageObject().setMetadata(ImmutableMap.copyOf(userMetadata))
-            .setContentType(sourceObject.getContentType());
-          // .setContentDisposition(sourceObject.getContentDisposition())
-          // other metadata to be set?
+    _options.getCannedAcl().ifPresent(cmd::setDestinationPredefinedAcl);
+    cmd.setMaxBytesRewrittenPerCall(_maxBytesRewrittenPerCall);
+    if(rewriteToken != null)
+    {
+      cmd.setRewriteToken(rewriteToken);
+    }
+    return cmd.execute();
+  }
 
-          if(!_options.getCannedAcl().isPresent())
-          {
-            objectMetadata.setAcl(sourceObject.getAcl());
-          }
-        }
+  /**
+   * A storage class other than that of the source makes GCS rewrite the data, in as many calls as
+   * {@link #MAX_BYTES_REWRITTEN_PER_CALL} requires.
+   *
+   * @return the metadata of the destination object, or null to keep the metadata of the source
+   */
+  private StorageObject getObjectMetadata()
+    throws IOException
+  {
+    Map<String, String> userMetadata = _options.getUserMetadata().orElse(null);
+    String storageClass = _options.getStorageClass().orElse(null);
+    if(userMetadata == null && storageClass == null)
+    {
+      return null;
+    }
 
-        Storage.Objects.Copy cmd = getGCSClient().objects()
-          .copy(_options.getSourceBucketName(), _options.getSourceObjectKey(),
-            _options.getDestinationBucketName(), _options.getDestinationObjectKey(),
-            objectMetadata);
+    Storage.Objects.Get get = getGCSClient().objects()
+      .get(_options.getSourceBucketName(), _options.getSourceObjectKey());
+    StorageObject sourceObject = get.execute();
+    // Map<String,String> sourceUserMetadata = sourceObject.getMetadata();
 
-        _options.getCannedAcl().ifPresent(cmd::setDestinationPredefinedAcl);
+    StorageObject objectMetadata = new StorageObject().setMetadata(
+      userMetadata != null ? ImmutableMap.copyOf(userMetadata) : sourceObject.getMetadata())
+      .setContentType(sourceObject.getContentType())
+      .setStorageClass(storageClass);
+    // .setContentDisposition(sourceObject.getContentDisposition())
+    // other metadata to be set?
 
-        StorageObject resp = cmd.execute();
-        return createStoreFile(resp, false);
-      }
-    });
+    if(!_options.getCannedAcl().isPresent())
+    {
+      objectMetadata.setAcl(sourceObject.getAcl());
+    }
+    return objectMetadata;
+  }
+
+  /**
+   * Reports the bytes rewritten so far. The listener is created once the size of the object is
+   * known, from the first response.
+   */
+  private void progress(RewriteResponse res)
+  {
+    if(_progressListenerFactory == null || res.getObjectSize() == null ||
+      res.getObjectSize() == 0 || res.getTotalBytesRewritten() == null)
+    {
+      return;
+    }
+
+    if(_progressListener == null)
+    {
+      _progressListener = _progressListenerFactory.create(new ProgressOptionsBuilder()
+        .setObjectUri(
+          getUri(_options.getDestinationBucketName(), _options.getDestinationObjectKey()))
+        .setOperation("copy")
+        .setFileSizeInBytes(res.getObjectSize())
+        .createProgressOptions());
+      _progressEvent = new PartProgressEvent(Integer.toString(0));
+    }
+    _progressEvent.setTransferredBytes(res.getTotalBytesRewritten());
+    _progressListener.progress(_progressEvent);
   }
 
   private StoreFile createStoreFile(StorageObject obj, boolean includeVersion)
@@ -16,16 +16,12 @@
 
 package com.logicblox.cloudstore;
 
-import com.google.api.services.storage.Storage;
-import com.google.api.services.storage.model.StorageObject;
-import com.google.common.util.concurrent.AsyncFunction;
-import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 
 class GCSCopyRecursivelyCommand
@@ -40,7 +36,7 @@ class GCSCopyRecursivelyCommand
   }
 
   public ListenableFuture<List<StoreFile>> run()
-    throws IOException
+    throws IOException, ExecutionException, InterruptedException
   {
     if(!_options.getDestinationObjectKey().endsWith("/") &&
       !_options.getDestinationObjectKey().equals(""))
@@ -60,113 +56,60 @@ class GCSCopyRecursivelyCommand
     }
     final String baseDirPathF = baseDirPath;
 
-    ListenableFuture<List<StoreFile>> listFuture = getListFuture(_options.getSourceBucketName(),
-      _options.getSourceObjectKey(), true);
-    ListenableFuture<List<StoreFile>> result = Futures.transform(listFuture,
-      new AsyncFunction<List<StoreFile>, List<StoreFile>>()
-      {
-        public ListenableFuture<List<StoreFile>> apply(List<StoreFile> filesToCopy)
-        {
-          List<ListenableFuture<StoreFile>> files = new ArrayList<>();
-          List<ListenableFuture<StoreFile>> futures = new ArrayList<>();
-          for(StoreFile src : filesToCopy)
-            createCopyOp(futures, src, baseDirPathF);
-
-          if(_options.isDryRun())
-          {
-            return Futures.immediateFuture(null);
-          }
-          else
-          {
-            return Futures.allAsList(futures);
-          }
-        }
-      });
-    return result;
-  }
-
+    ListOptions sources = _client.getOptionsBuilderFactory()
+      .newListOptionsBuilder()
+      .setBucketName(_options.getSourceBucketName())
+      .setObjectKey(_options.getSourceObjectKey())
+      .setRecursive(true)
+      .createOptions();
+    Iterator<List<StoreFile>> pages = ListingPipeline.listSources(_client, sources,
+      _options.getDestinationBucketName(), _options.getDestinationObjectKey());
 
-  private void createCopyOp(
-    List<ListenableFuture<StoreFile>> futures, final StoreFile src, String baseDirPath)
-  {
-    if(!src.getObjectKey().endsWith("/"))
+    ListingPipeline pipeline = new ListingPipeline.PerObject(_client, pages,
+      ListingPipeline.DEFAULT_WINDOW, _options.isDryRun())
     {
-      String destKeyLastPart = src.getObjectKey().substring(baseDirPath.length());
-      final String destKey = _options.getDestinationObjectKey() + destKeyLastPart;
-      if(_options.isDryRun())
+      protected ListenableFuture<StoreFile> start(StoreFile src)
       {
-        System.out.println(
-          "<DRYRUN> copying '" + getUri(_options.getSourceBucketName(), src.getObjectKey()) + "' to '" +
-            getUri(_options.getDestinationBucketName(), destKey) + "'");
+        return startCopy(src, baseDirPathF);
       }
-      else
-      {
-        futures.add(wrapCopyWithRetry(src, destKey));
-      }
-    }
+    };
+    return pipeline.run();
   }
 
-  private ListenableFuture<StoreFile> wrapCopyWithRetry(final StoreFile src, final String destKey)
-  {
-    return executeWithRetry(_client.getInternalExecutor(),
-      new Callable<ListenableFuture<StoreFile>>()
-      {
-        public ListenableFuture<StoreFile> call()
-        {
-          return _client.getApiExecutor().submit(new Callable<StoreFile>()
-          {
-            public StoreFile call()
-              throws IOException
-            {
-              return performCopy(src, destKey);
-            }
-          });
-        }
-      });
-  }
 
-  private StoreFile performCopy(StoreFile src, String destKey)
-    throws IOException
+  /**
+   * Every object is copied with its own rewrite (see {@link GCSCopyCommand}). The rewrites of the
+   * objects in the window of the pipeline run concurrently, one call at a time on the API executor,
+   * so a large object doesn't hold back the others.
+   */
+  private ListenableFuture<StoreFile> startCopy(StoreFile src, String baseDirPath)
   {
-    // support for testing failures
-    String srcUri = getUri(_options.getSourceBucketName(), src.getObjectKey());
-    _options.injectAbort(srcUri);
-
-    Storage.Objects.Copy cmd = getGCSClient().objects()
-      .copy(_options.getSourceBucketName(), src.getObjectKey(), _options.getDestinationBucketName(),
-        destKey, null);
-    StorageObject resp = cmd.execute();
-    return createStoreFile(resp, false);
-  }
-
-  private ListenableFuture<List<StoreFile>> getListFuture(
-    String bucket, String prefix, boolean isRecursive)
-  {
-    // FIXME - if we gave commands a CloudStoreClient when they were created
-    //         we could then use client.listObjects() instead of all this....
-    ListOptions listOpts = _client.getOptionsBuilderFactory()
-      .newListOptionsBuilder()
-      .setBucketName(bucket)
-      .setObjectKey(prefix)
-      .setRecursive(isRecursive)
-      .createOptions();
-
-    return _client.listObjects(listOpts);
-  }
+    if(src.getObjectKey().endsWith("/"))
+    {
+      return null;
+    }
 
-  private StoreFile createStoreFile(StorageObject obj, boolean includeVersion)
-  {
-    StoreFile f = new StoreFile();
-    f.setObjectKey(obj.getName());
-    f.setETag(obj.getEtag());
-    f.setBucketName(obj.getBucket());
-    f.setSize(obj.getSize().longValue());
-    if(includeVersion && (null != obj.getGeneration()))
+    String destKeyLastPart = src.getObjectKey().substring(baseDirPath.length());
+    String destKey = _options.getDestinationObjectKey() + destKeyLastPart;
+    if(_options.isDryRun())
     {
-      f.setVersionId(obj.getGeneration().toString());
+      System.out.println(
+        "<DRYRUN> copying '" + getUri(_options.getSourceBucketName(), src.getObjectKey()) + "' to '" +
+          getUri(_options.getDestinationBucketName(), destKey) + "'");
+      return null;
     }
-    f.setTimestamp(new java.util.Date(obj.getUpdated().getValue()));
-    return f;
-  }
 
+    CopyOptions options0 = _client.getOptionsBuilderFactory()
+      .newCopyOptionsBuilder()
+      .setSourceBucketName(_options.getSourceBucketName())
+      .setSourceObjectKey(src.getObjectKey())
+      .setDestinationBucketName(_options.getDestinationBucketName())
+      .setDestinationObjectKey(destKey)
+      .setCannedAcl(_options.getCannedAcl().orElse(null))
+      .setStorageClass(_options.getStorageClass().orElse(null))
+      .setSourceStoreFile(src)
+      .setOverallProgressListenerFactory(_options.getOverallProgressListenerFactory().orElse(null))
+      .createOptions();
+    return _client.copy(options0);
+  }
 }
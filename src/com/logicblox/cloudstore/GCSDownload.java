@@ -16,7 +16,6 @@
 
 package com.logicblox.cloudstore;
 
-import com.google.api.client.googleapis.media.MediaHttpDownloaderProgressListener;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.StorageObject;
 import com.google.common.collect.Iterables;
@@ -26,8 +25,6 @@ import org.apache.commons.codec.binary.Base64;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
@@ -47,6 +44,10 @@ class GCSDownload
   private ConcurrentMap<Integer, Crc32cInputStream> _partInputStreams
     = new ConcurrentSkipListMap<>();
   private ConcurrentMap<Integer, Long> _partLengths = new ConcurrentSkipListMap<>();
+  // CRC32C of parts downloaded by an earlier run, see addDownloadedPart
+  private ConcurrentMap<Integer, Long> _restoredCrcs = new ConcurrentSkipListMap<>();
+  // System.nanoTime() at which the last request of every part was sent
+  private ConcurrentMap<Integer, Long> _partRequests = new ConcurrentSkipListMap<>();
 
   public GCSDownload(
     DownloadOptions options, Storage client, ListeningExecutorService apiExecutor,
@@ -69,6 +70,103 @@ class GCSDownload
     return _apiExecutor.submit(new DownloadCallable(partNumber, start, end, opl));
   }
 
+  @Override
+  public ListenableFuture<InputStream> resumePart(
+    int partNumber, long start, long end, OverallProgressListener opl)
+  {
+    return _apiExecutor.submit(new DownloadCallable(partNumber, start, end, opl, true));
+  }
+
+  @Override
+  public ListenableFuture<InputStream> hedgePart(
+    final int partNumber, final long start, final long end, final OverallProgressListener opl)
+  {
+    return _apiExecutor.submit(new Callable<InputStream>()
+    {
+      public InputStream call()
+        throws IOException
+      {
+        return new Crc32cInputStream(getRange(partNumber, start, end, opl));
+      }
+    });
+  }
+
+  @Override
+  public void hedgeWon(int partNumber, InputStream hedge)
+  {
+    _partInputStreams.put(partNumber, (Crc32cInputStream) hedge);
+  }
+
+  @Override
+  public long getPartRequestNanos(int partNumber)
+  {
+    Long requested = _partRequests.get(partNumber);
+    return requested != null ? requested : 0;
+  }
+
+  /**
+   * Issues a ranged GET of the object. The GET only succeeds if the object is still the
+   * generation it was when the download started, so that all parts, and all attempts of a part,
+   * are read from the same content.
+   */
+  private InputStream getRange(
+    int partNumber, long start, long end, OverallProgressListener opl)
+    throws IOException
+  {
+    Storage.Objects.Get getObject = _client.objects().get(getBucketName(), getObjectKey());
+    if(_storageObject.getGeneration() != null)
+    {
+      getObject.setIfGenerationMatch(_storageObject.getGeneration());
+    }
+    if(end >= start)
+    {
+      getObject.getRequestHeaders().setRange("bytes=" + start + "-" + end);
+    }
+
+    InputStream inp = getObject.executeMediaAsInputStream();
+    if(opl != null)
+    {
+      PartProgressEvent ppe = new PartProgressEvent(Integer.toString(partNumber));
+      inp = new ProgressInputStream(inp, opl, ppe);
+    }
+    return inp;
+  }
+
+  /**
+   * Nothing to do, the CRC32C of every part is computed as it is downloaded.
+   */
+  @Override
+  public void partWritten(long position, long length)
+  {
+  }
+
+  /**
+   * The checksum of a part is its CRC32C, in base64.
+   */
+  @Override
+  public String getPartChecksum(int partNumber)
+  {
+    if(!_partInputStreams.containsKey(partNumber))
+    {
+      return null;
+    }
+    return ChecksumManifest.encode(getPartCrc(partNumber));
+  }
+
+  @Override
+  public void addDownloadedPart(int partNumber, long start, long end, String checksum)
+  {
+    _partInputStreams.remove(partNumber);
+    _restoredCrcs.put(partNumber, ChecksumManifest.decode(checksum));
+    _partLengths.put(partNumber, end - start + 1);
+  }
+
+  private long getPartCrc(int partNumber)
+  {
+    Crc32cInputStream in = _partInputStreams.get(partNumber);
+    return in != null ? in.getValue() : _restoredCrcs.get(partNumber);
+  }
+
   /**
    * Does checksum validation. The downloaded object's CRC32C is computed by combining the CRC32C
    * of all individual parts. The final CRC32C is compared against the CRC32C computed by the GCS
@@ -122,61 +220,48 @@ class GCSDownload
     private long _start;
     private long _end;
     private OverallProgressListener _progressListener;
+    private boolean _resume;
 
     public DownloadCallable(
       int partNumber, long start, long end, OverallProgressListener progressListener)
+    {
+      this(partNumber, start, end, progressListener, false);
+    }
+
+    public DownloadCallable(
+      int partNumber, long start, long end, OverallProgressListener progressListener,
+      boolean resume)
     {
       _partNumber = partNumber;
       _start = start;
-      _end = end < 0 ? 0 : end;
+      _end = end;
       _progressListener = progressListener;
+      _resume = resume;
     }
 
+    /**
+     * Returns the content of the ranged GET response directly, to be read by the caller. The
+     * CRC32C of the part is computed as it is read. No thread is needed besides the one reading
+     * the stream, so the number of threads stays bounded by the executors, and recursive
+     * downloads cannot exhaust the API executor waiting for each other (see LB-3798).
+     */
     public InputStream call()
       throws Exception
     {
-      Storage.Objects.Get getObject = _client.objects().get(getBucketName(), getObjectKey());
-      getObject.getMediaHttpDownloader().setContentRange(_start, _end);
+      _partRequests.put(_partNumber, System.nanoTime());
+      InputStream inp = getRange(_partNumber, _start, _end, _progressListener);
 
-      if(_progressListener != null)
+      if(_resume)
       {
-        PartProgressEvent ppe = new PartProgressEvent(Integer.toString(_partNumber));
-        MediaHttpDownloaderProgressListener gcspl = new GCSDownloaderProgressListener(
-          _progressListener, ppe);
-        getObject.getMediaHttpDownloader().setProgressListener(gcspl);
+        Crc32cInputStream in = _partInputStreams.get(_partNumber).continueWith(inp);
+        _partInputStreams.put(_partNumber, in);
+        return in;
       }
-      // take the copy of the stream and re-write it to an InputStream
-      PipedInputStream inp = new PipedInputStream();
-      final PipedOutputStream outp = new PipedOutputStream(inp);
-
-      // NOTE: This used to submit a new Callable to the _apiExecutor since PipedOutputStream 
-      //       writes needed to take place in a different thread than PipedInputStream reads,
-      //       thinking that it's safe to do the writes in the _apiExecutor thread because
-      //       the reads happen in an internalExecutor thread.  But when doing recursive
-      //       multipart downloads, we can get into a situation where all the _apiExecutor
-      //       threads are used and we don't have a free thread to execute the PipedOutputStream
-      //       write being waited on the the corresponding read, so we can deadlock.  Using
-      //       an independent thread for the writes seems to resolve the issue.  See LB-3798.
-      Thread t = new Thread(new Runnable() 
-      {
-        public void run()
-        {
-          try
-          {
-             getObject.executeMediaAndDownloadTo(outp);
-             outp.close();
-          }
-          catch(IOException ex)
-          {
-             throw new RuntimeException(ex);
-          }
-        }
-      });
-      t.start();
 
       Crc32cInputStream in = new Crc32cInputStream(inp);
       _partInputStreams.put(_partNumber, in);
       _partLengths.put(_partNumber, _end - _start + 1);
+      _restoredCrcs.remove(_partNumber);
 
       return in;
     }
@@ -198,10 +283,10 @@ class GCSDownload
         return GCSDownload.this;
       }
 
-      long localCrc32cL = _partInputStreams.get(0).getValue();
-      for(int partNumber : Iterables.skip(_partInputStreams.keySet(), 1))
+      long localCrc32cL = getPartCrc(0);
+      for(int partNumber : Iterables.skip(_partLengths.keySet(), 1))
       {
-        localCrc32cL = Crc32c.combine(localCrc32cL, _partInputStreams.get(partNumber).getValue(),
+        localCrc32cL = Crc32c.combine(localCrc32cL, getPartCrc(partNumber),
           _partLengths.get(partNumber));
       }
 
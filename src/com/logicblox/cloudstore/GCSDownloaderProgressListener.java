@@ -1,51 +0,0 @@
-/*
-  Copyright 2020, Infor Inc.
-
-  Licensed under the Apache License, Version 2.0 (the "License");
-  you may not use this file except in compliance with the License.
-  You may obtain a copy of the License at
-
-    http://www.apache.org/licenses/LICENSE-2.0
-
-  Unless required by applicable law or agreed to in writing, software
-  distributed under the License is distributed on an "AS IS" BASIS,
-  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-  See the License for the specific language governing permissions and
-  limitations under the License.
-*/
-
-package com.logicblox.cloudstore;
-
-import com.google.api.client.googleapis.media.MediaHttpDownloader;
-import com.google.api.client.googleapis.media.MediaHttpDownloaderProgressListener;
-
-/**
- * Implements GCS's interface for receiving progress notifications for downloads.
- */
-class GCSDownloaderProgressListener
-  implements MediaHttpDownloaderProgressListener
-{
-  final private OverallProgressListener _opl;
-  final private PartProgressEvent _ppe;
-
-  public GCSDownloaderProgressListener(OverallProgressListener opl, PartProgressEvent ppe)
-  {
-    _opl = opl;
-    _ppe = ppe;
-  }
-
-  @Override
-  public void progressChanged(MediaHttpDownloader downloader)
-  {
-    switch(downloader.getDownloadState())
-    {
-      case MEDIA_IN_PROGRESS:
-      case MEDIA_COMPLETE:
-        _ppe.setTransferredBytes(downloader.getNumBytesDownloaded());
-        _opl.progress(_ppe);
-        break;
-      default:
-        break;
-    }
-  }
-}
@@ -19,83 +19,67 @@ package com.logicblox.cloudstore;
 import com.google.api.services.storage.Storage;
 import com.google.api.services.storage.model.Objects;
 import com.google.api.services.storage.model.StorageObject;
-import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Callable;
 
 
 class GCSListCommand
-  extends Command
+  extends PagedListCommand
 {
-
-  private ListOptions _options;
+  private boolean _started = false;
+  private String _pageToken = null;
 
   public GCSListCommand(ListOptions options)
   {
     super(options);
-    _options = options;
   }
 
-
-  public ListenableFuture<List<StoreFile>> run()
+  protected boolean hasMorePages()
   {
-    ListenableFuture<List<StoreFile>> future = executeWithRetry(_client.getInternalExecutor(),
-      new Callable<ListenableFuture<List<StoreFile>>>()
-      {
-        public ListenableFuture<List<StoreFile>> call()
-        {
-          return runActual();
-        }
-
-        public String toString()
-        {
-          return "listing objects and directories for " +
-            getUri(_options.getBucketName(), _options.getObjectKey().orElse(""));
-        }
-      });
-
-    return future;
+    return !_started || _pageToken != null;
   }
 
-
-  private ListenableFuture<List<StoreFile>> runActual()
+  protected List<StoreFile> fetchPage()
+    throws IOException
   {
-    return _client.getApiExecutor().submit(new Callable<List<StoreFile>>()
+    Storage.Objects.List cmd = getGCSClient().objects().list(_options.getBucketName());
+    cmd.setPrefix(getPrefix());
+    if(!isRecursive())
     {
-      public List<StoreFile> call()
-        throws IOException
+      cmd.setDelimiter("/");
+    }
+    if(getStartAfter() != null)
+    {
+      // inclusive, not supported by this version of the client library
+      cmd.set("startOffset", getStartAfter());
+    }
+    if(getPageSize() != null)
+    {
+      cmd.setMaxResults(getPageSize().longValue());
+    }
+    boolean ver = _options.versionsIncluded();
+    cmd.setVersions(ver);
+    cmd.setPageToken(_pageToken);
+
+    Objects objs = cmd.execute();
+    List<StoreFile> page = new ArrayList<StoreFile>();
+    List<StorageObject> items = objs.getItems();
+    if(items != null)
+    {
+      for(StorageObject s : items)
       {
-        List<StoreFile> s3files = new ArrayList<StoreFile>();
-        List<StorageObject> allObjs = new ArrayList<StorageObject>();
-        Storage.Objects.List cmd = getGCSClient().objects().list(_options.getBucketName());
-        cmd.setPrefix(_options.getObjectKey().orElse(null));
-        if(!_options.isRecursive())
-        {
-          cmd.setDelimiter("/");
-        }
-        boolean ver = _options.versionsIncluded();
-        cmd.setVersions(ver);
-        Objects objs;
-        do
+        if(!s.getName().equals(getStartAfter()))
         {
-          objs = cmd.execute();
-          List<StorageObject> items = objs.getItems();
-          if(items != null)
-          {
-            allObjs.addAll(items);
-          }
-          cmd.setPageToken(objs.getNextPageToken());
+          page.add(createStoreFile(s, ver));
         }
-        while(objs.getNextPageToken() != null);
-
-        for(StorageObject s : allObjs)
-          s3files.add(createStoreFile(s, ver));
-        return s3files;
       }
-    });
+    }
+    setCommonPrefixes(objs.getPrefixes());
+    _started = true;
+    _pageToken = objs.getNextPageToken();
+    return page;
   }
 
   private StoreFile createStoreFile(StorageObject obj, boolean includeVersion)
@@ -51,7 +51,7 @@ class GCSParallelUpload
   private ConcurrentMap<Integer, StorageObject> _uploadedParts = new ConcurrentSkipListMap<>();
   private ConcurrentLinkedQueue<String> _tempObjectNames = new ConcurrentLinkedQueue<>();
   private Storage _client;
-  private Map<String, String> _meta;
+  private volatile Map<String, String> _meta;
   private Date _initiated;
   private ListeningExecutorService _executor;
   private UploadOptions _options;
@@ -87,6 +87,41 @@ class GCSParallelUpload
     return _executor.submit(new UploadCallable(partNumber, partSize, stream, progressListener));
   }
 
+  /**
+   * @return the name of the temporary object part {@code partNumber} of {@code objectKey} is
+   * uploaded to
+   */
+  static String getPartObjectName(String objectKey, int partNumber)
+  {
+    return "_" + objectKey + ".cs.single." + partNumber;
+  }
+
+  public String getPartChecksum(int partNumber)
+  {
+    StorageObject part = _uploadedParts.get(partNumber);
+    return part == null ? null : part.getCrc32c();
+  }
+
+  /**
+   * Marks a part that was uploaded by an earlier, interrupted run as done, see {@link
+   * GCSParallelUploadFactory#resumeUpload}.
+   */
+  void addUploadedPart(int partNumber, StorageObject part)
+  {
+    _uploadedParts.put(partNumber, part);
+    _tempObjectNames.add(part.getName());
+  }
+
+  /**
+   * The metadata is only applied to the target object when the parts are composed, so it can be
+   * replaced as long as the upload hasn't been completed.
+   */
+  public ListenableFuture<Void> finalizeMetadata(Map<String, String> metadata)
+  {
+    _meta = metadata;
+    return Futures.immediateFuture(null);
+  }
+
   /**
    * Completes the upload by asking the service to compose all individual part objects.
    * Additionally, it performs checksum validation on each compose operation.
@@ -121,18 +156,28 @@ class GCSParallelUpload
     return _initiated;
   }
 
+  /**
+   * Deletes the temporary objects of this upload with batch requests of up to
+   * {@link BatchDeleteCommand#GCS_MAX_KEYS} objects. Failures are ignored, like a failed delete of a
+   * single temporary object is.
+   */
+  private ListenableFuture<List<Void>> deleteTempObjects()
+  {
+    List<ListenableFuture<Void>> deleted = new ArrayList<>();
+    List<String> names = new ArrayList<>(_tempObjectNames);
+    for(List<String> batch : Lists.partition(names, BatchDeleteCommand.GCS_MAX_KEYS))
+    {
+      deleted.add(_executor.submit(new DeleteCallable(batch)));
+    }
+    return Futures.successfulAsList(deleted);
+  }
+
   private class AbortCallable
     implements Callable<ListenableFuture<Void>>
   {
     public ListenableFuture<Void> call()
     {
-      List<ListenableFuture<Void>> deleted = new ArrayList<>();
-      for (String objectName : _tempObjectNames)
-      {
-        deleted.add(_executor.submit(new DeleteCallable(objectName)));
-      }
-      return Futures.transform(Futures.successfulAsList(deleted),
-        Functions.constant(null));
+      return Futures.transform(deleteTempObjects(), Functions.constant(null));
     }
   }
 
@@ -247,12 +292,7 @@ class GCSParallelUpload
         {
           public ListenableFuture<String> apply(StorageObject object)
           {
-            List<ListenableFuture<Void>> deleted = new ArrayList<>();
-            for (String objectName : _tempObjectNames)
-            {
-              deleted.add(_executor.submit(new DeleteCallable(objectName)));
-            }
-            return Futures.transform(Futures.successfulAsList(deleted),
+            return Futures.transform(deleteTempObjects(),
               Functions.constant(object.getEtag()));
           }
         });
@@ -346,18 +386,18 @@ class GCSParallelUpload
   private class DeleteCallable
     implements Callable<Void>
   {
-    final private String _objectName;
+    final private List<String> _objectNames;
 
-    public DeleteCallable(String objectName)
+    public DeleteCallable(List<String> objectNames)
     {
-
-      _objectName = objectName;
+      _objectNames = objectNames;
     }
 
     public Void call()
-      throws IOException, BadHashException
+      throws IOException
     {
-      return _client.objects().delete(getBucketName(), _objectName).execute();
+      BatchDeleteCommand.deleteGCSObjects(_client, getBucketName(), _objectNames);
+      return null;
     }
   }
 
@@ -396,8 +436,8 @@ class GCSParallelUpload
       // Not strictly necessary, but allows optimization in GCS
       mediaContent.setLength(_partSize);
 
-      StorageObject objectMetadata = new StorageObject().setName("_" + getObjectKey() +
-        ".cs.single." + _partNumber)
+      StorageObject objectMetadata = new StorageObject().setName(
+        getPartObjectName(getObjectKey(), _partNumber))
         .setMetadata(ImmutableMap.copyOf(_meta));
 
       Storage.Objects.Insert insertObject = _client.objects()
@@ -16,13 +16,17 @@
 
 package com.logicblox.cloudstore;
 
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.services.storage.Storage;
+import com.google.api.services.storage.model.StorageObject;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 
+import java.io.IOException;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 class GCSParallelUploadFactory
 {
@@ -54,4 +58,46 @@ class GCSParallelUploadFactory
     return Futures.immediateFuture(new GCSParallelUpload(_options, _client, _executor, _meta,
       new Date()));
   }
+
+  /**
+   * Resumes an upload whose part objects survived an earlier, interrupted run. Only the parts
+   * whose object still exists with the journaled CRC32C are kept, the others are uploaded again.
+   *
+   * @param parts CRC32C of the journaled parts, by part number
+   */
+  ListenableFuture<Upload> resumeUpload(final Map<Integer, String> parts)
+  {
+    return _executor.submit(new Callable<Upload>()
+    {
+      public Upload call()
+        throws IOException
+      {
+        GCSParallelUpload upload = new GCSParallelUpload(_options, _client, _executor, _meta,
+          new Date());
+        for(Map.Entry<Integer, String> e : parts.entrySet())
+        {
+          String name = GCSParallelUpload.getPartObjectName(_options.getObjectKey(), e.getKey());
+          StorageObject part;
+          try
+          {
+            part = _client.objects().get(_options.getBucketName(), name).execute();
+          }
+          catch(GoogleJsonResponseException ex)
+          {
+            if(ex.getStatusCode() == 404)
+            {
+              continue;
+            }
+            throw ex;
+          }
+
+          if(e.getValue().equals(part.getCrc32c()))
+          {
+            upload.addUploadedPart(e.getKey(), part);
+          }
+        }
+        return upload;
+      }
+    });
+  }
 }
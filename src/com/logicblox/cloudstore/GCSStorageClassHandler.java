@@ -22,7 +22,6 @@ public class GCSStorageClassHandler
   @Override
   public boolean isStorageClassValid(String storageClass)
   {
-    // TODO: GCS does support something similar. Add support.
-    throw new UsageException("Storage classes are not supported " + "on GCS currently.");
+    return GCSClient.ALL_STORAGE_CLASSES.contains(storageClass);
   }
 }
@@ -16,8 +16,10 @@
 
 package com.logicblox.cloudstore;
 
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.Date;
 import java.util.Map;
 
 class GCSUploadCommand
@@ -45,11 +47,41 @@ class GCSUploadCommand
       this.chunkSize = chunkSize;
   }
 
+  /**
+   * Adaptive part sizes are not used for GCS: parts cannot be larger than
+   * MAX_ALLOWED_CHUNK_SIZE, which is below twice the default chunk size, so
+   * there is nothing to adapt. Uploads to GCS always use uniform parts.
+   */
+  @Override
+  boolean isAdaptiveUpload()
+  {
+    return false;
+  }
+
   @Override
   protected ListenableFuture<Upload> initiateUpload(Map<String, String> metadata)
   {
+    if(isSingleRequestUpload())
+    {
+      return Futures.<Upload>immediateFuture(new GCSSingleRequestUpload(_options, getGCSClient(),
+        _client.getApiExecutor(), metadata, new Date()));
+    }
+
     GCSParallelUploadFactory factory = new GCSParallelUploadFactory(_options, getGCSClient(),
       _client.getApiExecutor(), metadata);
     return factory.startUpload();
   }
+
+  /**
+   * GCS has no notion of pending uploads, the parts are resumed from the temporary objects they
+   * were uploaded to.
+   */
+  @Override
+  protected ListenableFuture<Upload> resumeUpload(
+    String uploadId, Map<String, String> metadata, Map<Integer, String> parts)
+  {
+    GCSParallelUploadFactory factory = new GCSParallelUploadFactory(_options, getGCSClient(),
+      _client.getApiExecutor(), metadata);
+    return factory.resumeUpload(parts);
+  }
 }
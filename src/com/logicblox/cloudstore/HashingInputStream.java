@@ -26,6 +26,7 @@ class HashingInputStream
   extends FilterInputStream
 {
   private MessageDigest _md;
+  private MessageDigest _markedMd;
   private byte[] _digest;
 
   public HashingInputStream(InputStream in)
@@ -42,6 +43,17 @@ class HashingInputStream
     }
   }
 
+  /**
+   * Returns a stream over {@code in} whose digest continues from the bytes read from this stream
+   * so far, for continuing a download that failed midway from a new connection.
+   */
+  HashingInputStream continueWith(InputStream in)
+  {
+    HashingInputStream result = new HashingInputStream(in);
+    result._md = cloneDigest(_md);
+    return result;
+  }
+
   public byte[] getDigest()
   {
     if(_digest == null)
@@ -87,4 +99,38 @@ class HashingInputStream
     }
     return count;
   }
+
+  /**
+   * Marks the underlying stream and takes a snapshot of the digest state, so that bytes that are
+   * re-read after a {@link #reset()} are not hashed twice.
+   */
+  @Override
+  public synchronized void mark(int readlimit)
+  {
+    in.mark(readlimit);
+    _markedMd = cloneDigest(_md);
+  }
+
+  @Override
+  public synchronized void reset()
+    throws IOException
+  {
+    in.reset();
+    if(_markedMd != null)
+    {
+      _md = cloneDigest(_markedMd);
+    }
+  }
+
+  private static MessageDigest cloneDigest(MessageDigest md)
+  {
+    try
+    {
+      return (MessageDigest) md.clone();
+    }
+    catch(CloneNotSupportedException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
 }
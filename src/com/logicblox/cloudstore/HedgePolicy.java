@@ -0,0 +1,111 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which parts of a download are stragglers worth racing with a duplicate request (see
+ * {@link DownloadOptions#getHedgeSlowdown()}).
+ * <p>
+ * A part is a straggler if its throughput so far is more than {@code slowdown} times lower than
+ * the median throughput of the parts that have finished, and downloading the whole part again at
+ * that median throughput is expected to take less time than what the part still needs at its own
+ * throughput. Parts that have been downloading for less than {@link #MIN_ELAPSED_NANOS} are not
+ * judged yet.
+ * <p>
+ * The number of duplicates started, and how many of them finished first, are counted over all
+ * downloads.
+ */
+class HedgePolicy
+{
+  static final long MIN_ELAPSED_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+  private static final AtomicLong _totalHedged = new AtomicLong();
+  private static final AtomicLong _totalWon = new AtomicLong();
+
+  private final double _slowdown;
+  // bytes per second of every finished part, sorted
+  private final List<Double> _throughputs = new ArrayList<>();
+
+  HedgePolicy(double slowdown)
+  {
+    _slowdown = slowdown;
+  }
+
+  /**
+   * Records the throughput of a part that has been downloaded.
+   */
+  synchronized void partFinished(long bytes, long elapsedNanos)
+  {
+    double throughput = bytes / (double) Math.max(elapsedNanos, 1);
+    int i = Collections.binarySearch(_throughputs, throughput);
+    _throughputs.add(i < 0 ? -i - 1 : i, throughput);
+  }
+
+  /**
+   * @param size the size of the part
+   * @param done the number of bytes of the part downloaded so far
+   * @param elapsedNanos the time the part has been downloading
+   * @return true if the part should be raced with a duplicate
+   */
+  synchronized boolean isStraggler(long size, long done, long elapsedNanos)
+  {
+    if(_throughputs.isEmpty() || elapsedNanos < MIN_ELAPSED_NANOS || done >= size)
+    {
+      return false;
+    }
+
+    double median = _throughputs.get(_throughputs.size() / 2);
+    double throughput = done / (double) elapsedNanos;
+    if(throughput * _slowdown >= median)
+    {
+      return false;
+    }
+    return throughput == 0 || size / median < (size - done) / throughput;
+  }
+
+  void hedgeStarted()
+  {
+    _totalHedged.incrementAndGet();
+  }
+
+  void hedgeWon()
+  {
+    _totalWon.incrementAndGet();
+  }
+
+  /**
+   * @return the number of duplicates started by all downloads
+   */
+  static long getTotalHedged()
+  {
+    return _totalHedged.get();
+  }
+
+  /**
+   * @return the number of duplicates of all downloads that finished before the original request
+   */
+  static long getTotalWon()
+  {
+    return _totalWon.get();
+  }
+}
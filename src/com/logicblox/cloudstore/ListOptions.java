@@ -34,10 +34,12 @@ public class ListOptions
   private boolean _recursive;
   private boolean _includeVersions;
   private boolean _excludeDirs;
+  private int _parallelism;
+  private boolean _ordered;
 
   ListOptions(
     CloudStoreClient cloudStoreClient, String bucketName, String objectKey, boolean recursive,
-    boolean includeVersions, boolean excludeDirs)
+    boolean includeVersions, boolean excludeDirs, int parallelism, boolean ordered)
   {
     super(cloudStoreClient);
     _bucketName = bucketName;
@@ -45,6 +47,8 @@ public class ListOptions
     _recursive = recursive;
     _includeVersions = includeVersions;
     _excludeDirs = excludeDirs;
+    _parallelism = parallelism;
+    _ordered = ordered;
   }
 
   /**
@@ -99,4 +103,25 @@ public class ListOptions
     return _excludeDirs;
   }
 
+  /**
+   * Return the number of partitions of a recursive listing that are listed concurrently. With 1,
+   * the listing is a single sequence of requests.
+   *
+   * @return number of partitions listed concurrently
+   */
+  public int getParallelism()
+  {
+    return _parallelism;
+  }
+
+  /**
+   * If true, files are returned in lexicographic order.  Otherwise, the pages of a parallel
+   * listing are returned as soon as they arrive.
+   *
+   * @return ordered flag
+   */
+  public boolean isOrdered()
+  {
+    return _ordered;
+  }
 }
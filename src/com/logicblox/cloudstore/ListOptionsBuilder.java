@@ -35,6 +35,8 @@ public class ListOptionsBuilder
   private boolean _recursive;
   private boolean _includeVersions;
   private boolean _excludeDirs;
+  private int _parallelism = 1;
+  private boolean _ordered = true;
 
   ListOptionsBuilder(CloudStoreClient client)
   {
@@ -103,6 +105,35 @@ public class ListOptionsBuilder
     return this;
   }
 
+  /**
+   * Set the number of partitions of a recursive listing that are listed concurrently, which is
+   * typically the maximum number of concurrent connections of the client.  The key space is
+   * partitioned by its first-level directories and, where there are not enough of those, by keys
+   * sampled from it.  The default of 1 lists sequentially, without the extra requests needed to
+   * partition the key space.  Listings that include versions are always sequential.
+   *
+   * @param parallelism number of partitions listed concurrently
+   * @return this builder
+   */
+  public ListOptionsBuilder setParallelism(int parallelism)
+  {
+    _parallelism = parallelism;
+    return this;
+  }
+
+  /**
+   * If set to false, the pages of a parallel listing are returned as soon as they arrive instead
+   * of in lexicographic order.  Defaults to true.
+   *
+   * @param ordered false to return pages in any order
+   * @return this builder
+   */
+  public ListOptionsBuilder setOrdered(boolean ordered)
+  {
+    _ordered = ordered;
+    return this;
+  }
+
   private void validateOptions()
   {
     if(_cloudStoreClient == null)
@@ -113,6 +144,10 @@ public class ListOptionsBuilder
     {
       throw new UsageException("Bucket has to be set");
     }
+    else if(_parallelism < 1)
+    {
+      throw new UsageException("Parallelism has to be at least 1");
+    }
   }
 
   /**
@@ -127,6 +162,6 @@ public class ListOptionsBuilder
     validateOptions();
 
     return new ListOptions(_cloudStoreClient, _bucketName, _objectKey, _recursive, _includeVersions,
-      _excludeDirs);
+      _excludeDirs, _parallelism, _ordered);
   }
 }
@@ -0,0 +1,319 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Applies an operation to every object of a listing while the listing is still being fetched, so
+ * that listing and transferring overlap instead of adding up. Objects are passed to the operation
+ * in batches of up to {@code batchSize} objects for operations like multi-object deletes (see
+ * {@link BatchDeleteCommand}), or one at a time by a {@link PerObject} pipeline. The next page is
+ * requested whenever fewer objects than the window can take are waiting, and at most {@code
+ * window} operations are in flight at a time.
+ * <p>
+ * Callbacks run on the internal executor of the client, never in the thread that starts an
+ * operation. The first failure stops the pipeline: no more operations are started and the ones in flight are
+ * cancelled. Once all of them have finished, {@link #failed()} is called to clean up and the
+ * result fails with the cause of the first failure.
+ */
+abstract class ListingPipeline
+{
+  /**
+   * Operations in flight by default. Enough to keep all connections busy with small objects, while
+   * limiting the open files and memory of large recursive operations.
+   */
+  static final int DEFAULT_WINDOW = 256;
+
+  private final CloudStoreClient _client;
+  private final Iterator<List<StoreFile>> _pages;
+  private final int _window;
+  private final int _batchSize;
+  private final boolean _dryRun;
+
+  private final ArrayDeque<StoreFile> _pending = new ArrayDeque<StoreFile>();
+  private final List<ListenableFuture<List<StoreFile>>> _started =
+    new ArrayList<ListenableFuture<List<StoreFile>>>();
+  private final SettableFuture<List<StoreFile>> _result = SettableFuture.create();
+  private boolean _listing = false;
+  private boolean _exhausted = false;
+  private int _inFlight = 0;
+  private Throwable _failure = null;
+
+  /**
+   * Pipeline that starts the operation on every object on its own.
+   */
+  abstract static class PerObject
+    extends ListingPipeline
+  {
+    /**
+     * @param pages objects to operate on, see {@link CloudStoreClient#listObjectsStream}
+     * @param dryRun if true, the result is null instead of the results of the operations
+     */
+    PerObject(
+      CloudStoreClient client, Iterator<List<StoreFile>> pages, int window, boolean dryRun)
+    {
+      super(client, pages, window, 1, dryRun);
+    }
+
+    /**
+     * Starts the operation on {@code src}.
+     *
+     * @return future of the result of the operation, or null if there is nothing to wait for,
+     * like for directories or dry runs
+     */
+    protected abstract ListenableFuture<StoreFile> start(StoreFile src)
+      throws Exception;
+
+    protected ListenableFuture<List<StoreFile>> startBatch(List<StoreFile> batch)
+      throws Exception
+    {
+      List<ListenableFuture<StoreFile>> started = new ArrayList<ListenableFuture<StoreFile>>();
+      for(StoreFile src : batch)
+      {
+        ListenableFuture<StoreFile> f = start(src);
+        if(f != null)
+        {
+          started.add(f);
+        }
+      }
+      return started.isEmpty() ? null : Futures.allAsList(started);
+    }
+  }
+
+  /**
+   * @param pages objects to operate on, see {@link CloudStoreClient#listObjectsStream}
+   * @param dryRun if true, the result is null instead of the results of the operations
+   */
+  ListingPipeline(
+    CloudStoreClient client, Iterator<List<StoreFile>> pages, int window, int batchSize,
+    boolean dryRun)
+  {
+    _client = client;
+    _pages = pages;
+    _window = window;
+    _batchSize = batchSize;
+    _dryRun = dryRun;
+  }
+
+  /**
+   * @return pages of the objects to copy from the listing {@code sources}. If objects copied to
+   * {@code destinationBucket} and {@code destinationPrefix} could appear in the listing, they
+   * would be copied again, so the listing is then completed before any object is copied.
+   */
+  static Iterator<List<StoreFile>> listSources(
+    CloudStoreClient client, ListOptions sources, String destinationBucket,
+    String destinationPrefix)
+    throws ExecutionException, InterruptedException
+  {
+    String sourcePrefix = sources.getObjectKey().orElse("");
+    if(sources.getBucketName().equals(destinationBucket) &&
+      (destinationPrefix.startsWith(sourcePrefix) || sourcePrefix.startsWith(destinationPrefix)))
+    {
+      return Collections.singletonList(client.listObjects(sources).get()).iterator();
+    }
+    return client.listObjectsStream(sources);
+  }
+
+  /**
+   * Starts the operation on a batch of objects.
+   *
+   * @return future of the results of the operation, or null if there is nothing to wait for
+   */
+  protected abstract ListenableFuture<List<StoreFile>> startBatch(List<StoreFile> batch)
+    throws Exception;
+
+  /**
+   * Called after a failure, once none of the operations that were started is running anymore.
+   */
+  protected void failed()
+  {
+  }
+
+  /**
+   * @return future of the results of the operations, in the order of the listing
+   */
+  ListenableFuture<List<StoreFile>> run()
+  {
+    pump();
+    return _result;
+  }
+
+  private synchronized void pump()
+  {
+    if(_result.isDone())
+    {
+      return;
+    }
+    if(_failure == null)
+    {
+      while(_inFlight < _window && _failure == null &&
+        (_pending.size() >= _batchSize || (_exhausted && !_pending.isEmpty())))
+      {
+        List<StoreFile> batch = new ArrayList<StoreFile>();
+        while(batch.size() < _batchSize && !_pending.isEmpty())
+        {
+          batch.add(_pending.poll());
+        }
+        startNext(batch);
+      }
+    }
+
+    if(_failure == null && !_exhausted && !_listing && _pending.size() < _window * _batchSize)
+    {
+      fetchPage();
+    }
+
+    if(_inFlight > 0 || _listing)
+    {
+      return;
+    }
+    if(_failure != null)
+    {
+      failed();
+      _result.setException(_failure);
+    }
+    else if(_exhausted && _pending.isEmpty())
+    {
+      if(_dryRun)
+      {
+        _result.set(null);
+        return;
+      }
+      List<StoreFile> results = new ArrayList<StoreFile>();
+      for(ListenableFuture<List<StoreFile>> f : _started)
+      {
+        results.addAll(Futures.getUnchecked(f));
+      }
+      _result.set(results);
+    }
+  }
+
+  private void startNext(List<StoreFile> batch)
+  {
+    ListenableFuture<List<StoreFile>> f;
+    try
+    {
+      f = startBatch(batch);
+    }
+    catch(Exception | Error e)
+    {
+      fail(e);
+      return;
+    }
+    if(f == null)
+    {
+      return;
+    }
+
+    _started.add(f);
+    _inFlight++;
+    Futures.addCallback(f, new FutureCallback<List<StoreFile>>()
+    {
+      public void onSuccess(List<StoreFile> result)
+      {
+        finished(null);
+      }
+
+      public void onFailure(Throwable t)
+      {
+        finished(t);
+      }
+    }, _client.getInternalExecutor());
+  }
+
+  private void fetchPage()
+  {
+    _listing = true;
+    ListenableFuture<List<StoreFile>> page = _client.getInternalExecutor()
+      .submit(new Callable<List<StoreFile>>()
+      {
+        public List<StoreFile> call()
+        {
+          return _pages.hasNext() ? _pages.next() : null;
+        }
+      });
+    Futures.addCallback(page, new FutureCallback<List<StoreFile>>()
+    {
+      public void onSuccess(List<StoreFile> result)
+      {
+        synchronized(ListingPipeline.this)
+        {
+          _listing = false;
+          if(result == null)
+          {
+            _exhausted = true;
+          }
+          else if(_failure == null)
+          {
+            _pending.addAll(result);
+          }
+        }
+        pump();
+      }
+
+      public void onFailure(Throwable t)
+      {
+        synchronized(ListingPipeline.this)
+        {
+          _listing = false;
+          fail(t instanceof UncheckedExecutionException ? t.getCause() : t);
+        }
+        pump();
+      }
+    }, _client.getInternalExecutor());
+  }
+
+  private void finished(Throwable t)
+  {
+    synchronized(this)
+    {
+      _inFlight--;
+      if(t != null)
+      {
+        fail(t);
+      }
+    }
+    pump();
+  }
+
+  private synchronized void fail(Throwable t)
+  {
+    if(_failure != null)
+    {
+      return;
+    }
+    _failure = t;
+    _pending.clear();
+    for(ListenableFuture<List<StoreFile>> f : _started)
+    {
+      f.cancel(true);
+    }
+  }
+}
@@ -22,10 +22,14 @@ import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.net.URISyntaxException;
 import java.security.GeneralSecurityException;
 import java.text.DateFormat;
@@ -35,6 +39,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
@@ -68,6 +73,7 @@ class Main
     _commander.setProgramName("cloud-store");
     _commander.addCommand("upload", new UploadCommandOptions());
     _commander.addCommand("download", new DownloadCommandOptions());
+    _commander.addCommand("cat", new CatCommandOptions());
     _commander.addCommand("copy", new CopyCommandOptions());
     _commander.addCommand("rename", new RenameCommandOptions());
     _commander.addCommand("delete", new DeleteCommandOptions());
@@ -145,7 +151,13 @@ class Main
     protected CloudStoreClient createCloudStoreClient()
       throws URISyntaxException, IOException, GeneralSecurityException
     {
-      return Utils.createCloudStoreClient(getScheme(), endpoint, maxConcurrentConnections,
+      return createCloudStoreClient(getScheme(), endpoint);
+    }
+
+    protected CloudStoreClient createCloudStoreClient(String scheme, String endpoint)
+      throws URISyntaxException, IOException, GeneralSecurityException
+    {
+      return Utils.createCloudStoreClient(scheme, endpoint, maxConcurrentConnections,
         encKeyDirectory, credentialProvidersS3, _stubborn, _retryCount);
     }
   }
@@ -390,33 +402,56 @@ class Main
 
   }
 
-  @Parameters(commandDescription = "Copy an object or prefix to the same storage service")
+  @Parameters(commandDescription = "Copy an object or prefix within a storage service, or " +
+    "between two storage services or endpoints")
   class CopyCommandOptions
     extends TwoObjectsCommandOptions
   {
+    @Parameter(names = "--source-endpoint", description = "Endpoint of the source storage " +
+      "service, if it differs from the destination one. Objects copied between storage services " +
+      "or endpoints are streamed from the source to the destination, without local staging. " +
+      "--endpoint applies to the destination.")
+    String sourceEndpoint = null;
+
     @Parameter(names = "--canned-acl", description = "The canned ACL to use. " +
       S3Client.CANNED_ACLS_DESC_CONST)
     String cannedAcl;
 
     @Parameter(names = "--storage-class", description = "The storage class to" +
       " use. Source object's storage class will be used by default. " +
-      S3Client.STORAGE_CLASSES_DESC_CONST)
+      S3Client.STORAGE_CLASSES_DESC_CONST + " " + GCSClient.STORAGE_CLASSES_DESC_CONST)
     String storageClass;
 
     @Parameter(names = {"-r", "--recursive"}, description = "Copy all objects that match the " +
       "provided storage service prefix key.")
     boolean recursive = false;
 
+    @Parameter(names = "--progress", description = "Enable progress indicator")
+    boolean progress = false;
+
     @Parameter(names = "--dry-run", description = "Display operations but do not execute them")
     boolean dryRun = false;
 
     public void invoke()
       throws Exception
     {
-      CloudStoreClient client = createCloudStoreClient();
+      CloudStoreClient client;
+      CloudStoreClient sourceClient = null;
+      String sourceScheme = getScheme();
+      String destinationScheme = getDestinationURI().getScheme();
+      if(sourceEndpoint != null || !sourceScheme.equals(destinationScheme))
+      {
+        client = createCloudStoreClient(destinationScheme, endpoint);
+        sourceClient = createCloudStoreClient(sourceScheme, sourceEndpoint);
+      }
+      else
+      {
+        client = createCloudStoreClient();
+      }
 
       CopyOptions options = client.getOptionsBuilderFactory()
         .newCopyOptionsBuilder()
+        .setSourceClient(sourceClient)
         .setSourceBucketName(getSourceBucket())
         .setSourceObjectKey(getSourceObjectKey())
         .setDestinationBucketName(getDestinationBucket())
@@ -424,6 +459,7 @@ class Main
         .setCannedAcl(cannedAcl)
         .setStorageClass(storageClass)
         .setDryRun(dryRun)
+        .setOverallProgressListenerFactory(progress ? new ConsoleProgressListenerFactory() : null)
         .createOptions();
 
       try
@@ -459,6 +495,10 @@ class Main
       finally
       {
         client.shutdown();
+        if(sourceClient != null)
+        {
+          sourceClient.shutdown();
+        }
       }
     }
   }
@@ -479,9 +519,16 @@ class Main
     @Parameter(names = "--dry-run", description = "Display operations but do not execute them")
     boolean dryRun = false;
 
+    @Parameter(names = "--resume", description = "Journal the progress of a recursive rename " +
+      "locally and resume a previously interrupted rename of the same prefix")
+    boolean resume = false;
+
     public void invoke()
       throws Exception
     {
+      if(resume && !recursive)
+        throw new UsageException("Resuming is only supported for recursive renames");
+
       CloudStoreClient client = createCloudStoreClient();
 
       RenameOptions options = client.getOptionsBuilderFactory()
@@ -492,6 +539,7 @@ class Main
         .setDestinationObjectKey(getDestinationObjectKey())
         .setCannedAcl(cannedAcl)
         .setDryRun(dryRun)
+        .setResume(resume)
         .createOptions();
 
       try
@@ -523,7 +571,8 @@ class Main
   class UploadCommandOptions
     extends S3ObjectCommandOptions
   {
-    @Parameter(names = "-i", description = "File or directory to upload", required = true)
+    @Parameter(names = "-i", description = "File or directory to upload, or '-' to upload " +
+      "from standard input", required = true)
     String file;
 
     @Parameter(names = {"-r", "--recursive"}, description = "Upload a directory recursively")
@@ -546,21 +595,44 @@ class Main
       "The size of each chunk read from the file. Determined " + "automatically if not set.")
     long chunkSize = -1;
 
+    @Parameter(names = "--resume", description = "Journal the progress of the upload locally " +
+      "and resume a previously failed upload of the same file, uploading only the missing parts")
+    boolean resume = false;
+
     public void invoke()
       throws Exception
     {
       CloudStoreClient client = createCloudStoreClient();
-      File f = new File(file);
 
       UploadOptionsBuilder uob = client.getOptionsBuilderFactory()
         .newUploadOptionsBuilder()
-        .setFile(f)
         .setBucketName(getBucketName())
         .setObjectKey(getObjectKey())
         .setChunkSize(chunkSize)
         .setEncKey(encKeyName)
         .setCannedAcl(cannedAcl)
-        .setDryRun(dryRun);
+        .setDryRun(dryRun)
+        .setResume(resume);
+
+      if(file.equals("-"))
+      {
+        if(recursive)
+          throw new UsageException("Recursive upload is not supported from standard input");
+        if(resume)
+          throw new UsageException("Resuming is not supported from standard input");
+        if(progress)
+          throw new UsageException("Progress indicator is not supported from standard input");
+        if(getObjectKey().endsWith("/") || getObjectKey().equals(""))
+          throw new UsageException("Destination key of an upload from standard input should " +
+            "not end with a '/': " + getURI());
+
+        uploadStream(client.openUploadStream(uob.createOptions()), System.in);
+        client.shutdown();
+        return;
+      }
+
+      File f = new File(file);
+      uob.setFile(f);
 
       if(progress)
       {
@@ -583,6 +655,27 @@ class Main
       }
       client.shutdown();
     }
+
+    private void uploadStream(UploadOutputStream out, InputStream in)
+      throws IOException
+    {
+      byte[] buffer = new byte[64 * 1024];
+      try
+      {
+        int count;
+        while((count = in.read(buffer)) != -1)
+        {
+          out.write(buffer, 0, count);
+        }
+      }
+      catch(IOException e)
+      {
+        // Don't create an object with truncated content
+        out.abort();
+        throw e;
+      }
+      out.close();
+    }
   }
 
   @Parameters(commandDescription = "List objects in storage service")
@@ -601,6 +694,14 @@ class Main
       "that match the provided storage " + "service URL prefix")
     boolean includeVersions = false;
 
+    @Parameter(names = {"--parallel"}, description = "List partitions of the keys of a " +
+      "recursive listing concurrently, using up to --max-concurrent-connections connections")
+    boolean parallel = false;
+
+    @Parameter(names = {"--unordered"}, description = "With --parallel, print objects as soon " +
+      "as they are listed instead of in lexicographic order")
+    boolean unordered = false;
+
     @Override
     public void invoke()
       throws Exception
@@ -612,56 +713,63 @@ class Main
         .setObjectKey(getObjectKey())
         .setRecursive(recursive)
         .setIncludeVersions(includeVersions)
-        .setExcludeDirs(excludeDirs);
+        .setExcludeDirs(excludeDirs)
+        .setParallelism(parallel ? maxConcurrentConnections : 1)
+        .setOrdered(!unordered);
       try
       {
-        List<StoreFile> listCommandResults = client.listObjects(lob.createOptions()).get();
-        if(includeVersions)
+        Iterator<List<StoreFile>> pages = client.listObjectsStream(lob.createOptions());
+        // columns of versions only ever widen, as later pages are not known yet
+        int[] max = new int[4];
+        DateFormat df = Utils.getDefaultDateFormat();
+        while(pages.hasNext())
         {
-          String[][] table = new String[listCommandResults.size()][4];
-          int[] max = new int[4];
-          DateFormat df = Utils.getDefaultDateFormat();
-          for(int i = 0; i < listCommandResults.size(); i++)
+          List<StoreFile> page = pages.next();
+          if(includeVersions)
           {
-            StoreFile obj = listCommandResults.get(i);
-            table[i][0] = Utils.getURI(client.getScheme(), obj.getBucketName(), "") + obj.getObjectKey();
-            table[i][1] = obj.getVersionId().orElse("No Version Id");
-            if(obj.getTimestamp().isPresent())
-            {
-              table[i][2] = df.format(obj.getTimestamp().get());
-            }
-            else
-            {
-              table[i][2] = "Not applicable";
-            }
-            if(obj.getSize().isPresent())
+            String[][] table = new String[page.size()][4];
+            for(int i = 0; i < page.size(); i++)
             {
-              table[i][3] = obj.getSize().get().toString();
+              StoreFile obj = page.get(i);
+              table[i][0] = Utils.getURI(client.getScheme(), obj.getBucketName(), "") + obj.getObjectKey();
+              table[i][1] = obj.getVersionId().orElse("No Version Id");
+              if(obj.getTimestamp().isPresent())
+              {
+                table[i][2] = df.format(obj.getTimestamp().get());
+              }
+              else
+              {
+                table[i][2] = "Not applicable";
+              }
+              if(obj.getSize().isPresent())
+              {
+                table[i][3] = obj.getSize().get().toString();
+              }
+              else
+              {
+                table[i][3] = "0";
+              }
+              for(int j = 0; j < 4; j++)
+                max[j] = Math.max(table[i][j].length(), max[j]);
             }
-            else
+            for(final String[] row : table)
             {
-              table[i][3] = "0";
+              System.out.format(
+                "%-" + (max[0] + 4) + "s%-" + (max[1] + 4) + "s%-" + (max[2] + 3) + "s%-" +
+                  (max[3] + 3) + "s\n", row[0], row[1], row[2], row[3]);
             }
-            for(int j = 0; j < 4; j++)
-              max[j] = Math.max(table[i][j].length(), max[j]);
-          }
-          for(final String[] row : table)
-          {
-            System.out.format(
-              "%-" + (max[0] + 4) + "s%-" + (max[1] + 4) + "s%-" + (max[2] + 3) + "s%-" +
-                (max[3] + 3) + "s\n", row[0], row[1], row[2], row[3]);
           }
-        }
-        else
-        {
-          for(StoreFile obj : listCommandResults)
+          else
           {
-            System.out.println(
-              Utils.getURI(client.getScheme(), obj.getBucketName(), "") + obj.getObjectKey());
+            for(StoreFile obj : page)
+            {
+              System.out.println(
+                Utils.getURI(client.getScheme(), obj.getBucketName(), "") + obj.getObjectKey());
+            }
           }
         }
       }
-      catch(ExecutionException exc)
+      catch(UncheckedExecutionException exc)
       {
         rethrow(exc.getCause());
       }
@@ -732,6 +840,10 @@ class Main
       "Print sizes in human readable form " + "(eg 1kB instead of 1234)")
     boolean humanReadble = false;
 
+    @Parameter(names = {"--parallel"}, description = "List partitions of the keys " +
+      "concurrently, using up to --max-concurrent-connections connections")
+    boolean parallel = false;
+
     @Override
     public void invoke()
       throws Exception
@@ -743,7 +855,8 @@ class Main
         .setObjectKey(getObjectKey())
         .setRecursive(true)
         .setIncludeVersions(false)
-        .setExcludeDirs(false);
+        .setExcludeDirs(false)
+        .setParallelism(parallel ? maxConcurrentConnections : 1);
       long numberOfFiles = 0;
       long totalSize = 0;
       int baseDepth = getObjectKey().equals("") ? 1 : getObjectKey().split("/").length + 1;
@@ -751,69 +864,72 @@ class Main
       TreeMap<String, DirectoryNode> dirs = new TreeMap<String, DirectoryNode>();
       try
       {
-        List<StoreFile> result = client.listObjects(lob.createOptions()).get();
-        for(StoreFile obj : result)
+        Iterator<List<StoreFile>> pages = client.listObjectsStream(lob.createOptions());
+        while(pages.hasNext())
         {
-          numberOfFiles += 1;
-          totalSize += obj.getSize().orElse((long) 0);
-          if(maxDepth > 0)
+          for(StoreFile obj : pages.next())
           {
-            String current = obj.getObjectKey();
-            String parent = findParent(current);
-            long depth = current.split("/").length - baseDepth + 1;
-            // add size to the parent Node if parent Node to be displayed
-            if(0 <= depth - 1 && depth - 1 <= maxDepth)
+            numberOfFiles += 1;
+            totalSize += obj.getSize().orElse((long) 0);
+            if(maxDepth > 0)
             {
-              DirectoryNode parentNode = dirs.get(parent);
-              if(parentNode != null)
-              {
-                parentNode.size = parentNode.size + obj.getSize().orElse((long) 0);
-              }
-              else
-              {
-                parentNode = new DirectoryNode(obj.getSize().orElse((long) 0), parent);
-                dirs.put(parent, parentNode);
-              }
-              // handle children if they were to be displayed
-              if(depth <= maxDepth)
+              String current = obj.getObjectKey();
+              String parent = findParent(current);
+              long depth = current.split("/").length - baseDepth + 1;
+              // add size to the parent Node if parent Node to be displayed
+              if(0 <= depth - 1 && depth - 1 <= maxDepth)
               {
-                // if child node was a directory add them to the map of directories
-                if(current.endsWith("/"))
+                DirectoryNode parentNode = dirs.get(parent);
+                if(parentNode != null)
+                {
+                  parentNode.size = parentNode.size + obj.getSize().orElse((long) 0);
+                }
+                else
                 {
-                  if(!dirs.containsKey(current))
+                  parentNode = new DirectoryNode(obj.getSize().orElse((long) 0), parent);
+                  dirs.put(parent, parentNode);
+                }
+                // handle children if they were to be displayed
+                if(depth <= maxDepth)
+                {
+                  // if child node was a directory add them to the map of directories
+                  if(current.endsWith("/"))
+                  {
+                    if(!dirs.containsKey(current))
+                    {
+                      current = current.substring(0, current.length() - 1);
+                      DirectoryNode currentNode = new DirectoryNode(obj.getSize().orElse((long) 0),
+                        current);
+                      parentNode.childs.add(currentNode);
+                      dirs.put(current, currentNode);
+                    }
+                  }
+                  // else add file Node to children if all was enabled to be displayed
+                  else if(all)
                   {
-                    current = current.substring(0, current.length() - 1);
                     DirectoryNode currentNode = new DirectoryNode(obj.getSize().orElse((long) 0),
                       current);
                     parentNode.childs.add(currentNode);
-                    dirs.put(current, currentNode);
                   }
                 }
-                // else add file Node to children if all was enabled to be displayed
-                else if(all)
-                {
-                  DirectoryNode currentNode = new DirectoryNode(obj.getSize().orElse((long) 0),
-                    current);
-                  parentNode.childs.add(currentNode);
-                }
-              }
-            }
-            // add size of current to all great Parents who will be displayed
-            while(parent.length() > 0 && parent.split("/").length - baseDepth < maxDepth &&
-              0 < parent.split("/").length - baseDepth)
-            {
-              parent = findParent(parent);
-              DirectoryNode parentNode = dirs.get(parent);
-              if(parentNode != null)
-              {
-                parentNode.size = parentNode.size + obj.getSize().orElse((long) 0);
               }
-              else
+              // add size of current to all great Parents who will be displayed
+              while(parent.length() > 0 && parent.split("/").length - baseDepth < maxDepth &&
+                0 < parent.split("/").length - baseDepth)
               {
-                parentNode = new DirectoryNode(obj.getSize().orElse((long) 0), parent);
-                dirs.put(parent, parentNode);
+                parent = findParent(parent);
+                DirectoryNode parentNode = dirs.get(parent);
+                if(parentNode != null)
+                {
+                  parentNode.size = parentNode.size + obj.getSize().orElse((long) 0);
+                }
+                else
+                {
+                  parentNode = new DirectoryNode(obj.getSize().orElse((long) 0), parent);
+                  dirs.put(parent, parentNode);
+                }
+                depth--;
               }
-              depth--;
             }
           }
         }
@@ -831,7 +947,7 @@ class Main
           printTree(dirs, humanReadble, all, getObjectKey());
         }
       }
-      catch(ExecutionException exc)
+      catch(UncheckedExecutionException exc)
       {
         rethrow(exc.getCause());
       }
@@ -1089,7 +1205,8 @@ class Main
   class DownloadCommandOptions
     extends S3ObjectCommandOptions
   {
-    @Parameter(names = "-o", description = "Write output to file, or directory", required = true)
+    @Parameter(names = "-o", description = "Write output to file, or directory, or '-' to " +
+      "write to standard output", required = true)
     String file = System.getProperty("user.dir");
 
     @Parameter(names = "--overwrite", description = "Overwrite existing file(s) if existing")
@@ -1102,6 +1219,20 @@ class Main
     @Parameter(names = {"--version-id"}, description = "Download a specific version of a file")
     String version = null;
 
+    @Parameter(names = "--resume", description = "Keep the partially downloaded file if the " +
+      "download fails, and resume a previously failed download to the same file, downloading " +
+      "only the missing parts")
+    boolean resume = false;
+
+    @Parameter(names = "--hedge-slowdown", description = "Once connections become idle, race " +
+      "parts that are this many times slower than the median part with a duplicate request, " +
+      "keeping whichever finishes first (0 disables)")
+    double hedgeSlowdown = 0;
+
+    @Parameter(names = "--no-preallocate", description = "Let the local file grow as parts are " +
+      "written, instead of extending it to the size of the object up front")
+    boolean noPreallocate = false;
+
     @Parameter(names = "--progress", description = "Enable progress indication")
     boolean progress = false;
 
@@ -1114,6 +1245,44 @@ class Main
     {
       CloudStoreClient client = createCloudStoreClient();
 
+      if(file.equals("-"))
+      {
+        if(recursive)
+          throw new UsageException("Recursive download is not supported to standard output");
+        if(progress)
+          throw new UsageException("Progress indicator is not supported to standard output");
+        if(resume)
+          throw new UsageException("Resuming is not supported to standard output");
+        if(dryRun)
+        {
+          System.out.println("<DRYRUN> downloading '" + getURI() + "' to standard output");
+          client.shutdown();
+          return;
+        }
+
+        DownloadOptions opts = client.getOptionsBuilderFactory()
+          .newDownloadOptionsBuilder()
+          .setBucketName(getBucketName())
+          .setObjectKey(getObjectKey())
+          .setVersion(version)
+          .createOptions();
+        try(InputStream in = client.openStream(opts))
+        {
+          byte[] buffer = new byte[64 * 1024];
+          int count;
+          while((count = in.read(buffer)) != -1)
+          {
+            System.out.write(buffer, 0, count);
+          }
+          System.out.flush();
+        }
+        finally
+        {
+          client.shutdown();
+        }
+        return;
+      }
+
       File output = new File(file);
 
       DownloadOptionsBuilder dob = client.getOptionsBuilderFactory()
@@ -1123,7 +1292,10 @@ class Main
         .setObjectKey(getObjectKey())
         .setVersion(version)
         .setOverwrite(overwrite)
-        .setDryRun(dryRun);
+        .setDryRun(dryRun)
+        .setResume(resume)
+        .setHedgeSlowdown(hedgeSlowdown)
+        .setPreallocate(!noPreallocate);
 
       if(progress)
       {
@@ -1156,6 +1328,95 @@ class Main
     }
   }
 
+  @Parameters(commandDescription = "Write an object, or a range of it, to standard output")
+  class CatCommandOptions
+    extends S3ObjectCommandOptions
+  {
+    @Parameter(names = "--range", description = "Bytes to write: 'first-last' (inclusive), " +
+      "'first-' up to the end of the object, or '-count' for the last count bytes")
+    String range = null;
+
+    @Parameter(names = {"--version-id"}, description = "Read a specific version of an object")
+    String version = null;
+
+    @Override
+    public void invoke()
+      throws Exception
+    {
+      CloudStoreClient client = createCloudStoreClient();
+      DownloadOptions opts = client.getOptionsBuilderFactory()
+        .newDownloadOptionsBuilder()
+        .setBucketName(getBucketName())
+        .setObjectKey(getObjectKey())
+        .setVersion(version)
+        .createOptions();
+
+      try(SeekableByteChannel channel = client.openChannel(opts))
+      {
+        long size = channel.size();
+        long[] bounds = parseRange(range, size);
+        channel.position(bounds[0]);
+
+        ByteBuffer buf = ByteBuffer.allocate(ObjectChannel.BLOCK_SIZE);
+        long remaining = bounds[1] - bounds[0];
+        while(remaining > 0)
+        {
+          buf.clear();
+          buf.limit((int) Math.min(buf.capacity(), remaining));
+          int count = channel.read(buf);
+          if(count == -1)
+          {
+            break;
+          }
+          System.out.write(buf.array(), 0, count);
+          remaining -= count;
+        }
+        System.out.flush();
+      }
+      finally
+      {
+        client.shutdown();
+      }
+    }
+
+    /**
+     * @return start (inclusive) and end (exclusive) of {@code range} in an object of {@code
+     * size} bytes
+     */
+    private long[] parseRange(String range, long size)
+    {
+      if(range == null)
+      {
+        return new long[]{0, size};
+      }
+
+      int dash = range.indexOf('-');
+      try
+      {
+        if(dash == 0)
+        {
+          long count = Long.parseLong(range.substring(1));
+          return new long[]{Math.max(0, size - count), size};
+        }
+        if(dash > 0)
+        {
+          long first = Long.parseLong(range.substring(0, dash));
+          boolean open = dash == range.length() - 1;
+          long last = open ? size - 1 : Long.parseLong(range.substring(dash + 1));
+          if(first <= last || open)
+          {
+            return new long[]{Math.min(first, size), Math.min(last + 1, size)};
+          }
+        }
+      }
+      catch(NumberFormatException ignored)
+      {
+      }
+      throw new UsageException("Invalid range '" + range + "', expected 'first-last', " +
+        "'first-' or '-count'");
+    }
+  }
+
   @Parameters(commandDescription = "Add new encryption key")
   class AddEncryptionKeyCommandOptions
     extends S3ObjectCommandOptions
@@ -1164,13 +1425,38 @@ class Main
       true)
     String encKeyName = null;
 
+    @Parameter(names = {"-r", "--recursive"}, description = "Add the key to all objects that " +
+      "match the provided storage service prefix key.")
+    boolean recursive = false;
+
+    @Parameter(names = "--resume", description = "Journal the progress of a recursive update " +
+      "locally and resume a previously interrupted update of the same prefix")
+    boolean resume = false;
+
     public void invoke()
       throws Exception
     {
+      if(resume && !recursive)
+        throw new UsageException("Resuming is only supported for recursive updates");
+
       CloudStoreClient client = createCloudStoreClient();
       try
       {
-        if(getObjectKey().endsWith("/") || getObjectKey().equals(""))
+        if(recursive)
+        {
+          EncryptionKeyOptions options = client.getOptionsBuilderFactory()
+            .newEncryptionKeyOptionsBuilder()
+            .setBucketName(getBucketName())
+            .setObjectKey(getObjectKey())
+            .setEncryptionKey(encKeyName)
+            .setResume(resume)
+            .createOptions();
+
+          List<StoreFile> storeFiles = client.addEncryptionKeyRecursively(options).get();
+          if(storeFiles.isEmpty())
+            System.err.println("warning: No objects found for " + getURI());
+        }
+        else if(getObjectKey().endsWith("/") || getObjectKey().equals(""))
         {
           throw new UsageException("Invalid object key " + getURI());
         }
@@ -1215,13 +1501,38 @@ class Main
                required = true)
     String encKeyName = null;
 
+    @Parameter(names = {"-r", "--recursive"}, description = "Remove the key from all objects that " +
+      "match the provided storage service prefix key.")
+    boolean recursive = false;
+
+    @Parameter(names = "--resume", description = "Journal the progress of a recursive update " +
+      "locally and resume a previously interrupted update of the same prefix")
+    boolean resume = false;
+
     public void invoke()
       throws Exception
     {
+      if(resume && !recursive)
+        throw new UsageException("Resuming is only supported for recursive updates");
+
       CloudStoreClient client = createCloudStoreClient();
       try
       {
-        if(getObjectKey().endsWith("/") || getObjectKey().equals(""))
+        if(recursive)
+        {
+          EncryptionKeyOptions options = client.getOptionsBuilderFactory()
+            .newEncryptionKeyOptionsBuilder()
+            .setBucketName(getBucketName())
+            .setObjectKey(getObjectKey())
+            .setEncryptionKey(encKeyName)
+            .setResume(resume)
+            .createOptions();
+
+          List<StoreFile> storeFiles = client.removeEncryptionKeyRecursively(options).get();
+          if(storeFiles.isEmpty())
+            System.err.println("warning: No objects found for " + getURI());
+        }
+        else if(getObjectKey().endsWith("/") || getObjectKey().equals(""))
         {
           throw new UsageException("Invalid object key " + getURI());
         }
@@ -0,0 +1,212 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Read-only {@link SeekableByteChannel} over the (decrypted) content of a stored object, see
+ * {@link CloudStoreClient#openChannel(DownloadOptions)}.
+ * <p>
+ * The object is read in blocks of {@link #BLOCK_SIZE} bytes, each fetched with ranged GETs by
+ * {@link DownloadCommand#readRange(Download, long, int)}. The most recently used blocks are kept
+ * in a small LRU cache, and reading blocks in sequence fetches the next few blocks ahead of time,
+ * so that sequential reads don't wait for a request per block.
+ * <p>
+ * Reads are not checksum validated: checksums cover whole objects or parts, which arbitrary
+ * ranges do not.
+ */
+class ObjectChannel
+  implements SeekableByteChannel
+{
+  static final int BLOCK_SIZE = 1024 * 1024;
+  static final int READ_AHEAD_BLOCKS = 2;
+  static final int CACHED_BLOCKS = 8;
+
+  private final DownloadCommand _command;
+  private final Download _download;
+  private final long _size;
+
+  private final Map<Long, ListenableFuture<byte[]>> _blocks = new LinkedHashMap<Long,
+    ListenableFuture<byte[]>>(16, 0.75f, true)
+  {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, ListenableFuture<byte[]>> eldest)
+    {
+      return size() > CACHED_BLOCKS;
+    }
+  };
+
+  private long _position = 0;
+  private long _lastBlock = -1;
+  private boolean _open = true;
+
+  ObjectChannel(DownloadCommand command, Download download, long size)
+  {
+    _command = command;
+    _download = download;
+    _size = size;
+  }
+
+  @Override
+  public synchronized int read(ByteBuffer dst)
+    throws IOException
+  {
+    ensureOpen();
+    if(_position >= _size)
+    {
+      return -1;
+    }
+
+    int total = 0;
+    while(dst.hasRemaining() && _position < _size)
+    {
+      long block = _position / BLOCK_SIZE;
+      byte[] data = getBlock(block);
+      int offset = (int) (_position - block * BLOCK_SIZE);
+      int count = Math.min(dst.remaining(), data.length - offset);
+      dst.put(data, offset, count);
+      _position += count;
+      total += count;
+    }
+    return total;
+  }
+
+  private byte[] getBlock(long block)
+    throws IOException
+  {
+    ListenableFuture<byte[]> future = fetch(block);
+    if(block == _lastBlock + 1)
+    {
+      for(long next = block + 1; next <= block + READ_AHEAD_BLOCKS; next++)
+      {
+        if(next * BLOCK_SIZE < _size)
+        {
+          fetch(next);
+        }
+      }
+    }
+    _lastBlock = block;
+
+    try
+    {
+      return future.get();
+    }
+    catch(InterruptedException e)
+    {
+      throw new InterruptedIOException("interrupted while reading " + getUri());
+    }
+    catch(ExecutionException e)
+    {
+      // don't cache failures, the next read tries again
+      _blocks.remove(block);
+      throw new IOException("Error reading " + getUri(), e.getCause());
+    }
+  }
+
+  private ListenableFuture<byte[]> fetch(long block)
+  {
+    ListenableFuture<byte[]> future = _blocks.get(block);
+    if(future == null)
+    {
+      long start = block * BLOCK_SIZE;
+      int length = (int) Math.min(BLOCK_SIZE, _size - start);
+      future = _command.readRange(_download, start, length);
+      _blocks.put(block, future);
+    }
+    return future;
+  }
+
+  @Override
+  public int write(ByteBuffer src)
+  {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public synchronized long position()
+    throws IOException
+  {
+    ensureOpen();
+    return _position;
+  }
+
+  @Override
+  public synchronized SeekableByteChannel position(long newPosition)
+    throws IOException
+  {
+    ensureOpen();
+    if(newPosition < 0)
+    {
+      throw new IllegalArgumentException("negative position: " + newPosition);
+    }
+    _position = newPosition;
+    return this;
+  }
+
+  @Override
+  public long size()
+    throws IOException
+  {
+    ensureOpen();
+    return _size;
+  }
+
+  @Override
+  public SeekableByteChannel truncate(long size)
+  {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public synchronized boolean isOpen()
+  {
+    return _open;
+  }
+
+  @Override
+  public synchronized void close()
+  {
+    _open = false;
+    _blocks.clear();
+  }
+
+  private synchronized void ensureOpen()
+    throws ClosedChannelException
+  {
+    if(!_open)
+    {
+      throw new ClosedChannelException();
+    }
+  }
+
+  private String getUri()
+  {
+    return _command.getUri(_download.getBucketName(), _download.getObjectKey());
+  }
+}
@@ -0,0 +1,175 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.TreeMap;
+
+/**
+ * Computes the MD5 digest of a file whose regions are written in any order, like the parts of a
+ * parallel download. Whenever the written regions extend the contiguous prefix of the file, the
+ * new bytes are read back from the file, which is normally still in the page cache, and fed to a
+ * single {@link MessageDigest} in offset order. The digest of the whole file is thus ready as soon
+ * as its last region has been written, without another pass over the file.
+ * <p>
+ * Only one thread at a time feeds the digest; threads that write a region while another one is
+ * catching up just record it and return.
+ */
+class OrderedFileDigest
+{
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File _file;
+  private final long _length;
+  private final MessageDigest _md;
+
+  // written regions that are not part of the digest yet: offset -> length
+  private final TreeMap<Long, Long> _written = new TreeMap<>();
+  private long _digested = 0;
+  private boolean _draining = false;
+  private boolean _failed = false;
+  private byte[] _digest;
+  private FileChannel _channel;
+
+  OrderedFileDigest(File file, long length)
+  {
+    _file = file;
+    _length = length;
+    try
+    {
+      _md = MessageDigest.getInstance("MD5");
+    }
+    catch(NoSuchAlgorithmException e)
+    {
+      // No MD5, give up
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Records that {@code length} bytes have been written at {@code position} of the file.
+   */
+  void regionWritten(long position, long length)
+    throws IOException
+  {
+    synchronized(this)
+    {
+      _written.put(position, length);
+      if(_draining || _failed)
+      {
+        return;
+      }
+      _draining = true;
+    }
+
+    try
+    {
+      while(true)
+      {
+        long start;
+        long count;
+        synchronized(this)
+        {
+          Long next = _written.remove(_digested);
+          if(next == null)
+          {
+            _draining = false;
+            return;
+          }
+          start = _digested;
+          count = next;
+        }
+
+        update(start, count);
+
+        synchronized(this)
+        {
+          _digested += count;
+        }
+      }
+    }
+    catch(IOException | RuntimeException e)
+    {
+      synchronized(this)
+      {
+        _failed = true;
+        _draining = false;
+      }
+      close();
+      throw e;
+    }
+  }
+
+  private void update(long position, long count)
+    throws IOException
+  {
+    if(_channel == null)
+    {
+      _channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ);
+    }
+
+    ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+    long end = position + count;
+    while(position < end)
+    {
+      buf.clear();
+      buf.limit((int) Math.min(BUFFER_SIZE, end - position));
+      int n = _channel.read(buf, position);
+      if(n == -1)
+      {
+        throw new IOException("unexpected EOF reading back " + _file);
+      }
+      _md.update(buf.array(), 0, n);
+      position += n;
+    }
+  }
+
+  /**
+   * @return the MD5 digest of the whole file, or null if not all of it has been written or it
+   * could not be read back
+   */
+  synchronized byte[] getDigest()
+  {
+    if(_digest == null && !_failed && !_draining && _digested == _length)
+    {
+      _digest = _md.digest();
+      close();
+    }
+    return _digest;
+  }
+
+  private synchronized void close()
+  {
+    if(_channel != null)
+    {
+      try
+      {
+        _channel.close();
+      }
+      catch(IOException ignored)
+      {
+      }
+      _channel = null;
+    }
+  }
+}
@@ -0,0 +1,286 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+
+/**
+ * Base of the commands that list a bucket, which the services return one page at a time. Pages are
+ * fetched on demand and each one is retried on its own, so that a listing can either be consumed
+ * page by page as it arrives (see {@link #stream()}) or collected as a whole (see {@link #run()}).
+ * <p>
+ * A listing can be restricted to a range of keys (see {@link #setRange}), which is how a {@link
+ * ParallelListCommand} lists the partitions of a key space.
+ */
+abstract class PagedListCommand
+  extends Command
+{
+  protected ListOptions _options;
+
+  private String _prefix;
+  private String _startAfter = null;
+  private String _last = null;
+  private boolean _recursive;
+  private boolean _dirsIncluded;
+  private Integer _pageSize = null;
+
+  // set once a key after _last has been seen
+  private boolean _pastLast = false;
+  private List<String> _commonPrefixes = new ArrayList<String>();
+
+  public PagedListCommand(ListOptions options)
+  {
+    super(options);
+    _options = options;
+    _prefix = options.getObjectKey().orElse(null);
+    _recursive = options.isRecursive();
+    _dirsIncluded = !options.dirsExcluded();
+  }
+
+  /**
+   * Restricts the listing to the keys starting with {@code prefix} that come after {@code
+   * startAfter}, up to and including {@code last}. The bounds are optional.
+   */
+  void setRange(String prefix, String startAfter, String last)
+  {
+    _prefix = prefix;
+    _startAfter = startAfter;
+    _last = last;
+  }
+
+  void setRecursive(boolean recursive)
+  {
+    _recursive = recursive;
+  }
+
+  void setDirsIncluded(boolean dirsIncluded)
+  {
+    _dirsIncluded = dirsIncluded;
+  }
+
+  /**
+   * Limits the number of keys requested per page, which otherwise is the maximum of the service.
+   */
+  void setPageSize(int pageSize)
+  {
+    _pageSize = pageSize;
+  }
+
+  protected String getPrefix()
+  {
+    return _prefix;
+  }
+
+  protected String getStartAfter()
+  {
+    return _startAfter;
+  }
+
+  protected boolean isRecursive()
+  {
+    return _recursive;
+  }
+
+  protected boolean dirsIncluded()
+  {
+    return _dirsIncluded;
+  }
+
+  protected Integer getPageSize()
+  {
+    return _pageSize;
+  }
+
+  /**
+   * @return the first-level directories of the last page of a listing that is not recursive, even
+   * if they are not included in the page
+   */
+  List<String> getCommonPrefixes()
+  {
+    return _commonPrefixes;
+  }
+
+  protected void setCommonPrefixes(List<String> prefixes)
+  {
+    _commonPrefixes = prefixes == null ? new ArrayList<String>() : prefixes;
+  }
+
+  /**
+   * Compares keys in the order of the services, which is the order of their UTF-8 encoding and
+   * thus of their code points, not of their UTF-16 chars.
+   */
+  static int compareKeys(String a, String b)
+  {
+    int i = 0;
+    int j = 0;
+    while(i < a.length() && j < b.length())
+    {
+      int ca = a.codePointAt(i);
+      int cb = b.codePointAt(j);
+      if(ca != cb)
+      {
+        return ca < cb ? -1 : 1;
+      }
+      i += Character.charCount(ca);
+      j += Character.charCount(cb);
+    }
+    return (a.length() - i) - (b.length() - j);
+  }
+
+  /**
+   * @return true if the listing has pages that have not been fetched yet, which is always the case
+   * before the first page
+   */
+  protected abstract boolean hasMorePages();
+
+  /**
+   * Fetches the next page. The position in the listing must only be advanced once the page has
+   * been fetched, so that a failed request can be retried.
+   */
+  protected abstract List<StoreFile> fetchPage()
+    throws Exception;
+
+  /**
+   * @return true if the listing, restricted to its range, has pages that have not been fetched yet
+   */
+  boolean hasNextPage()
+  {
+    return !_pastLast && hasMorePages();
+  }
+
+  /**
+   * @return future of all the objects and directories of the listing
+   */
+  public ListenableFuture<List<StoreFile>> run()
+  {
+    SettableFuture<List<StoreFile>> result = SettableFuture.create();
+    collect(new ArrayList<StoreFile>(), result);
+    return result;
+  }
+
+  /**
+   * @return iterator of the pages of the listing. A page is only requested when {@link
+   * Iterator#next()} is called, so a slow consumer never has more than one page in memory. Failures
+   * are thrown as {@link com.google.common.util.concurrent.UncheckedExecutionException}.
+   */
+  public Iterator<List<StoreFile>> stream()
+  {
+    return new Iterator<List<StoreFile>>()
+    {
+      public boolean hasNext()
+      {
+        return hasNextPage();
+      }
+
+      public List<StoreFile> next()
+      {
+        if(!hasNextPage())
+        {
+          throw new NoSuchElementException();
+        }
+        return Futures.getUnchecked(nextPage());
+      }
+
+      public void remove()
+      {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private void collect(final List<StoreFile> all, final SettableFuture<List<StoreFile>> result)
+  {
+    Futures.addCallback(nextPage(), new FutureCallback<List<StoreFile>>()
+    {
+      public void onSuccess(List<StoreFile> page)
+      {
+        all.addAll(page);
+        if(hasNextPage())
+        {
+          collect(all, result);
+        }
+        else
+        {
+          result.set(all);
+        }
+      }
+
+      public void onFailure(Throwable t)
+      {
+        result.setException(t);
+      }
+    });
+  }
+
+  /**
+   * @return future of the next page, with its own retries
+   */
+  ListenableFuture<List<StoreFile>> nextPage()
+  {
+    return executeWithRetry(_client.getInternalExecutor(),
+      new Callable<ListenableFuture<List<StoreFile>>>()
+      {
+        public ListenableFuture<List<StoreFile>> call()
+        {
+          return _client.getApiExecutor().submit(new Callable<List<StoreFile>>()
+          {
+            public List<StoreFile> call()
+              throws Exception
+            {
+              return clip(fetchPage());
+            }
+          });
+        }
+
+        public String toString()
+        {
+          return "listing objects and directories for " +
+            getUri(_options.getBucketName(), _options.getObjectKey().orElse(""));
+        }
+      });
+  }
+
+  private List<StoreFile> clip(List<StoreFile> page)
+  {
+    if(_last == null)
+    {
+      return page;
+    }
+    List<StoreFile> clipped = new ArrayList<StoreFile>();
+    for(StoreFile f : page)
+    {
+      if(compareKeys(f.getObjectKey(), _last) > 0)
+      {
+        _pastLast = true;
+      }
+      else
+      {
+        clipped.add(f);
+      }
+    }
+    return clipped;
+  }
+}
@@ -0,0 +1,532 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+
+/**
+ * Recursive listing that partitions the key space and lists the partitions concurrently, instead
+ * of following a single chain of requests that each wait for the marker of the previous one.
+ * <p>
+ * The key space is discovered with a listing of the first-level directories: every directory is a
+ * partition, and the objects between them are listed by the discovery already. When there are
+ * fewer partitions than {@link ListOptions#getParallelism()}, or no directories at all, partitions
+ * are split further at keys sampled by probing the key space: a request for the first key after a
+ * string halfway between two known keys finds a new boundary, or shows that there are no keys
+ * after that string.
+ * <p>
+ * At most {@link ListOptions#getParallelism()} pages are requested at a time. Pages are returned in
+ * key order, unless the listing is not {@link ListOptions#isOrdered()}, in which case they are
+ * returned as soon as they arrive. When streaming, pages are only fetched ahead of the consumer up
+ * to a small budget, except for the partition the consumer is waiting for.
+ */
+class ParallelListCommand
+  extends Command
+{
+  /**
+   * Creates the commands that list the partitions, with the options of this listing.
+   */
+  interface ListerFactory
+  {
+    PagedListCommand newLister();
+  }
+
+  // probe rounds when sampling keys, every round at most doubles the number of samples
+  private static final int MAX_SAMPLE_ROUNDS = 8;
+
+  // printable ASCII, the alphabet of the strings probed between sampled keys
+  private static final int MIN_CHAR = 0x20;
+  private static final int MAX_CHAR = 0x7e;
+  private static final BigInteger BASE = BigInteger.valueOf(MAX_CHAR - MIN_CHAR + 1);
+
+  private final ListOptions _options;
+  private final ListerFactory _factory;
+  private final int _parallelism;
+
+  // pages fetched but not consumed, beyond which only the partition at _head is fetched
+  private int _maxBuffered;
+
+  // partitions in key order, null until planned
+  private List<Partition> _partitions = null;
+  // first partition that is not consumed (ordered) or not completely fetched (unordered)
+  private int _head = 0;
+  private int _running = 0;
+  private int _buffered = 0;
+  // pages of an unordered listing, in the order they arrived
+  private final ArrayDeque<List<StoreFile>> _ready = new ArrayDeque<List<StoreFile>>();
+  private Throwable _failure = null;
+
+  public ParallelListCommand(ListOptions options, ListerFactory factory)
+  {
+    super(options);
+    _options = options;
+    _factory = factory;
+    _parallelism = options.getParallelism();
+    _maxBuffered = 4 * _parallelism;
+  }
+
+  /**
+   * @return future of all the objects of the listing
+   */
+  public ListenableFuture<List<StoreFile>> run()
+  {
+    // the partitions are planned with blocking requests, which must not hold up the API executor
+    return _client.getInternalExecutor().submit(new Callable<List<StoreFile>>()
+    {
+      public List<StoreFile> call()
+        throws Exception
+      {
+        synchronized(ParallelListCommand.this)
+        {
+          _maxBuffered = Integer.MAX_VALUE;
+        }
+        List<StoreFile> all = new ArrayList<StoreFile>();
+        try
+        {
+          Iterator<List<StoreFile>> pages = stream();
+          while(pages.hasNext())
+          {
+            all.addAll(pages.next());
+          }
+        }
+        catch(UncheckedExecutionException e)
+        {
+          rethrow(e.getCause());
+        }
+        return all;
+      }
+    });
+  }
+
+  /**
+   * @return iterator of the pages of the listing, which plans the partitions when it is first
+   * used. Failures are thrown as {@link UncheckedExecutionException}.
+   */
+  public Iterator<List<StoreFile>> stream()
+  {
+    return new Iterator<List<StoreFile>>()
+    {
+      private List<StoreFile> _next = null;
+
+      public boolean hasNext()
+      {
+        if(_next == null)
+        {
+          _next = take();
+        }
+        return _next != null;
+      }
+
+      public List<StoreFile> next()
+      {
+        if(!hasNext())
+        {
+          throw new NoSuchElementException();
+        }
+        List<StoreFile> page = _next;
+        _next = null;
+        return page;
+      }
+
+      public void remove()
+      {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private static class Partition
+  {
+    // null for objects that were listed while planning
+    final PagedListCommand lister;
+    final ArrayDeque<List<StoreFile>> pages = new ArrayDeque<List<StoreFile>>();
+    boolean fetching = false;
+    boolean done = false;
+
+    Partition(PagedListCommand lister)
+    {
+      this.lister = lister;
+    }
+  }
+
+  /**
+   * @return the next non-empty page, or null at the end of the listing
+   */
+  private synchronized List<StoreFile> take()
+  {
+    if(_partitions == null)
+    {
+      _partitions = plan();
+      if(!_options.isOrdered())
+      {
+        for(Partition p : _partitions)
+        {
+          _ready.addAll(p.pages);
+          p.pages.clear();
+        }
+      }
+      schedule();
+    }
+
+    boolean interrupted = false;
+    try
+    {
+      while(true)
+      {
+        if(_failure != null)
+        {
+          throw new UncheckedExecutionException(_failure);
+        }
+
+        List<StoreFile> page = null;
+        if(_options.isOrdered())
+        {
+          while(_head < _partitions.size() && _partitions.get(_head).pages.isEmpty() &&
+            _partitions.get(_head).done)
+          {
+            _head++;
+          }
+          if(_head == _partitions.size())
+          {
+            return null;
+          }
+          page = _partitions.get(_head).pages.poll();
+        }
+        else
+        {
+          page = _ready.poll();
+          if(page == null && _head == _partitions.size())
+          {
+            return null;
+          }
+        }
+
+        if(page != null)
+        {
+          _buffered--;
+          schedule();
+          return page;
+        }
+
+        try
+        {
+          wait();
+        }
+        catch(InterruptedException e)
+        {
+          interrupted = true;
+        }
+      }
+    }
+    finally
+    {
+      if(interrupted)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Starts fetching pages, as long as there are idle connections and room for more pages.
+   */
+  private synchronized void schedule()
+  {
+    if(!_options.isOrdered())
+    {
+      while(_head < _partitions.size() && _partitions.get(_head).done)
+      {
+        _head++;
+      }
+    }
+
+    for(int i = _head; i < _partitions.size() && _running < _parallelism && _failure == null; i++)
+    {
+      Partition p = _partitions.get(i);
+      if(p.done || p.fetching)
+      {
+        continue;
+      }
+      if(i != _head && _buffered + _running >= _maxBuffered)
+      {
+        return;
+      }
+      fetch(p);
+    }
+  }
+
+  private void fetch(final Partition p)
+  {
+    p.fetching = true;
+    _running++;
+    Futures.addCallback(p.lister.nextPage(), new FutureCallback<List<StoreFile>>()
+    {
+      public void onSuccess(List<StoreFile> page)
+      {
+        synchronized(ParallelListCommand.this)
+        {
+          p.fetching = false;
+          _running--;
+          if(!page.isEmpty())
+          {
+            if(_options.isOrdered())
+            {
+              p.pages.add(page);
+            }
+            else
+            {
+              _ready.add(page);
+            }
+            _buffered++;
+          }
+          p.done = !p.lister.hasNextPage();
+          schedule();
+          ParallelListCommand.this.notifyAll();
+        }
+      }
+
+      public void onFailure(Throwable t)
+      {
+        synchronized(ParallelListCommand.this)
+        {
+          p.fetching = false;
+          _running--;
+          _failure = t;
+          ParallelListCommand.this.notifyAll();
+        }
+      }
+    }, _client.getInternalExecutor());
+  }
+
+  /**
+   * @return the partitions of the key space, in key order
+   */
+  private List<Partition> plan()
+  {
+    String prefix = _options.getObjectKey().orElse("");
+    List<Partition> partitions = new ArrayList<Partition>();
+
+    PagedListCommand top = newLister();
+    top.setRecursive(false);
+    top.setDirsIncluded(false);
+    List<StoreFile> objects = new ArrayList<StoreFile>(Futures.getUnchecked(top.nextPage()));
+    TreeSet<String> dirs = new TreeSet<String>(top.getCommonPrefixes());
+    if(dirs.isEmpty() && !objects.isEmpty() && top.hasNextPage())
+    {
+      // no directories, at least not among the first keys: split the keys after the first page
+      partitions.add(listed(objects));
+      String after = objects.get(objects.size() - 1).getObjectKey();
+      partitions.addAll(split(prefix, after, _parallelism));
+      return partitions;
+    }
+    while(top.hasNextPage())
+    {
+      objects.addAll(Futures.getUnchecked(top.nextPage()));
+      dirs.addAll(top.getCommonPrefixes());
+    }
+
+    // a directory sorts after the objects before it and before the objects after all of its keys
+    int splits = dirs.isEmpty() ? 1 : (_parallelism + dirs.size() - 1) / dirs.size();
+    List<StoreFile> group = new ArrayList<StoreFile>();
+    int i = 0;
+    for(String dir : dirs)
+    {
+      while(i < objects.size() &&
+        PagedListCommand.compareKeys(objects.get(i).getObjectKey(), dir) < 0)
+      {
+        group.add(objects.get(i++));
+      }
+      if(!group.isEmpty())
+      {
+        partitions.add(listed(group));
+        group = new ArrayList<StoreFile>();
+      }
+      partitions.addAll(split(dir, null, splits));
+    }
+    group.addAll(objects.subList(i, objects.size()));
+    if(!group.isEmpty())
+    {
+      partitions.add(listed(group));
+    }
+    return partitions;
+  }
+
+  private Partition listed(List<StoreFile> objects)
+  {
+    Partition p = new Partition(null);
+    if(!objects.isEmpty())
+    {
+      p.pages.add(objects);
+      _buffered++;
+    }
+    p.done = true;
+    return p;
+  }
+
+  /**
+   * @return partitions of the keys starting with {@code prefix} after {@code after}, which are at
+   * most {@code count} unless sampling found more boundaries than needed
+   */
+  private List<Partition> split(String prefix, String after, int count)
+  {
+    List<String> bounds = count > 1 ? sample(prefix, after, count - 1) : new ArrayList<String>();
+    List<Partition> partitions = new ArrayList<Partition>();
+    String start = after;
+    for(String bound : bounds)
+    {
+      partitions.add(range(prefix, start, bound));
+      start = bound;
+    }
+    partitions.add(range(prefix, start, null));
+    return partitions;
+  }
+
+  private Partition range(String prefix, String startAfter, String last)
+  {
+    PagedListCommand lister = newLister();
+    lister.setRange(prefix, startAfter, last);
+    return new Partition(lister);
+  }
+
+  /**
+   * @return up to about {@code count} keys starting with {@code prefix} after {@code after}, in
+   * order
+   */
+  private List<String> sample(final String prefix, String after, int count)
+  {
+    TreeSet<String> samples = new TreeSet<String>(new Comparator<String>()
+    {
+      public int compare(String a, String b)
+      {
+        return PagedListCommand.compareKeys(a, b);
+      }
+    });
+
+    // gaps between known keys that may contain more keys: {exclusive start, exclusive end or null}
+    List<String[]> gaps = new ArrayList<String[]>();
+    gaps.add(new String[]{after == null ? prefix : after, null});
+    for(int round = 0; round < MAX_SAMPLE_ROUNDS && samples.size() < count && !gaps.isEmpty();
+        round++)
+    {
+      List<String[]> probed = new ArrayList<String[]>();
+      List<ListenableFuture<List<StoreFile>>> probes = new ArrayList<>();
+      for(String[] gap : gaps)
+      {
+        String mid = midpoint(prefix, gap[0], gap[1]);
+        if(mid != null)
+        {
+          PagedListCommand probe = newLister();
+          probe.setRange(prefix, mid, null);
+          probe.setPageSize(1);
+          probed.add(new String[]{gap[0], mid, gap[1]});
+          probes.add(probe.nextPage());
+        }
+      }
+      List<List<StoreFile>> found = Futures.getUnchecked(Futures.allAsList(probes));
+
+      gaps = new ArrayList<String[]>();
+      for(int i = 0; i < probed.size(); i++)
+      {
+        String[] gap = probed.get(i);
+        List<StoreFile> page = found.get(i);
+        String key = page.isEmpty() ? null : page.get(0).getObjectKey();
+        // there are no keys between the probed string and the key found after it
+        gaps.add(new String[]{gap[0], gap[1]});
+        if(key != null && (gap[2] == null || PagedListCommand.compareKeys(key, gap[2]) < 0))
+        {
+          samples.add(key);
+          gaps.add(new String[]{key, gap[2]});
+        }
+      }
+    }
+    return new ArrayList<String>(samples);
+  }
+
+  /**
+   * @return a string that starts with {@code prefix} and sorts between {@code lo} and {@code hi},
+   * with {@code hi} null for the end of the keys starting with {@code prefix}, or null if there
+   * is no such string of printable ASCII characters that is reasonably short
+   */
+  static String midpoint(String prefix, String lo, String hi)
+  {
+    if(!lo.startsWith(prefix) || (hi != null && !hi.startsWith(prefix)))
+    {
+      return null;
+    }
+    String loSuffix = lo.substring(prefix.length());
+    String hiSuffix = hi == null ? null : hi.substring(prefix.length());
+    int length = Math.max(loSuffix.length(), hiSuffix == null ? 0 : hiSuffix.length()) + 1;
+
+    BigInteger a = toNumber(loSuffix, length);
+    BigInteger b = hiSuffix == null ? BASE.pow(length).subtract(BigInteger.ONE) :
+      toNumber(hiSuffix, length);
+    String mid = prefix + toSuffix(a.add(b).shiftRight(1), length);
+    while(mid.length() > prefix.length() && mid.charAt(mid.length() - 1) == MIN_CHAR)
+    {
+      mid = mid.substring(0, mid.length() - 1);
+    }
+
+    if(PagedListCommand.compareKeys(mid, lo) <= 0 ||
+      (hi != null && PagedListCommand.compareKeys(mid, hi) >= 0))
+    {
+      return null;
+    }
+    return mid;
+  }
+
+  private static BigInteger toNumber(String suffix, int length)
+  {
+    BigInteger n = BigInteger.ZERO;
+    for(int i = 0; i < length; i++)
+    {
+      int c = i < suffix.length() ? suffix.charAt(i) : MIN_CHAR;
+      c = Math.min(Math.max(c, MIN_CHAR), MAX_CHAR);
+      n = n.multiply(BASE).add(BigInteger.valueOf(c - MIN_CHAR));
+    }
+    return n;
+  }
+
+  private static String toSuffix(BigInteger n, int length)
+  {
+    char[] chars = new char[length];
+    for(int i = length - 1; i >= 0; i--)
+    {
+      BigInteger[] qr = n.divideAndRemainder(BASE);
+      chars[i] = (char) (MIN_CHAR + qr[1].intValue());
+      n = qr[0];
+    }
+    return new String(chars);
+  }
+
+  private PagedListCommand newLister()
+  {
+    return _factory.newLister();
+  }
+}
@@ -0,0 +1,190 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plans the part sizes of an upload based on the throughput measured while uploading its first
+ * few ("probe") parts.
+ * <p>
+ * Probe parts alternate between the base chunk size and twice that size, so that the fixed
+ * per-request latency can be told apart from the bandwidth. The remaining parts are sized so that
+ * a single request takes about {@link #TARGET_PART_SECONDS}: on fast links this amortizes the
+ * per-request latency over larger parts, while on slow or flaky links parts stay small so that a
+ * failed request wastes little work. Parts never get smaller than the base chunk size (S3 requires
+ * at least 5MB for all parts but the last) and never larger than the backend's maximum, unless
+ * that is needed to stay within the maximum number of parts.
+ */
+class PartSizePlanner
+{
+  static final int PROBE_PARTS = 4;
+  static final double TARGET_PART_SECONDS = 5.0;
+
+  /**
+   * Probe parts are uploaded before the multipart upload can be initiated with the final metadata,
+   * so on S3 each of them is stored in a temporary object, copied into the upload with
+   * UploadPartCopy and deleted: {@code 3 * PROBE_PARTS} requests on top of the parts. Files are
+   * only sized adaptively if they would take at least this many parts of the base chunk size,
+   * which keeps the extra requests to a few percent of those of the upload.
+   */
+  static final long MIN_PARTS = 25 * PROBE_PARTS;
+
+  // for testing, a lower bound so that small files are sized adaptively
+  private static volatile long _minParts = MIN_PARTS;
+
+  // granularity of planned part sizes
+  private static final long PART_SIZE_UNIT = 1024 * 1024;
+
+  private final long _fileLength;
+  private final long _baseChunkSize;
+  private final long _maxPartSize;
+  private final long _maxPartCount;
+  private final List<long[]> _samples = new ArrayList<>();
+
+  PartSizePlanner(long fileLength, long baseChunkSize, long maxPartSize, long maxPartCount)
+  {
+    _fileLength = fileLength;
+    _baseChunkSize = baseChunkSize;
+    _maxPartSize = Math.max(maxPartSize, baseChunkSize);
+    _maxPartCount = maxPartCount;
+  }
+
+  /**
+   * Adaptive sizing only pays off if there are many more parts left after probing, see
+   * {@link #MIN_PARTS}.
+   */
+  static boolean isWorthwhile(long fileLength, long baseChunkSize)
+  {
+    return fileLength > _minParts * baseChunkSize;
+  }
+
+  static void setMinParts(long minParts)
+  {
+    _minParts = minParts;
+  }
+
+  /**
+   * @return the sizes of the probe parts, uploaded before the remaining parts are planned
+   */
+  List<Long> getProbeSizes()
+  {
+    List<Long> sizes = new ArrayList<>();
+    for(int i = 0; i < PROBE_PARTS; i++)
+    {
+      sizes.add(i % 2 == 0 ? _baseChunkSize : Math.min(2 * _baseChunkSize, _maxPartSize));
+    }
+    return sizes;
+  }
+
+  /**
+   * Records the duration of a successful part upload.
+   */
+  synchronized void addSample(long bytes, long nanos)
+  {
+    _samples.add(new long[]{bytes, nanos});
+  }
+
+  /**
+   * @return the layout of the whole file: the probe parts followed by the planned parts
+   */
+  synchronized PartSizes plan()
+  {
+    List<Long> sizes = getProbeSizes();
+    long probed = 0;
+    for(long size : sizes)
+    {
+      probed += size;
+    }
+
+    long remaining = _fileLength - probed;
+    long partSize = clamp(estimatePartSize(), remaining, _maxPartCount - sizes.size());
+    while(remaining > 0)
+    {
+      long size = Math.min(partSize, remaining);
+      sizes.add(size);
+      remaining -= size;
+    }
+    return PartSizes.of(sizes);
+  }
+
+  /**
+   * Least-squares fit of {@code seconds = latency + bytes / bandwidth} over the samples.
+   *
+   * @return the part size that takes {@link #TARGET_PART_SECONDS} to upload, or the base chunk
+   * size if there are no usable samples
+   */
+  private long estimatePartSize()
+  {
+    int n = _samples.size();
+    if(n == 0)
+    {
+      return _baseChunkSize;
+    }
+
+    double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+    for(long[] sample : _samples)
+    {
+      double x = sample[0];
+      double y = sample[1] / 1e9;
+      sumX += x;
+      sumY += y;
+      sumXX += x * x;
+      sumXY += x * y;
+    }
+
+    double latency = 0;
+    double secondsPerByte = sumY / sumX;
+    double denominator = n * sumXX - sumX * sumX;
+    if(denominator > 0)
+    {
+      double slope = (n * sumXY - sumX * sumY) / denominator;
+      double intercept = (sumY - slope * sumX) / n;
+      // noisy samples can produce a meaningless fit, then just use the average throughput
+      if(slope > 0 && intercept >= 0)
+      {
+        secondsPerByte = slope;
+        latency = intercept;
+      }
+    }
+    if(secondsPerByte <= 0)
+    {
+      return _baseChunkSize;
+    }
+
+    // even if the latency is huge, don't make the parts so small that it dominates
+    double transferSeconds = Math.max(TARGET_PART_SECONDS - latency, TARGET_PART_SECONDS / 2);
+    return (long) Math.min(Long.MAX_VALUE / 2, transferSeconds / secondsPerByte);
+  }
+
+  private long clamp(long partSize, long remaining, long partsLeft)
+  {
+    partSize = Math.max(_baseChunkSize, Math.min(partSize, _maxPartSize));
+    if(partSize > PART_SIZE_UNIT)
+    {
+      partSize = Math.max(_baseChunkSize, partSize / PART_SIZE_UNIT * PART_SIZE_UNIT);
+    }
+
+    // stay within the maximum number of parts, whatever the measurements say
+    if(partsLeft > 0 && remaining > 0)
+    {
+      partSize = Math.max(partSize, (remaining + partsLeft - 1) / partsLeft);
+    }
+    return partSize;
+  }
+}
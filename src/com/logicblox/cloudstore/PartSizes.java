@@ -0,0 +1,234 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The layout of the parts an object was uploaded in, i.e. the (unencrypted) offset and size of
+ * each part. Downloads and copies use the same layout, so that encrypted parts can be decrypted
+ * independently and multipart checksums can be validated.
+ * <p>
+ * Most objects consist of parts of {@code s3tool-chunk-size} bytes, except for the last one.
+ * Objects whose parts have different sizes record them in the {@code s3tool-part-sizes} metadata
+ * entry as a comma-separated list of runs {@code size*count} (or just {@code size} for a single
+ * part), e.g. {@code 5242880*2,10485760*2,33554432*40,1234}.
+ */
+class PartSizes
+{
+  static final String METADATA_KEY = "s3tool-part-sizes";
+
+  // offset of each part, followed by the length of the file
+  private final long[] _offsets;
+
+  // computed on demand, see getEncryptedPartOffset
+  private long[] _encryptedOffsets;
+  private long _encryptedBlockSize;
+
+  private PartSizes(long[] offsets)
+  {
+    _offsets = offsets;
+  }
+
+  /**
+   * Returns the layout of a file of {@code fileLength} bytes that is split in parts of {@code
+   * chunkSize} bytes. Empty files consist of a single empty part.
+   */
+  static PartSizes uniform(long fileLength, long chunkSize)
+  {
+    int count = fileLength == 0 ? 1 : (int) ((fileLength + chunkSize - 1) / chunkSize);
+    long[] offsets = new long[count + 1];
+    for(int i = 0; i < count; i++)
+    {
+      offsets[i] = i * chunkSize;
+    }
+    offsets[count] = fileLength;
+    return new PartSizes(offsets);
+  }
+
+  /**
+   * Returns the layout of a file that is split in parts of the given {@code sizes}.
+   */
+  static PartSizes of(List<Long> sizes)
+  {
+    if(sizes.isEmpty())
+    {
+      throw new IllegalArgumentException("at least one part is required");
+    }
+    long[] offsets = new long[sizes.size() + 1];
+    for(int i = 0; i < sizes.size(); i++)
+    {
+      offsets[i + 1] = offsets[i] + sizes.get(i);
+    }
+    return new PartSizes(offsets);
+  }
+
+  /**
+   * Returns the layout recorded in the metadata of an object, falling back to parts of {@code
+   * chunkSize} bytes if the object doesn't have a part size table.
+   *
+   * @throws UsageException if the part size table is malformed or doesn't add up to {@code
+   *                        fileLength}
+   */
+  static PartSizes fromMetadata(Map<String, String> meta, long fileLength, long chunkSize)
+  {
+    String table = meta == null ? null : meta.get(METADATA_KEY);
+    if(table == null)
+    {
+      return uniform(fileLength, chunkSize);
+    }
+
+    PartSizes parts;
+    try
+    {
+      parts = of(parse(table));
+    }
+    catch(IllegalArgumentException e)
+    {
+      throw new UsageException("Invalid " + METADATA_KEY + " metadata '" + table + "'");
+    }
+
+    if(parts.getFileLength() != fileLength)
+    {
+      throw new UsageException(
+        METADATA_KEY + " metadata adds up to " + parts.getFileLength() + " bytes, expected " +
+          fileLength);
+    }
+    return parts;
+  }
+
+  private static List<Long> parse(String table)
+  {
+    List<Long> sizes = new ArrayList<>();
+    for(String run : table.split(","))
+    {
+      int star = run.indexOf('*');
+      long size = Long.parseLong(run.substring(0, star == -1 ? run.length() : star).trim());
+      int count = star == -1 ? 1 : Integer.parseInt(run.substring(star + 1).trim());
+      if(size < 0 || count < 1)
+      {
+        throw new IllegalArgumentException("invalid run " + run);
+      }
+      for(int i = 0; i < count; i++)
+      {
+        sizes.add(size);
+      }
+    }
+    return sizes;
+  }
+
+  /**
+   * @return the value of the {@code s3tool-part-sizes} metadata entry describing this layout
+   */
+  String toMetadataValue()
+  {
+    StringBuilder sb = new StringBuilder();
+    int i = 0;
+    while(i < getPartCount())
+    {
+      long size = getPartSize(i);
+      int count = 1;
+      while(i + count < getPartCount() && getPartSize(i + count) == size)
+      {
+        count++;
+      }
+
+      if(sb.length() > 0)
+      {
+        sb.append(',');
+      }
+      sb.append(size);
+      if(count > 1)
+      {
+        sb.append('*').append(count);
+      }
+      i += count;
+    }
+    return sb.toString();
+  }
+
+  int getPartCount()
+  {
+    return _offsets.length - 1;
+  }
+
+  long getFileLength()
+  {
+    return _offsets[_offsets.length - 1];
+  }
+
+  /**
+   * @return the offset of part {@code partNumber} in the unencrypted file
+   */
+  long getPartOffset(int partNumber)
+  {
+    return _offsets[partNumber];
+  }
+
+  /**
+   * @return the number of the part that contains {@code offset} of the unencrypted file
+   */
+  int getPartNumber(long offset)
+  {
+    int i = Arrays.binarySearch(_offsets, 0, getPartCount(), offset);
+    return i >= 0 ? i : -i - 2;
+  }
+
+  /**
+   * @return the unencrypted size of part {@code partNumber}
+   */
+  long getPartSize(int partNumber)
+  {
+    return _offsets[partNumber + 1] - _offsets[partNumber];
+  }
+
+  /**
+   * Every encrypted part starts with an inline IV, followed by {@code size / blockSize + 1}
+   * ciphertext blocks, so it takes {@code blockSize * (size / blockSize + 2)} bytes in the stored
+   * object. Only the last part of an object ends with PKCS5 padding: uploads of files encrypt
+   * from the offset of a part to the end of the file and cut the stream after the block that
+   * holds the last byte of the part, so the last block of any other part holds the first bytes
+   * of the next part instead.
+   *
+   * @return the size of a part of {@code size} bytes in the stored, encrypted object
+   */
+  static long getEncryptedPartSize(long size, long blockSize)
+  {
+    return blockSize * (size / blockSize + 2);
+  }
+
+  /**
+   * @return the offset of part {@code partNumber} in the stored, encrypted object
+   */
+  synchronized long getEncryptedPartOffset(int partNumber, long blockSize)
+  {
+    if(_encryptedOffsets == null || _encryptedBlockSize != blockSize)
+    {
+      _encryptedOffsets = new long[getPartCount()];
+      for(int i = 1; i < getPartCount(); i++)
+      {
+        _encryptedOffsets[i] = _encryptedOffsets[i - 1] +
+          getEncryptedPartSize(getPartSize(i - 1), blockSize);
+      }
+      _encryptedBlockSize = blockSize;
+    }
+    return _encryptedOffsets[partNumber];
+  }
+}
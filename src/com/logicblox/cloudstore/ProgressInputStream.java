@@ -0,0 +1,88 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+
+package com.logicblox.cloudstore;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reports the bytes read from the underlying stream as progress of a part transfer, for transfers
+ * whose client library doesn't report progress itself.
+ */
+class ProgressInputStream
+  extends FilterInputStream
+{
+  final private OverallProgressListener _opl;
+  final private PartProgressEvent _ppe;
+
+  public ProgressInputStream(InputStream in, OverallProgressListener opl, PartProgressEvent ppe)
+  {
+    super(in);
+    _opl = opl;
+    _ppe = ppe;
+  }
+
+  @Override
+  public int read()
+    throws IOException
+  {
+    int res = in.read();
+    if(res != -1)
+    {
+      progress(1);
+    }
+    return res;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len)
+    throws IOException
+  {
+    int count = in.read(b, off, len);
+    if(count > 0)
+    {
+      progress(count);
+    }
+    return count;
+  }
+
+  @Override
+  public long skip(long n)
+    throws IOException
+  {
+    long count = in.skip(n);
+    if(count > 0)
+    {
+      progress(count);
+    }
+    return count;
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+    return false;
+  }
+
+  private void progress(long count)
+  {
+    _ppe.setLastTransferBytes(count);
+    _opl.progress(_ppe);
+  }
+}
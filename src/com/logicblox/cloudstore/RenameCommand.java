@@ -28,6 +28,9 @@ class RenameCommand
 {
   private RenameOptions _options;
 
+  // the source object, once it is known to exist
+  private StoreFile _source;
+
   public RenameCommand(RenameOptions options)
   {
     super(options);
@@ -118,6 +121,9 @@ class RenameCommand
         {
           throw new UsageException("Source object '" + getSourceUri() + "' does not exist");
         }
+        _source = new StoreFile(_options.getSourceBucketName(), _options.getSourceObjectKey());
+        _source.setETag(mdata.getETag());
+        _source.setSize(mdata.getContentLength());
         return checkDestExists();
       }
     });
@@ -198,6 +204,7 @@ class RenameCommand
       .setDestinationBucketName(_options.getDestinationBucketName())
       .setDestinationObjectKey(getDestKey())
       .setCannedAcl(_options.getCannedAcl().orElse(null))
+      .setSourceStoreFile(_source)
       .createOptions();
 
     return _client.copy(copyOpts);
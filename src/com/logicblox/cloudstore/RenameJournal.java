@@ -0,0 +1,207 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local checkpoint of a resumable recursive rename (see {@link
+ * RenameOptionsBuilder#setResume(boolean)}).
+ * <p>
+ * A recursive rename deletes every source object as soon as its copy has been verified, so the
+ * listing of an interrupted rename only holds the objects that are left to rename. The journal
+ * records the objects that have been copied but whose sources may not have been deleted yet, so
+ * that a resumed rename deletes them without copying them again:
+ * <pre>
+ * rename &lt;source uri&gt; &lt;destination uri&gt;
+ * copied &lt;source etag&gt; &lt;source key&gt;
+ * </pre>
+ * A record only applies to the same version of the source object. Records are flushed, but not
+ * synced, as objects are copied: a lost record just means that an object is copied again.
+ */
+class RenameJournal
+{
+  private final File _journalFile;
+  private final String _rename;
+
+  private Map<String, String> _copied = new HashMap<>();
+  private boolean _started = false;
+  private Writer _writer;
+
+  private RenameJournal(File journalFile, String rename)
+  {
+    _journalFile = journalFile;
+    _rename = rename;
+  }
+
+  /**
+   * Opens the journal of renaming {@code source} to {@code destination}, loading its records if
+   * an earlier run of the same rename left any.
+   */
+  static RenameJournal open(File journalDir, String source, String destination)
+    throws IOException
+  {
+    String rename = source + " " + destination;
+    File journalFile = new File(journalDir, DigestUtils.sha256Hex("rename\n" + rename));
+
+    RenameJournal journal = new RenameJournal(journalFile, rename);
+    if(journalFile.exists())
+    {
+      journal.load();
+    }
+    return journal;
+  }
+
+  private void load()
+    throws IOException
+  {
+    String rename = null;
+    Map<String, String> copied = new HashMap<>();
+    try(BufferedReader reader = new BufferedReader(
+      new InputStreamReader(new FileInputStream(_journalFile), StandardCharsets.UTF_8)))
+    {
+      String line;
+      while((line = reader.readLine()) != null)
+      {
+        String[] record = line.split(" ", 2);
+        if(record.length < 2)
+        {
+          continue;
+        }
+
+        if(record[0].equals("rename"))
+        {
+          rename = record[1];
+        }
+        else if(record[0].equals("copied"))
+        {
+          String[] object = record[1].split(" ", 2);
+          if(object.length == 2)
+          {
+            copied.put(object[1], object[0]);
+          }
+        }
+      }
+    }
+
+    if(_rename.equals(rename))
+    {
+      _started = true;
+      _copied = copied;
+    }
+  }
+
+  /**
+   * @return true if an earlier run of the same rename left a journal to resume from
+   */
+  synchronized boolean isStarted()
+  {
+    return _started;
+  }
+
+  /**
+   * @return true if the object with key {@code key} and ETag {@code etag} has been copied
+   */
+  synchronized boolean isCopied(String key, String etag)
+  {
+    return etag != null && etag.equals(_copied.get(key));
+  }
+
+  /**
+   * Starts writing the journal, continuing the journal of an earlier run if there is one.
+   */
+  synchronized void begin()
+    throws IOException
+  {
+    if(_writer != null)
+    {
+      return;
+    }
+
+    if(_started)
+    {
+      _writer = new OutputStreamWriter(new FileOutputStream(_journalFile, true),
+        StandardCharsets.UTF_8);
+    }
+    else
+    {
+      _journalFile.getParentFile().mkdirs();
+      _writer = new OutputStreamWriter(new FileOutputStream(_journalFile),
+        StandardCharsets.UTF_8);
+      _started = true;
+      write("rename " + _rename);
+    }
+  }
+
+  /**
+   * Records that the object with key {@code key} and ETag {@code etag} has been copied.
+   */
+  synchronized void addCopied(String key, String etag)
+    throws IOException
+  {
+    if(etag == null)
+    {
+      return;
+    }
+    _copied.put(key, etag);
+    write("copied " + etag + " " + key);
+  }
+
+  /**
+   * Removes the journal once the rename has been completed.
+   */
+  synchronized void delete()
+  {
+    close();
+    _journalFile.delete();
+  }
+
+  synchronized void close()
+  {
+    if(_writer != null)
+    {
+      try
+      {
+        _writer.close();
+      }
+      catch(IOException ignored)
+      {
+      }
+      _writer = null;
+    }
+  }
+
+  private void write(String record)
+    throws IOException
+  {
+    _writer.write(record);
+    _writer.write('\n');
+    _writer.flush();
+  }
+}
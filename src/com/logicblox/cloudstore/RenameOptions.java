@@ -25,6 +25,9 @@ import java.util.Optional;
  * <p>
  * If {@code cannedAcl} is specified then it is applied to the destination object.
  * <p>
+ * If {@code resume} is set, the progress of recursive renames is journaled locally (see {@link
+ * Utils#getDefaultJournalDirectory()}), so that an interrupted rename can be resumed.
+ * <p>
  * {@code RenameOptions} objects are meant to be built by {@code RenameOptionsBuilder}. This class
  * provides only public accessor methods.
  * 
@@ -42,11 +45,13 @@ public class RenameOptions
   private final String _destinationBucketName;
   private final String _destinationObjectKey;
   private final boolean _dryRun;
+  private final boolean _resume;
   private String _cannedAcl;
 
   RenameOptions(
     CloudStoreClient cloudStoreClient, String sourceBucketName, String sourceObjectKey,
-    String destinationBucket, String destinationObjectKey, String cannedAcl, boolean dryRun)
+    String destinationBucket, String destinationObjectKey, String cannedAcl, boolean dryRun,
+    boolean resume)
   {
     super(cloudStoreClient);
     _sourceBucketName = sourceBucketName;
@@ -55,6 +60,7 @@ public class RenameOptions
     _destinationObjectKey = destinationObjectKey;
     _cannedAcl = cannedAcl;
     _dryRun = dryRun;
+    _resume = resume;
   }
 
   /**
@@ -118,4 +124,15 @@ public class RenameOptions
     return _dryRun;
   }
 
+  /**
+   * If set to true, a recursive rename journals the objects it has copied, and resumes an
+   * interrupted rename of the same prefix to the same destination.
+   *
+   * @return resume flag
+   */
+  public boolean isResume()
+  {
+    return _resume;
+  }
+
 }
@@ -38,6 +38,7 @@ public class RenameOptionsBuilder
   private String _destinationObjectKey;
   private String _cannedAcl;
   private boolean _dryRun = false;
+  private boolean _resume = false;
 
   RenameOptionsBuilder(CloudStoreClient client)
   {
@@ -117,6 +118,22 @@ public class RenameOptionsBuilder
     return this;
   }
 
+  /**
+   * If set to true, journal the progress of a recursive rename locally, and resume an interrupted
+   * rename of the same prefix to the same destination instead of failing because the destination
+   * exists. Objects that were copied before the interruption are not copied again. A resumable
+   * rename deletes each source object as soon as it has been copied, instead of once all of them
+   * have been copied.
+   *
+   * @param resume true if the rename should be resumable
+   * @return this builder
+   */
+  public RenameOptionsBuilder setResume(boolean resume)
+  {
+    _resume = resume;
+    return this;
+  }
+
   private void validateOptions()
   {
     if(_cloudStoreClient == null)
@@ -161,6 +178,6 @@ public class RenameOptionsBuilder
     validateOptions();
 
     return new RenameOptions(_cloudStoreClient, _sourceBucketName, _sourceObjectKey,
-      _destinationBucketName, _destinationObjectKey, _cannedAcl, _dryRun);
+      _destinationBucketName, _destinationObjectKey, _cannedAcl, _dryRun, _resume);
   }
 }
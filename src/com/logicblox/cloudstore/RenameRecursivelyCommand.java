@@ -17,20 +17,42 @@
 package com.logicblox.cloudstore;
 
 import com.google.common.base.Function;
+import com.google.common.base.Functions;
 import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
-
+/**
+ * Renames all objects under a prefix by copying them while the listing is still running, and
+ * deleting the sources in batches (see {@link BatchDeleteCommand}).
+ * <p>
+ * If the rename is resumable, each source object is deleted as soon as its copy has been verified,
+ * so at most one batch of objects is duplicated at any time, plus the copies in flight. The objects
+ * that have been copied are journaled (see {@link RenameJournal}), so an interrupted rename can be
+ * run again: the sources that are left are listed again, and the ones that were copied already
+ * are only deleted.
+ * <p>
+ * Otherwise, the sources are only deleted once all of them have been copied, so that a rename that
+ * fails while copying leaves all the sources in place.
+ */
 class RenameRecursivelyCommand
   extends Command
 {
   private RenameOptions _options;
+  private RenameJournal _journal;
+  private BatchDeleteCommand _deleter;
+  // sources whose copy has been verified, deleted once all are copied, unless resumable
+  private List<StoreFile> _copiedSources = Collections.synchronizedList(
+    new ArrayList<StoreFile>());
 
   public RenameRecursivelyCommand(RenameOptions options)
   {
@@ -48,6 +70,17 @@ class RenameRecursivelyCommand
         getUri(_options.getDestinationBucketName(), _options.getDestinationObjectKey()));
     }
 
+    if(_options.isResume() && !_options.isDryRun())
+    {
+      _journal = RenameJournal.open(new File(Utils.getDefaultJournalDirectory()),
+        getUri(_options.getSourceBucketName(), _options.getSourceObjectKey()),
+        getUri(_options.getDestinationBucketName(), _options.getDestinationObjectKey()));
+      if(_journal.isStarted())
+      {
+        // the destination exists already, as far as the earlier run got
+        return renameAll();
+      }
+    }
 
     return startCopyThenDelete();
   }
@@ -76,7 +109,7 @@ class RenameRecursivelyCommand
           throw new UsageException(
             "Cannot overwrite existing destination object '" + getUri(bucket, key));
         }
-        return copyThenDelete();
+        return renameAll();
       }
     });
   }
@@ -95,100 +128,208 @@ class RenameRecursivelyCommand
   }
 
 
-  private ListenableFuture<List<StoreFile>> copyThenDelete()
+  private ListenableFuture<List<StoreFile>> renameAll()
+    throws InterruptedException, ExecutionException, IOException
   {
-    // hack -- exceptions are a bit of a mess.  copyRecursively throws all sorts of stuff that
-    //         should be collected into an ExecutionException?
-    ListenableFuture<List<StoreFile>> listObjs = queryFiles();
+    final String baseDir = Utils.getBaseDirURI(_options.getSourceObjectKey());
+    String srcBaseDirURI = Utils.getBaseDirURI(getUri(_options.getSourceBucketName(),
+      _options.getSourceObjectKey()));
+    String destDirURI = getUri(_options.getDestinationBucketName(),
+      _options.getDestinationObjectKey());
+    // Protect against the case we move objects to themselves. We don't want to
+    // delete them.
+    final boolean keepSources = srcBaseDirURI.equals(destDirURI);
+
+    DeleteOptions deleteOpts = _client.getOptionsBuilderFactory()
+      .newDeleteOptionsBuilder()
+      .setBucketName(_options.getSourceBucketName())
+      .setObjectKey(_options.getSourceObjectKey())
+      .createOptions();
+    _deleter = new BatchDeleteCommand(deleteOpts);
+    configure(_deleter);
+
+    if(_journal != null)
+    {
+      _journal.begin();
+    }
+
+    ListOptions sources = _client.getOptionsBuilderFactory()
+      .newListOptionsBuilder()
+      .setBucketName(_options.getSourceBucketName())
+      .setObjectKey(_options.getSourceObjectKey())
+      .setRecursive(true)
+      .createOptions();
+    Iterator<List<StoreFile>> pages = ListingPipeline.listSources(_client, sources,
+      _options.getDestinationBucketName(), _options.getDestinationObjectKey());
 
-    ListenableFuture<List<StoreFile>> result = Futures.transform(listObjs,
+    ListingPipeline pipeline = new ListingPipeline.PerObject(_client, pages,
+      ListingPipeline.DEFAULT_WINDOW, _options.isDryRun())
+    {
+      protected ListenableFuture<StoreFile> start(StoreFile src)
+        throws IOException
+      {
+        return startRename(src, baseDir, keepSources);
+      }
+    };
+
+    // the sources of the last copies are deleted once all copies are done
+    ListenableFuture<List<StoreFile>> renamed = Futures.transform(pipeline.run(),
       new AsyncFunction<List<StoreFile>, List<StoreFile>>()
       {
-        public ListenableFuture<List<StoreFile>> apply(List<StoreFile> toDelete)
-          throws InterruptedException, ExecutionException, IOException
+        public ListenableFuture<List<StoreFile>> apply(List<StoreFile> copied)
         {
-          CopyOptions copyOpts = _client.getOptionsBuilderFactory()
-            .newCopyOptionsBuilder()
-            .setSourceBucketName(_options.getSourceBucketName())
-            .setSourceObjectKey(_options.getSourceObjectKey())
-            .setDestinationBucketName(_options.getDestinationBucketName())
-            .setDestinationObjectKey(_options.getDestinationObjectKey())
-            .setDryRun(_options.isDryRun())
-            .setCannedAcl(_options.getCannedAcl().orElse(null))
-            .createOptions();
-
-          ListenableFuture<List<StoreFile>> copyFuture = _client.copyRecursively(copyOpts);
-
-          String srcBaseDirURI = Utils.getBaseDirURI(getUri(_options.getSourceBucketName(),
-            _options.getSourceObjectKey()));
-          String destDirURI = getUri(_options.getDestinationBucketName(),
-            _options.getDestinationObjectKey());
-          if(srcBaseDirURI.equals(destDirURI))
-          {
-            // Protect against the case we move objects to themselves. We don't want to
-            // delete them.
-            return copyFuture;
-          }
-          else
+          ListenableFuture<List<StoreFile>> deleted = _journal == null ? deleteCopiedSources() :
+            _deleter.flush();
+          if(deleted == null)
           {
-            return Futures.transform(copyFuture,
-              new AsyncFunction<List<StoreFile>, List<StoreFile>>()
-              {
-                public ListenableFuture<List<StoreFile>> apply(final List<StoreFile> copied)
-                  throws InterruptedException, ExecutionException
-                {
-                  // need to return list of dest files
-                  return Futures.transform(deleteFiles(toDelete),
-                    new Function<List<StoreFile>, List<StoreFile>>()
-                    {
-                      public List<StoreFile> apply(List<StoreFile> deletedFiles)
-                      {
-                        return copied;
-                      }
-                    });
-                }
-              });
+            return Futures.immediateFuture(copied);
           }
+          return Futures.transform(deleted, Functions.constant(copied));
         }
       });
-    return result;
+
+    if(_journal == null)
+    {
+      return renamed;
+    }
+
+    Futures.addCallback(renamed, new FutureCallback<List<StoreFile>>()
+    {
+      public void onSuccess(List<StoreFile> result)
+      {
+      }
+
+      public void onFailure(Throwable t)
+      {
+        // keep the journal, to resume from
+        _journal.close();
+      }
+    });
+    return Futures.transform(renamed, new Function<List<StoreFile>, List<StoreFile>>()
+    {
+      public List<StoreFile> apply(List<StoreFile> result)
+      {
+        _journal.delete();
+        return result;
+      }
+    });
   }
 
-  private ListenableFuture<List<StoreFile>> queryFiles()
+  /**
+   * @return future of the deletion of the sources of all copies, or null if there are none
+   */
+  private ListenableFuture<List<StoreFile>> deleteCopiedSources()
   {
-    // find all files that need to be deleted
-    ListOptions opts = _client.getOptionsBuilderFactory()
-      .newListOptionsBuilder()
-      .setBucketName(_options.getSourceBucketName())
-      .setObjectKey(_options.getSourceObjectKey())
-      .setRecursive(true)
-      .createOptions();
-    return _client.listObjects(opts);
+    List<StoreFile> sources;
+    synchronized(_copiedSources)
+    {
+      sources = new ArrayList<>(_copiedSources);
+    }
+    if(sources.isEmpty())
+    {
+      return null;
+    }
+    return _deleter.deleteAll(Collections.singletonList(sources).iterator());
   }
 
-  private ListenableFuture<List<StoreFile>> deleteFiles(List<StoreFile> toDelete)
+  /**
+   * Copies {@code src} to the destination and collects it for deletion once the copy has been
+   * verified.
+   *
+   * @return future of the copy, completed once the source has been collected or, if it completed
+   * a batch, deleted
+   */
+  private ListenableFuture<StoreFile> startRename(
+    final StoreFile src, String baseDir, final boolean keepSources)
+    throws IOException
   {
-    List<StoreFile> matches = new ArrayList<StoreFile>();
-    for(StoreFile f : toDelete)
+    if(src.getObjectKey().endsWith("/"))
     {
-      if(!f.getObjectKey().endsWith("/"))
-        matches.add(f);
+      return null;
     }
 
-    List<ListenableFuture<StoreFile>> futures = new ArrayList<ListenableFuture<StoreFile>>();
+    String destKey = _options.getDestinationObjectKey() +
+      src.getObjectKey().substring(baseDir.length());
+    if(_options.isDryRun())
+    {
+      System.out.println(
+        "<DRYRUN> copying '" + getUri(_options.getSourceBucketName(), src.getObjectKey()) +
+          "' to '" + getUri(_options.getDestinationBucketName(), destKey) + "'");
+      if(!keepSources)
+      {
+        System.out.println(
+          "<DRYRUN> deleting '" + getUri(_options.getSourceBucketName(), src.getObjectKey()) + "'");
+      }
+      return null;
+    }
 
-    for(StoreFile src : matches)
+    ListenableFuture<StoreFile> copied;
+    if(_journal != null && _journal.isCopied(src.getObjectKey(), src.getETag()))
+    {
+      copied = Futures.immediateFuture(
+        new StoreFile(_options.getDestinationBucketName(), destKey));
+    }
+    else
     {
-      DeleteOptions opts = _client.getOptionsBuilderFactory()
-        .newDeleteOptionsBuilder()
-        .setBucketName(src.getBucketName())
-        .setObjectKey(src.getObjectKey())
-        .setDryRun(_options.isDryRun())
+      CopyOptions copyOpts = _client.getOptionsBuilderFactory()
+        .newCopyOptionsBuilder()
+        .setSourceBucketName(_options.getSourceBucketName())
+        .setSourceObjectKey(src.getObjectKey())
+        .setDestinationBucketName(_options.getDestinationBucketName())
+        .setDestinationObjectKey(destKey)
+        .setCannedAcl(_options.getCannedAcl().orElse(null))
+        .setSourceStoreFile(src)
         .createOptions();
-      futures.add(_client.delete(opts));
+      copied = _client.copy(copyOpts);
+      if(_journal != null)
+      {
+        copied = Futures.transform(copied, new Function<StoreFile, StoreFile>()
+        {
+          public StoreFile apply(StoreFile dest)
+          {
+            try
+            {
+              _journal.addCopied(src.getObjectKey(), src.getETag());
+            }
+            catch(IOException e)
+            {
+              throw new RuntimeException(e);
+            }
+            return dest;
+          }
+        });
+      }
     }
 
-    return Futures.allAsList(futures);
-  }
+    if(keepSources)
+    {
+      return copied;
+    }
 
+    if(_journal == null)
+    {
+      // a rerun could not tell the copies from other objects at the destination
+      return Futures.transform(copied, new Function<StoreFile, StoreFile>()
+      {
+        public StoreFile apply(StoreFile dest)
+        {
+          _copiedSources.add(src);
+          return dest;
+        }
+      });
+    }
+
+    return Futures.transform(copied, new AsyncFunction<StoreFile, StoreFile>()
+    {
+      public ListenableFuture<StoreFile> apply(StoreFile dest)
+      {
+        ListenableFuture<List<StoreFile>> deleted = _deleter.add(src);
+        if(deleted == null)
+        {
+          return Futures.immediateFuture(dest);
+        }
+        return Futures.transform(deleted, Functions.constant(dest));
+      }
+    });
+  }
 }
@@ -157,6 +157,10 @@ class S3AbortPendingUploadsCommand
         }
       }
 
+      // parts of deferred uploads that were never initiated are not listed as pending uploads
+      S3MultipartUpload.deleteStaleTempObjects(getS3Client(), _options.getBucketName(),
+        _options.getObjectKey(), _date);
+
       return Futures.allAsList(aborts);
     }
 
@@ -17,11 +17,13 @@
 package com.logicblox.cloudstore;
 
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.api.services.storage.model.StorageObject;
 import com.google.common.base.Joiner;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureFallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import javax.crypto.BadPaddingException;
@@ -47,6 +49,9 @@ class S3AddEncryptionKeyCommand
   private EncryptionKeyOptions _options;
   private String _encKeyName;
   private KeyProvider _encKeyProvider;
+  private ListeningExecutorService _cryptoExecutor;
+  private boolean _skipUnchanged = false;
+  private volatile boolean _unchanged = false;
 
   public S3AddEncryptionKeyCommand(EncryptionKeyOptions options)
     throws IOException
@@ -55,6 +60,33 @@ class S3AddEncryptionKeyCommand
     _options = options;
     _encKeyProvider = _client.getKeyProvider();
     _encKeyName = _options.getEncryptionKey();
+    _cryptoExecutor = _client.getInternalExecutor();
+  }
+
+  /**
+   * Uses {@code keyProvider} instead of the key provider of the client, e.g. to share loaded keys
+   * between the objects of a recursive update.
+   */
+  void setKeyProvider(KeyProvider keyProvider)
+  {
+    _encKeyProvider = keyProvider;
+  }
+
+  /**
+   * Runs the RSA operations on {@code executor} instead of the internal executor of the client.
+   */
+  void setCryptoExecutor(ListeningExecutorService executor)
+  {
+    _cryptoExecutor = executor;
+  }
+
+  /**
+   * If {@code skipUnchanged} is true, objects that are not encrypted or have the key already are
+   * left as they are, instead of failing.
+   */
+  void setSkipUnchanged(boolean skipUnchanged)
+  {
+    _skipUnchanged = skipUnchanged;
   }
 
   public ListenableFuture<StoreFile> run()
@@ -116,6 +148,11 @@ class S3AddEncryptionKeyCommand
         String obj = getUri(metadata.getBucketName(), metadata.getObjectKey());
         if(!userMetadata.containsKey("s3tool-key-name"))
         {
+          if(_skipUnchanged)
+          {
+            _unchanged = true;
+            return Futures.immediateFuture(metadata);
+          }
           throw new UsageException("Object doesn't seem to be encrypted");
         }
         if(!userMetadata.containsKey("s3tool-pubkey-hash"))
@@ -148,7 +185,11 @@ class S3AddEncryptionKeyCommand
           }
         };
 
-        return _client.getInternalExecutor().submit(addNewEncyptionKeyCall);
+        if(_unchanged)
+        {
+          return Futures.immediateFuture(metadata);
+        }
+        return _cryptoExecutor.submit(addNewEncyptionKeyCall);
       }
     };
   }
@@ -179,6 +220,11 @@ class S3AddEncryptionKeyCommand
     List<String> pubKeyHashes = new ArrayList<>(Arrays.asList(pubKeyHashesStr.split(",")));
     if(keyNames.contains(_encKeyName))
     {
+      if(_skipUnchanged)
+      {
+        _unchanged = true;
+        return metadata;
+      }
       throw new UsageException(errPrefix + _encKeyName + " already exists.");
     }
     int maxAllowedKeys = 4;
@@ -300,6 +346,13 @@ class S3AddEncryptionKeyCommand
       public ListenableFuture<StoreFile> apply(final S3ObjectMetadata metadata)
         throws IOException
       {
+        if(_unchanged)
+        {
+          StoreFile f = new StoreFile(metadata.getBucketName(), metadata.getObjectKey());
+          f.setETag(metadata.getETag());
+          return Futures.immediateFuture(f);
+        }
+
         if(null == getGCSClient())
         {
           // It seems for AWS there is no way to update an object's metadata
@@ -315,7 +368,12 @@ class S3AddEncryptionKeyCommand
             .setUserMetadata(metadata.getUserMetadata())
             .createOptions();
 
-          return _client.copy(options);
+          // the metadata has just been fetched, so the copy neither checks that the object
+          // exists nor fetches its metadata again
+          S3CopyCommand cmd = new S3CopyCommand(options);
+          configure(cmd);
+          cmd.setSourceMetadata(metadata.getAllMetadata());
+          return cmd.run();
         }
         else
         {
@@ -329,9 +387,12 @@ class S3AddEncryptionKeyCommand
                   public StoreFile call()
                     throws IOException
                   {
-                    GCSClient.patchMetaData(getGCSClient(), metadata.getBucketName(), metadata.getObjectKey(),
+                    StorageObject obj = GCSClient.patchMetaData(getGCSClient(),
+                      metadata.getBucketName(), metadata.getObjectKey(),
                       metadata.getUserMetadata());
-                    return new StoreFile(metadata.getBucketName(), metadata.getObjectKey());
+                    StoreFile f = new StoreFile(metadata.getBucketName(), metadata.getObjectKey());
+                    f.setETag(obj.getEtag());
+                    return f;
                   }
                 });
               }
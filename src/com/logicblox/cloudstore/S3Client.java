@@ -23,14 +23,22 @@ import com.amazonaws.services.s3.model.AccessControlList;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
 import com.amazonaws.services.s3.model.CreateBucketRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SeekableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutionException;
@@ -277,6 +285,58 @@ public class S3Client
     return client.getObjectAcl(bucket, key);
   }
 
+  /**
+   * Stores the checksum manifest of object {@code key}, see {@link ChecksumManifest}. The
+   * manifest gets the same ACL as the object, so that whoever can read the object can validate
+   * it too.
+   *
+   * @param cannedAcl canned ACL of the object, or null
+   * @param objectAcl ACL of the object if it has no canned ACL, or null
+   */
+  static void putChecksumManifest(
+    AmazonS3 client, String bucket, String key, ChecksumManifest manifest,
+    CannedAccessControlList cannedAcl, AccessControlList objectAcl)
+  {
+    byte[] content = manifest.toBytes();
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(content.length);
+    PutObjectRequest req = new PutObjectRequest(bucket, ChecksumManifest.getManifestKey(key),
+      new ByteArrayInputStream(content), metadata);
+    if(cannedAcl != null)
+    {
+      req.setCannedAcl(cannedAcl);
+    }
+    else if(objectAcl != null)
+    {
+      req.setAccessControlList(objectAcl);
+    }
+    client.putObject(req);
+  }
+
+  /**
+   * @return the checksum manifest of object {@code key}, or null if it has none or the manifest
+   * cannot be read
+   */
+  static ChecksumManifest getChecksumManifest(AmazonS3 client, String bucket, String key)
+  {
+    try(S3Object obj = client.getObject(bucket, ChecksumManifest.getManifestKey(key)))
+    {
+      return ChecksumManifest.parse(ByteStreams.toByteArray(obj.getObjectContent()));
+    }
+    catch(AmazonS3Exception e)
+    {
+      if(e.getStatusCode() == 404)
+      {
+        return null;
+      }
+      throw e;
+    }
+    catch(IOException | IllegalArgumentException e)
+    {
+      return null;
+    }
+  }
+
   static CannedAccessControlList getCannedAcl(String value)
   {
     for(CannedAccessControlList acl : CannedAccessControlList.values())
@@ -315,6 +375,15 @@ public class S3Client
     return cmd.run();
   }
 
+  @Override
+  public UploadOutputStream openUploadStream(UploadOptions options)
+    throws IOException
+  {
+    S3UploadCommand cmd = new S3UploadCommand(options);
+    configure(cmd);
+    return cmd.openStream();
+  }
+
   @Override
   public ListenableFuture<List<StoreFile>> deleteRecursively(DeleteOptions options)
     throws InterruptedException, ExecutionException
@@ -378,6 +447,24 @@ public class S3Client
     return cmd.run();
   }
 
+  @Override
+  public SeekableByteChannel openChannel(DownloadOptions options)
+    throws IOException
+  {
+    S3DownloadCommand cmd = new S3DownloadCommand(options);
+    configure(cmd);
+    return cmd.openChannel();
+  }
+
+  @Override
+  public InputStream openStream(DownloadOptions options)
+    throws IOException
+  {
+    S3DownloadCommand cmd = new S3DownloadCommand(options);
+    configure(cmd);
+    return cmd.openStream();
+  }
+
   @Override
   public ListenableFuture<List<StoreFile>> downloadRecursively(DownloadOptions options)
     throws IOException, ExecutionException, InterruptedException
@@ -390,6 +477,13 @@ public class S3Client
   @Override
   public ListenableFuture<StoreFile> copy(CopyOptions options)
   {
+    if(CrossStoreCopyCommand.isCrossStore(options))
+    {
+      CrossStoreCopyCommand cmd = new CrossStoreCopyCommand(options);
+      configure(cmd);
+      return cmd.run();
+    }
+
     S3CopyCommand cmd = new S3CopyCommand(options);
     configure(cmd);
     return cmd.run();
@@ -399,6 +493,13 @@ public class S3Client
   public ListenableFuture<List<StoreFile>> copyRecursively(CopyOptions options)
     throws InterruptedException, ExecutionException, IOException
   {
+    if(CrossStoreCopyCommand.isCrossStore(options))
+    {
+      CrossStoreCopyRecursivelyCommand cmd = new CrossStoreCopyRecursivelyCommand(options);
+      configure(cmd);
+      return cmd.run();
+    }
+
     S3CopyRecursivelyCommand cmd = new S3CopyRecursivelyCommand(options);
     configure(cmd);
     return cmd.run();
@@ -424,6 +525,11 @@ public class S3Client
   @Override
   public ListenableFuture<List<StoreFile>> listObjects(ListOptions options)
   {
+    if(isParallel(options))
+    {
+      return newParallelListCommand(options).run();
+    }
+
     ListenableFuture<List<StoreFile>> results = null;
     if(options.versionsIncluded())
     {
@@ -440,6 +546,52 @@ public class S3Client
     return results;
   }
 
+  @Override
+  public Iterator<List<StoreFile>> listObjectsStream(ListOptions options)
+  {
+    if(isParallel(options))
+    {
+      return newParallelListCommand(options).stream();
+    }
+
+    PagedListCommand cmd;
+    if(options.versionsIncluded())
+    {
+      cmd = new S3ListVersionsCommand(options);
+    }
+    else
+    {
+      cmd = new S3ListCommand(options);
+    }
+    configure(cmd);
+    return cmd.stream();
+  }
+
+  /**
+   * @return true if {@code options} ask for a listing of partitions of the key space in parallel,
+   * which is only done for recursive listings of the current versions of objects
+   */
+  static boolean isParallel(ListOptions options)
+  {
+    return options.getParallelism() > 1 && options.isRecursive() && !options.versionsIncluded();
+  }
+
+  private ParallelListCommand newParallelListCommand(final ListOptions options)
+  {
+    ParallelListCommand cmd = new ParallelListCommand(options,
+      new ParallelListCommand.ListerFactory()
+      {
+        public PagedListCommand newLister()
+        {
+          S3ListCommand lister = new S3ListCommand(options);
+          configure(lister);
+          return lister;
+        }
+      });
+    configure(cmd);
+    return cmd;
+  }
+
   @Override
   public ListenableFuture<List<Upload>> listPendingUploads(PendingUploadsOptions options)
   {
@@ -488,6 +640,26 @@ public class S3Client
     return cmd;
   }
 
+  @Override
+  public ListenableFuture<List<StoreFile>> addEncryptionKeyRecursively(
+    EncryptionKeyOptions options)
+    throws IOException
+  {
+    EncryptionKeyRecursivelyCommand cmd = new EncryptionKeyRecursivelyCommand(options, true);
+    configure(cmd);
+    return cmd.run();
+  }
+
+  @Override
+  public ListenableFuture<List<StoreFile>> removeEncryptionKeyRecursively(
+    EncryptionKeyOptions options)
+    throws IOException
+  {
+    EncryptionKeyRecursivelyCommand cmd = new EncryptionKeyRecursivelyCommand(options, false);
+    configure(cmd);
+    return cmd.run();
+  }
+
 
   /**
    * Returns cloudstore package version in this format: "Version.RevNum-RevHash_BuildDatetime"
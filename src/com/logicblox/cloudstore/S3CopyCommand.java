@@ -17,15 +17,13 @@
 package com.logicblox.cloudstore;
 
 
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
-import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +34,7 @@ class S3CopyCommand
 {
   private CopyOptions _options;
   private OverallProgressListenerFactory _progressListenerFactory;
+  private ObjectMetadata _sourceMetadata;
 
   public S3CopyCommand(CopyOptions options)
   {
@@ -44,6 +43,15 @@ class S3CopyCommand
     _progressListenerFactory = options.getOverallProgressListenerFactory().orElse(null);
   }
 
+  /**
+   * Starts the copy from metadata of the source that the caller has just fetched, instead of
+   * checking that the source exists and fetching its metadata again.
+   */
+  void setSourceMetadata(ObjectMetadata sourceMetadata)
+  {
+    _sourceMetadata = sourceMetadata;
+  }
+
   public ListenableFuture<StoreFile> run()
   {
     if(_options.getSourceObjectKey().endsWith("/") || _options.getSourceObjectKey().equals(""))
@@ -62,13 +70,22 @@ class S3CopyCommand
     }
     else
     {
-      ExistsOptions opts = _client.getOptionsBuilderFactory()
-        .newExistsOptionsBuilder()
-        .setBucketName(_options.getSourceBucketName())
-        .setObjectKey(_options.getSourceObjectKey())
-        .createOptions();
-      ListenableFuture<Metadata> sourceExists = _client.exists(opts);
-      ListenableFuture<Copy> copy = Futures.transform(sourceExists, startCopyAsyncFunction());
+      ListenableFuture<Copy> copy;
+      if(_options.getSourceStoreFile().isPresent() || _sourceMetadata != null)
+      {
+        // just listed or fetched, no need to check that it exists
+        copy = startCopy();
+      }
+      else
+      {
+        ExistsOptions opts = _client.getOptionsBuilderFactory()
+          .newExistsOptionsBuilder()
+          .setBucketName(_options.getSourceBucketName())
+          .setObjectKey(_options.getSourceObjectKey())
+          .createOptions();
+        ListenableFuture<Metadata> sourceExists = _client.exists(opts);
+        copy = Futures.transform(sourceExists, startCopyAsyncFunction());
+      }
       copy = Futures.transform(copy, startPartsAsyncFunction());
       ListenableFuture<String> result = Futures.transform(copy, completeAsyncFunction());
       return Futures.transform(result, new Function<String, StoreFile>()
@@ -127,7 +144,7 @@ class S3CopyCommand
   {
     S3MultipartCopyFactory factory = new S3MultipartCopyFactory(_options, getS3Client(),
       _client.getApiExecutor());
-    return factory.startCopy();
+    return factory.startCopy(_sourceMetadata);
   }
 
   /**
@@ -157,10 +174,11 @@ class S3CopyCommand
     // cloudstore-specific metadata should already be set by factory.startCopy
     String objectVersion = meta.get("s3tool-version");
 
-    if(!String.valueOf(Version.CURRENT).equals(objectVersion))
+    if(!Version.isSupported(objectVersion))
     {
       throw new UsageException(
-        errPrefix + "unsupported version: " + objectVersion + ", should be " + Version.CURRENT);
+        errPrefix + "unsupported version: " + objectVersion + ", should be " +
+          Version.getSupported());
     }
 
     setFileLength(Long.valueOf(meta.get("s3tool-file-length")));
@@ -177,26 +195,23 @@ class S3CopyCommand
     }
 
     List<ListenableFuture<Void>> parts = new ArrayList<>();
-
-    for(long position = 0; position < fileLength || (position == 0 && fileLength == 0);
-        position += chunkSize)
+    List<long[]> ranges = copy.getPartRanges();
+    for(int partNumber = 0; partNumber < ranges.size(); partNumber++)
     {
-      parts.add(startPartCopy(copy, position, opl));
+      parts.add(startPartCopy(copy, partNumber, ranges.get(partNumber), opl));
     }
 
     return Futures.transform(Futures.allAsList(parts), Functions.constant(copy));
   }
 
   private ListenableFuture<Void> startPartCopy(
-    final Copy copy, final long position, final OverallProgressListener opl)
+    final Copy copy, final int partNumber, final long[] range, final OverallProgressListener opl)
   {
-    final int partNumber = (int) (position / chunkSize);
-
     return executeWithRetry(_client.getInternalExecutor(), new Callable<ListenableFuture<Void>>()
     {
       public ListenableFuture<Void> call()
       {
-        return startPartCopyActual(copy, position, partNumber, opl);
+        return startPartCopyActual(copy, partNumber, range, opl);
       }
 
       public String toString()
@@ -207,48 +222,21 @@ class S3CopyCommand
   }
 
   private ListenableFuture<Void> startPartCopyActual(
-    final Copy copy, final long position, final int partNumber, OverallProgressListener opl)
+    final Copy copy, final int partNumber, long[] range, OverallProgressListener opl)
   {
     // support for testing failures
     String srcUri = getUri(copy.getSourceBucketName(), copy.getSourceObjectKey());
     _options.injectAbort(srcUri);
 
-    Long start;
-    Long end;
-    long partSize;
-
-    if(copy.getMeta().containsKey("s3tool-key-name"))
-    {
-      long blockSize;
-      try
-      {
-        blockSize = Cipher.getInstance("AES/CBC/PKCS5Padding").getBlockSize();
-      }
-      catch(NoSuchAlgorithmException | NoSuchPaddingException e)
-      {
-        throw new RuntimeException(e);
-      }
-
-      long postCryptSize = Math.min(fileLength - position, chunkSize);
-      start = partNumber * blockSize * (chunkSize / blockSize + 2);
-      partSize = blockSize * (postCryptSize / blockSize + 2);
-    }
-    else
-    {
-      start = position;
-      partSize = Math.min(fileLength - position, chunkSize);
-    }
-    end = start + partSize - 1;
-
-    if(fileLength == 0)
+    Long start = range[0];
+    Long end = range[0] + range[1] - 1;
+    if(range[1] == 0)
     {
       start = null;
       end = null;
     }
 
-    ListenableFuture<Void> copyPartFuture = copy.copyPart(partNumber, start, end, opl);
-
-    return copyPartFuture;
+    return copy.copyPart(partNumber, start, end, opl);
   }
 
   /**
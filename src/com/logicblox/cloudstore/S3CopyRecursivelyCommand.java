@@ -16,14 +16,10 @@
 
 package com.logicblox.cloudstore;
 
-import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
@@ -48,67 +44,57 @@ class S3CopyRecursivelyCommand
         getUri(_options.getDestinationBucketName(), _options.getDestinationObjectKey()));
     }
 
-    String baseDirURI = Utils.getBaseDirURI(_options.getSourceObjectKey());
-    List<ListenableFuture<StoreFile>> files = new ArrayList<>();
-
-    ListObjectsRequest req = new ListObjectsRequest().withBucketName(_options.getSourceBucketName())
-      .withPrefix(_options.getSourceObjectKey());
-
-    ObjectListing current = getS3Client().listObjects(req);
-    files.addAll(copyBatch(current.getObjectSummaries(), baseDirURI));
-    current = getS3Client().listNextBatchOfObjects(current);
-
-    while(current.isTruncated())
-    {
-      files.addAll(copyBatch(current.getObjectSummaries(), baseDirURI));
-      current = getS3Client().listNextBatchOfObjects(current);
-    }
-    files.addAll(copyBatch(current.getObjectSummaries(), baseDirURI));
-
-    if(_options.isDryRun())
+    final String baseDirURI = Utils.getBaseDirURI(_options.getSourceObjectKey());
+    ListOptions sources = _client.getOptionsBuilderFactory()
+      .newListOptionsBuilder()
+      .setBucketName(_options.getSourceBucketName())
+      .setObjectKey(_options.getSourceObjectKey())
+      .setRecursive(true)
+      .createOptions();
+    Iterator<List<StoreFile>> pages = ListingPipeline.listSources(_client, sources,
+      _options.getDestinationBucketName(), _options.getDestinationObjectKey());
+
+    ListingPipeline pipeline = new ListingPipeline.PerObject(_client, pages,
+      ListingPipeline.DEFAULT_WINDOW, _options.isDryRun())
     {
-      return Futures.immediateFuture(null);
-    }
-    else
-    {
-      return Futures.allAsList(files);
-    }
+      protected ListenableFuture<StoreFile> start(StoreFile src)
+        throws IOException
+      {
+        return startCopy(src, baseDirURI);
+      }
+    };
+    return pipeline.run();
   }
 
-  private List<ListenableFuture<StoreFile>> copyBatch(List<S3ObjectSummary> lst, String baseDirPath)
+  private ListenableFuture<StoreFile> startCopy(StoreFile src, String baseDirPath)
     throws IOException
   {
-    List<ListenableFuture<StoreFile>> batch = new ArrayList<>();
-
-    for(S3ObjectSummary obj : lst)
+    if(src.getObjectKey().endsWith("/"))
     {
-      if(!obj.getKey().endsWith("/"))
-      {
-        String destKeyLastPart = obj.getKey().substring(baseDirPath.length());
-        String destKey = _options.getDestinationObjectKey() + destKeyLastPart;
-        CopyOptions options0 = _client.getOptionsBuilderFactory()
-          .newCopyOptionsBuilder()
-          .setSourceBucketName(_options.getSourceBucketName())
-          .setSourceObjectKey(obj.getKey())
-          .setDestinationBucketName(_options.getDestinationBucketName())
-          .setDestinationObjectKey(destKey)
-          .setCannedAcl(_options.getCannedAcl().orElse(null))
-          .setStorageClass(_options.getStorageClass().orElse(null))
-          .createOptions();
-
-        if(_options.isDryRun())
-        {
-          System.out.println(
-            "<DRYRUN> copying '" + getUri(_options.getSourceBucketName(), obj.getKey()) + "' to '" +
-              getUri(_options.getDestinationBucketName(), destKey) + "'");
-        }
-        else
-        {
-          batch.add(_client.copy(options0));
-        }
-      }
+      return null;
     }
 
-    return batch;
+    String destKeyLastPart = src.getObjectKey().substring(baseDirPath.length());
+    String destKey = _options.getDestinationObjectKey() + destKeyLastPart;
+    CopyOptions options0 = _client.getOptionsBuilderFactory()
+      .newCopyOptionsBuilder()
+      .setSourceBucketName(_options.getSourceBucketName())
+      .setSourceObjectKey(src.getObjectKey())
+      .setDestinationBucketName(_options.getDestinationBucketName())
+      .setDestinationObjectKey(destKey)
+      .setCannedAcl(_options.getCannedAcl().orElse(null))
+      .setStorageClass(_options.getStorageClass().orElse(null))
+      .setSourceStoreFile(src)
+      .setOverallProgressListenerFactory(_options.getOverallProgressListenerFactory().orElse(null))
+      .createOptions();
+
+    if(_options.isDryRun())
+    {
+      System.out.println(
+        "<DRYRUN> copying '" + getUri(_options.getSourceBucketName(), src.getObjectKey()) + "' to '" +
+          getUri(_options.getDestinationBucketName(), destKey) + "'");
+      return null;
+    }
+    return _client.copy(options0);
   }
 }
@@ -117,6 +117,13 @@ class S3DeleteCommand
           String key = _options.getObjectKey();
           DeleteObjectRequest req = new DeleteObjectRequest(bucket, key);
           getS3Client().deleteObject(req);
+
+          // the checksum manifest goes with the object (only objects stored on S3 have one)
+          if(getGCSClient() == null)
+          {
+            getS3Client().deleteObject(bucket, ChecksumManifest.getManifestKey(key));
+          }
+
           StoreFile file = new StoreFile();
           file.setBucketName(bucket);
           file.setObjectKey(key);
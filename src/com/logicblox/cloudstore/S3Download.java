@@ -16,19 +16,25 @@
 
 package com.logicblox.cloudstore;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.event.ProgressListener;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 
@@ -40,7 +46,21 @@ class S3Download
   private ListeningExecutorService _apiExecutor;
   private ListeningExecutorService _internalExecutor;
   private ObjectMetadata _meta;
+  // whole content of a small object fetched along with its metadata, see S3DownloadFactory
+  private byte[] _content;
   private ConcurrentMap<Integer, HashingInputStream> _partInputStreams = new ConcurrentSkipListMap<>();
+  // range and CRC32C of each part, for validation against the checksum manifest
+  private ConcurrentMap<Integer, long[]> _partRanges = new ConcurrentSkipListMap<>();
+  private ConcurrentMap<Integer, Crc32cInputStream> _partCrcs = new ConcurrentSkipListMap<>();
+  // checksums of parts downloaded by an earlier run, see addDownloadedPart
+  private ConcurrentMap<Integer, byte[]> _restoredMd5s = new ConcurrentSkipListMap<>();
+  private ConcurrentMap<Integer, Long> _restoredCrcs = new ConcurrentSkipListMap<>();
+  // CRC32C of duplicates started by hedgePart, by stream
+  private ConcurrentMap<InputStream, Crc32cInputStream> _hedgeCrcs = new ConcurrentHashMap<>();
+  // System.nanoTime() at which the last request of every part was sent
+  private ConcurrentMap<Integer, Long> _partRequests = new ConcurrentSkipListMap<>();
+  // MD5 of the local file, for multi-range downloads of objects with a plain MD5 ETag
+  private OrderedFileDigest _fileDigest;
 
   public S3Download(
     DownloadOptions options,
@@ -49,12 +69,29 @@ class S3Download
     ListeningExecutorService apiExecutor,
     ListeningExecutorService internalExecutor,
     ObjectMetadata meta)
+  {
+    this(options, fileLength, chunkSize, client, apiExecutor, internalExecutor, meta, null);
+  }
+
+  /**
+   * @param content The whole content of the object, if it has been fetched already. Parts are
+   * then read from it instead of being requested.
+   */
+  public S3Download(
+    DownloadOptions options,
+    long fileLength, long chunkSize,
+    AmazonS3 client,
+    ListeningExecutorService apiExecutor,
+    ListeningExecutorService internalExecutor,
+    ObjectMetadata meta,
+    byte[] content)
   {
     _options = options;
     _client = client;
     _apiExecutor = apiExecutor;
     _internalExecutor = internalExecutor;
     _meta = meta;
+    _content = content;
   }
 
   @Override
@@ -64,6 +101,179 @@ class S3Download
     return _apiExecutor.submit(new DownloadCallable(partNumber, start, end, opl));
   }
 
+  @Override
+  public ListenableFuture<InputStream> resumePart(
+    int partNumber, long start, long end, OverallProgressListener opl)
+  {
+    return _apiExecutor.submit(new DownloadCallable(partNumber, start, end, opl, true));
+  }
+
+  @Override
+  public ListenableFuture<InputStream> hedgePart(
+    int partNumber, final long start, final long end, final OverallProgressListener opl)
+  {
+    return _apiExecutor.submit(new Callable<InputStream>()
+    {
+      public InputStream call()
+      {
+        Crc32cInputStream crc = new Crc32cInputStream(getRange(start, end, opl));
+        HashingInputStream in = new HashingInputStream(crc);
+        _hedgeCrcs.put(in, crc);
+        return in;
+      }
+    });
+  }
+
+  @Override
+  public void hedgeWon(int partNumber, InputStream hedge)
+  {
+    Crc32cInputStream crc = _hedgeCrcs.remove(hedge);
+    if(crc == null)
+    {
+      // already chosen
+      return;
+    }
+    _partInputStreams.put(partNumber, (HashingInputStream) hedge);
+    _partCrcs.put(partNumber, crc);
+  }
+
+  @Override
+  public long getPartRequestNanos(int partNumber)
+  {
+    Long requested = _partRequests.get(partNumber);
+    return requested != null ? requested : 0;
+  }
+
+  /**
+   * Issues a ranged GET of the object, or reads the range from the content of a small object
+   * fetched up front. The GET only succeeds if the object still has the ETag it had when the
+   * download started, so that all parts, and all attempts of a part, are read from the same
+   * content.
+   */
+  private InputStream getRange(long start, long end, OverallProgressListener opl)
+  {
+    if(_content != null)
+    {
+      InputStream in = new ByteArrayInputStream(_content, (int) start, (int) (end - start + 1));
+      if(opl != null)
+      {
+        PartProgressEvent ppe = new PartProgressEvent(
+          Long.toString(start) + ':' + Long.toString(end));
+        in = new ProgressInputStream(in, opl, ppe);
+      }
+      return in;
+    }
+
+    GetObjectRequest req = null;
+    String version = _options.getVersion().orElse(null);
+    if(version == null)
+    {
+      req = new GetObjectRequest(getBucketName(), getObjectKey());
+    }
+    else
+    {
+      req = new GetObjectRequest(getBucketName(), getObjectKey(), version);
+    }
+    req.setRange(start, end);
+    String etag = getETag();
+    if(etag != null)
+    {
+      req.setMatchingETagConstraints(Collections.singletonList(etag));
+    }
+    if(opl != null)
+    {
+      PartProgressEvent ppe = new PartProgressEvent(
+        Long.toString(start) + ':' + Long.toString(end));
+      ProgressListener s3pl = new S3ProgressListener(opl, ppe);
+      req.setGeneralProgressListener(s3pl);
+    }
+
+    S3Object object = _client.getObject(req);
+    if(object == null)
+    {
+      // the SDK reports a failed ETag constraint as a missing object
+      AmazonServiceException exc = new AmazonServiceException(
+        getBucketName() + "/" + getObjectKey() + " has changed since the download started, " +
+          "its ETag is no longer " + etag);
+      exc.setStatusCode(412);
+      exc.setErrorCode("PreconditionFailed");
+      exc.setErrorType(AmazonServiceException.ErrorType.Client);
+      throw exc;
+    }
+    return object.getObjectContent();
+  }
+
+  /**
+   * Objects uploaded with a single request have the plain MD5 of their content as ETag, which the
+   * MD5 of the individual ranges of a multi-range download cannot be combined into. For such
+   * unencrypted objects, the parts written to the local file are fed to a single MD5 digest in
+   * order as they complete (see {@link OrderedFileDigest}).
+   */
+  @Override
+  public void partWritten(long position, long length)
+    throws IOException
+  {
+    OrderedFileDigest digest;
+    synchronized(this)
+    {
+      if(_fileDigest == null)
+      {
+        String etag = getETag();
+        boolean plainMD5 = etag != null && etag.length() == 32 && etag.indexOf('-') == -1;
+        boolean encrypted = getMetadata().containsKey("s3tool-key-name");
+        boolean multiRange = position != 0 || length != getLength();
+        if(!plainMD5 || encrypted || !multiRange)
+        {
+          return;
+        }
+        _fileDigest = new OrderedFileDigest(_options.getFile().getAbsoluteFile(), getLength());
+      }
+      digest = _fileDigest;
+    }
+    digest.regionWritten(position, length);
+  }
+
+  /**
+   * The checksum of a part is its MD5, in hex, and its CRC32C, in base64, separated by a '/'.
+   */
+  @Override
+  public String getPartChecksum(int partNumber)
+  {
+    if(!_partInputStreams.containsKey(partNumber))
+    {
+      return null;
+    }
+    return DatatypeConverter.printHexBinary(getPartMd5(partNumber)).toLowerCase() + "/" +
+      ChecksumManifest.encode(getPartCrc(partNumber));
+  }
+
+  @Override
+  public void addDownloadedPart(int partNumber, long start, long end, String checksum)
+  {
+    String[] digests = checksum.split("/");
+    if(digests.length != 2)
+    {
+      throw new IllegalArgumentException("invalid part checksum: " + checksum);
+    }
+    _partInputStreams.remove(partNumber);
+    _partCrcs.remove(partNumber);
+    _restoredMd5s.put(partNumber, DatatypeConverter.parseHexBinary(digests[0]));
+    _restoredCrcs.put(partNumber, ChecksumManifest.decode(digests[1]));
+    _partRanges.put(partNumber, new long[]{start, end - start + 1});
+  }
+
+  private byte[] getPartMd5(int partNumber)
+  {
+    HashingInputStream in = _partInputStreams.get(partNumber);
+    return in != null ? in.getDigest() : _restoredMd5s.get(partNumber);
+  }
+
+  private long getPartCrc(int partNumber)
+  {
+    Crc32cInputStream crc = _partCrcs.get(partNumber);
+    return crc != null ? crc.getValue() : _restoredCrcs.get(partNumber);
+  }
+
   public ListenableFuture<Download> completeDownload(long fileLength, long chunkSize)
   {
     return _internalExecutor.submit(new CompleteCallable(fileLength, chunkSize));
@@ -106,40 +316,46 @@ class S3Download
     private long _start;
     private long _end;
     private OverallProgressListener _progressListener;
+    private boolean _resume;
 
     public DownloadCallable(
       int partNumber, long start, long end, OverallProgressListener progressListener)
+    {
+      this(partNumber, start, end, progressListener, false);
+    }
+
+    public DownloadCallable(
+      int partNumber, long start, long end, OverallProgressListener progressListener,
+      boolean resume)
     {
       _partNumber = partNumber;
       _start = start;
       _end = end;
       _progressListener = progressListener;
+      _resume = resume;
     }
 
     public InputStream call()
       throws Exception
     {
-      GetObjectRequest req = null;
-      String version = _options.getVersion().orElse(null);
-      if(version == null)
-      {
-        req = new GetObjectRequest(getBucketName(), getObjectKey());
-      }
-      else
-      {
-        req = new GetObjectRequest(getBucketName(), getObjectKey(), version);
-      }
-      req.setRange(_start, _end);
-      if(_progressListener != null)
+      _partRequests.put(_partNumber, System.nanoTime());
+      InputStream content = getRange(_start, _end, _progressListener);
+      if(_resume)
       {
-        PartProgressEvent ppe = new PartProgressEvent(
-          Long.toString(_start) + ':' + Long.toString(_end));
-        ProgressListener s3pl = new S3ProgressListener(_progressListener, ppe);
-        req.setGeneralProgressListener(s3pl);
+        Crc32cInputStream crc = _partCrcs.get(_partNumber).continueWith(content);
+        HashingInputStream in = _partInputStreams.get(_partNumber).continueWith(crc);
+        _partInputStreams.put(_partNumber, in);
+        _partCrcs.put(_partNumber, crc);
+        return in;
       }
 
-      HashingInputStream in = new HashingInputStream(_client.getObject(req).getObjectContent());
+      Crc32cInputStream crc = new Crc32cInputStream(content);
+      HashingInputStream in = new HashingInputStream(crc);
       _partInputStreams.put(_partNumber, in);
+      _partRanges.put(_partNumber, new long[]{_start, _end - _start + 1});
+      _partCrcs.put(_partNumber, crc);
+      _restoredMd5s.remove(_partNumber);
+      _restoredCrcs.remove(_partNumber);
       return in;
     }
   }
@@ -182,18 +398,26 @@ class S3Download
         Map<String, String> meta = getMetadata();
         if(!meta.containsKey("s3tool-version"))
         {
+          if(validateWithManifest(remoteEtag))
+          {
+            return S3Download.this;
+          }
           System.err.println(
             "Warning: Skipped checksum " + "validation for " + fn + ". It was uploaded using " +
               "other tool's multipart protocol.");
           return S3Download.this;
         }
 
-        int expectedPartsNum = _fileLength == 0 ? 1
-          : (int) Math.ceil(_fileLength / (double) _chunkSize);
+        int expectedPartsNum = PartSizes.fromMetadata(meta, _fileLength, _chunkSize)
+          .getPartCount();
         int actualPartsNum = Integer.parseInt(remoteEtag.substring(33));
 
         if(expectedPartsNum != actualPartsNum)
         {
+          if(validateWithManifest(remoteEtag))
+          {
+            return S3Download.this;
+          }
           System.err.println(
             "Warning: Skipped checksum validation for " + fn + ". Actual number of parts: " +
               actualPartsNum + ", Expected number of parts: " + expectedPartsNum +
@@ -202,12 +426,12 @@ class S3Download
         }
 
         ByteArrayOutputStream os = new ByteArrayOutputStream();
-        for(Integer pNum : _partInputStreams.keySet())
+        for(Integer pNum : _partRanges.keySet())
         {
-          os.write(_partInputStreams.get(pNum).getDigest());
+          os.write(getPartMd5(pNum));
         }
 
-        localDigest = DigestUtils.md5Hex(os.toByteArray()) + "-" + _partInputStreams.size();
+        localDigest = DigestUtils.md5Hex(os.toByteArray()) + "-" + _partRanges.size();
       }
       else
       {
@@ -215,18 +439,30 @@ class S3Download
         // so its Etag should be equal to object's MD5.
         // Same should hold for objects uploaded to GCS (if "compose" operation
         // wasn't used).
-        if(_partInputStreams.size() == 1)
+        if(_partRanges.size() == 1)
         {
           // Single-part download (1 range GET).
-          localDigest = DatatypeConverter.printHexBinary(_partInputStreams.get(0).getDigest()).toLowerCase();
+          localDigest = DatatypeConverter.printHexBinary(getPartMd5(0)).toLowerCase();
         }
         else
         {
           // Multi-part download (>1 range GETs).
-          System.err.println("Warning: Skipped checksum validation for " + fn +
-            ". No efficient way to compute MD5 on multipart downloads of files with " +
-            "singlepart ETag.");
-          return S3Download.this;
+          byte[] fileDigest = getFileDigest();
+          if(fileDigest != null)
+          {
+            localDigest = DatatypeConverter.printHexBinary(fileDigest).toLowerCase();
+          }
+          else if(validateWithManifest(remoteEtag))
+          {
+            return S3Download.this;
+          }
+          else
+          {
+            System.err.println("Warning: Skipped checksum validation for " + fn +
+              ". No efficient way to compute MD5 on multipart downloads of files with " +
+              "singlepart ETag.");
+            return S3Download.this;
+          }
         }
       }
       if(remoteEtag.equals(localDigest))
@@ -240,5 +476,71 @@ class S3Download
             "Calculated MD5: " + localDigest + ", Expected MD5: " + remoteEtag);
       }
     }
+
+    private byte[] getFileDigest()
+    {
+      synchronized(S3Download.this)
+      {
+        return _fileDigest == null ? null : _fileDigest.getDigest();
+      }
+    }
+
+    /**
+     * Validates the downloaded ranges against the checksum manifest of the object, if it has one
+     * that matches {@code remoteEtag}. The CRC32C of the ranges is combined into the CRC32C of the
+     * whole object, and ranges that match a part of the object are validated on their own.
+     *
+     * @return false if there is no usable manifest
+     */
+    private boolean validateWithManifest(String remoteEtag)
+      throws BadHashException
+    {
+      ChecksumManifest manifest = S3Client.getChecksumManifest(_client, getBucketName(),
+        getObjectKey());
+      if(manifest == null || !manifest.getETag().equals(remoteEtag) ||
+        manifest.getLength() != getLength())
+      {
+        return false;
+      }
+
+      long crc = 0;
+      long position = 0;
+      for(Integer pNum : _partRanges.keySet())
+      {
+        long[] range = _partRanges.get(pNum);
+        long partCrc = getPartCrc(pNum);
+        if(range[0] != position)
+        {
+          // the ranges don't cover the object, nothing to combine
+          return false;
+        }
+
+        Long expected = manifest.getPartCrc32c(range[0], range[1]);
+        if(expected != null && expected != partCrc)
+        {
+          throw new BadHashException(
+            "Failed checksum validation for bytes " + range[0] + "-" + (range[0] + range[1] - 1) +
+              " of " + getBucketName() + "/" + getObjectKey() + ". " + "Calculated CRC32C: " +
+              ChecksumManifest.encode(partCrc) + ", Expected CRC32C: " +
+              ChecksumManifest.encode(expected));
+        }
+
+        crc = position == 0 ? partCrc : Crc32c.combine(crc, partCrc, range[1]);
+        position += range[1];
+      }
+
+      if(position != manifest.getLength())
+      {
+        return false;
+      }
+      if(crc != manifest.getCrc32c())
+      {
+        throw new BadHashException(
+          "Failed checksum validation for " + getBucketName() + "/" + getObjectKey() + ". " +
+            "Calculated CRC32C: " + ChecksumManifest.encode(crc) + ", Expected CRC32C: " +
+            ChecksumManifest.encode(manifest.getCrc32c()));
+      }
+      return true;
+    }
   }
 }
@@ -37,4 +37,12 @@ class S3DownloadCommand
       getS3Client(), _client.getApiExecutor(), _client.getInternalExecutor());
     return factory.startDownload();
   }
+
+  @Override
+  protected ListenableFuture<Download> initiateSingleGetDownload(long maxLength)
+  {
+    S3DownloadFactory factory = new S3DownloadFactory(_options, fileLength, chunkSize,
+      getS3Client(), _client.getApiExecutor(), _client.getInternalExecutor());
+    return factory.startSingleGetDownload(maxLength);
+  }
 }
@@ -18,10 +18,15 @@ package com.logicblox.cloudstore;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 
+import java.io.IOException;
 import java.util.concurrent.Callable;
 
 class S3DownloadFactory
@@ -52,6 +57,53 @@ class S3DownloadFactory
     return _apiExecutor.submit(new StartCallable());
   }
 
+  /**
+   * Starts the download of an object expected to be small with a single GET of the whole object,
+   * which returns its user metadata as well as its content. The content is kept in memory and the
+   * parts of the download are read from it, so no further requests are needed. If the object
+   * turns out to be larger than {@code maxLength}, the GET is aborted and only its metadata is
+   * used.
+   */
+  ListenableFuture<Download> startSingleGetDownload(final long maxLength)
+  {
+    return _apiExecutor.submit(new Callable<Download>()
+    {
+      public Download call()
+        throws IOException
+      {
+        GetObjectRequest req = new GetObjectRequest(_options.getBucketName(),
+          _options.getObjectKey(), _options.getVersion().orElse(null));
+        S3Object object = _client.getObject(req);
+        ObjectMetadata metadata = object.getObjectMetadata();
+        S3ObjectInputStream in = object.getObjectContent();
+        byte[] content = null;
+        try
+        {
+          if(metadata.getContentLength() <= maxLength)
+          {
+            content = ByteStreams.toByteArray(in);
+            if(content.length != metadata.getContentLength())
+            {
+              throw new IOException("unexpected EOF, " + content.length + " bytes instead of " +
+                metadata.getContentLength());
+            }
+          }
+          else
+          {
+            // changed since it was listed, download it in parts instead
+            in.abort();
+          }
+        }
+        finally
+        {
+          in.close();
+        }
+        return new S3Download(_options, _fileLength, _chunkSize, _client, _apiExecutor,
+          _internalExecutor, metadata, content);
+      }
+    });
+  }
+
   private class StartCallable
     implements Callable<Download>
   {
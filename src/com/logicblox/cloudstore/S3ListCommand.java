@@ -19,85 +19,58 @@ package com.logicblox.cloudstore;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.google.common.util.concurrent.ListenableFuture;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Callable;
 
 class S3ListCommand
-  extends Command
+  extends PagedListCommand
 {
-
-  private ListOptions _options;
+  // last page fetched, null before the first one
+  private ObjectListing _current = null;
 
   public S3ListCommand(ListOptions options)
   {
     super(options);
-    _options = options;
   }
 
-  public ListenableFuture<List<StoreFile>> run()
+  protected boolean hasMorePages()
   {
-    ListenableFuture<List<StoreFile>> future = executeWithRetry(_client.getInternalExecutor(),
-      new Callable<ListenableFuture<List<StoreFile>>>()
-      {
-        public ListenableFuture<List<StoreFile>> call()
-        {
-          return runActual();
-        }
-
-        public String toString()
-        {
-          return "listing objects and directories for " +
-            getUri(_options.getBucketName(), _options.getObjectKey().orElse(""));
-        }
-      });
-
-    return future;
+    return _current == null || _current.isTruncated();
   }
 
-  private ListenableFuture<List<StoreFile>> runActual()
+  protected List<StoreFile> fetchPage()
   {
-    return _client.getApiExecutor().submit(new Callable<List<StoreFile>>()
+    ObjectListing listing;
+    if(_current == null)
     {
-
-      public List<StoreFile> call()
+      ListObjectsRequest req = new ListObjectsRequest().withBucketName(_options.getBucketName())
+        .withPrefix(getPrefix())
+        .withMarker(getStartAfter());
+      if(!isRecursive())
       {
-        ListObjectsRequest req = new ListObjectsRequest().withBucketName(_options.getBucketName())
-          .withPrefix(_options.getObjectKey().orElse(null));
-        if(!_options.isRecursive())
-        {
-          req.setDelimiter("/");
-        }
-
-        List<StoreFile> all = new ArrayList<StoreFile>();
-        ObjectListing current = getS3Client().listObjects(req);
-        appendS3ObjectSummaryList(all, current.getObjectSummaries());
-        if(!_options.dirsExcluded())
-        {
-          appendS3DirStringList(all, current.getCommonPrefixes(), _options.getBucketName());
-        }
-        current = getS3Client().listNextBatchOfObjects(current);
-
-        while(current.isTruncated())
-        {
-          appendS3ObjectSummaryList(all, current.getObjectSummaries());
-          if(!_options.dirsExcluded())
-          {
-            appendS3DirStringList(all, current.getCommonPrefixes(), _options.getBucketName());
-          }
-          current = getS3Client().listNextBatchOfObjects(current);
-        }
-        appendS3ObjectSummaryList(all, current.getObjectSummaries());
-        if(!_options.dirsExcluded())
-        {
-          appendS3DirStringList(all, current.getCommonPrefixes(), _options.getBucketName());
-        }
-
-        return all;
+        req.setDelimiter("/");
       }
-    });
+      if(getPageSize() != null)
+      {
+        req.setMaxKeys(getPageSize());
+      }
+      listing = getS3Client().listObjects(req);
+    }
+    else
+    {
+      listing = getS3Client().listNextBatchOfObjects(_current);
+    }
+
+    List<StoreFile> page = new ArrayList<StoreFile>();
+    appendS3ObjectSummaryList(page, listing.getObjectSummaries());
+    if(dirsIncluded())
+    {
+      appendS3DirStringList(page, listing.getCommonPrefixes(), _options.getBucketName());
+    }
+    setCommonPrefixes(listing.getCommonPrefixes());
+    _current = listing;
+    return page;
   }
 
   private List<StoreFile> appendS3ObjectSummaryList(
@@ -105,7 +78,10 @@ class S3ListCommand
   {
     for(S3ObjectSummary o : appendList)
     {
-      all.add(S3ObjectSummaryToStoreFile(o));
+      if(!ChecksumManifest.isManifestKey(o.getKey()))
+      {
+        all.add(S3ObjectSummaryToStoreFile(o));
+      }
     }
 
     return all;
@@ -20,88 +20,58 @@ import com.amazonaws.services.s3.internal.Constants;
 import com.amazonaws.services.s3.model.ListVersionsRequest;
 import com.amazonaws.services.s3.model.S3VersionSummary;
 import com.amazonaws.services.s3.model.VersionListing;
-import com.google.common.util.concurrent.ListenableFuture;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Callable;
 
 class S3ListVersionsCommand
-  extends Command
+  extends PagedListCommand
 {
-
-  private ListOptions _options;
+  // last page fetched, null before the first one
+  private VersionListing _current = null;
 
   public S3ListVersionsCommand(ListOptions options)
   {
     super(options);
-    _options = options;
   }
 
-  public ListenableFuture<List<StoreFile>> run()
+  protected boolean hasMorePages()
   {
-    ListenableFuture<List<StoreFile>> future = executeWithRetry(_client.getInternalExecutor(),
-      new Callable<ListenableFuture<List<StoreFile>>>()
-      {
-
-
-        public ListenableFuture<List<StoreFile>> call()
-        {
-          return runActual();
-        }
-
-        public String toString()
-        {
-          return "listing objects and directories for " +
-            getUri(_options.getBucketName(), _options.getObjectKey().orElse(""));
-        }
-      });
-
-    return future;
+    return _current == null || _current.isTruncated();
   }
 
-  private ListenableFuture<List<StoreFile>> runActual()
+  protected List<StoreFile> fetchPage()
   {
-    return _client.getApiExecutor().submit(new Callable<List<StoreFile>>()
+    VersionListing listing;
+    if(_current == null)
     {
-
-
-      public List<StoreFile> call()
+      ListVersionsRequest req = new ListVersionsRequest().withBucketName(_options.getBucketName())
+        .withPrefix(getPrefix())
+        .withKeyMarker(getStartAfter());
+      if(!isRecursive())
+      {
+        req.setDelimiter("/");
+      }
+      if(getPageSize() != null)
       {
-        ListVersionsRequest req = new ListVersionsRequest().withBucketName(_options.getBucketName())
-          .withPrefix(_options.getObjectKey().orElse(null));
-        if(!_options.isRecursive())
-        {
-          req.setDelimiter("/");
-        }
-
-        List<StoreFile> all = new ArrayList<StoreFile>();
-        VersionListing current = getS3Client().listVersions(req);
-        appendVersionSummaryList(all, current.getVersionSummaries());
-        if(!_options.dirsExcluded())
-        {
-          appendVersionsDirStringList(all, current.getCommonPrefixes(), _options.getBucketName());
-        }
-        current = getS3Client().listNextBatchOfVersions(current);
-
-        while(current.isTruncated())
-        {
-          appendVersionSummaryList(all, current.getVersionSummaries());
-          if(!_options.dirsExcluded())
-          {
-            appendVersionsDirStringList(all, current.getCommonPrefixes(), _options.getBucketName());
-          }
-          current = getS3Client().listNextBatchOfVersions(current);
-        }
-        appendVersionSummaryList(all, current.getVersionSummaries());
-        if(!_options.dirsExcluded())
-        {
-          appendVersionsDirStringList(all, current.getCommonPrefixes(), _options.getBucketName());
-        }
-
-        return all;
+        req.setMaxResults(getPageSize());
       }
-    });
+      listing = getS3Client().listVersions(req);
+    }
+    else
+    {
+      listing = getS3Client().listNextBatchOfVersions(_current);
+    }
+
+    List<StoreFile> page = new ArrayList<StoreFile>();
+    appendVersionSummaryList(page, listing.getVersionSummaries());
+    if(dirsIncluded())
+    {
+      appendVersionsDirStringList(page, listing.getCommonPrefixes(), _options.getBucketName());
+    }
+    setCommonPrefixes(listing.getCommonPrefixes());
+    _current = listing;
+    return page;
   }
 
   private List<StoreFile> appendVersionSummaryList(
@@ -109,7 +79,10 @@ class S3ListVersionsCommand
   {
     for(S3VersionSummary o : appendList)
     {
-      all.add(versionSummaryToStoreFile(o));
+      if(!ChecksumManifest.isManifestKey(o.getKey()))
+      {
+        all.add(versionSummaryToStoreFile(o));
+      }
     }
 
     return all;
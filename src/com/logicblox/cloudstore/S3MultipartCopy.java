@@ -16,8 +16,11 @@
 
 package com.logicblox.cloudstore;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.event.ProgressListener;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
 import com.amazonaws.services.s3.model.CopyPartRequest;
@@ -31,6 +34,7 @@ import org.apache.commons.codec.digest.DigestUtils;
 import javax.xml.bind.DatatypeConverter;
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
@@ -46,16 +50,25 @@ class S3MultipartCopy
   private String _uploadId;
   private ObjectMetadata _meta;
   private ListeningExecutorService _executor;
+  private List<long[]> _ranges;
+  private ChecksumManifest _manifest;
+  private CannedAccessControlList _cannedAcl;
+  private AccessControlList _objectAcl;
 
   public S3MultipartCopy(
     CopyOptions options, AmazonS3 client, ListeningExecutorService executor, String uploadId,
-    ObjectMetadata meta)
+    ObjectMetadata meta, List<long[]> ranges, ChecksumManifest manifest,
+    CannedAccessControlList cannedAcl, AccessControlList objectAcl)
   {
     _client = client;
     _executor = executor;
     _options = options;
     _uploadId = uploadId;
     _meta = meta;
+    _ranges = ranges;
+    _manifest = manifest;
+    _cannedAcl = cannedAcl;
+    _objectAcl = objectAcl;
   }
 
   public ListenableFuture<Void> copyPart(
@@ -69,6 +82,11 @@ class S3MultipartCopy
     return _executor.submit(new CompleteCallable());
   }
 
+  public List<long[]> getPartRanges()
+  {
+    return _ranges;
+  }
+
   public String getSourceBucketName()
   {
     return _options.getSourceBucketName();
@@ -122,6 +140,7 @@ class S3MultipartCopy
 
       if(res.getETag().equals(multipartDigest))
       {
+        copyChecksumManifest(res.getETag());
         return res.getETag();
       }
       else
@@ -134,6 +153,27 @@ class S3MultipartCopy
     }
   }
 
+  /**
+   * The copy has the same bytes as the source, so the checksum manifest of the source describes
+   * the copy too, whatever its parts are. Best effort, downloads without a manifest fall back to
+   * the ETag.
+   */
+  private void copyChecksumManifest(String etag)
+  {
+    if(_manifest == null)
+    {
+      return;
+    }
+    try
+    {
+      S3Client.putChecksumManifest(_client, getDestinationBucketName(), getDestinationObjectKey(),
+        _manifest.withETag(etag), _cannedAcl, _objectAcl);
+    }
+    catch(AmazonClientException ignored)
+    {
+    }
+  }
+
   private class CopyCallable
     implements Callable<Void>
   {
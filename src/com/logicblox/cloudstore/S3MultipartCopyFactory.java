@@ -20,16 +20,45 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.Headers;
 import com.amazonaws.services.s3.model.AccessControlList;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
+/**
+ * Starts S3 copies. Objects of up to 5GB are copied with a single CopyObject request (see {@link
+ * S3SingleRequestCopy}) if the copy can still be validated: if the source has a plain MD5 ETag,
+ * or a checksum manifest. Other objects are copied with a multipart copy, which keeps the parts of
+ * the source unless it has a checksum manifest. Copies onto the source itself keep its parts in
+ * any case, so that updating the metadata of an object doesn't change its ETag.
+ * <p>
+ * A multipart copy keeps the parts of the source, so that downloads can validate the multipart
+ * ETag of the copy against the part layout in its metadata. If the source has a checksum manifest
+ * (see {@link ChecksumManifest}), downloads can validate any layout of ranges against the manifest
+ * instead, so the copy is re-planned in parts of up to 5GB. Parts of unencrypted objects are cut
+ * at any offset, parts of encrypted objects consist of whole chunks of ciphertext.
+ */
 class S3MultipartCopyFactory
 {
+  // S3 limit for the size of objects copied with a single request, and of copied parts
+  static final long MAX_SINGLE_REQUEST_SIZE = 5L * 1024 * 1024 * 1024;
+
+  // re-planned copies are split in this many parts, until the parts reach the maximum size
+  static final int PART_COUNT = 16;
+
+  // granularity of re-planned part sizes
+  private static final long PART_SIZE_UNIT = 1024 * 1024;
+
   final private CopyOptions _options;
   final private AmazonS3 _client;
   final private ListeningExecutorService _executor;
@@ -53,17 +82,42 @@ class S3MultipartCopyFactory
 
   ListenableFuture<Copy> startCopy()
   {
-    return _executor.submit(new StartCallable());
+    return startCopy(null);
+  }
+
+  /**
+   * @param sourceMetadata metadata of the source object that has just been fetched, or null to
+   * fetch it
+   */
+  ListenableFuture<Copy> startCopy(ObjectMetadata sourceMetadata)
+  {
+    return _executor.submit(new StartCallable(sourceMetadata));
   }
 
   private class StartCallable
     implements Callable<Copy>
   {
+    private final ObjectMetadata _sourceMetadata;
+
+    StartCallable(ObjectMetadata sourceMetadata)
+    {
+      _sourceMetadata = sourceMetadata;
+    }
+
     public Copy call()
       throws Exception
     {
-      ObjectMetadata metadata = _client.getObjectMetadata(_options.getSourceBucketName(),
-        _options.getSourceObjectKey());
+      ObjectMetadata metadata;
+      if(_sourceMetadata != null)
+      {
+        // modified below, and a retried copy starts over
+        metadata = _sourceMetadata.clone();
+      }
+      else
+      {
+        metadata = _client.getObjectMetadata(_options.getSourceBucketName(),
+          _options.getSourceObjectKey());
+      }
 
       _options.getUserMetadata().ifPresent(metadata::setUserMetadata);
 
@@ -71,26 +125,25 @@ class S3MultipartCopyFactory
       {
         long chunkSize = Utils.getDefaultChunkSize(metadata.getContentLength());
 
-        metadata.addUserMetadata("s3tool-version", String.valueOf(Version.CURRENT));
+        metadata.addUserMetadata("s3tool-version", String.valueOf(Version.UNIFORM_PARTS));
         metadata.addUserMetadata("s3tool-chunk-size", Long.toString(chunkSize));
         metadata.addUserMetadata("s3tool-file-length", Long.toString(metadata.getContentLength()));
       }
       // It seems setting the STORAGE_CLASS metadata header is sufficient
       _options.getStorageClass().ifPresent(sc -> metadata.setHeader(Headers.STORAGE_CLASS, sc));
 
-      InitiateMultipartUploadRequest req = new InitiateMultipartUploadRequest(
-        _options.getDestinationBucketName(), _options.getDestinationObjectKey(), metadata);
+      CannedAccessControlList cannedAcl = null;
+      AccessControlList objectAcl = null;
       if(_options.getCannedAcl().isPresent())
       {
-        req.setCannedACL(S3Client.getCannedAcl(_options.getCannedAcl().get()));
+        cannedAcl = S3Client.getCannedAcl(_options.getCannedAcl().get());
       }
       else
       {
         try
         {
-          final AccessControlList objectAcl = S3Client.getObjectAcl(_client,
-            _options.getSourceBucketName(), _options.getSourceObjectKey());
-          req.setAccessControlList(objectAcl);
+          objectAcl = S3Client.getObjectAcl(_client, _options.getSourceBucketName(),
+            _options.getSourceObjectKey());
         }
         catch(AmazonS3Exception ex)
         {
@@ -100,9 +153,131 @@ class S3MultipartCopyFactory
           }
         }
       }
+
+      // a multipart ETag can only be validated against the parts it was computed from
+      boolean multipartEtag = metadata.getETag().contains("-");
+      ChecksumManifest manifest = null;
+      if(multipartEtag)
+      {
+        manifest = S3Client.getChecksumManifest(_client, _options.getSourceBucketName(),
+          _options.getSourceObjectKey());
+        if(manifest != null && !manifest.getETag().equals(metadata.getETag()))
+        {
+          // left behind by an older version of the object
+          manifest = null;
+        }
+      }
+
+      // A single request turns a multipart ETag into the MD5 of the object, which downloads can't
+      // relate to the part layout of the object. Without a manifest to validate against instead,
+      // the parts are kept. Copies onto the source itself, which only update its metadata, keep
+      // the parts and thus the ETag as well.
+      boolean inPlace = _options.getSourceBucketName().equals(_options.getDestinationBucketName())
+        && _options.getSourceObjectKey().equals(_options.getDestinationObjectKey());
+      boolean keepParts = multipartEtag && (manifest == null || inPlace);
+      if(metadata.getContentLength() <= MAX_SINGLE_REQUEST_SIZE && !keepParts)
+      {
+        return new S3SingleRequestCopy(_options, _client, _executor, metadata, cannedAcl,
+          objectAcl, manifest);
+      }
+
+      List<long[]> ranges = planParts(metadata, manifest != null && !inPlace);
+
+      InitiateMultipartUploadRequest req = new InitiateMultipartUploadRequest(
+        _options.getDestinationBucketName(), _options.getDestinationObjectKey(), metadata);
+      if(cannedAcl != null)
+      {
+        req.setCannedACL(cannedAcl);
+      }
+      else if(objectAcl != null)
+      {
+        req.setAccessControlList(objectAcl);
+      }
       // req.setStorageClass(StorageClass.fromValue(storageClass));
       InitiateMultipartUploadResult res = _client.initiateMultipartUpload(req);
-      return new S3MultipartCopy(_options, _client, _executor, res.getUploadId(), metadata);
+      return new S3MultipartCopy(_options, _client, _executor, res.getUploadId(), metadata,
+        ranges, manifest, cannedAcl, objectAcl);
+    }
+
+  }
+
+  /**
+   * @param replan true if the parts of the source don't have to be kept
+   * @return the byte ranges of the stored source object to copy as parts
+   */
+  static List<long[]> planParts(ObjectMetadata metadata, boolean replan)
+  {
+    return planParts(metadata.getUserMetadata(), metadata.getContentLength(), replan);
+  }
+
+  /**
+   * @param meta user metadata of the source object
+   * @param storedLength length of the stored (possibly encrypted) source object
+   * @param replan true if the parts of the source don't have to be kept
+   * @return the byte ranges of the stored source object to copy as parts
+   */
+  static List<long[]> planParts(Map<String, String> meta, long storedLength, boolean replan)
+  {
+    String fileLength = meta.get("s3tool-file-length");
+    String chunkSize = meta.get("s3tool-chunk-size");
+    boolean encrypted = meta.get("s3tool-key-name") != null;
+
+    long partSize = (storedLength + PART_COUNT - 1) / PART_COUNT;
+    partSize = (partSize + PART_SIZE_UNIT - 1) / PART_SIZE_UNIT * PART_SIZE_UNIT;
+    partSize = Math.min(partSize, MAX_SINGLE_REQUEST_SIZE);
+
+    List<long[]> ranges = new ArrayList<>();
+    // without a layout there is nothing to keep, the copy is rejected anyway
+    if(fileLength == null || chunkSize == null || (replan && !encrypted))
+    {
+      for(long offset = 0; offset < storedLength; offset += partSize)
+      {
+        ranges.add(new long[]{offset, Math.min(partSize, storedLength - offset)});
+      }
+      return ranges;
+    }
+
+    PartSizes layout = PartSizes.fromMetadata(meta, Long.parseLong(fileLength),
+      Long.parseLong(chunkSize));
+    long blockSize = encrypted ? getBlockSize() : 0;
+    for(int partNumber = 0; partNumber < layout.getPartCount(); partNumber++)
+    {
+      long offset;
+      long length;
+      if(encrypted)
+      {
+        offset = layout.getEncryptedPartOffset(partNumber, blockSize);
+        length = PartSizes.getEncryptedPartSize(layout.getPartSize(partNumber), blockSize);
+      }
+      else
+      {
+        offset = layout.getPartOffset(partNumber);
+        length = layout.getPartSize(partNumber);
+      }
+
+      long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+      if(replan && last != null && last[1] + length <= partSize)
+      {
+        // parts of encrypted objects consist of whole chunks of ciphertext
+        last[1] += length;
+      }
+      else
+      {
+        ranges.add(new long[]{offset, length});
+      }
+    }
+    return ranges;
+  }
+
+  private static long getBlockSize()
+  {
+    try
+    {
+      return Cipher.getInstance("AES/CBC/PKCS5Padding").getBlockSize();
+    }
+    catch(NoSuchAlgorithmException | NoSuchPaddingException e)
+    {
+      throw new RuntimeException(e);
     }
   }
 }
@@ -16,12 +16,21 @@
 
 package com.logicblox.cloudstore;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.event.ProgressListener;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.amazonaws.services.s3.model.UploadPartResult;
 import com.google.common.primitives.Ints;
@@ -35,16 +44,38 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
 
+/**
+ * S3 multipart {@link Upload}.
+ * <p>
+ * A multipart upload can also be started before its metadata is final (see {@link
+ * S3MultipartUploadFactory#startDeferredUpload()}), since S3 only accepts metadata when a
+ * multipart upload is initiated. Parts uploaded before {@link #finalizeMetadata} are stored as
+ * temporary objects, which are copied into the multipart upload once it has been initiated and
+ * deleted right after. Temporary objects of a process that died before that are removed by
+ * aborting the pending uploads of the object by date.
+ */
 class S3MultipartUpload
   implements Upload
 {
+  private static final String TEMP_OBJECT_PREFIX = "_";
+  private static final String TEMP_OBJECT_INFIX = ".cs.part.";
+  private static final Pattern TEMP_OBJECT_KEY = Pattern.compile(
+    TEMP_OBJECT_PREFIX + ".*" + Pattern.quote(TEMP_OBJECT_INFIX) + "[0-9]+");
+
   private ConcurrentMap<Integer, PartETag> _etags = new ConcurrentSkipListMap<>();
+  private ConcurrentMap<Integer, String> _tempObjects = new ConcurrentSkipListMap<>();
+  private ConcurrentMap<Integer, String> _tempObjectEtags = new ConcurrentSkipListMap<>();
+  // stored length and CRC32C of each part, for the checksum manifest
+  private ConcurrentMap<Integer, long[]> _crcs = new ConcurrentSkipListMap<>();
   private AmazonS3 _client;
-  private String _uploadId;
+  private volatile String _uploadId;
   private Date _initiated;
   private ListeningExecutorService _executor;
   private UploadOptions _options;
@@ -67,6 +98,26 @@ class S3MultipartUpload
     return _executor.submit(new UploadCallable(partNumber, partSize, stream, progressListener));
   }
 
+  public String getPartChecksum(int partNumber)
+  {
+    PartETag etag = _etags.get(partNumber);
+    return etag == null ? null : etag.getETag();
+  }
+
+  /**
+   * Marks a part that was uploaded by an earlier, interrupted run as done, see {@link
+   * S3MultipartUploadFactory#resumeUpload}.
+   */
+  void addUploadedPart(int partNumber, String etag)
+  {
+    _etags.put(partNumber, new PartETag(partNumber + 1, etag));
+  }
+
+  public ListenableFuture<Void> finalizeMetadata(Map<String, String> metadata)
+  {
+    return _executor.submit(new InitiateCallable(metadata));
+  }
+
   public ListenableFuture<String> completeUpload()
   {
     return _executor.submit(new CompleteCallable());
@@ -97,12 +148,100 @@ class S3MultipartUpload
     return _initiated;
   }
 
+  private String getTempObjectKey(int partNumber)
+  {
+    return TEMP_OBJECT_PREFIX + getObjectKey() + TEMP_OBJECT_INFIX + partNumber;
+  }
+
+  static boolean isTempObjectKey(String key)
+  {
+    return TEMP_OBJECT_KEY.matcher(key).matches();
+  }
+
+  private void deleteTempObjects()
+  {
+    for(Map.Entry<Integer, String> e : _tempObjects.entrySet())
+    {
+      try
+      {
+        _client.deleteObject(getBucketName(), e.getValue());
+        _tempObjects.remove(e.getKey());
+      }
+      catch(AmazonClientException ignored)
+      {
+        // best effort, just like deleting temporary objects on GCS
+      }
+    }
+  }
+
+  /**
+   * Deletes the temporary objects of deferred uploads of keys starting with {@code prefix} that
+   * were last modified before {@code date}. These are left behind by processes that died before
+   * their upload was initiated, see {@link S3AbortPendingUploadsCommand}.
+   */
+  static void deleteStaleTempObjects(AmazonS3 client, String bucket, String prefix, Date date)
+  {
+    ObjectListing listing = client.listObjects(bucket, TEMP_OBJECT_PREFIX + prefix);
+    while(true)
+    {
+      for(S3ObjectSummary obj : listing.getObjectSummaries())
+      {
+        if(isTempObjectKey(obj.getKey()) && obj.getLastModified().before(date))
+        {
+          client.deleteObject(bucket, obj.getKey());
+        }
+      }
+      if(!listing.isTruncated())
+      {
+        break;
+      }
+      listing = client.listNextBatchOfObjects(listing);
+    }
+  }
+
+  /**
+   * Stores the CRC32C of the parts, so that downloads in any layout of ranges can be validated.
+   * Parts resumed from an earlier run have no CRC32C, in which case downloads fall back to the
+   * ETag. Best effort, a missing manifest just means less validation.
+   */
+  private void putChecksumManifest(String etag)
+  {
+    if(!_crcs.keySet().equals(_etags.keySet()))
+    {
+      return;
+    }
+
+    List<Long> lengths = new ArrayList<>();
+    List<Long> crcs = new ArrayList<>();
+    for(long[] part : _crcs.values())
+    {
+      lengths.add(part[0]);
+      crcs.add(part[1]);
+    }
+
+    try
+    {
+      S3Client.putChecksumManifest(_client, getBucketName(), getObjectKey(),
+        ChecksumManifest.of(etag, lengths, crcs), S3Client.getCannedAcl(_options.getCannedAcl()),
+        null);
+    }
+    catch(AmazonClientException ignored)
+    {
+    }
+  }
+
   private class AbortCallable
     implements Callable<Void>
   {
     public Void call()
       throws Exception
     {
+      deleteTempObjects();
+      if(_uploadId == null)
+      {
+        return null;
+      }
+
       AbortMultipartUploadRequest req = new AbortMultipartUploadRequest(getBucketName(),
         getObjectKey(), _uploadId);
       _client.abortMultipartUpload(req);
@@ -110,6 +249,63 @@ class S3MultipartUpload
     }
   }
 
+  /**
+   * Initiates a deferred multipart upload and copies the parts uploaded so far into it. Parts that
+   * have been copied already are skipped, so that this can be retried.
+   */
+  private class InitiateCallable
+    implements Callable<Void>
+  {
+    private Map<String, String> _meta;
+
+    public InitiateCallable(Map<String, String> meta)
+    {
+      _meta = meta;
+    }
+
+    public Void call()
+      throws Exception
+    {
+      if(_uploadId == null)
+      {
+        InitiateMultipartUploadResult res = _client.initiateMultipartUpload(
+          S3MultipartUploadFactory.createInitiateRequest(_options, _meta));
+        _uploadId = res.getUploadId();
+      }
+
+      for(Map.Entry<Integer, String> e : _tempObjects.entrySet())
+      {
+        int partNumber = e.getKey();
+        if(_etags.containsKey(partNumber))
+        {
+          continue;
+        }
+
+        CopyPartRequest req = new CopyPartRequest().withSourceBucketName(getBucketName())
+          .withSourceKey(e.getValue())
+          .withDestinationBucketName(getBucketName())
+          .withDestinationKey(getObjectKey())
+          .withUploadId(_uploadId)
+          .withPartNumber(partNumber + 1);
+        CopyPartResult res = _client.copyPart(req);
+
+        String expected = _tempObjectEtags.get(partNumber);
+        if(!res.getETag().equals(expected))
+        {
+          throw new BadHashException(
+            "Failed checksum validation for part " + (partNumber + 1) + " of " +
+              getBucketName() + "/" + getObjectKey() + ". " + "Calculated MD5: " + expected +
+              ", Expected MD5: " + res.getETag());
+        }
+        _etags.put(partNumber, res.getPartETag());
+      }
+
+      // from now on, the pending multipart upload keeps the parts
+      deleteTempObjects();
+      return null;
+    }
+  }
+
   private class CompleteCallable
     implements Callable<String>
   {
@@ -133,6 +329,8 @@ class S3MultipartUpload
 
       if(res.getETag().equals(multipartDigest))
       {
+        deleteTempObjects();
+        putChecksumManifest(res.getETag());
         return res.getETag();
       }
       else
@@ -165,9 +363,12 @@ class S3MultipartUpload
     public Void call()
       throws Exception
     {
-      try(HashingInputStream stream = new HashingInputStream(_streamCallable.call()))
+      Crc32cInputStream crc = new Crc32cInputStream(_streamCallable.call());
+      try(HashingInputStream stream = new HashingInputStream(crc))
       {
-        return upload(stream);
+        upload(stream);
+        _crcs.put(_partNumber, new long[]{_partSize, crc.getValue()});
+        return null;
       }
     }
 
@@ -178,6 +379,11 @@ class S3MultipartUpload
       // added to support retry testing
       _options.injectAbort(_uploadId);
 
+      if(_uploadId == null)
+      {
+        return uploadTempObject(stream);
+      }
+
       UploadPartRequest req = new UploadPartRequest();
       req.setBucketName(getBucketName());
       req.setInputStream(stream);
@@ -190,14 +396,17 @@ class S3MultipartUpload
       // https://github.com/aws/aws-sdk-java/issues/427#issuecomment-100518891
       // and
       // https://github.com/aws/aws-sdk-java/issues/427#issuecomment-100583279,
-      // since we don't use a File or FileInputStream directly (stream here is
-      // either CipherWithInlineIVInputStream -if we encrypt- or
-      // BufferedInputStream) we should set the "read limit" (which is the
-      // maximum buffer size that could be consumed) as suggested in the
-      // relevant error message. That limit should be the
+      // if the stream doesn't support mark/reset itself (e.g. it's a
+      // CipherWithInlineIVInputStream because we encrypt) we should set the
+      // "read limit" (which is the maximum buffer size that could be consumed)
+      // as suggested in the relevant error message. That limit should be the
       // expected max size of our input stream in bytes, plus 1, hence
-      // _partSize+1.
-      req.getRequestClientOptions().setReadLimit(Ints.checkedCast(_partSize + 1));
+      // _partSize+1. Unencrypted parts are read from a FileRegionInputStream
+      // which rewinds by seeking, so nothing has to be buffered for them.
+      if(!stream.markSupported())
+      {
+        req.getRequestClientOptions().setReadLimit(Ints.checkedCast(_partSize + 1));
+      }
 
       if(_progressListener != null)
       {
@@ -223,5 +432,48 @@ class S3MultipartUpload
             res.getETag());
       }
     }
+
+    /**
+     * The multipart upload hasn't been initiated yet, so store the part in a temporary object
+     */
+    private Void uploadTempObject(HashingInputStream stream)
+      throws BadHashException
+    {
+      String key = getTempObjectKey(_partNumber);
+      _tempObjects.put(_partNumber, key);
+
+      ObjectMetadata metadata = new ObjectMetadata();
+      metadata.setContentLength(_partSize);
+      PutObjectRequest req = new PutObjectRequest(getBucketName(), key, stream, metadata);
+
+      // See above
+      if(!stream.markSupported())
+      {
+        req.getRequestClientOptions().setReadLimit(Ints.checkedCast(_partSize + 1));
+      }
+
+      if(_progressListener != null)
+      {
+        PartProgressEvent ppe = new PartProgressEvent(Integer.toString(_partNumber));
+        ProgressListener s3pl = new S3ProgressListener(_progressListener, ppe);
+        req.setGeneralProgressListener(s3pl);
+      }
+
+      PutObjectResult res = _client.putObject(req);
+      byte[] etag = DatatypeConverter.parseHexBinary(res.getETag());
+      if(Arrays.equals(etag, stream.getDigest()))
+      {
+        _tempObjectEtags.put(_partNumber, res.getETag());
+        return null;
+      }
+      else
+      {
+        String calculatedMD5 = DatatypeConverter.printHexBinary(stream.getDigest()).toLowerCase();
+        throw new BadHashException(
+          "Failed checksum validation for part " + (_partNumber + 1) + " of " + getBucketName() +
+            "/" + getObjectKey() + ". " + "Calculated MD5: " + calculatedMD5 + ", Expected MD5: " +
+            res.getETag());
+      }
+    }
   }
 }
@@ -19,7 +19,11 @@ package com.logicblox.cloudstore;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListPartsRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 
@@ -57,18 +61,73 @@ class S3MultipartUploadFactory
     return _executor.submit(new StartCallable());
   }
 
+  /**
+   * Starts an upload whose metadata is not final yet. The multipart upload is only initiated by
+   * {@link S3MultipartUpload#finalizeMetadata}, parts uploaded before are kept in temporary
+   * objects.
+   */
+  ListenableFuture<Upload> startDeferredUpload()
+  {
+    return Futures.<Upload>immediateFuture(
+      new S3MultipartUpload(_options, _client, _executor, null, new Date()));
+  }
+
+  /**
+   * Reattaches to the pending multipart upload {@code uploadId} left by an earlier, interrupted
+   * run. Only the parts that the service lists with the journaled ETag are kept, the others are
+   * uploaded again.
+   *
+   * @param parts ETags of the journaled parts, by part number
+   */
+  ListenableFuture<Upload> resumeUpload(
+    final String uploadId, final Date initiated, final Map<Integer, String> parts)
+  {
+    return _executor.submit(new Callable<Upload>()
+    {
+      public Upload call()
+      {
+        S3MultipartUpload upload = new S3MultipartUpload(_options, _client, _executor, uploadId,
+          initiated);
+        ListPartsRequest req = new ListPartsRequest(_options.getBucketName(),
+          _options.getObjectKey(), uploadId);
+        PartListing listing;
+        do
+        {
+          listing = _client.listParts(req);
+          for(PartSummary part : listing.getParts())
+          {
+            int partNumber = part.getPartNumber() - 1;
+            if(part.getETag().equals(parts.get(partNumber)))
+            {
+              upload.addUploadedPart(partNumber, part.getETag());
+            }
+          }
+          req.setPartNumberMarker(listing.getNextPartNumberMarker());
+        }
+        while(listing.isTruncated());
+        return upload;
+      }
+    });
+  }
+
+  static InitiateMultipartUploadRequest createInitiateRequest(
+    UploadOptions options, Map<String, String> meta)
+  {
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setUserMetadata(meta);
+    InitiateMultipartUploadRequest req = new InitiateMultipartUploadRequest(
+      options.getBucketName(), options.getObjectKey(), metadata);
+    req.setCannedACL(S3Client.getCannedAcl(options.getCannedAcl()));
+    return req;
+  }
+
   private class StartCallable
     implements Callable<Upload>
   {
     public Upload call()
       throws Exception
     {
-      ObjectMetadata metadata = new ObjectMetadata();
-      metadata.setUserMetadata(_meta);
-      InitiateMultipartUploadRequest req = new InitiateMultipartUploadRequest(
-        _options.getBucketName(), _options.getObjectKey(), metadata);
-      req.setCannedACL(S3Client.getCannedAcl(_options.getCannedAcl()));
-
+      InitiateMultipartUploadRequest req = createInitiateRequest(_options, _meta);
       InitiateMultipartUploadResult res = _client.initiateMultipartUpload(req);
       return new S3MultipartUpload(_options, _client, _executor, res.getUploadId(), new Date());
     }
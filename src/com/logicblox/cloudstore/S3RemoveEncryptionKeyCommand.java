@@ -18,11 +18,13 @@ package com.logicblox.cloudstore;
 
 
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.api.services.storage.model.StorageObject;
 import com.google.common.base.Joiner;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.FutureFallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -37,6 +39,9 @@ class S3RemoveEncryptionKeyCommand
   private EncryptionKeyOptions _options;
   private String _encKeyName;
   private KeyProvider _encKeyProvider;
+  private ListeningExecutorService _cryptoExecutor;
+  private boolean _skipUnchanged = false;
+  private volatile boolean _unchanged = false;
 
   public S3RemoveEncryptionKeyCommand(EncryptionKeyOptions options)
     throws IOException
@@ -45,6 +50,33 @@ class S3RemoveEncryptionKeyCommand
     _options = options;
     _encKeyProvider = _client.getKeyProvider();
     _encKeyName = _options.getEncryptionKey();
+    _cryptoExecutor = _client.getInternalExecutor();
+  }
+
+  /**
+   * Uses {@code keyProvider} instead of the key provider of the client, e.g. to share loaded keys
+   * between the objects of a recursive update.
+   */
+  void setKeyProvider(KeyProvider keyProvider)
+  {
+    _encKeyProvider = keyProvider;
+  }
+
+  /**
+   * Runs the RSA operations on {@code executor} instead of the internal executor of the client.
+   */
+  void setCryptoExecutor(ListeningExecutorService executor)
+  {
+    _cryptoExecutor = executor;
+  }
+
+  /**
+   * If {@code skipUnchanged} is true, objects that are not encrypted or don't have the key are left
+   * as they are, instead of failing.
+   */
+  void setSkipUnchanged(boolean skipUnchanged)
+  {
+    _skipUnchanged = skipUnchanged;
   }
 
   public ListenableFuture<StoreFile> run()
@@ -106,6 +138,11 @@ class S3RemoveEncryptionKeyCommand
         String obj = getUri(metadata.getBucketName(), metadata.getObjectKey());
         if(!userMetadata.containsKey("s3tool-key-name"))
         {
+          if(_skipUnchanged)
+          {
+            _unchanged = true;
+            return Futures.immediateFuture(metadata);
+          }
           throw new UsageException("Object doesn't seem to be encrypted");
         }
         if(!userMetadata.containsKey("s3tool-pubkey-hash"))
@@ -137,7 +174,11 @@ class S3RemoveEncryptionKeyCommand
           }
         };
 
-        return _client.getInternalExecutor().submit(removeEncyptionKeyCall);
+        if(_unchanged)
+        {
+          return Futures.immediateFuture(metadata);
+        }
+        return _cryptoExecutor.submit(removeEncyptionKeyCall);
       }
     };
   }
@@ -165,12 +206,18 @@ class S3RemoveEncryptionKeyCommand
       keyNames = new ArrayList<>(Arrays.asList(keyNamesStr.split(",")));
     }
 
+    int removedKeyIndex = keyNames.indexOf(_encKeyName);
+    if(removedKeyIndex == -1 && _skipUnchanged)
+    {
+      _unchanged = true;
+      return metadata;
+    }
+
     if(keyNames.size() == 1)
     {
       throw new UsageException(errPrefix + "Cannot remove the last remaining " + "key.");
     }
 
-    int removedKeyIndex = keyNames.indexOf(_encKeyName);
     if(removedKeyIndex == -1)
     {
       throw new UsageException(errPrefix + "Encryption key " + _encKeyName + " doesn't exist");
@@ -206,6 +253,13 @@ class S3RemoveEncryptionKeyCommand
       public ListenableFuture<StoreFile> apply(S3ObjectMetadata metadata)
         throws IOException
       {
+        if(_unchanged)
+        {
+          StoreFile f = new StoreFile(metadata.getBucketName(), metadata.getObjectKey());
+          f.setETag(metadata.getETag());
+          return Futures.immediateFuture(f);
+        }
+
         if(null == getGCSClient())
         {
           // It seems in AWS there is no way to update an object's metadata
@@ -221,7 +275,12 @@ class S3RemoveEncryptionKeyCommand
             .setUserMetadata(metadata.getUserMetadata())
             .createOptions();
 
-          return _client.copy(options);
+          // the metadata has just been fetched, so the copy neither checks that the object
+          // exists nor fetches its metadata again
+          S3CopyCommand cmd = new S3CopyCommand(options);
+          configure(cmd);
+          cmd.setSourceMetadata(metadata.getAllMetadata());
+          return cmd.run();
         }
         else
         {
@@ -235,9 +294,12 @@ class S3RemoveEncryptionKeyCommand
                   public StoreFile call()
                     throws IOException
                   {
-                    GCSClient.patchMetaData(getGCSClient(), metadata.getBucketName(), metadata.getObjectKey(),
+                    StorageObject obj = GCSClient.patchMetaData(getGCSClient(),
+                      metadata.getBucketName(), metadata.getObjectKey(),
                       metadata.getUserMetadata());
-                    return new StoreFile(metadata.getBucketName(), metadata.getObjectKey());
+                    StoreFile f = new StoreFile(metadata.getBucketName(), metadata.getObjectKey());
+                    f.setETag(obj.getEtag());
+                    return f;
                   }
                 });
               }
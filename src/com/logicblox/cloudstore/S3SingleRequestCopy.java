@@ -0,0 +1,191 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AccessControlList;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * S3 {@link Copy} for objects of up to 5GB. The object is copied with a single CopyObject request,
+ * whatever parts it was uploaded in.
+ * <p>
+ * The ETag of the copy is the MD5 of the object. If the source has a plain MD5 ETag as well, the
+ * copy is validated against it. Otherwise the source was uploaded in parts, and its checksum
+ * manifest is stored for the copy under the new ETag, so that downloads of the copy can still be
+ * validated. Sources uploaded in parts without a manifest are not copied with a single request
+ * (see {@link S3MultipartCopyFactory}).
+ */
+class S3SingleRequestCopy
+  implements Copy
+{
+  private AmazonS3 _client;
+  private CopyOptions _options;
+  private ObjectMetadata _meta;
+  private CannedAccessControlList _cannedAcl;
+  private AccessControlList _objectAcl;
+  private ListeningExecutorService _executor;
+  private ChecksumManifest _manifest;
+  private volatile String _etag;
+
+  /**
+   * @param manifest checksum manifest of the source, required if it was uploaded in parts
+   */
+  public S3SingleRequestCopy(
+    CopyOptions options, AmazonS3 client, ListeningExecutorService executor, ObjectMetadata meta,
+    CannedAccessControlList cannedAcl, AccessControlList objectAcl, ChecksumManifest manifest)
+  {
+    _manifest = manifest;
+    _client = client;
+    _executor = executor;
+    _options = options;
+    _meta = meta;
+    _cannedAcl = cannedAcl;
+    _objectAcl = objectAcl;
+  }
+
+  public ListenableFuture<Void> copyPart(
+    int partNumber, Long startByte, Long endByte, OverallProgressListener progressListener)
+  {
+    if(partNumber != 0)
+    {
+      throw new IllegalArgumentException(
+        "single request copies consist of part 0 only, found part " + partNumber);
+    }
+    return _executor.submit(new CopyCallable(progressListener));
+  }
+
+  /**
+   * The copy is complete as soon as its only part has been copied and validated.
+   */
+  public ListenableFuture<String> completeCopy()
+  {
+    return Futures.immediateFuture(_etag);
+  }
+
+  public List<long[]> getPartRanges()
+  {
+    return Collections.singletonList(new long[]{0, _meta.getContentLength()});
+  }
+
+  public String getSourceBucketName()
+  {
+    return _options.getSourceBucketName();
+  }
+
+  public String getSourceObjectKey()
+  {
+    return _options.getSourceObjectKey();
+  }
+
+  public String getDestinationBucketName()
+  {
+    return _options.getDestinationBucketName();
+  }
+
+  public String getDestinationObjectKey()
+  {
+    return _options.getDestinationObjectKey();
+  }
+
+  public Long getObjectSize()
+  {
+    return _meta.getContentLength();
+  }
+
+  public Map<String, String> getMeta()
+  {
+    return _meta.getUserMetadata();
+  }
+
+  private class CopyCallable
+    implements Callable<Void>
+  {
+    private OverallProgressListener _progressListener;
+
+    public CopyCallable(OverallProgressListener progressListener)
+    {
+      _progressListener = progressListener;
+    }
+
+    public Void call()
+      throws Exception
+    {
+      String sourceEtag = _meta.getETag();
+      CopyObjectRequest req = new CopyObjectRequest(getSourceBucketName(), getSourceObjectKey(),
+        getDestinationBucketName(), getDestinationObjectKey())
+        .withNewObjectMetadata(_meta)
+        // make sure we copy the object the metadata was read from
+        .withMatchingETagConstraint(sourceEtag);
+      if(_cannedAcl != null)
+      {
+        req.setCannedAccessControlList(_cannedAcl);
+      }
+      else if(_objectAcl != null)
+      {
+        req.setAccessControlList(_objectAcl);
+      }
+
+      if(_progressListener != null)
+      {
+        PartProgressEvent ppe = new PartProgressEvent(Integer.toString(0));
+        ProgressListener s3pl = new S3ProgressListener(_progressListener, ppe);
+        req.setGeneralProgressListener(s3pl);
+      }
+
+      CopyObjectResult res = _client.copyObject(req);
+      if(res == null)
+      {
+        throw new UsageException("Source object " + getSourceBucketName() + "/" +
+          getSourceObjectKey() + " changed during the copy");
+      }
+
+      if(sourceEtag.contains("-"))
+      {
+        // uploaded in parts, the MD5 of the object is not known
+        S3Client.putChecksumManifest(_client, getDestinationBucketName(),
+          getDestinationObjectKey(), _manifest.withETag(res.getETag()), _cannedAcl, _objectAcl);
+        _etag = res.getETag();
+        return null;
+      }
+      else if(sourceEtag.equals(res.getETag()))
+      {
+        _etag = res.getETag();
+        return null;
+      }
+      else
+      {
+        throw new BadHashException(
+          "Failed checksum validation for " + getDestinationBucketName() + "/" +
+            getDestinationObjectKey() + ". " + "Calculated MD5: " + res.getETag() + ", " +
+            "Expected MD5: " + sourceEtag);
+      }
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * S3 {@link Upload} for objects that fit in a single part. The only part is uploaded with a single
+ * PUT request directly to the target object, instead of initiating, uploading to and completing a
+ * multipart upload. The resulting ETag is the plain MD5 of the object, which is validated both here
+ * and by {@link S3Download} on download.
+ */
+class S3SingleRequestUpload
+  implements Upload
+{
+  private AmazonS3 _client;
+  private Map<String, String> _meta;
+  private Date _initiated;
+  private ListeningExecutorService _executor;
+  private UploadOptions _options;
+  private volatile String _etag;
+
+  // set if the object has been written but failed checksum validation
+  private volatile boolean _corrupt = false;
+
+  // for testing
+  private String _uploadId;
+
+  public S3SingleRequestUpload(
+    UploadOptions options, AmazonS3 client, ListeningExecutorService executor,
+    Map<String, String> meta, Date initiated)
+  {
+    _options = options;
+    _client = client;
+    _meta = meta;
+    _initiated = initiated;
+    _executor = executor;
+    _uploadId = _options.getBucketName() + "/" + _options.getObjectKey();
+  }
+
+  public ListenableFuture<Void> uploadPart(
+    int partNumber, long partSize, Callable<InputStream> stream,
+    OverallProgressListener progressListener)
+  {
+    if(partNumber != 0)
+    {
+      throw new IllegalArgumentException(
+        "single request uploads consist of part 0 only, found part " + partNumber);
+    }
+    return _executor.submit(new UploadCallable(partSize, stream, progressListener));
+  }
+
+  public String getPartChecksum(int partNumber)
+  {
+    return partNumber == 0 ? _etag : null;
+  }
+
+  public ListenableFuture<Void> finalizeMetadata(Map<String, String> metadata)
+  {
+    return Futures.immediateFailedFuture(new UnsupportedOperationException(
+      "metadata of single request uploads is final"));
+  }
+
+  /**
+   * The object is complete as soon as its only part has been uploaded and validated.
+   */
+  public ListenableFuture<String> completeUpload()
+  {
+    return Futures.immediateFuture(_etag);
+  }
+
+  /**
+   * Nothing is pending on the service, unless the object was written with a wrong checksum. Such an
+   * object is deleted, just like the parts of a failed multipart upload are never completed.
+   */
+  public ListenableFuture<Void> abort()
+  {
+    if(!_corrupt)
+    {
+      return Futures.immediateFuture(null);
+    }
+
+    return _executor.submit(new Callable<Void>()
+    {
+      public Void call()
+      {
+        _client.deleteObject(getBucketName(), getObjectKey());
+        return null;
+      }
+    });
+  }
+
+  public String getBucketName()
+  {
+    return _options.getBucketName();
+  }
+
+  public String getObjectKey()
+  {
+    return _options.getObjectKey();
+  }
+
+  public String getId()
+  {
+    return null;
+  }
+
+  public Date getInitiationDate()
+  {
+    return _initiated;
+  }
+
+  private class UploadCallable
+    implements Callable<Void>
+  {
+    private long _partSize;
+    private Callable<InputStream> _streamCallable;
+    private OverallProgressListener _progressListener;
+
+    public UploadCallable(
+      long partSize, Callable<InputStream> streamCallable,
+      OverallProgressListener progressListener)
+    {
+      _partSize = partSize;
+      _streamCallable = streamCallable;
+      _progressListener = progressListener;
+    }
+
+    public Void call()
+      throws Exception
+    {
+      try(HashingInputStream stream = new HashingInputStream(_streamCallable.call()))
+      {
+        return upload(stream);
+      }
+    }
+
+    private Void upload(HashingInputStream stream)
+      throws BadHashException
+    {
+      // added to support retry testing
+      _options.injectAbort(_uploadId);
+
+      ObjectMetadata metadata = new ObjectMetadata();
+      metadata.setUserMetadata(_meta);
+      metadata.setContentLength(_partSize);
+
+      PutObjectRequest req = new PutObjectRequest(getBucketName(), getObjectKey(), stream,
+        metadata);
+      req.setCannedAcl(S3Client.getCannedAcl(_options.getCannedAcl()));
+
+      // See S3MultipartUpload.UploadCallable
+      if(!stream.markSupported())
+      {
+        req.getRequestClientOptions().setReadLimit(Ints.checkedCast(_partSize + 1));
+      }
+
+      if(_progressListener != null)
+      {
+        PartProgressEvent ppe = new PartProgressEvent(Integer.toString(0));
+        ProgressListener s3pl = new S3ProgressListener(_progressListener, ppe);
+        req.setGeneralProgressListener(s3pl);
+      }
+
+      PutObjectResult res = _client.putObject(req);
+      byte[] etag = DatatypeConverter.parseHexBinary(res.getETag());
+      if(Arrays.equals(etag, stream.getDigest()))
+      {
+        _corrupt = false;
+        _etag = res.getETag();
+        return null;
+      }
+      else
+      {
+        _corrupt = true;
+        String calculatedMD5 = DatatypeConverter.printHexBinary(stream.getDigest()).toLowerCase();
+        throw new BadHashException(
+          "Failed checksum validation for " + getBucketName() + "/" + getObjectKey() + ". " +
+            "Calculated MD5: " + calculatedMD5 + ", Expected MD5: " + res.getETag());
+      }
+    }
+  }
+}
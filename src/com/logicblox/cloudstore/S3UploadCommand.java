@@ -16,8 +16,12 @@
 
 package com.logicblox.cloudstore;
 
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 class S3UploadCommand
@@ -31,8 +35,55 @@ class S3UploadCommand
   @Override
   protected ListenableFuture<Upload> initiateUpload(Map<String, String> metadata)
   {
+    if(isSingleRequestUpload())
+    {
+      return Futures.<Upload>immediateFuture(new S3SingleRequestUpload(_options, getS3Client(),
+        _client.getApiExecutor(), metadata, new Date()));
+    }
+
     S3MultipartUploadFactory factory = new S3MultipartUploadFactory(_options, getS3Client(),
       _client.getApiExecutor(), metadata);
+    if(isAdaptiveUpload())
+    {
+      // the part sizes, which are part of the metadata, are known only after the first parts
+      return factory.startDeferredUpload();
+    }
     return factory.startUpload();
   }
+
+  @Override
+  protected ListenableFuture<Upload> resumeUpload(
+    final String uploadId, final Map<String, String> metadata, final Map<Integer, String> parts)
+  {
+    if(uploadId == null)
+    {
+      return Futures.immediateFuture(null);
+    }
+
+    PendingUploadsOptions options = _client.getOptionsBuilderFactory()
+      .newPendingUploadsOptionsBuilder()
+      .setBucketName(_options.getBucketName())
+      .setObjectKey(_options.getObjectKey())
+      .createOptions();
+
+    return Futures.transform(_client.listPendingUploads(options),
+      new AsyncFunction<List<Upload>, Upload>()
+      {
+        public ListenableFuture<Upload> apply(List<Upload> pending)
+        {
+          for(Upload u : pending)
+          {
+            if(uploadId.equals(u.getId()))
+            {
+              S3MultipartUploadFactory factory = new S3MultipartUploadFactory(_options,
+                getS3Client(), _client.getApiExecutor(), metadata);
+              return factory.resumeUpload(uploadId, u.getInitiationDate(), parts);
+            }
+          }
+
+          // completed or aborted in the meantime
+          return Futures.immediateFuture(null);
+        }
+      });
+  }
 }
@@ -20,6 +20,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.InputStream;
 import java.util.Date;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 /**
@@ -46,6 +47,24 @@ interface Upload
     int partNumber, long partSize, Callable<InputStream> streamCallable,
     OverallProgressListener opl);
 
+  /**
+   * Returns the checksum the storage service reported for an uploaded part, which is what
+   * resumable uploads journal (see {@link UploadJournal}).
+   *
+   * @param partNumber The sequence number of the part (0-based)
+   * @return The ETag (S3) or CRC32C (GCS) of the part, or null if the part hasn't been uploaded
+   */
+  String getPartChecksum(int partNumber);
+
+  /**
+   * Sets the final metadata of the target object, for uploads that were started before all of
+   * their metadata was known. The parts uploaded so far are kept. Not all uploads support this,
+   * see {@link UploadCommand#isAdaptiveUpload()}.
+   *
+   * @param metadata The complete user metadata of the target object
+   */
+  ListenableFuture<Void> finalizeMetadata(Map<String, String> metadata);
+
   /**
    * Runs any required actions after all object parts have been uploaded. Examples of such actions:
    * part composition, checksum validation, cleanup.
@@ -16,9 +16,11 @@
 
 package com.logicblox.cloudstore;
 
+import com.google.api.services.storage.model.StorageObject;
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.FutureFallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -31,18 +33,25 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 import javax.xml.bind.DatatypeConverter;
 import java.io.BufferedInputStream;
-import java.io.FileInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Drives an end-to-end parallel object upload according to {@code UploadOptions}. At a high level,
@@ -61,6 +70,25 @@ abstract class UploadCommand
 
   UploadOptions _options;
 
+  /**
+   * Shared by all part uploads. Each part reads its own region of the file through positional
+   * reads, see {@link FileRegionInputStream}.
+   */
+  private FileChannel _fileChannel;
+
+  /**
+   * Metadata the upload was initiated with. Streaming uploads need it again to add the length of
+   * the object once it is known.
+   */
+  private Map<String, String> _meta;
+
+  /**
+   * Local checkpoint of resumable uploads, null otherwise
+   */
+  private UploadJournal _journal;
+
+  private static final long MAX_ADAPTIVE_PART_SIZE = 64 * 1024 * 1024;
+  private static final long MAX_ADAPTIVE_ENCRYPTED_PART_SIZE = 16 * 1024 * 1024;
 
   public UploadCommand(UploadOptions options)
   {
@@ -69,7 +97,10 @@ abstract class UploadCommand
 
     this.file = _options.getFile();
     setChunkSize(_options.getChunkSize());
-    setFileLength(this.file.length());
+    if(this.file != null)
+    {
+      setFileLength(this.file.length());
+    }
     _encKeyName = _options.getEncKey().orElse(null);
 
     if(_encKeyName != null)
@@ -115,6 +146,11 @@ abstract class UploadCommand
   public ListenableFuture<StoreFile> run()
     throws FileNotFoundException
   {
+    if(file == null)
+    {
+      throw new UsageException("File has to be set");
+    }
+
     if(file.isDirectory())
     {
       throw new UsageException(
@@ -139,33 +175,195 @@ abstract class UploadCommand
   }
 
 
+  /**
+   * Starts a streaming upload, where the content is written to the returned stream and its length
+   * doesn't have to be known in advance. Parts are uploaded as soon as enough data has been
+   * written, the upload is completed when the stream is closed.
+   *
+   * @return stream to write the content of the object to
+   */
+  public UploadOutputStream openStream()
+  {
+    if(file != null)
+    {
+      throw new UsageException("File should not be set for streaming uploads: " + file.getPath());
+    }
+    if(_options.isResume())
+    {
+      throw new UsageException("Streaming uploads cannot be resumed");
+    }
+
+    if(_options.isDryRun())
+    {
+      System.out.println("<DRYRUN> uploading stream to '" +
+        getUri(_options.getBucketName(), _options.getObjectKey()) + "'");
+      return new UploadOutputStream(this, null, chunkSize, UploadOutputStream.DEFAULT_MAX_BUFFERS)
+      {
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        @Override
+        public void abort()
+        {
+        }
+      };
+    }
+
+    return new UploadOutputStream(this, startUpload(), chunkSize,
+      UploadOutputStream.DEFAULT_MAX_BUFFERS);
+  }
+
   private ListenableFuture<StoreFile> scheduleExecution()
   {
-    final ListenableFuture<Upload> started = startUpload();
-    ListenableFuture<Upload> uploaded = Futures.transform(started, startPartsAsyncFunction());
-    ListenableFuture<String> completed = Futures.transform(uploaded, completeAsyncFunction());
-    ListenableFuture<StoreFile> res = Futures.transform(completed, new Function<String, StoreFile>()
+    try
     {
-      public StoreFile apply(String etag)
+      _fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+    catch(IOException e)
+    {
+      return Futures.immediateFailedFuture(e);
+    }
+
+    if(_options.isResume())
+    {
+      try
       {
-        StoreFile f = new StoreFile();
-        f.setLocalFile(file);
-        f.setETag(etag);
-        f.setBucketName(_options.getBucketName());
-        f.setObjectKey(_options.getObjectKey());
-        return f;
+        openJournal();
       }
-    });
+      catch(IOException e)
+      {
+        closeFileChannel();
+        return Futures.immediateFailedFuture(e);
+      }
+    }
+
+    ListenableFuture<StoreFile> result = scheduleUpload();
+    result.addListener(new Runnable()
+    {
+      public void run()
+      {
+        closeFileChannel();
+      }
+    }, _client.getInternalExecutor());
+
+    return result;
+  }
 
-    return Futures.withFallback(res, new FutureFallback<StoreFile>()
+  /**
+   * Opens the journal of a resumable upload. If an earlier run of the same upload left a journal,
+   * the upload continues with its chunk size and encryption key, so that the parts uploaded so far
+   * stay valid.
+   */
+  private void openJournal()
+    throws IOException
+  {
+    _journal = UploadJournal.open(new File(Utils.getDefaultJournalDirectory()), file,
+      getUri(_options.getBucketName(), _options.getObjectKey()));
+    if(_journal.isStarted())
     {
-      public ListenableFuture<StoreFile> create(final Throwable t)
+      Map<String, String> meta = _journal.getMeta();
+      if(Objects.equals(meta.get("s3tool-key-name"), _encKeyName))
+      {
+        setChunkSize(Long.parseLong(meta.get("s3tool-chunk-size")));
+        if(_encKeyName != null)
+        {
+          _encryptedSymmetricKeyString = meta.get("s3tool-symmetric-key");
+          this.encKey = unwrapSymmetricKey(_encryptedSymmetricKeyString);
+        }
+      }
+      else
       {
+        // encrypted with a different key, start over
+        _journal.discard();
+      }
+    }
+
+    if(_journal != null && isSingleRequestUpload())
+    {
+      // nothing to resume
+      _journal = null;
+    }
+  }
+
+  private SecretKeySpec unwrapSymmetricKey(String wrappedKey)
+  {
+    PrivateKey privKey;
+    try
+    {
+      privKey = _client.getKeyProvider().getPrivateKey(_encKeyName);
+    }
+    catch(NoSuchKeyException e)
+    {
+      throw new UsageException("Private key '" + _encKeyName + "' is needed to resume the " +
+        "encrypted upload of " + file.getPath() + ", upload without resuming to start over");
+    }
+
+    try
+    {
+      Cipher cipher = Cipher.getInstance("RSA");
+      cipher.init(Cipher.DECRYPT_MODE, privKey);
+      return new SecretKeySpec(cipher.doFinal(DatatypeConverter.parseBase64Binary(wrappedKey)),
+        "AES");
+    }
+    catch(NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException |
+      IllegalBlockSizeException | BadPaddingException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void closeFileChannel()
+  {
+    try
+    {
+      _fileChannel.close();
+    }
+    catch(IOException ignored)
+    {
+    }
+  }
+
+  private ListenableFuture<StoreFile> scheduleUpload()
+  {
+    final ListenableFuture<Upload> started = startUpload();
+    ListenableFuture<Upload> uploaded = Futures.transform(started, startPartsAsyncFunction());
+    return finishUpload(started, uploaded);
+  }
+
+  /**
+   * Completes the upload once all parts have been uploaded, or aborts it if anything failed.
+   */
+  private ListenableFuture<StoreFile> finishUpload(
+    final ListenableFuture<Upload> started, ListenableFuture<Upload> uploaded)
+  {
+    ListenableFuture<String> completed = Futures.transform(uploaded, completeAsyncFunction());
+    ListenableFuture<String> res = Futures.withFallback(completed, new FutureFallback<String>()
+    {
+      public ListenableFuture<String> create(final Throwable t)
+      {
+        if(_journal != null)
+        {
+          if(!(t instanceof BadHashException))
+          {
+            // leave the upload pending, to be resumed from the journal
+            _journal.close();
+            return Futures.immediateFailedFuture(t);
+          }
+          _journal.delete();
+        }
+
         ListenableFuture<Void> aborted = Futures.transform(started, abortAsyncFunction());
-        ListenableFuture<StoreFile> res0 = Futures.transform(aborted,
-          new AsyncFunction<Void, StoreFile>()
+        ListenableFuture<String> res0 = Futures.transform(aborted,
+          new AsyncFunction<Void, String>()
           {
-            public ListenableFuture<StoreFile> apply(Void v)
+            public ListenableFuture<String> apply(Void v)
             {
               return Futures.immediateFailedFuture(t);
             }
@@ -174,6 +372,30 @@ abstract class UploadCommand
         return res0;
       }
     }, _client.getInternalExecutor());
+
+    if(file == null)
+    {
+      // The object exists at this point, so a failure to add the length doesn't abort the upload
+      res = Futures.transform(res, finalizeStreamMetadataAsyncFunction());
+    }
+
+    return Futures.transform(res, new Function<String, StoreFile>()
+    {
+      public StoreFile apply(String etag)
+      {
+        if(_journal != null)
+        {
+          _journal.delete();
+        }
+
+        StoreFile f = new StoreFile();
+        f.setLocalFile(file);
+        f.setETag(etag);
+        f.setBucketName(_options.getBucketName());
+        f.setObjectKey(_options.getObjectKey());
+        return f;
+      }
+    });
   }
 
   /**
@@ -197,8 +419,31 @@ abstract class UploadCommand
 
    private ListenableFuture<Upload> startUploadActual()
    {
+     if(_journal != null && _journal.isStarted())
+     {
+       final Map<String, String> meta = new HashMap<>(_journal.getMeta());
+       _meta = meta;
+
+       ListenableFuture<Upload> resumed = resumeUpload(_journal.getUploadId(), meta,
+         _journal.getParts());
+       return Futures.transform(resumed, new AsyncFunction<Upload, Upload>()
+       {
+         public ListenableFuture<Upload> apply(Upload upload)
+           throws IOException
+         {
+           if(upload == null)
+           {
+             // the pending upload is gone, start over with the same metadata
+             return initiateJournaledUpload(meta);
+           }
+           _journal.reopen();
+           return Futures.immediateFuture(upload);
+         }
+       });
+     }
+
      Map<String, String> meta = new HashMap<>();
-     meta.put("s3tool-version", String.valueOf(Version.CURRENT));
+     meta.put("s3tool-version", String.valueOf(Version.UNIFORM_PARTS));
      if(_encKeyName != null)
      {
        meta.put("s3tool-key-name", _encKeyName);
@@ -206,14 +451,96 @@ abstract class UploadCommand
        meta.put("s3tool-pubkey-hash", _pubKeyHash.substring(0, 8));
      }
      meta.put("s3tool-chunk-size", Long.toString(chunkSize));
-     meta.put("s3tool-file-length", Long.toString(fileLength));
+     if(file != null)
+     {
+       // Streaming uploads add the length at completion, see finalizeStreamMetadata
+       meta.put("s3tool-file-length", Long.toString(fileLength));
+     }
+     _meta = meta;
 
-     return initiateUpload(meta);
+     return initiateJournaledUpload(meta);
    }
 
+  /**
+   * Initiates the upload and, if it is resumable, starts its journal.
+   */
+  private ListenableFuture<Upload> initiateJournaledUpload(final Map<String, String> meta)
+  {
+    ListenableFuture<Upload> started = initiateUpload(meta);
+    if(_journal == null)
+    {
+      return started;
+    }
+
+    return Futures.transform(started, new AsyncFunction<Upload, Upload>()
+    {
+      public ListenableFuture<Upload> apply(Upload upload)
+        throws IOException
+      {
+        _journal.begin(upload.getId(), meta);
+        return Futures.immediateFuture(upload);
+      }
+    });
+  }
+
   protected abstract ListenableFuture<Upload> initiateUpload(
     Map<String, String> metadata);
 
+  /**
+   * Reattaches to an upload that an earlier, interrupted run left pending, keeping the parts that
+   * are still stored with the journaled checksums.
+   *
+   * @param uploadId id of the pending upload, if the backend has one
+   * @param metadata metadata the upload was initiated with
+   * @param parts checksums of the journaled parts, by part number
+   * @return a future to the resumed upload, or to null if the upload cannot be resumed
+   */
+  protected abstract ListenableFuture<Upload> resumeUpload(
+    String uploadId, Map<String, String> metadata, Map<Integer, String> parts);
+
+  /**
+   * Files that fit in a single part are uploaded with a single request to the target object,
+   * avoiding the round trips needed to set up and combine the parts of a multipart upload. The
+   * length of streaming uploads isn't known in advance, so they always use multiple parts.
+   */
+  boolean isSingleRequestUpload()
+  {
+    return file != null && fileLength <= chunkSize;
+  }
+
+  /**
+   * Files that are large enough, and for which no chunk size has been set explicitly, are uploaded
+   * in parts whose size adapts to the measured throughput, see {@link PartSizePlanner}. The part
+   * sizes are recorded in the metadata of the object, which is finalized once they are known.
+   * Such objects are written with {@link Version#CURRENT}, older clients reject them. Probing
+   * costs extra requests, so only files of at least {@link PartSizePlanner#MIN_PARTS} chunks are
+   * uploaded this way.
+   */
+  boolean isAdaptiveUpload()
+  {
+    // resumed uploads need the layout of the parts before any of them is uploaded
+    return file != null && !_options.isChunkSizeSet() && !_options.isResume() &&
+      !isSingleRequestUpload() &&
+      PartSizePlanner.isWorthwhile(fileLength, chunkSize);
+  }
+
+  /**
+   * Upper bound for the size of adaptively sized parts. Encrypted parts cannot be re-read on retry
+   * and are buffered in memory by the backend client, so they are kept smaller.
+   */
+  long getMaxPartSize()
+  {
+    return _encKeyName != null ? MAX_ADAPTIVE_ENCRYPTED_PART_SIZE : MAX_ADAPTIVE_PART_SIZE;
+  }
+
+  /**
+   * Upper bound for the number of parts of an upload (current S3 limit).
+   */
+  long getMaxPartCount()
+  {
+    return 10000;
+  }
+
   /**
    * Step 2: Upload parts
    */
@@ -240,20 +567,105 @@ abstract class UploadCommand
           .createProgressOptions());
     }
 
-    List<ListenableFuture<Void>> parts = new ArrayList<ListenableFuture<Void>>();
-    for(long position = 0; position < fileLength || (position == 0 && fileLength == 0);
-        position += chunkSize)
+    if(!isAdaptiveUpload())
+    {
+      return startParts(upload, PartSizes.uniform(fileLength, chunkSize), 0, opl, null);
+    }
+
+    // Upload the probe parts first, then plan the rest of the parts from their throughput
+    final OverallProgressListener opl0 = opl;
+    final PartSizePlanner planner = new PartSizePlanner(fileLength, chunkSize, getMaxPartSize(),
+      getMaxPartCount());
+    ListenableFuture<Upload> probed = startParts(upload, PartSizes.of(planner.getProbeSizes()), 0,
+      opl, planner);
+
+    return Futures.transform(probed, new AsyncFunction<Upload, Upload>()
+    {
+      public ListenableFuture<Upload> apply(final Upload upload)
+      {
+        final PartSizes parts = planner.plan();
+        _meta.put(PartSizes.METADATA_KEY, parts.toMetadataValue());
+        _meta.put("s3tool-version", String.valueOf(Version.CURRENT));
+
+        ListenableFuture<Void> finalized = finalizeMetadata(upload);
+        return Futures.transform(finalized, new AsyncFunction<Void, Upload>()
+        {
+          public ListenableFuture<Upload> apply(Void v)
+          {
+            return startParts(upload, parts, PartSizePlanner.PROBE_PARTS, opl0, null);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Uploads the parts of {@code parts}, starting with part {@code firstPart}. If a {@code planner}
+   * is given, it gets the duration of each part upload.
+   */
+  private ListenableFuture<Upload> startParts(
+    Upload upload, PartSizes parts, int firstPart, OverallProgressListener opl,
+    PartSizePlanner planner)
+  {
+    List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+    for(int partNumber = firstPart; partNumber < parts.getPartCount(); partNumber++)
     {
-      parts.add(startPartUploadThread(upload, position, opl));
+      if(upload.getPartChecksum(partNumber) != null)
+      {
+        // uploaded by an earlier run of a resumed upload
+        continue;
+      }
+
+      ListenableFuture<Void> part = startPartUploadThread(upload, partNumber,
+        parts.getPartOffset(partNumber), parts.getPartSize(partNumber), opl, planner);
+      if(_journal != null)
+      {
+        part = Futures.transform(part, journalPartAsyncFunction(upload, partNumber));
+      }
+      futures.add(part);
     }
 
     // we do not care about the voids, so we just return the upload
     // object.
-    return Futures.transform(Futures.allAsList(parts), Functions.constant(upload));
+    return Futures.transform(Futures.allAsList(futures), Functions.constant(upload));
+  }
+
+  private AsyncFunction<Void, Void> journalPartAsyncFunction(
+    final Upload upload, final int partNumber)
+  {
+    return new AsyncFunction<Void, Void>()
+    {
+      public ListenableFuture<Void> apply(Void v)
+        throws IOException
+      {
+        _journal.addPart(partNumber, upload.getPartChecksum(partNumber));
+        return Futures.immediateFuture(null);
+      }
+    };
+  }
+
+  /**
+   * Execute finalizeMetadataActual with retry
+   */
+  private ListenableFuture<Void> finalizeMetadata(final Upload upload)
+  {
+    return executeWithRetry(_client.getInternalExecutor(), new Callable<ListenableFuture<Void>>()
+    {
+      public ListenableFuture<Void> call()
+      {
+        return upload.finalizeMetadata(new HashMap<>(_meta));
+      }
+
+      public String toString()
+      {
+        return "finalizing metadata of upload";
+      }
+    });
   }
 
   private ListenableFuture<Void> startPartUploadThread(
-    final Upload upload, final long position, final OverallProgressListener opl)
+    final Upload upload, final int partNumber, final long position, final long size,
+    final OverallProgressListener opl, final PartSizePlanner planner)
   {
     ListenableFuture<ListenableFuture<Void>> result = _client.getInternalExecutor()
       .submit(new Callable<ListenableFuture<Void>>()
@@ -261,7 +673,8 @@ abstract class UploadCommand
         public ListenableFuture<Void> call()
           throws Exception
         {
-          return UploadCommand.this.startPartUpload(upload, position, opl);
+          return UploadCommand.this.startPartUpload(upload, partNumber, position, size, opl,
+            planner);
         }
       });
 
@@ -272,16 +685,15 @@ abstract class UploadCommand
    * Execute startPartUpload with retry
    */
   private ListenableFuture<Void> startPartUpload(
-    final Upload upload, final long position, final OverallProgressListener opl)
+    final Upload upload, final int partNumber, final long position, final long size,
+    final OverallProgressListener opl, final PartSizePlanner planner)
   {
-    final int partNumber = (int) (position / chunkSize);
-
     return executeWithRetry(_client.getInternalExecutor(), new Callable<ListenableFuture<Void>>()
     {
       public ListenableFuture<Void> call()
         throws Exception
       {
-        return startPartUploadActual(upload, position, opl);
+        return startPartUploadActual(upload, partNumber, position, size, opl, planner);
       }
 
       public String toString()
@@ -291,11 +703,39 @@ abstract class UploadCommand
     });
   }
 
-  private ListenableFuture<Void> startPartUploadActual(
-    final Upload upload, final long position, final OverallProgressListener opl)
+  /**
+   * Uploads the first {@code length} bytes of {@code buffer} as part {@code partNumber} of a
+   * streaming upload, with retry.
+   */
+  ListenableFuture<Void> startStreamPartUpload(
+    ListenableFuture<Upload> started, final int partNumber, final byte[] buffer, final int length)
+  {
+    return Futures.transform(started, new AsyncFunction<Upload, Void>()
+    {
+      public ListenableFuture<Void> apply(final Upload upload)
+      {
+        return executeWithRetry(_client.getInternalExecutor(),
+          new Callable<ListenableFuture<Void>>()
+          {
+            public ListenableFuture<Void> call()
+              throws Exception
+            {
+              return startStreamPartUploadActual(upload, partNumber, buffer, length);
+            }
+
+            public String toString()
+            {
+              return "uploading part " + (partNumber + 1);
+            }
+          });
+      }
+    });
+  }
+
+  private ListenableFuture<Void> startStreamPartUploadActual(
+    final Upload upload, final int partNumber, final byte[] buffer, final int length)
     throws Exception
   {
-    final int partNumber = (int) (position / chunkSize);
     final Cipher cipher;
 
     long partSize;
@@ -303,14 +743,13 @@ abstract class UploadCommand
     {
       cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
 
-      long preCryptSize = Math.min(fileLength - position, chunkSize);
       long blockSize = cipher.getBlockSize();
-      partSize = blockSize * (preCryptSize / blockSize + 2);
+      partSize = blockSize * (length / blockSize + 2);
     }
     else
     {
       cipher = null;
-      partSize = Math.min(fileLength - position, chunkSize);
+      partSize = length;
     }
 
     Callable<InputStream> inputStreamCallable = new Callable<InputStream>()
@@ -318,29 +757,113 @@ abstract class UploadCommand
       public InputStream call()
         throws Exception
       {
-        FileInputStream fs = new FileInputStream(file);
-        long skipped = fs.skip(position);
-        while(skipped < position)
+        InputStream in = new ByteArrayInputStream(buffer, 0, length);
+        if(cipher != null)
         {
-          skipped += fs.skip(position - skipped);
+          return new CipherWithInlineIVInputStream(in, cipher, Cipher.ENCRYPT_MODE, encKey);
         }
 
-        BufferedInputStream bs = new BufferedInputStream(fs);
-        InputStream in;
-        if(cipher != null)
+        return in;
+      }
+    };
+
+    return upload.uploadPart(partNumber, partSize, inputStreamCallable, null);
+  }
+
+  /**
+   * Completes a streaming upload once all of its {@code parts} have been uploaded.
+   */
+  ListenableFuture<StoreFile> completeStream(
+    final ListenableFuture<Upload> started, List<ListenableFuture<Void>> parts, long length)
+  {
+    setFileLength(length);
+    ListenableFuture<Upload> uploaded = Futures.transform(Futures.allAsList(parts),
+      new AsyncFunction<List<Void>, Upload>()
+      {
+        public ListenableFuture<Upload> apply(List<Void> voids)
         {
-          in = new CipherWithInlineIVInputStream(bs, cipher, Cipher.ENCRYPT_MODE, encKey);
+          return started;
         }
-        else
+      });
+
+    return finishUpload(started, uploaded);
+  }
+
+  /**
+   * Aborts a streaming upload, after waiting for any {@code parts} that are still being uploaded.
+   */
+  ListenableFuture<Void> abortStream(
+    final ListenableFuture<Upload> started, List<ListenableFuture<Void>> parts)
+  {
+    return Futures.transform(Futures.successfulAsList(parts),
+      new AsyncFunction<List<Void>, Void>()
+      {
+        public ListenableFuture<Void> apply(List<Void> voids)
         {
-          in = bs;
+          return Futures.transform(started, abortAsyncFunction());
         }
+      });
+  }
 
-        return in;
+  private ListenableFuture<Void> startPartUploadActual(
+    final Upload upload, final int partNumber, final long position, final long size,
+    final OverallProgressListener opl, final PartSizePlanner planner)
+    throws Exception
+  {
+    final Cipher cipher;
+
+    long partSize;
+    if(_encKeyName != null)
+    {
+      cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      partSize = PartSizes.getEncryptedPartSize(size, cipher.getBlockSize());
+    }
+    else
+    {
+      cipher = null;
+      partSize = size;
+    }
+
+    // set when the part actually starts uploading, not when it is queued
+    final AtomicLong startNanos = new AtomicLong();
+    Callable<InputStream> inputStreamCallable = new Callable<InputStream>()
+    {
+      public InputStream call()
+        throws Exception
+      {
+        startNanos.set(System.nanoTime());
+        if(cipher != null)
+        {
+          // The cipher stream doesn't support mark/reset, so the part might be buffered by the
+          // backend client anyway. Keep reading up to the end of the file, as it always did, so
+          // that the encrypted layout of the parts doesn't change.
+          InputStream region = new FileRegionInputStream(_fileChannel, position,
+            fileLength - position);
+          return new CipherWithInlineIVInputStream(new BufferedInputStream(region), cipher,
+            Cipher.ENCRYPT_MODE, encKey);
+        }
+
+        return new FileRegionInputStream(_fileChannel, position, size);
       }
     };
 
-    return upload.uploadPart(partNumber, partSize, inputStreamCallable, opl);
+    ListenableFuture<Void> result = upload.uploadPart(partNumber, partSize, inputStreamCallable,
+      opl);
+    if(planner != null)
+    {
+      Futures.addCallback(result, new FutureCallback<Void>()
+      {
+        public void onSuccess(Void v)
+        {
+          planner.addSample(size, System.nanoTime() - startNanos.get());
+        }
+
+        public void onFailure(Throwable t)
+        {
+        }
+      });
+    }
+    return result;
   }
 
   /**
@@ -381,6 +904,79 @@ abstract class UploadCommand
     return upload.completeUpload();
   }
 
+  /**
+   * Step 4 (streaming uploads only): Add the length of the object to its metadata
+   */
+  private AsyncFunction<String, String> finalizeStreamMetadataAsyncFunction()
+  {
+    return new AsyncFunction<String, String>()
+    {
+      public ListenableFuture<String> apply(String etag)
+      {
+        return finalizeStreamMetadata(etag);
+      }
+    };
+  }
+
+  private ListenableFuture<String> finalizeStreamMetadata(final String etag)
+  {
+    final Map<String, String> meta = new HashMap<>(_meta);
+    meta.put("s3tool-file-length", Long.toString(fileLength));
+
+    ListenableFuture<StoreFile> updated;
+    if(null == getGCSClient())
+    {
+      // There is no way to update the metadata of an S3 object without copying it onto itself.
+      CopyOptions options = _client.getOptionsBuilderFactory()
+        .newCopyOptionsBuilder()
+        .setSourceBucketName(_options.getBucketName())
+        .setSourceObjectKey(_options.getObjectKey())
+        .setDestinationBucketName(_options.getBucketName())
+        .setDestinationObjectKey(_options.getObjectKey())
+        .setUserMetadata(meta)
+        .createOptions();
+
+      updated = _client.copy(options);
+    }
+    else
+    {
+      updated = executeWithRetry(_client.getInternalExecutor(),
+        new Callable<ListenableFuture<StoreFile>>()
+        {
+          public ListenableFuture<StoreFile> call()
+          {
+            return _client.getApiExecutor().submit(new Callable<StoreFile>()
+            {
+              public StoreFile call()
+                throws IOException
+              {
+                StorageObject obj = GCSClient.patchMetaData(getGCSClient(),
+                  _options.getBucketName(), _options.getObjectKey(), meta);
+                StoreFile f = new StoreFile(_options.getBucketName(), _options.getObjectKey());
+                f.setETag(obj.getEtag());
+                return f;
+              }
+            });
+          }
+
+          public String toString()
+          {
+            return "updating metadata of " +
+              getUri(_options.getBucketName(), _options.getObjectKey());
+          }
+        });
+    }
+
+    // the object that is left is the updated one
+    return Futures.transform(updated, new Function<StoreFile, String>()
+    {
+      public String apply(StoreFile f)
+      {
+        return f.getETag() == null ? etag : f.getETag();
+      }
+    });
+  }
+
   /**
    * Abort upload if something goes wrong
    */
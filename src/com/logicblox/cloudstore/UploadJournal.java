@@ -0,0 +1,292 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Local checkpoint of a resumable upload (see {@link UploadOptionsBuilder#setResume(boolean)}).
+ * <p>
+ * The journal records the source file it was written for, the id of the pending upload (S3 only),
+ * the metadata the upload was initiated with (chunk size and wrapped encryption key included) and
+ * the checksum the service reported for every part that has been uploaded. Records are appended
+ * one line at a time and synced as parts finish, so that a crash loses at most the parts that were
+ * in flight:
+ * <pre>
+ * source &lt;length&gt; &lt;last-modified&gt; &lt;path&gt;
+ * target &lt;uri&gt;
+ * upload &lt;id or -&gt;
+ * meta &lt;key&gt; &lt;value&gt;
+ * part &lt;number&gt; &lt;checksum&gt;
+ * </pre>
+ * A journal only applies to the same file, unmodified, uploaded to the same object. Checksums of
+ * journaled parts are compared against the service when an upload is resumed, so a torn last line
+ * just means that a part is uploaded again.
+ */
+class UploadJournal
+{
+  private final File _journalFile;
+  private final String _source;
+  private final String _target;
+
+  private String _uploadId;
+  private Map<String, String> _meta;
+  private Map<Integer, String> _parts = new ConcurrentSkipListMap<>();
+  private boolean _started = false;
+  private FileOutputStream _out;
+  private Writer _writer;
+
+  private UploadJournal(File journalFile, String source, String target)
+  {
+    _journalFile = journalFile;
+    _source = source;
+    _target = target;
+  }
+
+  /**
+   * Opens the journal of uploading {@code file} to {@code target}, loading its records if a
+   * previous upload of the same, unmodified file left any.
+   */
+  static UploadJournal open(File journalDir, File file, String target)
+    throws IOException
+  {
+    String path = file.getAbsolutePath();
+    File journalFile = new File(journalDir, DigestUtils.sha256Hex(path + "\n" + target));
+    String source = file.length() + " " + file.lastModified() + " " + path;
+
+    UploadJournal journal = new UploadJournal(journalFile, source, target);
+    if(journalFile.exists())
+    {
+      journal.load();
+    }
+    return journal;
+  }
+
+  private void load()
+    throws IOException
+  {
+    String source = null;
+    String target = null;
+    String uploadId = null;
+    Map<String, String> meta = new HashMap<>();
+    Map<Integer, String> parts = new HashMap<>();
+
+    try(BufferedReader reader = new BufferedReader(
+      new InputStreamReader(new FileInputStream(_journalFile), StandardCharsets.UTF_8)))
+    {
+      String line;
+      while((line = reader.readLine()) != null)
+      {
+        String[] record = line.split(" ", 2);
+        if(record.length < 2)
+        {
+          continue;
+        }
+
+        String value = record[1];
+        switch(record[0])
+        {
+          case "source":
+            source = value;
+            break;
+          case "target":
+            target = value;
+            break;
+          case "upload":
+            uploadId = value.equals("-") ? null : value;
+            break;
+          case "meta":
+            String[] entry = value.split(" ", 2);
+            if(entry.length == 2)
+            {
+              meta.put(entry[0], entry[1]);
+            }
+            break;
+          case "part":
+            String[] part = value.split(" ", 2);
+            try
+            {
+              if(part.length == 2)
+              {
+                parts.put(Integer.parseInt(part[0]), part[1]);
+              }
+            }
+            catch(NumberFormatException ignored)
+            {
+              // torn record
+            }
+            break;
+          default:
+            break;
+        }
+      }
+    }
+
+    if(_source.equals(source) && _target.equals(target) && !meta.isEmpty())
+    {
+      _started = true;
+      _uploadId = uploadId;
+      _meta = meta;
+      _parts.putAll(parts);
+    }
+  }
+
+  /**
+   * @return true if a previous upload of the same file left a journal to resume from
+   */
+  synchronized boolean isStarted()
+  {
+    return _started;
+  }
+
+  synchronized String getUploadId()
+  {
+    return _uploadId;
+  }
+
+  synchronized Map<String, String> getMeta()
+  {
+    return _meta;
+  }
+
+  /**
+   * @return checksums of the parts recorded as uploaded, by part number
+   */
+  Map<Integer, String> getParts()
+  {
+    return Collections.unmodifiableMap(_parts);
+  }
+
+  /**
+   * Ignores the records loaded from a previous upload, which is not going to be resumed.
+   */
+  synchronized void discard()
+  {
+    _started = false;
+    _uploadId = null;
+    _meta = null;
+    _parts.clear();
+  }
+
+  /**
+   * Starts a new journal for an upload that has just been initiated, replacing any previous one.
+   */
+  synchronized void begin(String uploadId, Map<String, String> meta)
+    throws IOException
+  {
+    close();
+    _journalFile.getParentFile().mkdirs();
+    _out = new FileOutputStream(_journalFile);
+    _writer = new OutputStreamWriter(_out, StandardCharsets.UTF_8);
+    _started = true;
+    _uploadId = uploadId;
+    _meta = new HashMap<>(meta);
+    _parts.clear();
+
+    write("source " + _source);
+    write("target " + _target);
+    write("upload " + (uploadId == null ? "-" : uploadId));
+    for(Map.Entry<String, String> e : _meta.entrySet())
+    {
+      write("meta " + e.getKey() + " " + e.getValue());
+    }
+    sync();
+  }
+
+  /**
+   * Continues the journal of a resumed upload.
+   */
+  synchronized void reopen()
+    throws IOException
+  {
+    if(_writer == null)
+    {
+      _out = new FileOutputStream(_journalFile, true);
+      _writer = new OutputStreamWriter(_out, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Records that part {@code partNumber} has been uploaded with the given {@code checksum}. Does
+   * nothing once the journal has been closed: a failed upload closes its journal while other parts
+   * may still be in flight, and a resumed upload uploads those parts again.
+   */
+  synchronized void addPart(int partNumber, String checksum)
+    throws IOException
+  {
+    if(_writer == null)
+    {
+      return;
+    }
+    _parts.put(partNumber, checksum);
+    write("part " + partNumber + " " + checksum);
+    sync();
+  }
+
+  /**
+   * Removes the journal once the upload has been completed.
+   */
+  synchronized void delete()
+  {
+    close();
+    _journalFile.delete();
+  }
+
+  synchronized void close()
+  {
+    if(_writer != null)
+    {
+      try
+      {
+        _writer.close();
+      }
+      catch(IOException ignored)
+      {
+      }
+      _writer = null;
+      _out = null;
+    }
+  }
+
+  private void write(String record)
+    throws IOException
+  {
+    _writer.write(record);
+    _writer.write('\n');
+  }
+
+  private void sync()
+    throws IOException
+  {
+    _writer.flush();
+    _out.getFD().sync();
+  }
+}
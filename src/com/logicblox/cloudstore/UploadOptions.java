@@ -28,11 +28,18 @@ import java.util.Optional;
  * {@code _chunkSize} is explicit, then no check will take place and any
  * possible failure due to more than 10000 parts will happen later.
  * <p>
+ * The {@code _file} can be omitted for streaming uploads through {@link
+ * CloudStoreClient#openUploadStream(UploadOptions)}, where the length of the content is not known
+ * in advance. In that case the default chunk size is {@link Utils#getDefaultStreamChunkSize()}.
+ * <p>
  * The specified {@code _cannedAcl} is applied to the uploaded file.
  * <p>
  * If the {@code enckey} is present, the {@code keyProvider} will be asked to provide a public key
  * with that name. This key will be used to encrypt the {@code _file} at the client side.
  * <p>
+ * If {@code _resume} is set, the progress of multipart uploads is journaled locally (see {@link
+ * Utils#getDefaultJournalDirectory()}), so that an interrupted upload can be resumed.
+ * <p>
  * If progress listener factory has been set, then progress notifications will be recorded.
  * <p>
  * {@code UploadOptions} objects are meant to be built by {@code UploadOptionsBuilder}. This class
@@ -54,6 +61,7 @@ public class UploadOptions
   private String _encKey;
   private String _cannedAcl;
   private boolean _dryRun;
+  private boolean _resume;
   private boolean _ignoreAbortInjection;
   private OverallProgressListenerFactory _overallProgressListenerFactory;
 
@@ -63,7 +71,7 @@ public class UploadOptions
 
   UploadOptions(
     CloudStoreClient cloudStoreClient, File file, String bucketName, String objectKey, long chunkSize,
-    String encKey, String cannedAcl, boolean dryRun, boolean ignoreAbortInjection,
+    String encKey, String cannedAcl, boolean dryRun, boolean resume, boolean ignoreAbortInjection,
     OverallProgressListenerFactory overallProgressListenerFactory)
   {
     super(cloudStoreClient);
@@ -74,6 +82,7 @@ public class UploadOptions
     _encKey = encKey;
     _cannedAcl = cannedAcl;
     _dryRun = dryRun;
+    _resume = resume;
     _ignoreAbortInjection = ignoreAbortInjection;
     _overallProgressListenerFactory = overallProgressListenerFactory;
   }
@@ -96,7 +105,7 @@ public class UploadOptions
   /**
    * Return the local file to be uploaded.
    *
-   * @return local file to be uploaded
+   * @return local file to be uploaded, or null for streaming uploads
    */
   public File getFile()
   {
@@ -130,6 +139,11 @@ public class UploadOptions
    */
   public long getChunkSize()
   {
+    if(_file == null)
+    {
+      // Streaming upload: the length of the content is not known in advance
+      return _chunkSize == -1 ? Utils.getDefaultStreamChunkSize() : _chunkSize;
+    }
     if(_file.isDirectory())
     {
       return -1;
@@ -141,6 +155,15 @@ public class UploadOptions
     return _chunkSize;
   }
 
+  /**
+   * @return true if the chunk size has been set explicitly, rather than computed from the size of
+   * the file
+   */
+  boolean isChunkSizeSet()
+  {
+    return _chunkSize != -1;
+  }
+
   /**
    * Return the name of access control list given to the uploaded file.  If not
    * specified, the default access control list for the service is used.
@@ -162,6 +185,17 @@ public class UploadOptions
     return _dryRun;
   }
 
+  /**
+   * If set to true, a failed upload is left pending instead of being aborted, and is resumed from
+   * its local journal by the next upload of the same file to the same object.
+   *
+   * @return resume flag
+   */
+  public boolean isResume()
+  {
+    return _resume;
+  }
+
   /**
    * Return the name of the encryption key used to encrypt data in the file.
    * The public key for the named key pair must be in the local key directory.
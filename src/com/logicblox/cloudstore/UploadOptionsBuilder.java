@@ -23,13 +23,16 @@ import java.io.File;
  * {@code UploadOptionsBuilder} is used to create and set properties for {@code UploadOptions} objects
  * that control the behavior of cloud-store upload commands.
  * <p>
- * Setting fields {@code _file}, {@code _bucketName} and {@code _objectKey} is mandatory. All the others
- * are optional.
+ * Setting fields {@code _bucketName} and {@code _objectKey} is mandatory. Field {@code _file} is
+ * mandatory for {@link CloudStoreClient#upload(UploadOptions)} and {@link
+ * CloudStoreClient#uploadRecursively(UploadOptions)}, but is not used by {@link
+ * CloudStoreClient#openUploadStream(UploadOptions)}. All the others are optional.
  * 
  * @see UploadOptions
  * @see CloudStoreClient#getOptionsBuilderFactory()
  * @see CloudStoreClient#upload(UploadOptions)
  * @see CloudStoreClient#uploadRecursively(UploadOptions)
+ * @see CloudStoreClient#openUploadStream(UploadOptions)
  * @see OptionsBuilderFactory#newUploadOptionsBuilder()
  */
 public class UploadOptionsBuilder
@@ -43,6 +46,7 @@ public class UploadOptionsBuilder
   private String _cannedAcl;
   private OverallProgressListenerFactory _overallProgressListenerFactory;
   private boolean _dryRun = false;
+  private boolean _resume = false;
   private boolean _ignoreAbortInjection = false;
 
   UploadOptionsBuilder(CloudStoreClient client)
@@ -149,6 +153,20 @@ public class UploadOptionsBuilder
     return this;
   }
 
+  /**
+   * If set to true, journal the progress of the upload locally, leave the upload pending if it
+   * fails, and resume a previously failed upload of the same file to the same object, uploading
+   * only the parts that are missing.
+   *
+   * @param resume true if the upload should be resumable
+   * @return this builder
+   */
+  public UploadOptionsBuilder setResume(boolean resume)
+  {
+    _resume = resume;
+    return this;
+  }
+
   /**
    * Used by test framework to control abort injection behavior.
    *
@@ -167,10 +185,6 @@ public class UploadOptionsBuilder
     {
       throw new UsageException("CloudStoreClient has to be set");
     }
-    else if(_file == null)
-    {
-      throw new UsageException("File has to be set");
-    }
     else if(_bucketName == null)
     {
       throw new UsageException("Bucket has to be set");
@@ -205,6 +219,6 @@ public class UploadOptionsBuilder
     validateOptions();
 
     return new UploadOptions(_cloudStoreClient, _file, _bucketName, _objectKey, _chunkSize, _encKey,
-      _cannedAcl, _dryRun, _ignoreAbortInjection, _overallProgressListenerFactory);
+      _cannedAcl, _dryRun, _resume, _ignoreAbortInjection, _overallProgressListenerFactory);
   }
 }
@@ -0,0 +1,280 @@
+/*
+  Copyright 2020, Infor Inc.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+
+package com.logicblox.cloudstore;
+
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code UploadOutputStream} uploads everything written to it to a single object, without having
+ * to know the length of the content in advance.
+ * <p>
+ * Written bytes are collected in part buffers of the upload's chunk size. As soon as a buffer is
+ * full it is uploaded as a separate part, in parallel with the writes that follow. Buffers come
+ * from a bounded pool, so writers block once that many parts are in flight and the memory used is
+ * at most {@code maxBuffers * chunkSize}.
+ * <p>
+ * {@link #close()} uploads the last part, waits for all parts and completes the upload, including
+ * the metadata that depends on the final length of the object. Use {@link #abort()} instead of
+ * {@code close()} if the content could not be produced completely and the upload should be
+ * discarded.
+ *
+ * @see CloudStoreClient#openUploadStream(UploadOptions)
+ */
+public class UploadOutputStream
+  extends OutputStream
+{
+  /**
+   * Default number of part buffers. One more than the default number of connections, so that
+   * writers can fill a buffer while all connections are busy.
+   */
+  static final int DEFAULT_MAX_BUFFERS = Utils.getDefaultMaxConcurrentConnections() + 1;
+
+  private final UploadCommand _command;
+  private final ListenableFuture<Upload> _started;
+  private final int _chunkSize;
+  private final int _maxBuffers;
+  private final BlockingQueue<byte[]> _freeBuffers;
+  private int _allocatedBuffers = 0;
+
+  private byte[] _buffer;
+  private int _count = 0;
+  private int _partNumber = 0;
+  private long _length = 0;
+  private final List<ListenableFuture<Void>> _parts = new ArrayList<>();
+  private volatile Throwable _failure;
+  private boolean _closed = false;
+  private StoreFile _storeFile;
+
+  UploadOutputStream(
+    UploadCommand command, ListenableFuture<Upload> started, long chunkSize, int maxBuffers)
+  {
+    if(chunkSize <= 0 || chunkSize > Integer.MAX_VALUE)
+    {
+      throw new UsageException(
+        "Chunk size of streaming uploads has to be between 1 and " + Integer.MAX_VALUE +
+          " bytes, found " + chunkSize);
+    }
+    _command = command;
+    _started = started;
+    _chunkSize = Ints.checkedCast(chunkSize);
+    _maxBuffers = maxBuffers;
+    _freeBuffers = new ArrayBlockingQueue<>(maxBuffers);
+  }
+
+  @Override
+  public void write(int b)
+    throws IOException
+  {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len)
+    throws IOException
+  {
+    ensureOpen();
+    while(len > 0)
+    {
+      if(_buffer == null)
+      {
+        _buffer = acquireBuffer();
+      }
+
+      int n = Math.min(len, _chunkSize - _count);
+      System.arraycopy(b, off, _buffer, _count, n);
+      _count += n;
+      _length += n;
+      off += n;
+      len -= n;
+
+      if(_count == _chunkSize)
+      {
+        uploadBuffer();
+      }
+    }
+  }
+
+  /**
+   * Uploads the last part, if any, and completes the upload. Blocks until the object has been
+   * created and validated.
+   *
+   * @throws IOException if any part or the completion of the upload failed
+   */
+  @Override
+  public void close()
+    throws IOException
+  {
+    if(_closed)
+    {
+      return;
+    }
+    _closed = true;
+
+    // An empty object still needs a single (empty) part
+    if(_count > 0 || _partNumber == 0)
+    {
+      if(_buffer == null)
+      {
+        _buffer = acquireBuffer();
+      }
+      uploadBuffer();
+    }
+
+    try
+    {
+      _storeFile = _command.completeStream(_started, _parts, _length).get();
+    }
+    catch(InterruptedException e)
+    {
+      throw new InterruptedIOException("interrupted while completing upload");
+    }
+    catch(ExecutionException e)
+    {
+      throw new IOException("Error uploading to " + getUri(), e.getCause());
+    }
+  }
+
+  /**
+   * Discards the upload: no object is created and any uploaded parts are removed from the storage
+   * service. Blocks until the abort has been completed.
+   *
+   * @throws IOException if the upload could not be aborted
+   */
+  public void abort()
+    throws IOException
+  {
+    if(_closed)
+    {
+      return;
+    }
+    _closed = true;
+
+    try
+    {
+      _command.abortStream(_started, _parts).get();
+    }
+    catch(InterruptedException e)
+    {
+      throw new InterruptedIOException("interrupted while aborting upload");
+    }
+    catch(ExecutionException e)
+    {
+      throw new IOException("Error aborting upload to " + getUri(), e.getCause());
+    }
+  }
+
+  /**
+   * Returns information about the uploaded object, after the stream has been closed successfully.
+   *
+   * @return uploaded object, or null if the upload hasn't been completed
+   */
+  public StoreFile getStoreFile()
+  {
+    return _storeFile;
+  }
+
+  private void uploadBuffer()
+  {
+    final byte[] buffer = _buffer;
+    ListenableFuture<Void> part = _command.startStreamPartUpload(_started, _partNumber, buffer,
+      _count);
+    part.addListener(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          part.get();
+        }
+        catch(InterruptedException | ExecutionException e)
+        {
+          _failure = e instanceof ExecutionException ? e.getCause() : e;
+        }
+        _freeBuffers.offer(buffer);
+      }
+    }, _command._client.getInternalExecutor());
+
+    _parts.add(part);
+    _partNumber++;
+    _buffer = null;
+    _count = 0;
+  }
+
+  private byte[] acquireBuffer()
+    throws IOException
+  {
+    byte[] buffer = _freeBuffers.poll();
+    if(buffer != null)
+    {
+      return buffer;
+    }
+    if(_allocatedBuffers < _maxBuffers)
+    {
+      _allocatedBuffers++;
+      return new byte[_chunkSize];
+    }
+
+    try
+    {
+      while(buffer == null)
+      {
+        checkFailure();
+        buffer = _freeBuffers.poll(100, TimeUnit.MILLISECONDS);
+      }
+    }
+    catch(InterruptedException e)
+    {
+      throw new InterruptedIOException("interrupted while waiting for a part upload");
+    }
+    return buffer;
+  }
+
+  private void ensureOpen()
+    throws IOException
+  {
+    if(_closed)
+    {
+      throw new IOException("Stream closed");
+    }
+    checkFailure();
+  }
+
+  private void checkFailure()
+    throws IOException
+  {
+    if(_failure != null)
+    {
+      throw new IOException("Error uploading part to " + getUri(), _failure);
+    }
+  }
+
+  private String getUri()
+  {
+    return _command.getUri(_command._options.getBucketName(), _command._options.getObjectKey());
+  }
+}
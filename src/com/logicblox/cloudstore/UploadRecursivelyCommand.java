@@ -44,6 +44,11 @@ class UploadRecursivelyCommand
   public ListenableFuture<List<StoreFile>> run()
     throws ExecutionException, InterruptedException, IOException
   {
+    if(_options.getFile() == null)
+    {
+      throw new UsageException("File has to be set");
+    }
+
     if(!_options.getObjectKey().endsWith("/") && !_options.getObjectKey().equals(""))
     {
       throw new UsageException("Destination key should end with a '/': " +
@@ -122,6 +127,7 @@ class UploadRecursivelyCommand
       .setChunkSize(_options.getChunkSize())
       .setEncKey(_options.getEncKey().orElse(null))
       .setCannedAcl(_options.getCannedAcl())
+      .setResume(_options.isResume())
       .setOverallProgressListenerFactory(_options.getOverallProgressListenerFactory().orElse(null))
       .createOptions();
 
@@ -16,6 +16,7 @@
 
 package com.logicblox.cloudstore;
 
+import com.google.common.util.concurrent.ForwardingListeningExecutorService;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.ListeningScheduledExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
@@ -34,7 +35,11 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -86,6 +91,14 @@ public class Utils
     _defaultKeyDir = keydir;
   }
 
+  /**
+   * Directory holding the journals of resumable uploads, see {@link UploadJournal}.
+   */
+  public static String getDefaultJournalDirectory()
+  {
+    return System.getProperty("user.home") + File.separator + ".cloud-store-journals";
+  }
+
   public static long getDefaultChunkSize()
   {
     return 5 * 1024 * 1024;
@@ -106,6 +119,15 @@ public class Utils
     return chunkSize;
   }
 
+  /**
+   * Default chunk size of uploads whose length is not known in advance. Large enough to stay
+   * below the S3 limit of 10000 parts for objects up to about 320GB.
+   */
+  public static long getDefaultStreamChunkSize()
+  {
+    return 32 * 1024 * 1024;
+  }
+
   public static int getDefaultMaxConcurrentConnections()
   {
     return 10;
@@ -316,7 +338,68 @@ public class Utils
 
   public static ListeningExecutorService createApiExecutor(int nThreads)
   {
-    return MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(nThreads));
+    return new ApiExecutor(new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+      new LinkedBlockingQueue<Runnable>()));
+  }
+
+  /**
+   * @return the number of requests that {@code executor} runs at a time, or the default number of
+   * connections for executors that were not created by {@link #createApiExecutor(int)}
+   */
+  static int getApiConcurrency(ExecutorService executor)
+  {
+    if(executor instanceof ApiExecutor)
+    {
+      return ((ApiExecutor) executor).getThreadCount();
+    }
+    return getDefaultMaxConcurrentConnections();
+  }
+
+  /**
+   * Counts the requests of all clients sharing {@code executor} that are running or waiting for a
+   * thread. For executors that were not created by {@link #createApiExecutor(int)} this cannot be
+   * known, and {@code ownRequests}, the number of requests the caller knows it has in flight, is
+   * returned instead.
+   */
+  static int getApiLoad(ExecutorService executor, int ownRequests)
+  {
+    if(executor instanceof ApiExecutor)
+    {
+      return ((ApiExecutor) executor).getLoad();
+    }
+    return ownRequests;
+  }
+
+  /**
+   * Executor of API requests that knows how many of them it runs at a time, and how many are in
+   * flight.
+   */
+  private static class ApiExecutor
+    extends ForwardingListeningExecutorService
+  {
+    private final ThreadPoolExecutor _pool;
+    private final ListeningExecutorService _delegate;
+
+    ApiExecutor(ThreadPoolExecutor pool)
+    {
+      _pool = pool;
+      _delegate = MoreExecutors.listeningDecorator(pool);
+    }
+
+    protected ListeningExecutorService delegate()
+    {
+      return _delegate;
+    }
+
+    int getThreadCount()
+    {
+      return _pool.getMaximumPoolSize();
+    }
+
+    int getLoad()
+    {
+      return _pool.getActiveCount() + _pool.getQueue().size();
+    }
   }
 
   public static ListeningScheduledExecutorService createInternalExecutor(int poolSize)
@@ -20,5 +20,21 @@ class Version
 {
   // Version that is used to indicate the format of S3 objects and its
   // annotations. It is not the version of the software.
-  public static final int CURRENT = 3;
+  public static final int CURRENT = 4;
+
+  // Version of objects whose parts all have the same size. Objects with
+  // adaptively sized parts (see PartSizes) need CURRENT, all others are
+  // still written with this version so that older clients can read them.
+  public static final int UNIFORM_PARTS = 3;
+
+  static boolean isSupported(String version)
+  {
+    return String.valueOf(UNIFORM_PARTS).equals(version) ||
+      String.valueOf(CURRENT).equals(version);
+  }
+
+  static String getSupported()
+  {
+    return UNIFORM_PARTS + " or " + CURRENT;
+  }
 }
@@ -24,6 +24,7 @@ import org.junit.Test;
 
 import java.io.File;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -619,6 +620,167 @@ public class CopyTests
   }
 
 
+  @Test
+  public void testCopyFromOtherClient()
+    throws Throwable
+  {
+    // create test file of several parts and upload it
+    long chunkSize = Utils.getDefaultChunkSize();
+    File toUpload = TestUtils.createTextFile(chunkSize * 2 + 100);
+    String rootPrefix = TestUtils.addPrefix("copy-from-other-client");
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+    StoreFile f = TestUtils.uploadFile(toUpload, dest);
+    Assert.assertNotNull(f);
+
+    // stream the file through a second client
+    CloudStoreClient sourceClient = TestUtils.createClient();
+    String copyKey = f.getObjectKey() + "-copy";
+    try
+    {
+      CopyOptions copyOpts = _client.getOptionsBuilderFactory()
+        .newCopyOptionsBuilder()
+        .setSourceClient(sourceClient)
+        .setSourceBucketName(_testBucket)
+        .setSourceObjectKey(f.getObjectKey())
+        .setDestinationBucketName(_testBucket)
+        .setDestinationObjectKey(copyKey)
+        .createOptions();
+      StoreFile copy = _client.copy(copyOpts).get();
+      Assert.assertNotNull(copy);
+      Assert.assertEquals(copyKey, copy.getObjectKey());
+    }
+    finally
+    {
+      TestUtils.destroyClient(sourceClient);
+    }
+
+    // download and compare copy, validating its checksums
+    File dlTemp = TestUtils.createTmpFile();
+    URI src = new URI(TestUtils.getService() + "://" + _testBucket + "/" + copyKey);
+    f = TestUtils.downloadFile(src, dlTemp);
+    Assert.assertNotNull(f.getLocalFile());
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, f.getLocalFile()));
+  }
+
+
+  @Test
+  public void testCopyMultipartValidated()
+    throws Throwable
+  {
+    // ETags and checksum manifests are S3 specific
+    Assume.assumeTrue(TestUtils.getService().equalsIgnoreCase("s3"));
+
+    // upload a file in several parts
+    int chunkSize = 5 * 1024 * 1024;
+    File toUpload = TestUtils.createTextFile(2 * chunkSize + 1000);
+    String rootPrefix = TestUtils.addPrefix("copy-multipart-validated");
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+    UploadOptions upOpts = _client.getOptionsBuilderFactory()
+      .newUploadOptionsBuilder()
+      .setFile(toUpload)
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .setChunkSize(chunkSize)
+      .createOptions();
+    StoreFile f = _client.upload(upOpts).get();
+    Assert.assertTrue(f.getETag().endsWith("-3"));
+
+    // like objects uploaded without a checksum manifest, the copy can only be validated if it
+    // keeps the parts of the source
+    TestUtils.deleteObject(_testBucket, ChecksumManifest.getManifestKey(f.getObjectKey()));
+
+    String copyKey = f.getObjectKey() + "-copy";
+    CopyOptions copyOpts = _client.getOptionsBuilderFactory()
+      .newCopyOptionsBuilder()
+      .setSourceBucketName(_testBucket)
+      .setSourceObjectKey(f.getObjectKey())
+      .setDestinationBucketName(_testBucket)
+      .setDestinationObjectKey(copyKey)
+      .createOptions();
+    StoreFile copy = _client.copy(copyOpts).get();
+    Assert.assertEquals(f.getETag(), copy.getETag());
+
+    File dlTemp = TestUtils.createTmpFile();
+    URI src = new URI(TestUtils.getService() + "://" + _testBucket + "/" + copyKey);
+    StoreFile downloaded = TestUtils.downloadValidatedFile(src, dlTemp);
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, downloaded.getLocalFile()));
+  }
+
+
+  @Test
+  public void testGCSRewriteInSeveralCalls()
+    throws Throwable
+  {
+    // rewrites are GCS specific
+    Assume.assumeTrue(TestUtils.getService().equalsIgnoreCase("gs"));
+
+    long maxBytes = 1024 * 1024;
+    long fileSize = 5 * maxBytes + 1000;
+    File toUpload = TestUtils.createTextFile(fileSize);
+    String rootPrefix = TestUtils.addPrefix("gcs-rewrite-several-calls");
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+    StoreFile f = TestUtils.uploadFile(toUpload, dest);
+    Assert.assertNotNull(f);
+
+    // changing the storage class makes GCS rewrite the data, at most maxBytes per call. Every
+    // call reports the bytes rewritten so far.
+    final List<Long> rewritten = new ArrayList<Long>();
+    String copyKey = f.getObjectKey() + "-copy";
+    CopyOptions copyOpts = _client.getOptionsBuilderFactory()
+      .newCopyOptionsBuilder()
+      .setSourceBucketName(_testBucket)
+      .setSourceObjectKey(f.getObjectKey())
+      .setDestinationBucketName(_testBucket)
+      .setDestinationObjectKey(copyKey)
+      .setStorageClass("NEARLINE")
+      .setOverallProgressListenerFactory(new OverallProgressListenerFactory()
+      {
+        public OverallProgressListener create(ProgressOptions progressOptions)
+        {
+          return new OverallProgressListener()
+          {
+            public void progress(PartProgressEvent ev)
+            {
+              synchronized(rewritten)
+              {
+                rewritten.add(ev.getTransferredBytes());
+              }
+            }
+          };
+        }
+      })
+      .createOptions();
+    try
+    {
+      GCSCopyCommand.setMaxBytesRewrittenPerCall(maxBytes);
+      Assert.assertNotNull(_client.copy(copyOpts).get());
+    }
+    finally
+    {
+      GCSCopyCommand.setMaxBytesRewrittenPerCall(GCSCopyCommand.MAX_BYTES_REWRITTEN_PER_CALL);
+    }
+
+    // each call continued where the previous one stopped
+    synchronized(rewritten)
+    {
+      Assert.assertTrue(rewritten.size() > 1);
+      Assert.assertEquals(fileSize, (long) rewritten.get(rewritten.size() - 1));
+      long previous = 0;
+      for(long total : rewritten)
+      {
+        Assert.assertTrue(total > previous);
+        Assert.assertTrue(total - previous <= maxBytes);
+        previous = total;
+      }
+    }
+
+    File dlTemp = TestUtils.createTmpFile();
+    URI src = new URI(TestUtils.getService() + "://" + _testBucket + "/" + copyKey);
+    StoreFile downloaded = TestUtils.downloadValidatedFile(src, dlTemp);
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, downloaded.getLocalFile()));
+  }
+
+
   @Test
   public void testCopyDir()
     throws Throwable
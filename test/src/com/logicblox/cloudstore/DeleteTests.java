@@ -18,6 +18,7 @@ package com.logicblox.cloudstore;
 
 import junit.framework.Assert;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -188,6 +189,62 @@ public class DeleteTests
   }
 
 
+  @Test
+  public void testBatchedDirWithPartialFailure()
+    throws Throwable
+  {
+    // a directory of several batches, a few objects of which fail to be deleted at first
+    int batchSize = 10;
+    int fileCount = 2 * batchSize + 5;
+    File top = TestUtils.createTmpDir(true);
+    for(int i = 0; i < fileCount; ++i)
+    {
+      TestUtils.createTextFile(top, 100);
+    }
+
+    String rootPrefix = TestUtils.addPrefix("delete-batched-dir/");
+    URI dest = TestUtils.getUri(_testBucket, top, rootPrefix);
+    List<StoreFile> uploaded = TestUtils.uploadDir(top, dest);
+    Assert.assertEquals(fileCount, uploaded.size());
+    Assert.assertEquals(fileCount, TestUtils.listObjects(_testBucket, rootPrefix).size());
+
+    DeleteOptions opts = _client.getOptionsBuilderFactory()
+      .newDeleteOptionsBuilder()
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .createOptions();
+    boolean oldGlobalFlag = false;
+    int failureCount = 3;
+    try
+    {
+      BatchDeleteCommand.setTestBatchSize(batchSize);
+      oldGlobalFlag = DeleteOptions.getKeyFailureCounters().useGlobalCounter(true);
+      ThrowableRetriableTask.addRetryListener(this);
+      clearRetryCount();
+      _client.setRetryCount(10);
+      DeleteOptions.getKeyFailureCounters().setInjectionCounter(failureCount);
+
+      List<StoreFile> files = _client.deleteRecursively(opts).get();
+      Assert.assertEquals(fileCount, files.size());
+      // only the batches with a failed object are retried
+      Assert.assertTrue(getRetryCount() >= 1);
+      Assert.assertTrue(getRetryCount() <= failureCount);
+    }
+    finally
+    {
+      // reset retry and failure injection state so we don't affect other tests
+      BatchDeleteCommand.setTestBatchSize(0);
+      TestUtils.resetRetryCount();
+      DeleteOptions.getKeyFailureCounters().setInjectionCounter(0);
+      DeleteOptions.getKeyFailureCounters().useGlobalCounter(oldGlobalFlag);
+      DeleteOptions.getKeyFailureCounters().clearInjectionCounters();
+    }
+
+    // the retries deleted the objects that failed
+    Assert.assertEquals(0, TestUtils.listObjects(_testBucket, rootPrefix).size());
+  }
+
+
   @Test
   public void testDryRunFile()
     throws Throwable
@@ -387,6 +444,49 @@ public class DeleteTests
   }
 
 
+  @Test
+  public void testDeleteWithManifest()
+    throws Throwable
+  {
+    // checksum manifests are S3 specific
+    Assume.assumeTrue(TestUtils.getService().equalsIgnoreCase("s3"));
+
+    // upload two files in several parts, each gets a checksum manifest
+    long chunkSize = 5 * 1024 * 1024;
+    String rootPrefix = TestUtils.addPrefix("delete-manifest/");
+    File a = TestUtils.createTextFile(2 * chunkSize + 1000);
+    File b = TestUtils.createTextFile(2 * chunkSize + 1000);
+    URI destA = TestUtils.getUri(_testBucket, a, rootPrefix);
+    URI destB = TestUtils.getUri(_testBucket, b, rootPrefix);
+    TestUtils.uploadFile(a, destA, chunkSize);
+    TestUtils.uploadFile(b, destB, chunkSize);
+    String manifestA = ChecksumManifest.getManifestKey(Utils.getObjectKey(destA));
+    String manifestB = ChecksumManifest.getManifestKey(Utils.getObjectKey(destB));
+    Assert.assertNotNull(TestUtils.objectExists(_testBucket, manifestA));
+    Assert.assertNotNull(TestUtils.objectExists(_testBucket, manifestB));
+
+    // listings skip the manifests
+    List<StoreFile> objs = TestUtils.listObjects(_testBucket, rootPrefix);
+    Assert.assertEquals(2, objs.size());
+
+    // a single object is deleted with its manifest
+    TestUtils.deleteObject(destA);
+    Assert.assertNull(TestUtils.objectExists(_testBucket, manifestA));
+    Assert.assertNotNull(TestUtils.objectExists(_testBucket, manifestB));
+
+    // and so are the objects of a recursive delete
+    DeleteOptions opts = _client.getOptionsBuilderFactory()
+      .newDeleteOptionsBuilder()
+      .setBucketName(_testBucket)
+      .setObjectKey(rootPrefix)
+      .createOptions();
+    List<StoreFile> files = _client.deleteRecursively(opts).get();
+    Assert.assertEquals(1, files.size());
+    Assert.assertNull(TestUtils.objectExists(_testBucket, manifestB));
+    Assert.assertEquals(0, TestUtils.listObjects(_testBucket, rootPrefix).size());
+  }
+
+
   private synchronized void clearRetryCount()
   {
     _retryCount = 0;
@@ -495,4 +495,102 @@ public class MultiKeyTests
     Assert.assertNull(msg);
   }
 
+  @Test
+  public void testRecursiveKeys()
+    throws Throwable
+  {
+    // generate public/private keys
+    File keydir = TestUtils.createTmpDir(true);
+    String key1 = "cloud-store-ut-1";
+    String key2 = "cloud-store-ut-2";
+    TestUtils.createEncryptionKey(keydir, key1);
+    TestUtils.createEncryptionKey(keydir, key2);
+    TestUtils.setKeyProvider(keydir);
+
+    // upload two encrypted files and an unencrypted one
+    String rootPrefix = TestUtils.addPrefix("test-multikey-recursive");
+    File toUpload1 = TestUtils.createTextFile(100);
+    File toUpload2 = TestUtils.createTextFile(100);
+    File plain = TestUtils.createTextFile(100);
+    URI dest1 = TestUtils.getUri(_testBucket, toUpload1, rootPrefix);
+    URI dest2 = TestUtils.getUri(_testBucket, toUpload2, rootPrefix + "/sub");
+    Assert.assertNotNull(TestUtils.uploadEncryptedFile(toUpload1, dest1, key1));
+    Assert.assertNotNull(TestUtils.uploadEncryptedFile(toUpload2, dest2, key1));
+    Assert.assertNotNull(TestUtils.uploadFile(plain, TestUtils.getUri(_testBucket, plain,
+      rootPrefix)));
+
+    // add key2 to all files, twice: files that have it already are skipped
+    for(int i = 0; i < 2; i++)
+    {
+      List<StoreFile> files = _client.addEncryptionKeyRecursively(
+        TestUtils.buildEncryptionKeyOptions(_testBucket, rootPrefix + "/", key2)).get();
+      Assert.assertEquals(3, files.size());
+    }
+
+    // remove key1 from all files, both should download with key2 only
+    List<StoreFile> files = _client.removeEncryptionKeyRecursively(
+      TestUtils.buildEncryptionKeyOptions(_testBucket, rootPrefix + "/", key1)).get();
+    Assert.assertEquals(3, files.size());
+    Files.delete((new File(keydir, key1 + ".pem")).toPath());
+
+    File[] uploaded = {toUpload1, toUpload2};
+    URI[] dests = {dest1, dest2};
+    for(int i = 0; i < uploaded.length; i++)
+    {
+      File dlTemp = TestUtils.createTmpFile();
+      StoreFile f = TestUtils.downloadFile(dests[i], dlTemp);
+      Assert.assertNotNull(f.getLocalFile());
+      Assert.assertTrue(TestUtils.compareFiles(uploaded[i], f.getLocalFile()));
+      dlTemp.delete();
+    }
+  }
+
+  @Test
+  public void testRotateMultipartKey()
+    throws Throwable
+  {
+    // generate public/private keys
+    File keydir = TestUtils.createTmpDir(true);
+    String key1 = "cloud-store-ut-1";
+    String key2 = "cloud-store-ut-2";
+    TestUtils.createEncryptionKey(keydir, key1);
+    TestUtils.createEncryptionKey(keydir, key2);
+    TestUtils.setKeyProvider(keydir);
+
+    // upload an encrypted file in several parts
+    int chunkSize = 5 * 1024 * 1024;
+    File toUpload = TestUtils.createTextFile(2 * chunkSize + 1000);
+    String rootPrefix = TestUtils.addPrefix("test-multikey-rotate-multipart");
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+    UploadOptions upOpts = _client.getOptionsBuilderFactory()
+      .newUploadOptionsBuilder()
+      .setFile(toUpload)
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .setChunkSize(chunkSize)
+      .setEncKey(key1)
+      .createOptions();
+    StoreFile f = _client.upload(upOpts).get();
+    Assert.assertNotNull(f);
+
+    // rotate key1 out for key2
+    _client.addEncryptionKeyRecursively(
+      TestUtils.buildEncryptionKeyOptions(_testBucket, rootPrefix + "/", key2)).get();
+    _client.removeEncryptionKey(
+      TestUtils.buildEncryptionKeyOptions(_testBucket, f.getObjectKey(), key1)).get();
+    Files.delete((new File(keydir, key1 + ".pem")).toPath());
+
+    if(TestUtils.getService().equalsIgnoreCase("s3"))
+    {
+      // the parts of the object, and thus its ETag, are kept
+      Metadata meta = TestUtils.objectExists(_testBucket, f.getObjectKey());
+      Assert.assertEquals(f.getETag(), meta.getETag());
+    }
+
+    // the download is still validated
+    File dlTemp = TestUtils.createTmpFile();
+    StoreFile downloaded = TestUtils.downloadValidatedFile(dest, dlTemp);
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, downloaded.getLocalFile()));
+  }
+
 }
@@ -803,6 +803,50 @@ public class RenameTests
   }
 
 
+  @Test
+  public void testRenameWithManifest()
+    throws Throwable
+  {
+    // checksum manifests are S3 specific
+    Assume.assumeTrue(TestUtils.getService().equalsIgnoreCase("s3"));
+
+    // upload a file in several parts, which gets a checksum manifest
+    long chunkSize = 5 * 1024 * 1024;
+    String rootPrefix = TestUtils.addPrefix("rename-manifest/");
+    File toUpload = TestUtils.createTextFile(2 * chunkSize + 1000);
+    URI src = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+    StoreFile f = TestUtils.uploadFile(toUpload, src, chunkSize);
+    Assert.assertNotNull(TestUtils.getChecksumManifest(_testBucket, f.getObjectKey()));
+
+    // the manifest moves with the object, for the ETag of the renamed object
+    URI dest = TestUtils.getUri(_testBucket, "new-file.txt", rootPrefix + "dest/");
+    RenameOptions opts = _client.getOptionsBuilderFactory()
+      .newRenameOptionsBuilder()
+      .setSourceBucketName(Utils.getBucketName(src))
+      .setSourceObjectKey(Utils.getObjectKey(src))
+      .setDestinationBucketName(Utils.getBucketName(dest))
+      .setDestinationObjectKey(Utils.getObjectKey(dest))
+      .createOptions();
+    StoreFile renamed = _client.rename(opts).get();
+    Assert.assertNotNull(renamed);
+    Assert.assertNull(TestUtils.getChecksumManifest(_testBucket, Utils.getObjectKey(src)));
+    ChecksumManifest manifest = TestUtils.getChecksumManifest(_testBucket,
+      Utils.getObjectKey(dest));
+    Assert.assertNotNull(manifest);
+    Metadata meta = TestUtils.objectExists(_testBucket, Utils.getObjectKey(dest));
+    Assert.assertEquals(meta.getETag(), manifest.getETag());
+
+    // the listing only has the renamed object
+    List<StoreFile> objs = TestUtils.listObjects(_testBucket, rootPrefix);
+    Assert.assertEquals(1, objs.size());
+    Assert.assertTrue(TestUtils.findObject(objs, Utils.getObjectKey(dest)));
+
+    File dlTemp = TestUtils.createTmpFile();
+    StoreFile downloaded = TestUtils.downloadValidatedFile(dest, dlTemp);
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, downloaded.getLocalFile()));
+  }
+
+
   @Test
   public void testDestExists()
     throws Throwable
@@ -1118,6 +1162,89 @@ public class RenameTests
   }
 
 
+  @Test
+  public void testResumeDirectory()
+    throws Throwable
+  {
+    // directory copy/upload/rename tests intermittently fail when using minio.  trying to
+    // minimize false failure reports by repeating and only failing the test if it consistently
+    // reports an error.
+    int retryCount = TestUtils.RETRY_COUNT;
+    int count = 0;
+    while(count < retryCount)
+    {
+      boolean oldGlobalFlag = false;
+      try
+      {
+        // create simple directory structure and upload
+        File top = TestUtils.createTmpDir(true);
+        File a = TestUtils.createTextFile(top, 100);
+        File b = TestUtils.createTextFile(top, 100);
+        File c = TestUtils.createTextFile(top, 100);
+
+        String rootPrefix = TestUtils.addPrefix("rename-dir-resume-" + count + "/");
+        URI dest = TestUtils.getUri(_testBucket, top, rootPrefix);
+        List<StoreFile> uploaded = TestUtils.uploadDir(top, dest);
+        Assert.assertEquals(3, uploaded.size());
+
+        // rename the directory, aborting one of the copies
+        URI src = dest;
+        String destPrefix = TestUtils.addPrefix("rename-dir-resume-dest-" + count + "/subdir/");
+        dest = TestUtils.getUri(_testBucket, "subdir2", destPrefix);
+        RenameOptions opts = _client.getOptionsBuilderFactory()
+          .newRenameOptionsBuilder()
+          .setSourceBucketName(Utils.getBucketName(src))
+          .setSourceObjectKey(Utils.getObjectKey(src))
+          .setDestinationBucketName(Utils.getBucketName(dest))
+          .setDestinationObjectKey(Utils.getObjectKey(dest) + "/")
+          .setResume(true)
+          .createOptions();
+        oldGlobalFlag = CopyOptions.getAbortCounters().useGlobalCounter(true);
+        CopyOptions.getAbortCounters().setInjectionCounter(1);
+        try
+        {
+          _client.renameRecursively(opts).get();
+          Assert.fail("expected exception (forcing abort on copy)");
+        }
+        catch(ExecutionException ex)
+        {
+          Assert.assertTrue(TestUtils.findCause(ex, AbortInjection.class));
+        }
+        CopyOptions.getAbortCounters().setInjectionCounter(0);
+        CopyOptions.getAbortCounters().clearInjectionCounters();
+
+        // resume, even though part of the destination exists now
+        List<StoreFile> renamedFiles = _client.renameRecursively(opts).get();
+        Assert.assertFalse(renamedFiles.isEmpty());
+
+        // verify that everything moved
+        List<StoreFile> destObjs = TestUtils.listObjects(_testBucket, destPrefix);
+        String topDestN = destPrefix + "subdir2/";
+        Assert.assertTrue(TestUtils.findObject(destObjs, topDestN + a.getName()));
+        Assert.assertTrue(TestUtils.findObject(destObjs, topDestN + b.getName()));
+        Assert.assertTrue(TestUtils.findObject(destObjs, topDestN + c.getName()));
+        Assert.assertEquals(0, TestUtils.listObjects(_testBucket, rootPrefix).size());
+        return;
+      }
+      catch(Throwable t)
+      {
+        ++count;
+        if(count >= retryCount)
+        {
+          throw t;
+        }
+      }
+      finally
+      {
+        // reset abort injection so other tests aren't affected
+        CopyOptions.getAbortCounters().useGlobalCounter(oldGlobalFlag);
+        CopyOptions.getAbortCounters().setInjectionCounter(0);
+        CopyOptions.getAbortCounters().clearInjectionCounters();
+      }
+    }
+  }
+
+
   @Test
   public void testMoveDirectoryAcrossBuckets()
     throws Throwable
@@ -1601,7 +1728,7 @@ public class RenameTests
     Assert.assertEquals(Long.parseLong(destUserMeta.get("s3tool-chunk-size")),
       Utils.getDefaultChunkSize(fileSize));
     Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-file-length")), fileSize);
-    Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-version")), Version.CURRENT);
+    Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-version")), Version.UNIFORM_PARTS);
   }
 
 
@@ -1656,7 +1783,7 @@ public class RenameTests
     Assert.assertEquals(destUserMeta.size(), 6);
     Assert.assertEquals(Long.parseLong(destUserMeta.get("s3tool-chunk-size")), chunkSize);
     Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-file-length")), fileSize);
-    Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-version")), Version.CURRENT);
+    Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-version")), Version.UNIFORM_PARTS);
     Assert.assertEquals(destUserMeta.get("s3tool-key-name"), keyName);
 
     PrivateKey privKey = _client.getKeyProvider().getPrivateKey(keyName);
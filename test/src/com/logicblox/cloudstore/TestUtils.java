@@ -18,11 +18,13 @@ package com.logicblox.cloudstore;
 
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.MalformedURLException;
@@ -423,6 +425,38 @@ public class TestUtils
   }
 
 
+  public static StoreFile uploadFile(File src, URI dest, long chunkSize)
+    throws Throwable
+  {
+    UploadOptions upOpts = _client.getOptionsBuilderFactory()
+      .newUploadOptionsBuilder()
+      .setFile(src)
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .setChunkSize(chunkSize)
+      .createOptions();
+    return _client.upload(upOpts).get();
+  }
+
+
+  /**
+   * @return the checksum manifest stored for {@code key}, or null if there is none
+   */
+  public static ChecksumManifest getChecksumManifest(String bucket, String key)
+    throws Throwable
+  {
+    String manifestKey = ChecksumManifest.getManifestKey(key);
+    if(objectExists(bucket, manifestKey) == null)
+    {
+      return null;
+    }
+    File dlTemp = createTmpFile();
+    URI src = new URI(getService() + "://" + bucket + "/" + manifestKey);
+    downloadFile(src, dlTemp);
+    return ChecksumManifest.parse(Files.readAllBytes(dlTemp.toPath()));
+  }
+
+
   public static StoreFile uploadEncryptedFile(File src, URI dest, String keyName)
     throws Throwable
   {
@@ -460,15 +494,60 @@ public class TestUtils
   public static StoreFile downloadFile(URI src, File dest, boolean overwrite)
     throws Throwable
   {
+    return downloadFile(_client, src, dest, overwrite);
+  }
 
-    DownloadOptions dlOpts = _client.getOptionsBuilderFactory()
+
+  public static StoreFile downloadFile(
+    CloudStoreClient client, URI src, File dest, boolean overwrite)
+    throws Throwable
+  {
+
+    DownloadOptions dlOpts = client.getOptionsBuilderFactory()
       .newDownloadOptionsBuilder()
       .setFile(dest)
       .setBucketName(Utils.getBucketName(src))
       .setObjectKey(Utils.getObjectKey(src))
       .setOverwrite(overwrite)
       .createOptions();
-    return _client.download(dlOpts).get();
+    return client.download(dlOpts).get();
+  }
+
+
+  /**
+   * Downloads like {@link #downloadFile(URI, File)}, but fails if the checksum of the download
+   * could not be validated.
+   */
+  public static StoreFile downloadValidatedFile(URI src, File dest)
+    throws Throwable
+  {
+    return downloadValidatedFile(_client, src, dest);
+  }
+
+
+  public static StoreFile downloadValidatedFile(CloudStoreClient client, URI src, File dest)
+    throws Throwable
+  {
+    PrintStream err = System.err;
+    ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    System.setErr(new PrintStream(captured, true));
+    StoreFile f;
+    try
+    {
+      f = downloadFile(client, src, dest, true);
+    }
+    finally
+    {
+      System.setErr(err);
+    }
+
+    String warnings = captured.toString();
+    err.print(warnings);
+    if(warnings.contains("Skipped checksum validation"))
+    {
+      throw new AssertionError("Download of " + src + " was not validated: " + warnings);
+    }
+    return f;
   }
 
 
@@ -16,8 +16,11 @@
 
 package com.logicblox.cloudstore;
 
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
 import junit.framework.Assert;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
 import org.junit.AfterClass;
 import org.junit.Assume;
 import org.junit.BeforeClass;
@@ -26,14 +29,27 @@ import org.junit.Test;
 import javax.crypto.Cipher;
 import javax.xml.bind.DatatypeConverter;
 import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.Key;
 import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class UploadDownloadTests
@@ -223,6 +239,96 @@ public class UploadDownloadTests
   }
 
 
+  @Test
+  public void testListObjectsStream()
+    throws Throwable
+  {
+    // create simple directory structure and upload
+    String rootPrefix = TestUtils.addPrefix("list-stream");
+    File top = TestUtils.createTmpDir(true);
+    TestUtils.createTextFile(top, 100);
+    TestUtils.createTextFile(top, 100);
+    TestUtils.createTextFile(top, 100);
+    URI dest = TestUtils.getUri(_testBucket, top, rootPrefix);
+    List<StoreFile> uploaded = TestUtils.uploadDir(top, dest);
+    Assert.assertEquals(3, uploaded.size());
+
+    // pages of the stream add up to the collected listing, in the same order
+    ListOptions opts = _client.getOptionsBuilderFactory()
+      .newListOptionsBuilder()
+      .setBucketName(_testBucket)
+      .setObjectKey(rootPrefix)
+      .setRecursive(true)
+      .createOptions();
+    List<StoreFile> expected = _client.listObjects(opts).get();
+    List<String> streamed = new ArrayList<String>();
+    Iterator<List<StoreFile>> pages = _client.listObjectsStream(opts);
+    while(pages.hasNext())
+    {
+      for(StoreFile f : pages.next())
+      {
+        streamed.add(f.getObjectKey());
+      }
+    }
+    Assert.assertEquals(expected.size(), streamed.size());
+    for(int i = 0; i < expected.size(); i++)
+    {
+      Assert.assertEquals(expected.get(i).getObjectKey(), streamed.get(i));
+    }
+  }
+
+
+  @Test
+  public void testParallelListObjects()
+    throws Throwable
+  {
+    // top-level files around directories of different sizes
+    String rootPrefix = TestUtils.addPrefix("list-parallel");
+    File top = TestUtils.createTmpDir(true);
+    TestUtils.createTextFile(top, 100);
+    File sub1 = TestUtils.createTmpDir(top, true);
+    for(int i = 0; i < 5; i++)
+    {
+      TestUtils.createTextFile(sub1, 100);
+    }
+    File sub2 = TestUtils.createTmpDir(top, true);
+    TestUtils.createTextFile(sub2, 100);
+    TestUtils.createTextFile(top, 100);
+    URI dest = TestUtils.getUri(_testBucket, top, rootPrefix);
+    List<StoreFile> uploaded = TestUtils.uploadDir(top, dest);
+    Assert.assertEquals(8, uploaded.size());
+
+    ListOptionsBuilder builder = _client.getOptionsBuilderFactory()
+      .newListOptionsBuilder()
+      .setBucketName(_testBucket)
+      .setObjectKey(Utils.getObjectKey(dest))
+      .setRecursive(true);
+    List<StoreFile> expected = _client.listObjects(builder.createOptions()).get();
+    Assert.assertEquals(8, expected.size());
+
+    // partitions are listed concurrently, but merged in key order
+    List<StoreFile> ordered = _client.listObjects(builder.setParallelism(4).createOptions()).get();
+    Assert.assertEquals(expected.size(), ordered.size());
+    for(int i = 0; i < expected.size(); i++)
+    {
+      Assert.assertEquals(expected.get(i).getObjectKey(), ordered.get(i).getObjectKey());
+    }
+
+    // every object exactly once in any order
+    Set<String> unordered = new HashSet<String>();
+    Iterator<List<StoreFile>> pages = _client.listObjectsStream(
+      builder.setParallelism(4).setOrdered(false).createOptions());
+    while(pages.hasNext())
+    {
+      for(StoreFile f : pages.next())
+      {
+        Assert.assertTrue(unordered.add(f.getObjectKey()));
+      }
+    }
+    Assert.assertEquals(expected.size(), unordered.size());
+  }
+
+
   @Test
   public void testExists()
     throws Throwable
@@ -291,6 +397,35 @@ public class UploadDownloadTests
   }
 
 
+  @Test
+  public void testSingleRequestUpload()
+    throws Throwable
+  {
+    // the ETag of an object uploaded with a single request is its MD5, only on S3
+    Assume.assumeTrue(!TestUtils.getService().equalsIgnoreCase("gs"));
+
+    // create a file smaller than a chunk and upload it
+    File toUpload = TestUtils.createTextFile(100);
+    String rootPrefix = TestUtils.addPrefix("single-request-upload");
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+    StoreFile f = TestUtils.uploadFile(toUpload, dest);
+    Assert.assertNotNull(f);
+
+    String md5 = DigestUtils.md5Hex(FileUtils.readFileToByteArray(toUpload));
+    Assert.assertEquals(md5, f.getETag());
+    Metadata meta = TestUtils.objectExists(Utils.getBucketName(dest), Utils.getObjectKey(dest));
+    Assert.assertNotNull(meta);
+    Assert.assertEquals(md5, meta.getETag());
+    Assert.assertEquals(100, Long.parseLong(meta.getUserMetadata().get("s3tool-file-length")));
+
+    // download the file and compare it with the original
+    File dlTemp = TestUtils.createTmpFile();
+    f = TestUtils.downloadFile(dest, dlTemp, true);
+    Assert.assertNotNull(f.getLocalFile());
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, f.getLocalFile()));
+  }
+
+
   @Test
   public void testFailedUploadRetry()
     throws Throwable
@@ -415,6 +550,381 @@ public class UploadDownloadTests
   }
 
 
+  @Test
+  public void testResumeFailedUpload()
+    throws Throwable
+  {
+    // NOTE:  This test will log an exception stack trace that can be ignored
+    try
+    {
+      clearRetryCount();
+      _client.setRetryCount(3);
+      UploadOptions.getAbortCounters().setInjectionCounter(10);
+
+      // create test file - AWS requires a min 5M chunk size...
+      int chunkSize = 5 * 1024 * 1024;
+      int fileSize = 2 * chunkSize + 1000000;
+      File toUpload = TestUtils.createTextFile(fileSize);
+      String rootPrefix = TestUtils.addPrefix("resume-failed-upload");
+      URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+
+      UploadOptions upOpts = _client.getOptionsBuilderFactory()
+        .newUploadOptionsBuilder()
+        .setFile(toUpload)
+        .setBucketName(Utils.getBucketName(dest))
+        .setObjectKey(Utils.getObjectKey(dest))
+        .setChunkSize(chunkSize)
+        .setResume(true)
+        .createOptions();
+      try
+      {
+        _client.upload(upOpts).get();
+        Assert.fail("expected exception");
+      }
+      catch(ExecutionException ex)
+      {
+        Assert.assertTrue(TestUtils.findCause(ex, AbortInjection.class));
+        // expected
+      }
+
+      // the second run picks up the pending upload and completes it
+      UploadOptions.getAbortCounters().setInjectionCounter(0);
+      UploadOptions.getAbortCounters().clearInjectionCounters();
+      StoreFile f = _client.upload(upOpts).get();
+      Assert.assertNotNull(f);
+
+      File dlTemp = TestUtils.createTmpFile();
+      DownloadOptions dlOpts = _client.getOptionsBuilderFactory()
+        .newDownloadOptionsBuilder()
+        .setFile(dlTemp)
+        .setBucketName(Utils.getBucketName(dest))
+        .setObjectKey(Utils.getObjectKey(dest))
+        .setOverwrite(true)
+        .createOptions();
+      f = _client.download(dlOpts).get();
+      Assert.assertNotNull(f.getLocalFile());
+      Assert.assertTrue(TestUtils.compareFiles(toUpload, f.getLocalFile()));
+    }
+    finally
+    {
+      // reset retry and abort injection state so we don't affect other tests
+      TestUtils.resetRetryCount();
+      UploadOptions.getAbortCounters().setInjectionCounter(0);
+      UploadOptions.getAbortCounters().clearInjectionCounters();
+    }
+  }
+
+
+  @Test
+  public void testResumeFailedDownload()
+    throws Throwable
+  {
+    // NOTE:  This test will log an exception stack trace that can be ignored
+    int chunkSize = 5 * 1024 * 1024;
+    int fileSize = 3 * chunkSize + 1000;
+    File toUpload = TestUtils.createTextFile(fileSize);
+    String rootPrefix = TestUtils.addPrefix("resume-failed-download");
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+    Assert.assertNotNull(TestUtils.uploadFile(toUpload, dest, chunkSize));
+    int expectedCount = TestUtils.getExpectedPartCount(fileSize, chunkSize);
+
+    File dlTemp = TestUtils.createTmpFile();
+    DownloadOptions dlOpts = _client.getOptionsBuilderFactory()
+      .newDownloadOptionsBuilder()
+      .setFile(dlTemp)
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .setOverwrite(true)
+      .setResume(true)
+      .createOptions();
+    try
+    {
+      // the download fails right after its first part has been recorded in the sidecar
+      DownloadOptions.getAbortCounters().setInjectionCounter(1);
+      try
+      {
+        _client.download(dlOpts).get();
+        Assert.fail("expected exception");
+      }
+      catch(ExecutionException ex)
+      {
+        Assert.assertTrue(TestUtils.findCause(ex, AbortInjection.class));
+        // expected
+      }
+    }
+    finally
+    {
+      DownloadOptions.getAbortCounters().setInjectionCounter(0);
+      DownloadOptions.getAbortCounters().clearInjectionCounters();
+    }
+    Assert.assertTrue(dlTemp.exists());
+    Assert.assertTrue(DownloadJournal.getJournalFile(dlTemp).exists());
+    int written = DownloadJournal.open(dlTemp).getParts().size();
+    Assert.assertTrue(written >= 1);
+
+    // the second run only fetches the parts that were not recorded. Parts of the first run may
+    // still be in flight, so they report to a listener of their own.
+    final Set<String> fetched = new HashSet<String>();
+    dlOpts = _client.getOptionsBuilderFactory()
+      .newDownloadOptionsBuilder()
+      .setFile(dlTemp)
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .setOverwrite(true)
+      .setResume(true)
+      .setOverallProgressListenerFactory(new OverallProgressListenerFactory()
+      {
+        public OverallProgressListener create(ProgressOptions progressOptions)
+        {
+          return new OverallProgressListener()
+          {
+            public void progress(PartProgressEvent ev)
+            {
+              synchronized(fetched)
+              {
+                fetched.add(ev.getPartId());
+              }
+            }
+          };
+        }
+      })
+      .createOptions();
+    StoreFile f = _client.download(dlOpts).get();
+    Assert.assertNotNull(f);
+    synchronized(fetched)
+    {
+      Assert.assertEquals(expectedCount - written, fetched.size());
+    }
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, dlTemp));
+    Assert.assertFalse(DownloadJournal.getJournalFile(dlTemp).exists());
+  }
+
+
+  @Test
+  public void testContinuedPartDownload()
+    throws Throwable
+  {
+    int chunkSize = 5 * 1024 * 1024;
+    int fileSize = 3 * chunkSize + 1000;
+    File toUpload = TestUtils.createTextFile(fileSize);
+    String rootPrefix = TestUtils.addPrefix("continued-part-download");
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+    Assert.assertNotNull(TestUtils.uploadFile(toUpload, dest, chunkSize));
+
+    checkContinuedPartDownload(toUpload, dest, TestUtils.getExpectedPartCount(fileSize, chunkSize));
+  }
+
+
+  @Test
+  public void testContinuedPartEncryptedDownload()
+    throws Throwable
+  {
+    // generate new public/private key pair
+    File keyDir = TestUtils.createTmpDir(true);
+    TestUtils.setKeyProvider(keyDir);
+    String keyName = "cloud-store-ut-1";
+    TestUtils.createEncryptionKey(keyDir, keyName);
+
+    int chunkSize = 5 * 1024 * 1024;
+    int fileSize = 3 * chunkSize + 1000;
+    File toUpload = TestUtils.createTextFile(fileSize);
+    String rootPrefix = TestUtils.addPrefix("continued-part-encrypted-download");
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+    UploadOptions upOpts = _client.getOptionsBuilderFactory()
+      .newUploadOptionsBuilder()
+      .setFile(toUpload)
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .setChunkSize(chunkSize)
+      .setEncKey(keyName)
+      .createOptions();
+    Assert.assertNotNull(_client.upload(upOpts).get());
+
+    checkContinuedPartDownload(toUpload, dest, TestUtils.getExpectedPartCount(fileSize, chunkSize));
+  }
+
+
+  // every part fails once after its first buffer has been written, and continues from there
+  private void checkContinuedPartDownload(File toUpload, URI dest, int partCount)
+    throws Throwable
+  {
+    try
+    {
+      ThrowableRetriableTask.addRetryListener(this);
+      clearRetryCount();
+      DownloadOptions.getReadFailureCounters().setInjectionCounter(1);
+
+      File dlTemp = TestUtils.createTmpFile();
+      StoreFile f = TestUtils.downloadValidatedFile(dest, dlTemp);
+      Assert.assertNotNull(f.getLocalFile());
+      Assert.assertEquals(partCount, getRetryCount());
+      Assert.assertTrue(TestUtils.compareFiles(toUpload, f.getLocalFile()));
+    }
+    finally
+    {
+      DownloadOptions.getReadFailureCounters().setInjectionCounter(0);
+      DownloadOptions.getReadFailureCounters().clearInjectionCounters();
+    }
+  }
+
+
+  @Test
+  public void testSingleGetDownload()
+    throws Throwable
+  {
+    // GCS fetches the metadata of every object separately
+    Assume.assumeTrue(TestUtils.getService().equalsIgnoreCase("s3"));
+
+    // generate new public/private key pair
+    File keyDir = TestUtils.createTmpDir(true);
+    TestUtils.setKeyProvider(keyDir);
+    String keyName = "cloud-store-ut-1";
+    TestUtils.createEncryptionKey(keyDir, keyName);
+
+    String rootPrefix = TestUtils.addPrefix("single-get-download");
+    File small = TestUtils.createTextFile(3 * 1024 * 1024);
+    URI smallDest = TestUtils.getUri(_testBucket, small, rootPrefix);
+    Assert.assertNotNull(TestUtils.uploadFile(small, smallDest));
+    File encrypted = TestUtils.createTextFile(1024 * 1024);
+    URI encryptedDest = TestUtils.getUri(_testBucket, encrypted, rootPrefix);
+    Assert.assertNotNull(TestUtils.uploadEncryptedFile(encrypted, encryptedDest, keyName));
+    File large = TestUtils.createTextFile(DownloadCommand.SINGLE_GET_THRESHOLD + 1000);
+    URI largeDest = TestUtils.getUri(_testBucket, large, rootPrefix);
+    Assert.assertNotNull(TestUtils.uploadFile(large, largeDest));
+
+    // a client of its own counts the GETs of whole objects, so other downloads don't interfere
+    AtomicLong singleGets = new AtomicLong();
+    S3Client s3 = (S3Client) _client;
+    S3Client client = new S3Client(countSingleGets(s3._client, singleGets), s3.getApiExecutor(),
+      s3.getInternalExecutor(), s3.getKeyProvider());
+
+    // objects up to the threshold are fetched, metadata and content, with a single GET
+    File dlTemp = TestUtils.createTmpFile();
+    StoreFile f = TestUtils.downloadValidatedFile(client, smallDest, dlTemp);
+    Assert.assertEquals(1, singleGets.get());
+    Assert.assertTrue(TestUtils.compareFiles(small, f.getLocalFile()));
+
+    f = TestUtils.downloadFile(client, encryptedDest, dlTemp, true);
+    Assert.assertEquals(2, singleGets.get());
+    Assert.assertTrue(TestUtils.compareFiles(encrypted, f.getLocalFile()));
+
+    // larger objects are downloaded in ranges
+    f = TestUtils.downloadValidatedFile(client, largeDest, dlTemp);
+    Assert.assertEquals(2, singleGets.get());
+    Assert.assertTrue(TestUtils.compareFiles(large, f.getLocalFile()));
+  }
+
+
+  // wraps an S3 client to count the GETs of whole objects, as opposed to ranges of them
+  private static AmazonS3 countSingleGets(final AmazonS3 s3, final AtomicLong count)
+  {
+    return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(),
+      new Class<?>[]{AmazonS3.class}, new InvocationHandler()
+      {
+        public Object invoke(Object proxy, Method method, Object[] args)
+          throws Throwable
+        {
+          if(method.getName().equals("getObject") && args.length == 1 &&
+            args[0] instanceof GetObjectRequest && ((GetObjectRequest) args[0]).getRange() == null)
+          {
+            count.incrementAndGet();
+          }
+          try
+          {
+            return method.invoke(s3, args);
+          }
+          catch(InvocationTargetException e)
+          {
+            throw e.getCause();
+          }
+        }
+      });
+  }
+
+
+  @Test
+  public void testMultiRangeSinglePartDownload()
+    throws Throwable
+  {
+    // objects uploaded with a single PUT by other tools have the MD5 of their content as ETag
+    Assume.assumeTrue(TestUtils.getService().equalsIgnoreCase("s3"));
+
+    long fileSize = 2 * Utils.getDefaultChunkSize() + 1000;
+    File toUpload = TestUtils.createTextFile(fileSize);
+    String rootPrefix = TestUtils.addPrefix("multi-range-single-part");
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+    ((S3Client) _client)._client.putObject(Utils.getBucketName(dest), Utils.getObjectKey(dest),
+      toUpload);
+    Metadata meta = TestUtils.objectExists(Utils.getBucketName(dest), Utils.getObjectKey(dest));
+    Assert.assertNotNull(meta);
+    Assert.assertFalse(meta.getETag().contains("-"));
+
+    // downloaded in several ranges, and still validated against the MD5
+    File dlTemp = TestUtils.createTmpFile();
+    StoreFile f = TestUtils.downloadValidatedFile(dest, dlTemp);
+    Assert.assertNotNull(f.getLocalFile());
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, f.getLocalFile()));
+  }
+
+
+  @Test
+  public void testOrderedFileDigest()
+    throws Throwable
+  {
+    int regionSize = 100 * 1000;
+    int regionCount = 8;
+    final File file = TestUtils.createTextFile(regionCount * regionSize + 1000);
+    byte[] expected = DigestUtils.md5(Files.readAllBytes(file.toPath()));
+
+    // regions are reported out of order and from several threads at once
+    final OrderedFileDigest digest = new OrderedFileDigest(file, file.length());
+    List<Thread> threads = new ArrayList<Thread>();
+    final List<Throwable> failures = new ArrayList<Throwable>();
+    for(int i = regionCount; i >= 0; --i)
+    {
+      final long position = (long) i * regionSize;
+      final long length = Math.min(regionSize, file.length() - position);
+      Thread t = new Thread()
+      {
+        public void run()
+        {
+          try
+          {
+            digest.regionWritten(position, length);
+          }
+          catch(Throwable e)
+          {
+            synchronized(failures)
+            {
+              failures.add(e);
+            }
+          }
+        }
+      };
+      threads.add(t);
+      if(i == 0)
+      {
+        // the digest is only complete once the whole file has been written
+        for(Thread other : threads)
+        {
+          if(other != t)
+          {
+            other.join();
+          }
+        }
+        Assert.assertNull(digest.getDigest());
+      }
+      t.start();
+    }
+    for(Thread t : threads)
+    {
+      t.join();
+    }
+    Assert.assertTrue(failures.isEmpty());
+    Assert.assertTrue(Arrays.equals(expected, digest.getDigest()));
+  }
+
+
   @Test
   public void testUploadAttributes()
     throws Throwable
@@ -1194,7 +1704,7 @@ public class UploadDownloadTests
     Assert.assertEquals(Long.parseLong(destUserMeta.get("s3tool-chunk-size")),
       Utils.getDefaultChunkSize(fileSize));
     Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-file-length")), fileSize);
-    Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-version")), Version.CURRENT);
+    Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-version")), Version.UNIFORM_PARTS);
   }
 
   @Test
@@ -1226,7 +1736,231 @@ public class UploadDownloadTests
     Assert.assertEquals(destUserMeta.size(), 3);
     Assert.assertEquals(Long.parseLong(destUserMeta.get("s3tool-chunk-size")), chunkSize);
     Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-file-length")), fileSize);
-    Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-version")), Version.CURRENT);
+    Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-version")), Version.UNIFORM_PARTS);
+  }
+
+  @Test
+  public void testUploadStream()
+    throws Throwable
+  {
+    // Stream a file that spans two parts, without telling the length in advance
+    long chunkSize = Utils.getDefaultChunkSize();
+    long fileSize = chunkSize + 1024 * 1024;
+    File toUpload = TestUtils.createTextFile(fileSize);
+    String rootPrefix = TestUtils.addPrefix("test-upload-stream");
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+
+    UploadOptions upOpts = _client.getOptionsBuilderFactory()
+      .newUploadOptionsBuilder()
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .setChunkSize(chunkSize)
+      .createOptions();
+    UploadOutputStream out = _client.openUploadStream(upOpts);
+    Files.copy(toUpload.toPath(), out);
+    out.close();
+    Assert.assertNotNull(out.getStoreFile());
+
+    // the length is only known once the stream is closed, make sure it made it to the metadata
+    Metadata destMeta = TestUtils.objectExists(Utils.getBucketName(dest), Utils.getObjectKey(dest));
+    Assert.assertNotNull(destMeta);
+    Map<String, String> destUserMeta = destMeta.getUserMetadata();
+    Assert.assertEquals(Long.parseLong(destUserMeta.get("s3tool-chunk-size")), chunkSize);
+    Assert.assertEquals(Long.parseLong(destUserMeta.get("s3tool-file-length")), fileSize);
+
+    // download the file and compare it with the original
+    File dlTemp = TestUtils.createTmpFile();
+    StoreFile f = TestUtils.downloadFile(dest, dlTemp, true);
+    Assert.assertNotNull(f.getLocalFile());
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, f.getLocalFile()));
+  }
+
+  @Test
+  public void testOpenChannel()
+    throws Throwable
+  {
+    String keyName = "cloud-store-ut";
+    File keydir = TestUtils.createTmpDir(true);
+    TestUtils.createEncryptionKey(keydir, keyName);
+    TestUtils.setKeyProvider(keydir);
+
+    // encrypted file of two parts, so that ranges have to be mapped onto both of them
+    int chunkSize = 5 * 1024 * 1024;
+    int fileSize = chunkSize + 3000;
+    File toUpload = TestUtils.createTextFile(fileSize);
+    byte[] content = Files.readAllBytes(toUpload.toPath());
+    String rootPrefix = TestUtils.addPrefix("test-open-channel");
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+
+    UploadOptions upOpts = _client.getOptionsBuilderFactory()
+      .newUploadOptionsBuilder()
+      .setFile(toUpload)
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .setChunkSize(chunkSize)
+      .setEncKey(keyName)
+      .createOptions();
+    Assert.assertNotNull(_client.upload(upOpts).get());
+
+    DownloadOptions dlOpts = _client.getOptionsBuilderFactory()
+      .newDownloadOptionsBuilder()
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .createOptions();
+    try(SeekableByteChannel channel = _client.openChannel(dlOpts))
+    {
+      Assert.assertEquals(fileSize, channel.size());
+
+      // unaligned slice across the part boundary, then the footer
+      int[][] slices = {{chunkSize - 1001, 2005}, {fileSize - 17, 17}, {5, 100}};
+      for(int[] slice : slices)
+      {
+        ByteBuffer buf = ByteBuffer.allocate(slice[1]);
+        channel.position(slice[0]);
+        while(buf.hasRemaining() && channel.read(buf) != -1)
+        {
+        }
+        Assert.assertTrue(Arrays.equals(
+          Arrays.copyOfRange(content, slice[0], slice[0] + slice[1]), buf.array()));
+      }
+
+      channel.position(fileSize);
+      Assert.assertEquals(-1, channel.read(ByteBuffer.allocate(1)));
+    }
+  }
+
+  @Test
+  public void testOpenStream()
+    throws Throwable
+  {
+    // three parts, so that parts are in flight while the first one is read
+    int chunkSize = 5 * 1024 * 1024;
+    int fileSize = 2 * chunkSize + 1000;
+    File toUpload = TestUtils.createTextFile(fileSize);
+    String rootPrefix = TestUtils.addPrefix("test-open-stream");
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+
+    UploadOptions upOpts = _client.getOptionsBuilderFactory()
+      .newUploadOptionsBuilder()
+      .setFile(toUpload)
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .setChunkSize(chunkSize)
+      .createOptions();
+    Assert.assertNotNull(_client.upload(upOpts).get());
+
+    DownloadOptions dlOpts = _client.getOptionsBuilderFactory()
+      .newDownloadOptionsBuilder()
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .createOptions();
+    File dlTemp = TestUtils.createTmpFile();
+    try(InputStream in = _client.openStream(dlOpts))
+    {
+      Files.copy(in, dlTemp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, dlTemp));
+  }
+
+  @Test
+  public void testOpenStreamEncrypted()
+    throws Throwable
+  {
+    // generate new public/private key pair
+    File keyDir = TestUtils.createTmpDir(true);
+    TestUtils.setKeyProvider(keyDir);
+    String keyName = "cloud-store-ut-1";
+    TestUtils.createEncryptionKey(keyDir, keyName);
+
+    // three parts, the first two of which don't end with padding
+    int chunkSize = 5 * 1024 * 1024;
+    int fileSize = 2 * chunkSize + 1000;
+    File toUpload = TestUtils.createTextFile(fileSize);
+    String rootPrefix = TestUtils.addPrefix("test-open-stream-encrypted");
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+
+    UploadOptions upOpts = _client.getOptionsBuilderFactory()
+      .newUploadOptionsBuilder()
+      .setFile(toUpload)
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .setChunkSize(chunkSize)
+      .setEncKey(keyName)
+      .createOptions();
+    Assert.assertNotNull(_client.upload(upOpts).get());
+
+    DownloadOptions dlOpts = _client.getOptionsBuilderFactory()
+      .newDownloadOptionsBuilder()
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .createOptions();
+    File dlTemp = TestUtils.createTmpFile();
+    try(InputStream in = _client.openStream(dlOpts))
+    {
+      Files.copy(in, dlTemp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, dlTemp));
+  }
+
+  @Test
+  public void testHedgedDownload()
+    throws Throwable
+  {
+    int chunkSize = 5 * 1024 * 1024;
+    int fileSize = 3 * chunkSize + 1000;
+    File toUpload = TestUtils.createTextFile(fileSize);
+    String rootPrefix = TestUtils.addPrefix("test-hedged-download");
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+
+    UploadOptions upOpts = _client.getOptionsBuilderFactory()
+      .newUploadOptionsBuilder()
+      .setFile(toUpload)
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .setChunkSize(chunkSize)
+      .createOptions();
+    Assert.assertNotNull(_client.upload(upOpts).get());
+
+    try
+    {
+      _client.getOptionsBuilderFactory()
+        .newDownloadOptionsBuilder()
+        .setBucketName(Utils.getBucketName(dest))
+        .setObjectKey(Utils.getObjectKey(dest))
+        .setHedgeSlowdown(0.5)
+        .createOptions();
+      Assert.fail("expected exception");
+    }
+    catch(UsageException expected)
+    {
+      // expected
+    }
+
+    // the first part stalls long after the others have finished, so it is raced with a
+    // duplicate, which has to win and leave the file intact
+    long hedged = HedgePolicy.getTotalHedged();
+    long won = HedgePolicy.getTotalWon();
+    File dlTemp = TestUtils.createTmpFile();
+    DownloadOptions dlOpts = _client.getOptionsBuilderFactory()
+      .newDownloadOptionsBuilder()
+      .setFile(dlTemp)
+      .setBucketName(Utils.getBucketName(dest))
+      .setObjectKey(Utils.getObjectKey(dest))
+      .setOverwrite(true)
+      .setHedgeSlowdown(1)
+      .createOptions();
+    try
+    {
+      DownloadOptions.setStalledPart(0, 4 * HedgePolicy.MIN_ELAPSED_NANOS / 1000000);
+      Assert.assertNotNull(_client.download(dlOpts).get());
+    }
+    finally
+    {
+      DownloadOptions.setStalledPart(-1, 0);
+    }
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, dlTemp));
+    Assert.assertTrue(HedgePolicy.getTotalHedged() >= hedged + 1);
+    Assert.assertTrue(HedgePolicy.getTotalWon() >= won + 1);
   }
 
   @Test
@@ -1262,7 +1996,7 @@ public class UploadDownloadTests
     Assert.assertEquals(destUserMeta.size(), 6);
     Assert.assertEquals(Long.parseLong(destUserMeta.get("s3tool-chunk-size")), chunkSize);
     Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-file-length")), fileSize);
-    Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-version")), Version.CURRENT);
+    Assert.assertEquals(Integer.parseInt(destUserMeta.get("s3tool-version")), Version.UNIFORM_PARTS);
     Assert.assertEquals(destUserMeta.get("s3tool-key-name"), keyName);
 
     PrivateKey privKey = _client.getKeyProvider().getPrivateKey(keyName);
@@ -1277,6 +2011,87 @@ public class UploadDownloadTests
     Assert.assertEquals(destUserMeta.get("s3tool-pubkey-hash"), pubKeyHash.substring(0, 8));
   }
 
+  @Test
+  public void testAdaptiveUploadDownload()
+    throws Throwable
+  {
+    // only S3 uploads adapt their part sizes, see GCSUploadCommand
+    Assume.assumeTrue(TestUtils.getService().equalsIgnoreCase("s3"));
+
+    // large enough for adaptive part sizes with a lowered threshold, as long as no chunk size is
+    // set
+    long fileSize = 4 * PartSizePlanner.PROBE_PARTS * Utils.getDefaultChunkSize() + 1000;
+    String rootPrefix = TestUtils.addPrefix("adaptive-upload");
+    File toUpload = TestUtils.createTextFile(fileSize);
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+    // by default, probing is left to much larger files
+    Assert.assertFalse(PartSizePlanner.isWorthwhile(fileSize, Utils.getDefaultChunkSize()));
+    try
+    {
+      PartSizePlanner.setMinParts(PartSizePlanner.PROBE_PARTS);
+      Assert.assertNotNull(TestUtils.uploadFile(toUpload, dest));
+    }
+    finally
+    {
+      PartSizePlanner.setMinParts(PartSizePlanner.MIN_PARTS);
+    }
+
+    checkAdaptiveUploadDownload(toUpload, dest);
+  }
+
+  @Test
+  public void testAdaptiveEncryptedUploadDownload()
+    throws Throwable
+  {
+    // only S3 uploads adapt their part sizes, see GCSUploadCommand
+    Assume.assumeTrue(TestUtils.getService().equalsIgnoreCase("s3"));
+
+    // generate new public/private key pair
+    File keyDir = TestUtils.createTmpDir(true);
+    TestUtils.setKeyProvider(keyDir);
+    String keyName = "cloud-store-ut-1";
+    TestUtils.createEncryptionKey(keyDir, keyName);
+
+    long fileSize = 4 * PartSizePlanner.PROBE_PARTS * Utils.getDefaultChunkSize() + 1000;
+    String rootPrefix = TestUtils.addPrefix("adaptive-encrypted-upload");
+    File toUpload = TestUtils.createTextFile(fileSize);
+    URI dest = TestUtils.getUri(_testBucket, toUpload, rootPrefix);
+    try
+    {
+      PartSizePlanner.setMinParts(PartSizePlanner.PROBE_PARTS);
+      Assert.assertNotNull(TestUtils.uploadEncryptedFile(toUpload, dest, keyName));
+    }
+    finally
+    {
+      PartSizePlanner.setMinParts(PartSizePlanner.MIN_PARTS);
+    }
+
+    checkAdaptiveUploadDownload(toUpload, dest);
+  }
+
+  private void checkAdaptiveUploadDownload(File toUpload, URI dest)
+    throws Throwable
+  {
+    // the part sizes are recorded with the version that introduced them
+    Metadata meta = TestUtils.objectExists(Utils.getBucketName(dest), Utils.getObjectKey(dest));
+    Assert.assertNotNull(meta);
+    Map<String, String> userMeta = meta.getUserMetadata();
+    Assert.assertTrue(userMeta.containsKey(PartSizes.METADATA_KEY));
+    Assert.assertEquals(Integer.parseInt(userMeta.get("s3tool-version")), Version.CURRENT);
+    Assert.assertTrue(meta.getETag().contains("-"));
+
+    // the probe parts are not left behind in temporary objects
+    for(StoreFile obj : TestUtils.listObjects(_testBucket, "_" + Utils.getObjectKey(dest)))
+    {
+      Assert.assertFalse(S3MultipartUpload.isTempObjectKey(obj.getObjectKey()));
+    }
+
+    File dlTemp = TestUtils.createTmpFile();
+    StoreFile f = TestUtils.downloadValidatedFile(dest, dlTemp);
+    Assert.assertNotNull(f.getLocalFile());
+    Assert.assertTrue(TestUtils.compareFiles(toUpload, f.getLocalFile()));
+  }
+
   private synchronized int getPartCount()
   {
     return _partSet.size();